@@ -23,13 +23,30 @@
 package de.dhbw_mannheim.cloudraid.amazons3.impl.net.connector;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.activation.MimetypesFileTypeMap;
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.scribe.builder.ServiceBuilder;
 import org.scribe.model.OAuthRequest;
@@ -39,15 +56,53 @@ import org.scribe.oauth.OAuthService;
 
 import de.dhbw_mannheim.cloudraid.amazons3.impl.net.oauth.AmazonS3Api;
 import de.dhbw_mannheim.cloudraid.amazons3.impl.net.oauth.AmazonS3Service;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
-import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
+import de.dhbw_mannheim.cloudraid.config.exceptions.ConfigException;
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
 
 /**
+ * Files larger than <code>connector.ID.multipart.size</code> bytes are
+ * uploaded with the multipart upload of Amazon S3. The parts are uploaded by
+ * <code>connector.ID.multipart.threads</code> threads at once and every part
+ * is retried up to <code>connector.ID.multipart.retries</code> times. If the
+ * upload still fails, the uploaded parts are kept and a later upload of the
+ * same, unmodified file only uploads the missing parts.
+ * 
  * @author Markus Holtermann
  */
 public class AmazonS3Connector implements IStorageConnector {
 
+	/**
+	 * A multipart upload that has not been completed yet.
+	 */
+	private static class PendingUpload {
+		private String uploadId;
+		private long length;
+		private long lastModified;
+
+		PendingUpload(String uploadId, File f) {
+			this.uploadId = uploadId;
+			this.length = f.length();
+			this.lastModified = f.lastModified();
+		}
+
+		boolean matches(File f) {
+			return this.length == f.length()
+					&& this.lastModified == f.lastModified();
+		}
+	}
+
+	/**
+	 * The smallest part size Amazon S3 accepts for all but the last part
+	 */
+	private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
 	/**
 	 * The users public key
 	 */
@@ -63,6 +118,33 @@ public class AmazonS3Connector implements IStorageConnector {
 	 */
 	private String bucketname = null;
 
+	/**
+	 * The S3 endpoint or <code>null</code> for Amazon S3 itself
+	 */
+	private String endpoint = null;
+
+	/**
+	 * The size of a part of a multipart upload
+	 */
+	private int partSize;
+
+	/**
+	 * The number of parts uploaded at once
+	 */
+	private int partThreads;
+
+	/**
+	 * The number of times a failed part is retried
+	 */
+	private int partRetries;
+
+	private ExecutorService partExecutor = null;
+
+	/**
+	 * The multipart uploads that can be resumed, by object name
+	 */
+	private Map<String, PendingUpload> pendingUploads = new ConcurrentHashMap<String, PendingUpload>();
+
 	/**
 	 * The regarding {@link OAuthService}
 	 */
@@ -77,6 +159,11 @@ public class AmazonS3Connector implements IStorageConnector {
 
 	private final static MimetypesFileTypeMap MIME_MAP = new MimetypesFileTypeMap();
 
+	/**
+	 * The size of the buffer used to stream files to Amazon S3
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private int id = -1;
 
 	private boolean bucketExists(String name) {
@@ -108,6 +195,19 @@ public class AmazonS3Connector implements IStorageConnector {
 		this.service = (AmazonS3Service) new ServiceBuilder()
 				.provider(AmazonS3Api.class).apiKey(this.accessKeyId)
 				.apiSecret(this.secretAccessKey).build();
+		this.service.setEndpoint(this.endpoint);
+		if (this.partExecutor == null) {
+			this.partExecutor = Executors.newFixedThreadPool(
+					this.partThreads, new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "AmazonS3-part-"
+									+ AmazonS3Connector.this.id);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
 		if (!bucketExists(this.bucketname)) {
 			if (!createVolume(this.bucketname)) {
 				return false;
@@ -127,8 +227,12 @@ public class AmazonS3Connector implements IStorageConnector {
 	 * <ul>
 	 * <li><code>connector.ID.accessKeyId</code></li>
 	 * <li><code>connector.ID.secretAccessKey</code></li>
+	 * <li><code>connector.ID.bucket</code></li>
 	 * </ul>
 	 * 
+	 * Optionally, <code>connector.ID.endpoint</code> sets the URL of another
+	 * S3 compatible service, e.g. <code>http://localhost:9000/</code>.
+	 * 
 	 * @param connectorid
 	 *            The internal id of this connector.
 	 * @param config
@@ -142,6 +246,7 @@ public class AmazonS3Connector implements IStorageConnector {
 			throws InstantiationException {
 		this.id = connectorid;
 		this.config = config;
+		HttpConnections.configure(config);
 		String kAccessKeyId = String
 				.format("connector.%d.accessKeyId", this.id);
 		String ksecretAccessKey = String.format("connector.%d.secretAccessKey",
@@ -155,12 +260,26 @@ public class AmazonS3Connector implements IStorageConnector {
 				this.accessKeyId = this.config.getString(kAccessKeyId);
 				this.secretAccessKey = this.config.getString(ksecretAccessKey);
 				this.bucketname = this.config.getString(kBucketName);
+				this.endpoint = this.config.getString(
+						String.format("connector.%d.endpoint", this.id), null);
+				this.partSize = this.config.getInt(String.format(
+						"connector.%d.multipart.size", this.id),
+						16 * 1024 * 1024);
+				this.partThreads = this.config.getInt(String.format(
+						"connector.%d.multipart.threads", this.id), 4);
+				this.partRetries = this.config.getInt(String.format(
+						"connector.%d.multipart.retries", this.id), 3);
+				if (this.partSize < MIN_PART_SIZE || this.partThreads <= 0
+						|| this.partRetries < 0) {
+					throw new InstantiationException(
+							"Invalid multipart upload configuration");
+				}
 			} else {
 				throw new InstantiationException(kAccessKeyId + ", "
 						+ ksecretAccessKey + " and " + kBucketName
 						+ " have to be set in the config!");
 			}
-		} catch (MissingConfigValueException e) {
+		} catch (ConfigException e) {
 			e.printStackTrace();
 			throw new InstantiationException(e.getMessage());
 		}
@@ -174,8 +293,9 @@ public class AmazonS3Connector implements IStorageConnector {
 		request.addHeader("Content-Type", "application/x-www-form-urlencoded");
 		System.err.println(request);
 		this.service.signRequest(request);
-		Response response = request.send();
+		Response response = send(request);
 		System.out.println(response.getCode());
+		HttpConnections.release(response.getStream());
 		if (response.getCode() == 200) {
 			return true;
 		}
@@ -196,7 +316,17 @@ public class AmazonS3Connector implements IStorageConnector {
 
 	@Override
 	public void disconnect() {
-
+		// Uploads cannot be resumed after a restart, free their parts
+		for (Map.Entry<String, PendingUpload> e : this.pendingUploads
+				.entrySet()) {
+			abortMultipartUpload(e.getKey(), e.getValue().uploadId);
+		}
+		this.pendingUploads.clear();
+		if (this.partExecutor != null) {
+			this.partExecutor.shutdownNow();
+			this.partExecutor = null;
+		}
+		System.out.println(HttpConnections.getStatistics());
 	}
 
 	@Override
@@ -208,6 +338,19 @@ public class AmazonS3Connector implements IStorageConnector {
 		return response.getStream();
 	}
 
+	@Override
+	public InputStream get(String resource, long offset, long length) {
+		OAuthRequest request = new OAuthRequest(Verb.GET,
+				this.service.getBucketEndpoint(this.bucketname) + resource
+						+ "." + this.id);
+		request.addHeader("Range", RangedInputStream.header(offset, length));
+		this.service.signRequest(request);
+		Response response = send(request);
+		System.err.println(String.format("@Response(%d, GET, %s)",
+				response.getCode(), request.getCompleteUrl()));
+		return ranged(response, offset, length);
+	}
+
 	@Override
 	public byte[] getMetadata(String resource, int size) {
 		Response response = performGet(resource, "m");
@@ -218,22 +361,40 @@ public class AmazonS3Connector implements IStorageConnector {
 		byte meta[] = new byte[size];
 		Arrays.fill(meta, (byte) 0);
 		try {
-			bis.read(meta, 0, size);
+			int pos = 0;
+			int len;
+			while (pos < size
+					&& (len = bis.read(meta, pos, size - pos)) >= 0) {
+				pos += len;
+			}
 		} catch (IOException ignore) {
 			meta = null;
 		} finally {
-			try {
-				bis.close();
-			} catch (Exception ignore) {
-			}
+			HttpConnections.release(bis);
 		}
 		return meta;
 	}
 
+	@Override
+	public boolean putMetadata(String resource, byte[] data) {
+		System.out.println("PUT " + resource + ".m");
+		OAuthRequest request = new OAuthRequest(Verb.PUT,
+				this.service.getBucketEndpoint(this.bucketname) + resource
+						+ ".m");
+		request.addHeader("Content-Type", "application/octet-stream");
+		this.service.signRequest(request);
+		request.addPayload(data);
+		Response response = send(request);
+		System.out.println(response.getCode());
+		HttpConnections.release(response.getStream());
+		return response.getCode() == 200;
+	}
+
 	private boolean objectExists(String path) {
 		Response response = sendRequest(Verb.HEAD,
 				this.service.getBucketEndpoint(this.bucketname) + path);
-		return (response.getCode() == 204);
+		HttpConnections.release(response.getStream());
+		return (response.getCode() == 200 || response.getCode() == 204);
 	}
 
 	private boolean performDelete(String resource, String extension) {
@@ -248,9 +409,35 @@ public class AmazonS3Connector implements IStorageConnector {
 					.getBody());
 			return false;
 		}
+		HttpConnections.release(response.getStream());
 		return true;
 	}
 
+	/**
+	 * Limits the body of a response to a ranged GET request to the requested
+	 * range. A server that ignores the <code>Range</code> header answers with
+	 * the whole file, in this case the bytes before <code>offset</code> are
+	 * skipped.
+	 * 
+	 * @return The stream of the range or <code>null</code> if the request
+	 *         failed.
+	 */
+	private static InputStream ranged(Response response, long offset,
+			long length) {
+		try {
+			if (response.getCode() == 206) {
+				return new RangedInputStream(response.getStream(), 0, length);
+			} else if (response.getCode() == 200) {
+				return new RangedInputStream(response.getStream(), offset,
+						length);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		HttpConnections.release(response.getStream());
+		return null;
+	}
+
 	private Response performGet(String resource, String extension) {
 		System.out.println("GET " + resource + "." + extension);
 		Response response = sendRequest(Verb.GET,
@@ -258,6 +445,7 @@ public class AmazonS3Connector implements IStorageConnector {
 						+ "." + extension);
 		System.out.println(response.getCode());
 		if (response.getCode() != 200) {
+			HttpConnections.release(response.getStream());
 			return null;
 		}
 		return response;
@@ -283,15 +471,10 @@ public class AmazonS3Connector implements IStorageConnector {
 			}
 		}
 
-		byte[] fileBytes = new byte[(int) f.length()];
-		InputStream fis;
-		try {
-			fis = new FileInputStream(f);
-			fis.read(fileBytes);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+		if (f.length() > this.partSize) {
+			return performMultipartUpload(resource + "." + extension, f);
 		}
+
 		OAuthRequest request = new OAuthRequest(Verb.PUT,
 				this.service.getBucketEndpoint(this.bucketname) + resource
 						+ "." + extension);
@@ -299,17 +482,362 @@ public class AmazonS3Connector implements IStorageConnector {
 				AmazonS3Connector.MIME_MAP.getContentType(f));
 		this.service.signRequest(request);
 		// request.addHeader("Expect", "100-continue"); // TODO
-		request.addPayload(fileBytes);
-		Response response = request.send();
-		System.out.println(response.getCode());
-		System.err.print(response.getBody() == null ? "" : response.getBody());
-		if (response.getCode() == 411 || response.getCode() == 400) {
+		int code;
+		try {
+			code = sendFile(request, f, 0, f.length()).getResponseCode();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		System.out.println(code);
+		if (code == 411 || code == 400) {
 			System.err.println("Could not PUT file to AmazonS3.");
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Uploads the file <code>f</code> as object <code>name</code> in parts.
+	 * If a previous upload of the same file failed, only the parts missing
+	 * on the server are uploaded.
+	 * 
+	 * @param name
+	 *            The object name.
+	 * @param f
+	 *            The file to upload.
+	 * @return true, if the file could be uploaded; false, if not.
+	 */
+	private boolean performMultipartUpload(final String name, final File f) {
+		int count = (int) ((f.length() + this.partSize - 1) / this.partSize);
+		final String[] etags = new String[count];
+		PendingUpload pending = this.pendingUploads.remove(name);
+		if (pending != null
+				&& (!pending.matches(f) || !listParts(name, pending.uploadId,
+						f, etags))) {
+			abortMultipartUpload(name, pending.uploadId);
+			Arrays.fill(etags, null);
+			pending = null;
+		}
+		if (pending == null) {
+			String uploadId = initiateMultipartUpload(name, f);
+			if (uploadId == null) {
+				return false;
+			}
+			pending = new PendingUpload(uploadId, f);
+		}
+		this.pendingUploads.put(name, pending);
+
+		// Upload the missing parts in parallel
+		final String uploadId = pending.uploadId;
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < count; i++) {
+			if (etags[i] != null) {
+				futures.add(null);
+				continue;
+			}
+			final int part = i;
+			futures.add(this.partExecutor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return uploadPart(name, uploadId, f, part);
+				}
+			}));
+		}
+		boolean complete = true;
+		for (int i = 0; i < count; i++) {
+			try {
+				if (futures.get(i) != null) {
+					etags[i] = futures.get(i).get();
+				}
+			} catch (InterruptedException e) {
+				for (Future<String> future : futures) {
+					if (future != null) {
+						future.cancel(true);
+					}
+				}
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+			complete &= etags[i] != null;
+		}
+		if (!complete) {
+			System.err.println("Could not upload all parts of " + name
+					+ ", the upload can be resumed.");
+			return false;
+		}
+
+		if (!completeMultipartUpload(name, uploadId, etags)) {
+			return false;
+		}
+		this.pendingUploads.remove(name);
+		return true;
+	}
+
+	/**
+	 * @return The URL of the object <code>name</code> with the query
+	 *         <code>query</code>.
+	 */
+	private String objectUrl(String name, String query) {
+		return this.service.getBucketEndpoint(this.bucketname) + name + "?"
+				+ query;
+	}
+
+	/**
+	 * @return The URL encoded <code>value</code>.
+	 */
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Starts a multipart upload.
+	 * 
+	 * @return The upload id or <code>null</code> on failure.
+	 */
+	private String initiateMultipartUpload(String name, File f) {
+		OAuthRequest request = new OAuthRequest(Verb.POST, objectUrl(name,
+				"uploads"));
+		request.addHeader("Content-Type",
+				AmazonS3Connector.MIME_MAP.getContentType(f));
+		this.service.signRequest(request);
+		Response response = send(request);
+		System.out.println(response.getCode());
+		Document doc = parse(response);
+		if (response.getCode() != 200 || doc == null) {
+			System.err.println("Could not start the upload of " + name);
+			return null;
+		}
+		return text(doc.getDocumentElement(), "UploadId");
+	}
+
+	/**
+	 * Uploads one part of a multipart upload. A failed part is retried after
+	 * a pause that grows with every attempt.
+	 * 
+	 * @param part
+	 *            The index of the part, starting at <code>0</code>.
+	 * @return The ETag of the part or <code>null</code> on failure.
+	 */
+	private String uploadPart(String name, String uploadId, File f, int part) {
+		long offset = (long) part * this.partSize;
+		long length = Math.min(this.partSize, f.length() - offset);
+		for (int attempt = 0;; attempt++) {
+			OAuthRequest request = new OAuthRequest(Verb.PUT, objectUrl(name,
+					"partNumber=" + (part + 1) + "&uploadId="
+							+ encode(uploadId)));
+			this.service.signRequest(request);
+			try {
+				HttpURLConnection con = sendFile(request, f, offset, length);
+				if (con.getResponseCode() == 200) {
+					return con.getHeaderField("ETag");
+				}
+				System.err.println("Could not upload part " + (part + 1)
+						+ " of " + name + ": " + con.getResponseCode());
+			} catch (IOException e) {
+				System.err.println("Could not upload part " + (part + 1)
+						+ " of " + name + ": " + e.getMessage());
+			}
+			if (attempt >= this.partRetries) {
+				return null;
+			}
+			try {
+				Thread.sleep(1000L * (attempt + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Finds the parts of a multipart upload that are already on the server
+	 * and stores their ETags in <code>etags</code>. Parts whose size does not
+	 * match the file are ignored.
+	 * 
+	 * @return true, if the parts could be listed; false, if not.
+	 */
+	private boolean listParts(String name, String uploadId, File f,
+			String[] etags) {
+		String marker = "0";
+		while (true) {
+			Response response = sendRequest(Verb.GET, objectUrl(name,
+					"uploadId=" + encode(uploadId) + "&part-number-marker="
+							+ marker));
+			Document doc = parse(response);
+			if (response.getCode() != 200 || doc == null) {
+				return false;
+			}
+			NodeList parts = doc.getElementsByTagName("Part");
+			for (int i = 0; i < parts.getLength(); i++) {
+				Element part = (Element) parts.item(i);
+				int idx = Integer.parseInt(text(part, "PartNumber")) - 1;
+				long size = Long.parseLong(text(part, "Size"));
+				if (idx >= 0
+						&& idx < etags.length
+						&& size == Math.min(this.partSize, f.length()
+								- (long) idx * this.partSize)) {
+					etags[idx] = text(part, "ETag");
+				}
+			}
+			if (!"true".equals(text(doc.getDocumentElement(), "IsTruncated"))) {
+				return true;
+			}
+			marker = text(doc.getDocumentElement(), "NextPartNumberMarker");
+		}
+	}
+
+	/**
+	 * Completes a multipart upload with all its parts.
+	 * 
+	 * @return true, if the object was created; false, if not.
+	 */
+	private boolean completeMultipartUpload(String name, String uploadId,
+			String[] etags) {
+		StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+		for (int i = 0; i < etags.length; i++) {
+			body.append("<Part><PartNumber>").append(i + 1)
+					.append("</PartNumber><ETag>").append(etags[i])
+					.append("</ETag></Part>");
+		}
+		body.append("</CompleteMultipartUpload>");
+		OAuthRequest request = new OAuthRequest(Verb.POST, objectUrl(name,
+				"uploadId=" + encode(uploadId)));
+		request.addHeader("Content-Type", "application/xml");
+		this.service.signRequest(request);
+		request.addPayload(body.toString());
+		Response response = send(request);
+		System.out.println(response.getCode());
+		// Errors may be reported with status code 200
+		Document doc = parse(response);
+		if (response.getCode() != 200 || doc == null
+				|| "Error".equals(doc.getDocumentElement().getTagName())) {
+			System.err.println("Could not complete the upload of " + name);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Aborts a multipart upload and frees its parts on the server.
+	 */
+	private void abortMultipartUpload(String name, String uploadId) {
+		Response response = sendRequest(Verb.DELETE, objectUrl(name,
+				"uploadId=" + encode(uploadId)));
+		HttpConnections.release(response.getStream());
+		if (response.getCode() != 204) {
+			System.err.println("Could not abort the upload of " + name);
+		}
+	}
+
+	/**
+	 * @return The XML body of the <code>response</code> or <code>null</code>
+	 *         if it cannot be parsed.
+	 */
+	private static Document parse(Response response) {
+		try {
+			return DocumentBuilderFactory
+					.newInstance()
+					.newDocumentBuilder()
+					.parse(new ByteArrayInputStream(response.getBody()
+							.getBytes("UTF-8")));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The text of the first element <code>tag</code> below
+	 *         <code>parent</code> or <code>null</code>.
+	 */
+	private static String text(Element parent, String tag) {
+		NodeList nodes = parent.getElementsByTagName(tag);
+		if (nodes.getLength() == 0) {
+			return null;
+		}
+		return nodes.item(0).getTextContent().trim();
+	}
+
+	/**
+	 * Sends the signed <code>request</code> with <code>length</code> bytes of
+	 * <code>f</code> starting at <code>offset</code> as body. The file is
+	 * streamed to the server with a fixed content length instead of being
+	 * read into memory first.
+	 * 
+	 * @param request
+	 *            The signed request without a payload.
+	 * @param f
+	 *            The file to send.
+	 * @param offset
+	 *            The first byte of the file to send.
+	 * @param length
+	 *            The number of bytes to send.
+	 * @return The connection after the response has been read.
+	 * @throws IOException
+	 *             Thrown, if the file cannot be read or sent.
+	 */
+	private static HttpURLConnection sendFile(OAuthRequest request, File f,
+			long offset, long length) throws IOException {
+		HttpURLConnection con = HttpConnections.open(request
+				.getCompleteUrl());
+		con.setRequestMethod(request.getVerb().name());
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			con.setRequestProperty(header.getKey(), header.getValue());
+		}
+		con.setDoOutput(true);
+		if (length <= Integer.MAX_VALUE) {
+			con.setFixedLengthStreamingMode((int) length);
+		} else {
+			con.setChunkedStreamingMode(BUFFER_SIZE);
+		}
+		byte[] buf = new byte[BUFFER_SIZE];
+		int len;
+		FileInputStream is = new FileInputStream(f);
+		try {
+			is.getChannel().position(offset);
+			OutputStream os = con.getOutputStream();
+			try {
+				for (long left = length; left > 0; left -= len) {
+					len = is.read(buf, 0, (int) Math.min(buf.length, left));
+					if (len < 0) {
+						throw new IOException("Unexpected end of " + f);
+					}
+					os.write(buf, 0, len);
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+
+		// Read the whole response, so the connection can be reused
+		int code = con.getResponseCode();
+		InputStream body = code >= 400 ? con.getErrorStream() : con
+				.getInputStream();
+		if (body != null) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				while ((len = body.read(buf)) >= 0) {
+					bos.write(buf, 0, len);
+				}
+			} finally {
+				body.close();
+			}
+			if (code >= 400) {
+				System.err.println(bos.toString());
+			}
+		}
+		return con;
+	}
+
 	/**
 	 * Creates a {@link org.scribe.model.OAuthRequest} to <code>endpoint</code>
 	 * as a HTTP <code>verb</code> Request Method. The request is signed with
@@ -327,12 +855,24 @@ public class AmazonS3Connector implements IStorageConnector {
 		OAuthRequest request = new OAuthRequest(verb, endpoint);
 		System.err.println(request);
 		this.service.signRequest(request);
-		Response response = request.send();
+		Response response = send(request);
 		System.err.println(String.format("@Response(%d, %s, %s)",
 				response.getCode(), verb, endpoint));
 		return response;
 	}
 
+	/**
+	 * Sends a request over a kept-alive connection.
+	 * 
+	 * @param request
+	 *            The signed request.
+	 * @return The response of the server.
+	 */
+	private static Response send(OAuthRequest request) {
+		request.setConnectionKeepAlive(true);
+		return request.send();
+	}
+
 	@Override
 	public boolean update(String resource) {
 		System.out.println("Update " + resource + "." + this.id);
@@ -22,13 +22,18 @@
 
 package de.dhbw_mannheim.cloudraid.amazons3.impl.net.oauth;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.scribe.extractors.HeaderExtractorImpl;
 import org.scribe.model.OAuthRequest;
@@ -44,6 +49,14 @@ public class AmazonS3HeaderExtractor extends HeaderExtractorImpl {
 	 */
 	private static final String PARAM_SEPARATOR = "\n";
 
+	/**
+	 * The query parameters that are part of the canonicalized resource
+	 */
+	private static final List<String> SUB_RESOURCES = Arrays.asList("acl",
+			"lifecycle", "location", "logging", "notification", "partNumber",
+			"policy", "requestPayment", "torrent", "uploadId", "uploads",
+			"versionId", "versioning", "versions", "website");
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -71,7 +84,7 @@ public class AmazonS3HeaderExtractor extends HeaderExtractorImpl {
 				contentType = parameters.get(key);
 			} else if (key.equalsIgnoreCase("Date")) {
 				date = parameters.get(key);
-			} else if (key.substring(0, 6).equalsIgnoreCase("X-AMZ-")) {
+			} else if (key.toLowerCase().startsWith("x-amz-")) {
 				xAmz.add(key);
 			}
 		}
@@ -100,16 +113,20 @@ public class AmazonS3HeaderExtractor extends HeaderExtractorImpl {
 		}
 
 		// generate the canonicalized resource
-		String url = request.getSanitizedUrl().substring(8);
-		if (!url.startsWith(AmazonS3Api.S3_BASE_URL)) {
+		String url = request.getSanitizedUrl();
+		url = url.substring(url.indexOf("://") + 3);
+		String host = url.substring(0, url.indexOf('/'));
+		if (host.endsWith("." + AmazonS3Api.S3_BASE_URL)) {
+			// virtual hosted-style request
 			canonicalizedResource += "/";
 			canonicalizedResource += url.substring(0, url.indexOf('.'));
 		}
 		canonicalizedResource += url.substring(url.indexOf('/'));
 
-		// TODO: Implement step 4 of
-		// "Constructing the CanonicalizedResource Element" at
+		// Step 4 of "Constructing the CanonicalizedResource Element" at
 		// http://docs.amazonwebservices.com/AmazonS3/latest/dev/RESTAuthentication.html
+		canonicalizedResource += extractSubResources(request
+				.getCompleteUrl());
 
 		header.append(AmazonS3HeaderExtractor.PARAM_SEPARATOR);
 		header.append(canonicalizedResource);
@@ -119,4 +136,37 @@ public class AmazonS3HeaderExtractor extends HeaderExtractorImpl {
 		System.out.flush();
 		return header.toString();
 	}
+
+	/**
+	 * @param url
+	 *            The complete URL of a request.
+	 * @return The sub-resources of the URL as they are appended to the
+	 *         canonicalized resource, e.g. <code>?partNumber=1&uploadId=2</code>
+	 */
+	private static String extractSubResources(String url) {
+		int idx = url.indexOf('?');
+		if (idx < 0) {
+			return "";
+		}
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		for (String param : url.substring(idx + 1).split("&")) {
+			String[] kv = param.split("=", 2);
+			if (SUB_RESOURCES.contains(kv[0])) {
+				try {
+					params.put(kv[0], kv.length > 1 ? URLDecoder.decode(
+							kv[1], "UTF-8") : null);
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : params.entrySet()) {
+			sb.append(sb.length() == 0 ? '?' : '&').append(e.getKey());
+			if (e.getValue() != null) {
+				sb.append('=').append(e.getValue());
+			}
+		}
+		return sb.toString();
+	}
 }
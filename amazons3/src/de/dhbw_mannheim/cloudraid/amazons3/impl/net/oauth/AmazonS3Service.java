@@ -51,6 +51,11 @@ public class AmazonS3Service implements OAuthService {
 	 */
 	private OAuthConfig config;
 
+	/**
+	 * The S3 endpoint, <code>null</code> for Amazon S3
+	 */
+	private String endpoint = null;
+
 	/**
 	 * This constructs a new OAuthService for AmazonS3 that handles the
 	 * non-standard login and access-token generation
@@ -93,7 +98,7 @@ public class AmazonS3Service implements OAuthService {
 	 * @return The bucket endpoint with taking care of capital letters
 	 */
 	public String getBucketEndpoint(String bucket) {
-		return this.api.getS3Endpoint() + bucket + "/";
+		return this.getS3Endpoint() + bucket + "/";
 	}
 
 	/**
@@ -106,11 +111,26 @@ public class AmazonS3Service implements OAuthService {
 
 	/**
 	 * 
-	 * @return Returns the Amazon S3 base URL:
+	 * @return Returns the S3 base URL, by default the Amazon S3 base URL:
 	 *         <code>https://s3.amazonaws.com</code>
 	 */
 	public String getS3Endpoint() {
-		return this.api.getS3Endpoint();
+		return this.endpoint != null ? this.endpoint : this.api
+				.getS3Endpoint();
+	}
+
+	/**
+	 * Sets the URL of an S3 compatible service to use instead of Amazon S3.
+	 * 
+	 * @param endpoint
+	 *            The base URL ending with a slash or <code>null</code> for
+	 *            Amazon S3.
+	 */
+	public void setEndpoint(String endpoint) {
+		if (endpoint != null && !endpoint.endsWith("/")) {
+			endpoint += "/";
+		}
+		this.endpoint = endpoint;
 	}
 
 	/**
@@ -169,18 +169,40 @@ public class Config extends HashMap<String, String> implements ICloudRAIDConfig
 	 */
 	public Config() {
 		Config.allowedCiphers.put("AES", 256);
+		Config.defaultData.put("chunk.size", "0");
+		Config.defaultData.put("chunk.uploads", "false");
 		Config.defaultData
 				.put("filesize.max", "" + Config.DEFAULT_FILESIZE_MAX);
+		Config.defaultData.put("http.connections", "8");
+		Config.defaultData.put("inline.size", "16384");
 		Config.defaultData.put("merge.input.dir",
 				Config.DEFAULT_MERGE_INPUT_DIR);
 		Config.defaultData.put("merge.output.dir",
 				Config.DEFAULT_MERGE_OUTPUT_DIR);
+		Config.defaultData.put("merge.streaming", "true");
+		Config.defaultData.put("pack.compact.interval", "3600");
+		Config.defaultData.put("pack.compact.ratio", "50");
+		Config.defaultData.put("pack.delay", "10");
+		Config.defaultData.put("pack.size", "16777216");
+		Config.defaultData.put("pack.threshold", "1048576");
+		Config.defaultData.put("raid.blocksize", "65536");
+		Config.defaultData.put("raid.codec", "native");
+		Config.defaultData.put("raid.threads", "0");
 		Config.defaultData.put("split.input.dir",
 				Config.DEFAULT_SPLIT_INPUT_DIR);
 		Config.defaultData.put("split.output.dir",
 				Config.DEFAULT_SPLIT_OUTPUT_DIR);
+		Config.defaultData.put("split.streaming", "true");
+		Config.defaultData.put("transfer.hedge.percentile", "95");
+		Config.defaultData.put("transfer.threads", "6");
+		Config.defaultData.put("transfer.timeout", "60");
+		Config.defaultData.put("transfer.virtual", "false");
 		Config.defaultData.put("upload.dir", Config.DEFAULT_UPLOAD_DIR);
 		Config.defaultData.put("upload.asynchronous", "true");
+		Config.defaultData.put("upload.queue.size", "64");
+		Config.defaultData.put("upload.queue.timeout", "30");
+		Config.defaultData.put("upload.retry.delay", "30");
+		Config.defaultData.put("upload.threads", "2");
 		Config.defaultData.put("database.name", Config.DEFAULT_DATABASE_NAME);
 		Config.defaultData.put("filemanagement.count", ""
 				+ Config.DEFAULT_FILEMANAGEMENT_COUNT);
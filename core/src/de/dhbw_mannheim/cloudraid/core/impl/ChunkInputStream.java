@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Concatenates the chunks of a file. A chunk is only opened once the previous
+ * one has been read completely, so at most one chunk is open at a time.
+ * 
+ * @author Markus Holtermann
+ */
+class ChunkInputStream extends InputStream {
+
+	/**
+	 * Opens a chunk.
+	 */
+	interface Opener {
+
+		/**
+		 * @param index
+		 *            The index of the chunk.
+		 * @return The merged chunk.
+		 * @throws IOException
+		 *             Thrown if the chunk cannot be opened.
+		 */
+		public InputStream open(int index) throws IOException;
+
+	}
+
+	private Opener opener;
+	private int count;
+	private int next = 0;
+	private InputStream current = null;
+	private byte[] single = new byte[1];
+
+	/**
+	 * @param count
+	 *            The number of chunks.
+	 * @param opener
+	 *            Opens the chunks.
+	 */
+	ChunkInputStream(int count, Opener opener) {
+		this.count = count;
+		this.opener = opener;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = this.read(this.single, 0, 1);
+		return read < 0 ? -1 : this.single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (this.current == null) {
+				if (this.next >= this.count) {
+					return -1;
+				}
+				this.current = this.opener.open(this.next++);
+			}
+			int read = this.current.read(b, off, len);
+			if (read >= 0) {
+				return read;
+			}
+			this.current.close();
+			this.current = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.next = this.count;
+		if (this.current != null) {
+			this.current.close();
+			this.current = null;
+		}
+	}
+
+}
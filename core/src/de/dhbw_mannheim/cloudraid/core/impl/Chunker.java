@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks. A chunk ends where the Gear
+ * rolling hash of the last 64 bytes has its upper bits cleared, so an
+ * insertion or deletion only changes the chunks around it and the following
+ * chunks are found again. Chunks are at least a quarter and at most four
+ * times as long as the average size.
+ * 
+ * @author Markus Holtermann
+ */
+public class Chunker {
+
+	/**
+	 * The random value of every byte. It is fixed, since chunks are only
+	 * found again with the same table.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x436c6f75645241L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private InputStream in;
+	private int min;
+	private int max;
+	private long mask;
+
+	private byte[] buf;
+	private int len = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param in
+	 *            The stream to split.
+	 * @param average
+	 *            The average size of the chunks, a power of two.
+	 */
+	public Chunker(InputStream in, int average) {
+		if (average < 64 || Integer.bitCount(average) != 1) {
+			throw new IllegalArgumentException("Invalid chunk size "
+					+ average);
+		}
+		this.in = in;
+		this.min = average / 4;
+		this.max = average * 4;
+		this.mask = -1L << (64 - Integer.numberOfTrailingZeros(average));
+		this.buf = new byte[this.max];
+	}
+
+	/**
+	 * @return The maximum size of a chunk.
+	 */
+	public int getMaximum() {
+		return this.max;
+	}
+
+	/**
+	 * Reads the next chunk.
+	 * 
+	 * @return The chunk or <code>null</code> at the end of the stream.
+	 * @throws IOException
+	 *             Thrown if the stream cannot be read.
+	 */
+	public byte[] next() throws IOException {
+		while (!this.eof && this.len < this.max) {
+			int read = this.in.read(this.buf, this.len, this.max - this.len);
+			if (read < 0) {
+				this.eof = true;
+			} else {
+				this.len += read;
+			}
+		}
+		if (this.len == 0) {
+			return null;
+		}
+		int cut = this.cut();
+		byte[] chunk = Arrays.copyOf(this.buf, cut);
+		System.arraycopy(this.buf, cut, this.buf, 0, this.len - cut);
+		this.len -= cut;
+		return chunk;
+	}
+
+	/**
+	 * @return The length of the chunk at the start of the buffer.
+	 */
+	private int cut() {
+		if (this.len <= this.min) {
+			return this.len;
+		}
+		long hash = 0;
+		for (int i = this.min; i < this.len; i++) {
+			hash = (hash << 1) + GEAR[this.buf[i] & 0xff];
+			if ((hash & this.mask) == 0) {
+				return i + 1;
+			}
+		}
+		return this.len;
+	}
+
+}
@@ -24,17 +24,27 @@ package de.dhbw_mannheim.cloudraid.core.impl;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collection;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.ConfigException;
+import de.dhbw_mannheim.cloudraid.config.exceptions.InvalidConfigValueException;
 import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
 import de.dhbw_mannheim.cloudraid.core.ICloudRAIDService;
 import de.dhbw_mannheim.cloudraid.core.ICoreAccess;
 import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidAccessInterface;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.IRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.JavaRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.NativeRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.Raid5Metadata;
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.metadatamgr.ICloudFile;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager.FILE_STATUS;
 
 /**
  * @author Markus Holtermann
@@ -44,6 +54,8 @@ public class CloudRAIDService implements ICloudRAIDService {
 
 	private ICloudRAIDConfig config = null;
 
+	private IMetadataManager metadata = null;
+
 	private IStorageConnector[] storageConnectors = { null, null, null };
 	private String[] storageConnectorClassnames = { null, null, null };
 
@@ -55,24 +67,45 @@ public class CloudRAIDService implements ICloudRAIDService {
 
 	private String splitOutputDir;
 
+	private IRaidCodec codec = null;
+
+	private TransferExecutor transfers = null;
+
+	private ReadPlanner planner = new ReadPlanner(3);
+
+	private UploadScheduler uploads = null;
+
+	private PackStore packs = null;
+
 	@Override
 	public String getRAIDName() {
-		return RaidAccessInterface.getName();
+		return this.codec.getName();
 	}
 
 	@Override
 	public String getRAIDVendor() {
-		return RaidAccessInterface.getVendor();
+		return this.codec.getVendor();
 	}
 
 	@Override
 	public String getRAIDVersion() {
-		return RaidAccessInterface.getVersion();
+		return this.codec.getVersion();
 	}
 
 	@Override
 	public synchronized ICoreAccess getSlot() throws InstantiationException {
-		return new CoreAccess();
+		return new CoreAccess(this.codec, this.transfers, this.planner,
+				this.uploads, this.packs);
+	}
+
+	@Override
+	public int getUploadQueueDepth() {
+		return this.uploads.getQueueDepth();
+	}
+
+	@Override
+	public long getUploadQueueAge() {
+		return this.uploads.getQueueAge();
 	}
 
 	@Override
@@ -86,6 +119,230 @@ public class CloudRAIDService implements ICloudRAIDService {
 		return this.storageConnectors;
 	}
 
+	/**
+	 * Creates the {@link IRaidCodec} defined by <code>raid.codec</code>. The
+	 * value <code>native</code> selects the native library and falls back to
+	 * the Java codec if the library cannot be loaded. The value
+	 * <code>java</code> always selects the Java codec. New files are split
+	 * with the block size <code>raid.blocksize</code>. The native library
+	 * splits and merges with <code>raid.threads</code> threads, the value
+	 * <code>0</code> selects one thread per processor.
+	 * 
+	 * @throws ConfigException
+	 *             Thrown, if the value of <code>raid.codec</code> is unknown
+	 *             or <code>raid.blocksize</code> or <code>raid.threads</code>
+	 *             is out of range.
+	 */
+	private void initCodec() throws ConfigException {
+		String name = this.config.getString("raid.codec", "native");
+		int blockSize = this.config.getInt("raid.blocksize",
+				Raid5Metadata.DEFAULT_BLOCK_SIZE);
+		if (blockSize <= 0 || blockSize > Raid5Metadata.MAX_BLOCK_SIZE) {
+			throw new InvalidConfigValueException("Invalid RAID block size "
+					+ blockSize);
+		}
+		int threads = this.config.getInt("raid.threads", 0);
+		if (threads < 0) {
+			throw new InvalidConfigValueException("Invalid RAID thread count "
+					+ threads);
+		}
+		if ("java".equals(name)) {
+			this.codec = new JavaRaidCodec(blockSize);
+		} else if ("native".equals(name)) {
+			try {
+				RaidAccessInterface.getName();
+				RaidAccessInterface.setThreadCount(threads);
+				this.codec = new NativeRaidCodec(blockSize);
+			} catch (LinkageError e) {
+				System.err
+						.println("Cannot load the native RAID library. Using the Java implementation instead: "
+								+ e.getMessage());
+				this.codec = new JavaRaidCodec(blockSize);
+			}
+		} else {
+			throw new InvalidConfigValueException("Invalid RAID codec "
+					+ name);
+		}
+		System.out.println("CloudRAIDService: using RAID codec "
+				+ this.codec.getClass().getSimpleName() + " with block size "
+				+ blockSize);
+	}
+
+	/**
+	 * Creates the {@link TransferExecutor} for the device files. Up to
+	 * <code>transfer.threads</code> transfers run at once. A transfer is not
+	 * limited in its duration, a stalled one fails once its connection did not
+	 * make progress for <code>transfer.timeout</code> seconds, see
+	 * {@link HttpConnections}. The value <code>0</code> disables the timeout.
+	 * A read is hedged with the next connector once it takes
+	 * longer than the <code>transfer.hedge.percentile</code> of the latencies
+	 * of its connector. The value <code>0</code> disables hedging. If
+	 * <code>transfer.virtual</code> is set and the runtime supports it, every
+	 * transfer runs on its own virtual thread.
+	 * 
+	 * @throws ConfigException
+	 *             Thrown, if a value is out of range.
+	 */
+	private void initTransfers() throws ConfigException {
+		int threads = this.config.getInt("transfer.threads", 6);
+		int timeout = this.config.getInt("transfer.timeout",
+				HttpConnections.DEFAULT_TIMEOUT);
+		boolean virtual = this.config.getBoolean("transfer.virtual", false);
+		double percentile = this.config.getDouble("transfer.hedge.percentile",
+				95.0);
+		if (threads <= 0) {
+			throw new InvalidConfigValueException(
+					"Invalid number of transfer threads " + threads);
+		}
+		if (timeout < 0) {
+			throw new InvalidConfigValueException("Invalid transfer timeout "
+					+ timeout);
+		}
+		if (percentile < 0 || percentile > 100) {
+			throw new InvalidConfigValueException(
+					"Invalid transfer hedge percentile " + percentile);
+		}
+		HttpConnections.configure(this.config);
+		this.transfers = new TransferExecutor(threads, virtual);
+		if (virtual && !this.transfers.isVirtual()) {
+			System.err
+					.println("CloudRAIDService: virtual threads are not supported, using platform threads for the transfers");
+		}
+		this.planner.setHedgePercentile(percentile);
+	}
+
+	/**
+	 * Creates the {@link UploadScheduler} that splits and distributes the
+	 * uploaded files on <code>upload.threads</code> threads. Up to
+	 * <code>upload.queue.size</code> files wait for a thread, further uploads
+	 * wait up to <code>upload.queue.timeout</code> seconds for room in the
+	 * queue. A file that failed is retried after
+	 * <code>upload.retry.delay</code> seconds, which double with every
+	 * further failure of the file.
+	 * 
+	 * @throws ConfigException
+	 *             Thrown, if a value is out of range.
+	 */
+	private void initUploads() throws ConfigException {
+		int threads = this.config.getInt("upload.threads", 2);
+		int size = this.config.getInt("upload.queue.size", 64);
+		int timeout = this.config.getInt("upload.queue.timeout", 30);
+		int retry = this.config.getInt("upload.retry.delay", 30);
+		if (threads <= 0) {
+			throw new InvalidConfigValueException(
+					"Invalid number of upload threads " + threads);
+		}
+		if (size <= 0) {
+			throw new InvalidConfigValueException("Invalid upload queue size "
+					+ size);
+		}
+		if (timeout < 0) {
+			throw new InvalidConfigValueException(
+					"Invalid upload queue timeout " + timeout);
+		}
+		if (retry <= 0) {
+			throw new InvalidConfigValueException("Invalid upload retry delay "
+					+ retry);
+		}
+		this.uploads = new UploadScheduler(threads, size, timeout * 1000L);
+		this.uploads.setRetryDelay(retry * 1000L);
+		this.uploads.setRecovery(new Runnable() {
+			@Override
+			public void run() {
+				recoverUploads(false);
+			}
+		});
+	}
+
+	/**
+	 * Creates the {@link PackStore} that stores files whose data devices do
+	 * not exceed <code>pack.threshold</code> bytes in packs. The pack object
+	 * of a connector is uploaded once it exceeds <code>pack.size</code> bytes
+	 * or after <code>pack.delay</code> seconds. Every
+	 * <code>pack.compact.interval</code> seconds the files of packs whose
+	 * files take at most <code>pack.compact.ratio</code> percent of their
+	 * size are moved to new packs. The value <code>0</code> of
+	 * <code>pack.size</code> disables the packs, the value <code>0</code> of
+	 * <code>pack.compact.interval</code> disables the compaction.
+	 * 
+	 * @throws ConfigException
+	 *             Thrown, if a value is out of range.
+	 */
+	private void initPacks() throws ConfigException {
+		long size = this.config.getLong("pack.size", 16L * 1024 * 1024);
+		int threshold = this.config.getInt("pack.threshold", 1024 * 1024);
+		int delay = this.config.getInt("pack.delay", 10);
+		int interval = this.config.getInt("pack.compact.interval", 3600);
+		int ratio = this.config.getInt("pack.compact.ratio", 50);
+		if (size < 0) {
+			throw new InvalidConfigValueException("Invalid pack size " + size);
+		}
+		if (threshold < 0 || threshold > size) {
+			throw new InvalidConfigValueException("Invalid pack threshold "
+					+ threshold);
+		}
+		if (delay < 0) {
+			throw new InvalidConfigValueException("Invalid pack delay "
+					+ delay);
+		}
+		if (interval < 0) {
+			throw new InvalidConfigValueException(
+					"Invalid pack compaction interval " + interval);
+		}
+		if (ratio < 0 || ratio > 100) {
+			throw new InvalidConfigValueException(
+					"Invalid pack compaction ratio " + ratio);
+		}
+		if (size == 0 || this.metadata == null) {
+			return;
+		}
+		this.packs = new PackStore(this, this.metadata, this.transfers,
+				this.splitOutputDir, size, threshold, delay * 1000L);
+		if (interval > 0) {
+			this.packs.startCompaction(interval * 1000L, ratio);
+		}
+	}
+
+	/**
+	 * Queues the files whose upload is not finished. The meta data database
+	 * is the persistent part of the upload queue: files that were rejected by
+	 * a full queue stay in the state {@link FILE_STATUS#UPLOADED UPLOADED} or
+	 * {@link FILE_STATUS#SPLITTED SPLITTED}. On startup, files that were
+	 * interrupted while being split or distributed are queued as well.
+	 * 
+	 * @param startup
+	 *            <code>true</code> if no file is being processed yet.
+	 */
+	private void recoverUploads(boolean startup) {
+		if (this.metadata == null) {
+			return;
+		}
+		FILE_STATUS[] states = startup ? new FILE_STATUS[] {
+				FILE_STATUS.UPLOADED, FILE_STATUS.SPLITTING,
+				FILE_STATUS.SPLITTED, FILE_STATUS.DISTRIBUTING }
+				: new FILE_STATUS[] { FILE_STATUS.UPLOADED,
+						FILE_STATUS.SPLITTED };
+		int count = 0;
+		for (FILE_STATUS state : states) {
+			Collection<ICloudFile> files = this.metadata.fileList(state);
+			if (files == null) {
+				continue;
+			}
+			for (ICloudFile cf : files) {
+				CoreAccess slot = new CoreAccess(this.codec, this.transfers,
+						this.planner, this.uploads, this.packs, this.metadata,
+						this.config, this);
+				if (slot.resume(cf)) {
+					count++;
+				}
+			}
+		}
+		if (count > 0) {
+			System.out.println("CloudRAIDService: queued " + count
+					+ " unfinished uploads");
+		}
+	}
+
 	private void initPaths() throws MissingConfigValueException {
 		this.mergeInputDir = this.config.getString("merge.input.dir");
 		this.mergeOutputDir = this.config.getString("merge.output.dir");
@@ -122,6 +379,18 @@ public class CloudRAIDService implements ICloudRAIDService {
 	 */
 	protected synchronized void shutdown() {
 		System.out.println("CloudRAIDService: shutdown: begin");
+		if (this.packs != null) {
+			this.packs.shutdown();
+			this.packs = null;
+		}
+		if (this.uploads != null) {
+			this.uploads.shutdown();
+			this.uploads = null;
+		}
+		if (this.transfers != null) {
+			this.transfers.shutdown();
+			this.transfers = null;
+		}
 		this.config.save();
 		System.out.println("CloudRAIDService: shutdown: end");
 	}
@@ -145,6 +414,10 @@ public class CloudRAIDService implements ICloudRAIDService {
 		System.out.println("CloudRAIDService: startup: begin");
 
 		initPaths();
+		initCodec();
+		initTransfers();
+		initUploads();
+		initPacks();
 
 		String classname = null;
 		for (int i = 0; i < 3; i++) {
@@ -208,9 +481,29 @@ public class CloudRAIDService implements ICloudRAIDService {
 			this.storageConnectors[i].connect();
 		}
 
+		recoverUploads(true);
+
 		System.out.println("CloudRAIDService: startup: end");
 	}
 
+	/**
+	 * @param metadata
+	 *            The running instance of the {@link IMetadataManager meta data
+	 *            manager}.
+	 */
+	protected synchronized void setMetadata(IMetadataManager metadata) {
+		this.metadata = metadata;
+	}
+
+	/**
+	 * @param metadata
+	 *            Reference to the still existing {@link IMetadataManager meta
+	 *            data manager} instance
+	 */
+	protected synchronized void unsetMetadata(IMetadataManager metadata) {
+		this.metadata = null;
+	}
+
 	/**
 	 * @param config
 	 *            Reference to the still existing {@link ICloudRAIDConfig
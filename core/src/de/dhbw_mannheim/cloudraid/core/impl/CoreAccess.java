@@ -24,14 +24,23 @@ package de.dhbw_mannheim.cloudraid.core.impl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
@@ -41,21 +50,46 @@ import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
 import de.dhbw_mannheim.cloudraid.core.ICloudRAIDService;
 import de.dhbw_mannheim.cloudraid.core.ICoreAccess;
-import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidAccessInterface;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.IRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.Raid5Metadata;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.SplitOutputStream;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IChunkEntry;
 import de.dhbw_mannheim.cloudraid.metadatamgr.ICloudFile;
 import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager;
 import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager.FILE_STATUS;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IPackEntry;
 
 /**
  * @author Markus Holtermann
  * 
  */
-public class CoreAccess extends Thread implements ICoreAccess {
+public class CoreAccess implements ICoreAccess, Runnable {
+
+	/**
+	 * The maximum size of a file stored inline. Files whose size does not
+	 * exceed <code>inline.size</code> are not stored in device files, but in
+	 * the meta data file of every connector: the RAID meta data, the length
+	 * of the device data as {@link #INLINE_HEADER} hex digits and the device
+	 * data of the connector. This saves three of the six requests of an
+	 * upload and all device requests of a download.
+	 */
+	static final int INLINE_MAX_SIZE = 64 * 1024;
+
+	/**
+	 * The number of hex digits of the device data length of an inline file.
+	 */
+	private static final int INLINE_HEADER = 8;
 
 	private IMetadataManager metadata = null;
 	private ICloudRAIDConfig config = null;
 	private ICloudRAIDService coreService = null;
+	private IRaidCodec codec = null;
+	private TransferExecutor transfers = null;
+	private ReadPlanner planner = null;
+	private UploadScheduler uploads = null;
+	private PackStore packs = null;
 
 	private String path;
 	private int userid;
@@ -65,10 +99,38 @@ public class CoreAccess extends Thread implements ICoreAccess {
 	private String hash;
 	private boolean uploadstate;
 	private String status;
+	private boolean splitted;
+	private boolean resumed;
+	private byte[][] inline;
 
-	public CoreAccess() throws InstantiationException {
+	/**
+	 * @param codec
+	 *            The {@link IRaidCodec} to split and merge the files with.
+	 * @param transfers
+	 *            The {@link TransferExecutor} to run the transfers with the
+	 *            storage connectors on.
+	 * @param planner
+	 *            The {@link ReadPlanner} that chooses the devices to read.
+	 * @param uploads
+	 *            The {@link UploadScheduler} to split and distribute uploaded
+	 *            files on.
+	 * @param packs
+	 *            The {@link PackStore} to store small files in or
+	 *            <code>null</code> if every file is stored in its own device
+	 *            files.
+	 * @throws InstantiationException
+	 *             Thrown, if a required service is not running.
+	 */
+	public CoreAccess(IRaidCodec codec, TransferExecutor transfers,
+			ReadPlanner planner, UploadScheduler uploads, PackStore packs)
+			throws InstantiationException {
 		// unset/initialize the values for this instance
 		reset();
+		this.codec = codec;
+		this.transfers = transfers;
+		this.planner = planner;
+		this.uploads = uploads;
+		this.packs = packs;
 
 		BundleContext ctx = FrameworkUtil.getBundle(this.getClass())
 				.getBundleContext();
@@ -97,6 +159,25 @@ public class CoreAccess extends Thread implements ICoreAccess {
 
 	}
 
+	/**
+	 * Creates a {@link CoreAccess} with the given services instead of looking
+	 * them up, e.g. while the core service is not registered yet.
+	 */
+	public CoreAccess(IRaidCodec codec, TransferExecutor transfers,
+			ReadPlanner planner, UploadScheduler uploads, PackStore packs,
+			IMetadataManager metadata, ICloudRAIDConfig config,
+			ICloudRAIDService coreService) {
+		reset();
+		this.codec = codec;
+		this.transfers = transfers;
+		this.planner = planner;
+		this.uploads = uploads;
+		this.packs = packs;
+		this.metadata = metadata;
+		this.config = config;
+		this.coreService = coreService;
+	}
+
 	@Override
 	public boolean deleteData(int fileid) {
 		this.fileid = fileid;
@@ -116,11 +197,12 @@ public class CoreAccess extends Thread implements ICoreAccess {
 				this.metadata
 						.fileUpdateState(this.fileid, FILE_STATUS.DELETING);
 
-				IStorageConnector[] storageConnectors = this.coreService
-						.getStorageConnectors();
-
-				for (int i = 0; i < 3; i++) {
-					storageConnectors[i].delete(this.hash);
+				// A file stored in a pack is removed from the pack together
+				// with its database record, the pack is compacted later. A
+				// file split into chunks only releases its chunks.
+				if (!this.dropChunks(this.fileid)
+						&& this.metadata.packEntryGet(this.fileid) == null) {
+					this.delete(this.hash);
 				}
 				this.metadata.fileUpdateState(this.fileid, FILE_STATUS.DELETED);
 				this.metadata.fileDelete(fileid);
@@ -177,78 +259,32 @@ public class CoreAccess extends Thread implements ICoreAccess {
 
 				IStorageConnector[] storageConnectors = this.coreService
 						.getStorageConnectors();
-
-				// Retrieve the data from the three cloud storages. Take care,
-				// that a missing resource on a cloud storage provider is NOT
-				// written to an empty file
-				for (int i = 0; i < 3; i++) {
-					BufferedInputStream bis = null;
-					BufferedOutputStream bos = null;
-					try {
-						InputStream is = storageConnectors[i].get(this.hash);
-						if (is == null) {
-							continue;
-						}
-						// Create the file
-						this.file = new File(
-								this.config.getString("merge.input.dir")
-										+ File.separator + this.hash + "." + i);
-
-						// Write data to file
-						bis = new BufferedInputStream(is, bufsize);
-						bos = new BufferedOutputStream(new FileOutputStream(
-								this.file), bufsize);
-						byte[] inputBytes = new byte[bufsize];
-						int readLength;
-						while ((readLength = bis.read(inputBytes)) >= 0) {
-							bos.write(inputBytes, 0, readLength);
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					} finally {
-						try {
-							if (bis != null) {
-								bis.close();
-							}
-						} catch (IOException ignore) {
-						}
-						try {
-							if (bos != null) {
-								bos.close();
-							}
-						} catch (IOException ignore) {
-						}
-					}
+				List<IChunkEntry> chunks = this.chunks(this.fileid);
+				if (!chunks.isEmpty()) {
+					return this.mergeChunks(storageConnectors, chunks);
 				}
+				byte[][] metadata = this.retrieveMetadata(storageConnectors,
+						this.metadata.packEntryGet(this.fileid));
 
-				// Elements 0 - 2 are taken from the connectors, 3 will be the
-				// final one
-				byte metadata[][] = { null, null, null, null };
-				int mdlen = RaidAccessInterface.getMetadataByteLength();
-				for (int i = 0; i < 3; i++) {
-					metadata[i] = storageConnectors[i].getMetadata(this.hash,
-							mdlen);
-				}
-
-				// Find at least two common meta data strings to verify
-				// integrity. First, check for (0 AND (1 OR 2)), if that fails
-				// check for (1 AND 2)
-				if (metadata[0] != null
-						&& (metadata[1] != null
-								&& Arrays.equals(metadata[0], metadata[1]) || metadata[2] != null
-								&& Arrays.equals(metadata[0], metadata[2]))) {
-					metadata[3] = metadata[0];
-				} else {
-					if (metadata[1] != null && metadata[2] != null
-							&& Arrays.equals(metadata[1], metadata[2])) {
-						metadata[3] = metadata[1];
-					}
+				if (this.inline != null) {
+					return mergeInline(metadata);
+				}
+				if (this.config.getBoolean("merge.streaming")) {
+					return mergeStream(storageConnectors, metadata);
 				}
 
-				if (metadata[3] == null) {
-					// We don't have any meta data
-					throw new IllegalStateException(
-							"No meta data available to merge the files.");
+				// Retrieve the data from two cloud storages. Take care, that a
+				// missing resource on a cloud storage provider is NOT written
+				// to an empty file. The third device is only retrieved if one
+				// of them is missing, slow or the merge fails.
+				String dir = this.config.getString("merge.input.dir");
+				int[] order = this.plan(metadata);
+				boolean[] fetched = new boolean[3];
+				int count = this.fetch(storageConnectors, order, 2, dir,
+						fetched);
+				if (count < 2) {
+					count += this.fetch(storageConnectors,
+							remaining(order, fetched), 2 - count, dir, fetched);
 				}
 
 				// Create the meta data file
@@ -276,17 +312,22 @@ public class CoreAccess extends Thread implements ICoreAccess {
 						+ this.path);
 				this.file.getParentFile().mkdirs();
 
-				int mergecode = RaidAccessInterface.mergeInterface(
-						this.config.getString("merge.input.dir"), this.hash,
-						this.file.getAbsolutePath(),
-						this.config.getString("file.password"));
-
-				if (mergecode != RaidAccessInterface.SUCCESS_MERGE) { // Error
-					System.err.println(RaidAccessInterface
-							.getErrorMessage(mergecode));
-					removeFiles();
-					throw new IOException(
-							"Error merging the given file. See above for more information");
+				try {
+					this.codec.mergeFile(dir, this.hash,
+							this.file.getAbsolutePath(),
+							this.config.getString("file.password"));
+				} catch (IOException e) {
+					if (count == 3
+							|| this.fetch(storageConnectors,
+									remaining(order, fetched), 1, dir, fetched) == 0) {
+						throw e;
+					}
+					System.err.println("CoreAccess: Merge of " + this.hash
+							+ " failed, merging again with the third device: "
+							+ e.getMessage());
+					this.codec.mergeFile(dir, this.hash,
+							this.file.getAbsolutePath(),
+							this.config.getString("file.password"));
 				}
 
 				// Get data from file
@@ -309,6 +350,484 @@ public class CoreAccess extends Thread implements ICoreAccess {
 		return null;
 	}
 
+	@Override
+	public InputStream getData(int fileid, long offset, long length) {
+		this.fileid = fileid;
+		try {
+			// Retrieve the metadata from the database
+			ICloudFile cf = this.metadata.fileById(this.fileid);
+			if (cf != null) {
+				setByCloudFile(cf);
+
+				if (FILE_STATUS.valueOf(this.status) != FILE_STATUS.READY) {
+					throw new IllegalStateException(String.format(
+							"File %s has state %s but READY expected!",
+							this.path, this.status));
+				}
+
+				IStorageConnector[] storageConnectors = this.coreService
+						.getStorageConnectors();
+				List<IChunkEntry> chunks = this.chunks(this.fileid);
+				if (!chunks.isEmpty()) {
+					// Only the chunks covering the range are read
+					int first = 0;
+					while (first < chunks.size() - 1
+							&& chunks.get(first + 1).getOffset() <= offset) {
+						first++;
+					}
+					int last = first;
+					while (last < chunks.size() - 1
+							&& chunks.get(last + 1).getOffset() < offset + length) {
+						last++;
+					}
+					InputStream merged = this.mergeChunks(storageConnectors,
+							chunks.subList(first, last + 1));
+					try {
+						return new RangedInputStream(merged, offset
+								- chunks.get(first).getOffset(), length);
+					} catch (IOException e) {
+						merged.close();
+						throw e;
+					}
+				}
+				byte[][] metadata = this.retrieveMetadata(storageConnectors,
+						this.metadata.packEntryGet(this.fileid));
+
+				if (this.inline != null) {
+					InputStream merged = mergeInline(metadata);
+					try {
+						return new RangedInputStream(merged, offset, length);
+					} catch (IOException e) {
+						merged.close();
+						throw e;
+					}
+				}
+
+				// Only the stripes covering the range are read. The devices
+				// are read one byte beyond the last stripe to detect whether
+				// it is the last stripe of the file.
+				long blockSize = Raid5Metadata.parse(metadata[3])
+						.getBlockSize();
+				long firstStripe = offset / (2 * blockSize);
+				long lastStripe = (offset + length - 1) / (2 * blockSize);
+				InputStream[] devices = { null, null, null };
+				int opened = this.open(storageConnectors, this.plan(metadata),
+						2, devices, firstStripe * blockSize, (lastStripe
+								- firstStripe + 1)
+								* blockSize + 1);
+				int deadDevice = -1;
+				for (int i = 0; i < 3; i++) {
+					if (devices[i] == null) {
+						deadDevice = i;
+					}
+				}
+				if (opened < 2) {
+					for (int i = 0; i < 3; i++) {
+						if (devices[i] != null) {
+							devices[i].close();
+						}
+					}
+					throw new IOException(
+							"Not enough devices available to merge the range.");
+				}
+
+				InputStream merged = this.codec.merge(devices, deadDevice,
+						metadata[3], this.config.getString("file.password"),
+						firstStripe);
+				try {
+					return new RangedInputStream(merged, offset - firstStripe
+							* 2 * blockSize, length);
+				} catch (IOException e) {
+					merged.close();
+					throw e;
+				}
+			}
+		} catch (MissingConfigValueException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves the meta data from all storage connectors and verifies it.
+	 * The device data of a file stored inline or in a pack is kept in
+	 * {@link #inline}.
+	 * 
+	 * @param storageConnectors
+	 *            The storage connectors.
+	 * @param entry
+	 *            The location of the file in its pack or <code>null</code> if
+	 *            it is not stored in a pack.
+	 * @return The meta data as retrieved from the storage connectors (0 - 2)
+	 *         and the verified meta data (3).
+	 * @throws IllegalStateException
+	 *             Thrown if no two storage connectors have the same meta
+	 *             data.
+	 */
+	private byte[][] retrieveMetadata(IStorageConnector[] storageConnectors,
+			final IPackEntry entry) {
+		// Elements 0 - 2 are taken from the connectors, 3 will be the
+		// final one
+		byte metadata[][] = { null, null, null, null };
+		final int mdlen = this.codec.getMetadataByteLength();
+		final String hash = this.hash;
+		List<byte[]> md = this.transfers.invokeAll(storageConnectors,
+				new TransferExecutor.Transfer<byte[]>() {
+					@Override
+					public byte[] run(IStorageConnector connector, int index)
+							throws IOException {
+						if (entry != null) {
+							// A pack contains the meta data file of a file
+							// stored inline, unless it is missing on the
+							// connector
+							if (entry.getLength(index) == 0) {
+								return null;
+							}
+							InputStream is = connector.get(entry.getPack(),
+									entry.getOffset(index),
+									entry.getLength(index));
+							if (is == null) {
+								return null;
+							}
+							try {
+								byte[] record = new byte[(int) entry
+										.getLength(index)];
+								int pos = 0;
+								int len;
+								while (pos < record.length
+										&& (len = is.read(record, pos,
+												record.length - pos)) >= 0) {
+									pos += len;
+								}
+								return pos == record.length ? record : null;
+							} finally {
+								is.close();
+							}
+						}
+						return connector.getMetadata(hash, mdlen
+								+ INLINE_HEADER + INLINE_MAX_SIZE);
+					}
+				});
+		this.inline = null;
+		for (int i = 0; i < 3; i++) {
+			byte[] m = md.get(i);
+			if (m == null || m.length < mdlen) {
+				continue;
+			}
+			metadata[i] = Arrays.copyOf(m, mdlen);
+			// The meta data is padded with zeros, unless it is followed by
+			// the device data of an inline file
+			if (m.length >= mdlen + INLINE_HEADER && m[mdlen] != 0) {
+				try {
+					int len = Integer.parseInt(new String(m, mdlen,
+							INLINE_HEADER, "US-ASCII"), 16);
+					int pos = mdlen + INLINE_HEADER;
+					if (len < 0 || len > m.length - pos) {
+						throw new NumberFormatException("Invalid length " + len);
+					}
+					if (this.inline == null) {
+						this.inline = new byte[3][];
+					}
+					this.inline[i] = Arrays.copyOfRange(m, pos, pos + len);
+				} catch (Exception e) {
+					System.err.println("CoreAccess: Invalid inline data of "
+							+ hash + " on connector " + i);
+					metadata[i] = null;
+				}
+			}
+		}
+
+		// Find at least two common meta data strings to verify
+		// integrity. First, check for (0 AND (1 OR 2)), if that fails
+		// check for (1 AND 2)
+		if (metadata[0] != null
+				&& (metadata[1] != null
+						&& Arrays.equals(metadata[0], metadata[1]) || metadata[2] != null
+						&& Arrays.equals(metadata[0], metadata[2]))) {
+			metadata[3] = metadata[0];
+		} else {
+			if (metadata[1] != null && metadata[2] != null
+					&& Arrays.equals(metadata[1], metadata[2])) {
+				metadata[3] = metadata[1];
+			}
+		}
+
+		if (metadata[3] == null) {
+			// We don't have any meta data
+			throw new IllegalStateException(
+					"No meta data available to merge the files.");
+		}
+		return metadata;
+	}
+
+	/**
+	 * Opens the device files on the storage connectors and merges them while
+	 * they are being read. Only two devices are requested, as planned by the
+	 * {@link ReadPlanner}. Since the merged data is returned while it is
+	 * read, a corrupt device is only detected at the end and cannot be
+	 * replaced by the third one.
+	 * 
+	 * @param storageConnectors
+	 *            The storage connectors.
+	 * @param metadata
+	 *            The meta data as retrieved from the storage connectors (0 -
+	 *            2) and the verified meta data (3).
+	 * @return The merged file.
+	 * @throws IOException
+	 *             Thrown if less than two devices are available.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the file password is not set.
+	 */
+	private InputStream mergeStream(IStorageConnector[] storageConnectors,
+			byte[][] metadata) throws IOException, MissingConfigValueException {
+		// Open the first two planned devices at once. The third one is only
+		// opened if one of them fails or is slow.
+		InputStream[] devices = { null, null, null };
+		int opened = this.open(storageConnectors, this.plan(metadata), 2,
+				devices);
+
+		int deadDevice = -1;
+		for (int i = 0; i < 3; i++) {
+			if (devices[i] == null) {
+				deadDevice = i;
+			}
+		}
+		if (opened < 2) {
+			for (int i = 0; i < 3; i++) {
+				if (devices[i] != null) {
+					devices[i].close();
+				}
+			}
+			throw new IOException(
+					"Not enough devices available to merge the file.");
+		}
+
+		return this.codec.merge(devices, deadDevice, metadata[3],
+				this.config.getString("file.password"));
+	}
+
+	/**
+	 * Merges a file stored inline from the device data in {@link #inline}.
+	 * The device data of connectors whose meta data does not match the
+	 * verified meta data is ignored.
+	 * 
+	 * @param metadata
+	 *            The meta data as retrieved from the storage connectors (0 -
+	 *            2) and the verified meta data (3).
+	 * @return The merged file.
+	 * @throws IOException
+	 *             Thrown if less than two devices are available.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the file password is not set.
+	 */
+	private InputStream mergeInline(byte[][] metadata) throws IOException,
+			MissingConfigValueException {
+		InputStream[] devices = { null, null, null };
+		int deadDevice = -1;
+		int opened = 0;
+		for (int i : this.plan(metadata)) {
+			if (opened < 2 && this.inline[i] != null
+					&& Arrays.equals(metadata[i], metadata[3])) {
+				devices[i] = new ByteArrayInputStream(this.inline[i]);
+				opened++;
+			} else {
+				deadDevice = i;
+			}
+		}
+		if (opened < 2) {
+			throw new IOException(
+					"Not enough devices available to merge the file.");
+		}
+		return this.codec.merge(devices, deadDevice, metadata[3],
+				this.config.getString("file.password"));
+	}
+
+	/**
+	 * Merges a file split into chunks. Every chunk is merged from its own
+	 * RAID files once the previous chunk has been read.
+	 * 
+	 * @param storageConnectors
+	 *            The storage connectors.
+	 * @param chunks
+	 *            The chunks to merge.
+	 * @return The merged chunks.
+	 */
+	private InputStream mergeChunks(
+			final IStorageConnector[] storageConnectors,
+			final List<IChunkEntry> chunks) {
+		return new ChunkInputStream(chunks.size(),
+				new ChunkInputStream.Opener() {
+					@Override
+					public InputStream open(int index) throws IOException {
+						CoreAccess chunk = chunkAccess(chunks.get(index)
+								.getHash());
+						try {
+							byte[][] metadata = chunk.retrieveMetadata(
+									storageConnectors, null);
+							if (chunk.inline != null) {
+								return chunk.mergeInline(metadata);
+							}
+							return chunk.mergeStream(storageConnectors,
+									metadata);
+						} catch (IllegalStateException e) {
+							throw new IOException(e);
+						} catch (MissingConfigValueException e) {
+							throw new IOException(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Opens <code>needed</code> device files of the connectors in
+	 * <code>order</code> and stores them in <code>devices</code>. The requests
+	 * are hedged: if a device file cannot be read within the
+	 * {@link ReadPlanner#getHedgeDelay(int) hedge delay} of its connector,
+	 * the next connector is requested as well and the first device
+	 * files available are used. A stream that is opened after its transfer
+	 * was cancelled is closed again.
+	 * 
+	 * @return The number of opened device files.
+	 */
+	private int open(IStorageConnector[] storageConnectors, int[] order,
+			int needed, InputStream[] devices) {
+		return this.open(storageConnectors, order, needed, devices, 0, -1);
+	}
+
+	/**
+	 * Opens a range of <code>needed</code> device files, see
+	 * {@link #open(IStorageConnector[], int[], int, InputStream[])}.
+	 * 
+	 * @param offset
+	 *            The first byte of the device files.
+	 * @param length
+	 *            The number of bytes or <code>-1</code> for the whole device
+	 *            files.
+	 * @return The number of opened device files.
+	 */
+	private int open(IStorageConnector[] storageConnectors, int[] order,
+			int needed, InputStream[] devices, final long offset,
+			final long length) {
+		long[] delays = new long[storageConnectors.length];
+		for (int i = 0; i < delays.length; i++) {
+			delays[i] = this.planner.getHedgeDelay(i);
+		}
+		final String hash = this.hash;
+		final ReadPlanner planner = this.planner;
+		List<InputStream> streams = this.transfers.invokeHedged(
+				storageConnectors, order, needed, delays,
+				new TransferExecutor.Transfer<InputStream>() {
+					@Override
+					public InputStream run(IStorageConnector connector,
+							int index) throws IOException {
+						InputStream is = planner.open(connector, index, hash,
+								offset, length);
+						if (is == null) {
+							return null;
+						}
+						if (Thread.interrupted()) {
+							is.close();
+							return null;
+						}
+						return is;
+					}
+				});
+		int opened = 0;
+		for (int i : order) {
+			InputStream is = streams.get(i);
+			if (is != null && opened == needed) {
+				// More transfers finished than needed
+				try {
+					is.close();
+				} catch (IOException ignore) {
+				}
+			} else if (is != null) {
+				devices[i] = is;
+				opened++;
+			}
+		}
+		return opened;
+	}
+
+	/**
+	 * Downloads <code>needed</code> device files of the connectors in
+	 * <code>order</code> to the directory <code>dir</code>, see
+	 * {@link #open(IStorageConnector[], int[], int, InputStream[])}.
+	 * 
+	 * @param fetched
+	 *            Set to <code>true</code> for every downloaded device file.
+	 * @return The number of downloaded device files.
+	 */
+	private int fetch(IStorageConnector[] storageConnectors, int[] order,
+			int needed, final String dir, boolean[] fetched) {
+		final InputStream[] devices = new InputStream[storageConnectors.length];
+		int opened = this.open(storageConnectors, order, needed, devices);
+		int[] indexes = new int[opened];
+		for (int i = 0, n = 0; i < devices.length; i++) {
+			if (devices[i] != null) {
+				indexes[n++] = i;
+			}
+		}
+		final String hash = this.hash;
+		List<Boolean> copied = this.transfers.invokeAll(storageConnectors,
+				indexes, new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index)
+							throws IOException {
+						return copy(devices[index], new File(dir
+								+ File.separator + hash + "." + index));
+					}
+				});
+		int count = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			if (Boolean.TRUE.equals(copied.get(i))) {
+				fetched[indexes[i]] = true;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The connectors of <code>order</code> whose device file was not
+	 *         fetched yet.
+	 */
+	private static int[] remaining(int[] order, boolean[] fetched) {
+		int n = 0;
+		for (int i : order) {
+			n += fetched[i] ? 0 : 1;
+		}
+		int[] remaining = new int[n];
+		n = 0;
+		for (int i : order) {
+			if (!fetched[i]) {
+				remaining[n++] = i;
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Plans from which connectors the device files are read. Connectors whose
+	 * meta data matches the verified meta data are preferred.
+	 * 
+	 * @param metadata
+	 *            The meta data as retrieved from the storage connectors (0 -
+	 *            2) and the verified meta data (3).
+	 * @return The indexes of the connectors in the order to read from.
+	 */
+	private int[] plan(byte[][] metadata) {
+		boolean[] valid = new boolean[3];
+		for (int i = 0; i < 3; i++) {
+			valid[i] = Arrays.equals(metadata[i], metadata[3]);
+		}
+		return this.planner.plan(valid);
+	}
+
 	@Override
 	public boolean putData(InputStream is, int fileid) {
 		return this.putData(is, fileid, false);
@@ -332,33 +851,80 @@ public class CoreAccess extends Thread implements ICoreAccess {
 							this.path, this.status));
 				}
 
-				int bufsize = 4096;
+				if (this.config.getBoolean("split.streaming")
+						&& this.chunkSize() == 0) {
+					// Split the data while it is received instead of writing it
+					// to the split input directory first. A file that may be
+					// split into chunks is written to the split input directory.
+					this.metadata.fileUpdateState(this.fileid,
+							FILE_STATUS.SPLITTING);
+					int bufsize = 64 * 1024;
+					SplitOutputStream sos = this.codec.split(this.userid
+							+ File.separator + this.path,
+							this.config.getString("split.output.dir"),
+							this.config.getString("file.password"));
+					long size = 0;
+					try {
+						byte[] inputBytes = new byte[bufsize];
+						int readLength;
+						while ((readLength = is.read(inputBytes)) >= 0) {
+							sos.write(inputBytes, 0, readLength);
+							size += readLength;
+						}
+					} catch (IOException e) {
+						try {
+							sos.close();
+						} catch (IOException ignore) {
+						}
+						this.hash = sos.getHash();
+						removeFiles();
+						throw e;
+					}
+					sos.close();
+					this.hash = sos.getHash();
+					this.metadata.fileUpdateSize(this.fileid, size);
 
-				// Create the file
-				this.file = new File(this.config.getString("split.input.dir")
-						+ File.separator + this.userid + File.separator
-						+ this.path);
-				this.file.getParentFile().mkdirs();
+					// Update state to split
+					this.metadata.fileUpdate(this.fileid, this.path, this.hash,
+							new Date().getTime(), this.userid);
+					this.metadata.fileUpdateState(this.fileid,
+							FILE_STATUS.SPLITTED);
+					this.splitted = true;
+				} else {
+					int bufsize = 4096;
 
-				// Write data to file
-				bis = new BufferedInputStream(is, bufsize);
-				bos = new BufferedOutputStream(new FileOutputStream(this.file),
-						bufsize);
-				byte[] inputBytes = new byte[bufsize];
-				int readLength;
-				while ((readLength = bis.read(inputBytes)) >= 0) {
-					bos.write(inputBytes, 0, readLength);
-				}
+					// Create the file
+					this.file = new File(
+							this.config.getString("split.input.dir")
+									+ File.separator + this.userid
+									+ File.separator + this.path);
+					this.file.getParentFile().mkdirs();
 
-				// Update file state in database
-				this.metadata
-						.fileUpdateState(this.fileid, FILE_STATUS.UPLOADED);
+					// Write data to file
+					bis = new BufferedInputStream(is, bufsize);
+					bos = new BufferedOutputStream(new FileOutputStream(
+							this.file), bufsize);
+					byte[] inputBytes = new byte[bufsize];
+					int readLength;
+					while ((readLength = bis.read(inputBytes)) >= 0) {
+						bos.write(inputBytes, 0, readLength);
+					}
+					bos.flush();
+					this.metadata.fileUpdateSize(this.fileid,
+							this.file.length());
+
+					// Update file state in database
+					this.metadata.fileUpdateState(this.fileid,
+							FILE_STATUS.UPLOADED);
+				}
 
 				if (this.config.getBoolean("upload.asynchronous")) {
-					this.start();
+					// If the file cannot be queued right now, it keeps its
+					// state and is queued again later
+					this.uploads.submit(this.fileid, this);
+					this.uploadstate = true;
+				} else if (!this.uploads.execute(this.fileid, this)) {
 					this.uploadstate = true;
-				} else {
-					this.run();
 				}
 			}
 		} catch (MissingConfigValueException e) {
@@ -390,7 +956,47 @@ public class CoreAccess extends Thread implements ICoreAccess {
 		return this.uploadstate;
 	}
 
+	/**
+	 * Writes the device file <code>is</code> to <code>file</code> and closes
+	 * it. The data is written to a temporary file first that is only renamed
+	 * if the download was not cancelled meanwhile.
+	 * 
+	 * @return <code>true</code> if the file was downloaded.
+	 * @throws IOException
+	 *             Thrown if the file cannot be written.
+	 */
+	private static boolean copy(InputStream is, File file) throws IOException {
+		int bufsize = 4096;
+		File part = new File(file.getPath() + ".part");
+		BufferedInputStream bis = new BufferedInputStream(is, bufsize);
+		try {
+			BufferedOutputStream bos = new BufferedOutputStream(
+					new FileOutputStream(part), bufsize);
+			try {
+				byte[] inputBytes = new byte[bufsize];
+				int readLength;
+				while ((readLength = bis.read(inputBytes)) >= 0
+						&& !Thread.currentThread().isInterrupted()) {
+					bos.write(inputBytes, 0, readLength);
+				}
+			} finally {
+				bos.close();
+			}
+		} finally {
+			bis.close();
+		}
+		if (Thread.interrupted() || !part.renameTo(file)) {
+			part.delete();
+			return false;
+		}
+		return true;
+	}
+
 	private void removeFiles() {
+		this.removeFiles(this.hash, this.userid, this.path);
+	}
+
+	private void removeFiles(String hash, int userid, String path) {
 		String si = null, so = null, mi = null, mo = null;
 		try {
 			si = this.config.getString("split.input.dir");
@@ -408,34 +1014,84 @@ public class CoreAccess extends Thread implements ICoreAccess {
 			mo = this.config.getString("merge.output.dir");
 		} catch (Exception ignore) {
 		}
-		if (this.hash != null) {
+		if (hash != null) {
 			if (so != null) {
 				so = so + File.separator;
-				silentRemove(so + this.hash + ".0");
-				silentRemove(so + this.hash + ".1");
-				silentRemove(so + this.hash + ".2");
-				silentRemove(so + this.hash + ".m");
+				silentRemove(so + hash + ".0");
+				silentRemove(so + hash + ".1");
+				silentRemove(so + hash + ".2");
+				silentRemove(so + hash + ".m");
 			}
 			if (mi != null) {
 				mi = mi + File.separator;
-				silentRemove(mi + this.hash + ".0");
-				silentRemove(mi + this.hash + ".1");
-				silentRemove(mi + this.hash + ".2");
-				silentRemove(mi + this.hash + ".m");
+				silentRemove(mi + hash + ".0");
+				silentRemove(mi + hash + ".1");
+				silentRemove(mi + hash + ".2");
+				silentRemove(mi + hash + ".m");
 			}
 		}
-		if (this.userid != -1 && this.path != null) {
+		if (userid != -1 && path != null) {
 			if (si != null) {
 				si = si + File.separator;
-				silentRemove(si + this.userid + File.separator + this.path);
+				silentRemove(si + userid + File.separator + path);
 			}
 			if (mo != null) {
 				mo = mo + File.separator;
-				silentRemove(mo + this.userid + File.separator + this.path);
+				silentRemove(mo + userid + File.separator + path);
 			}
 		}
 	}
 
+	/**
+	 * Queues a file whose upload was interrupted or could not be queued
+	 * before. Files in the states {@link FILE_STATUS#UPLOADED UPLOADED} and
+	 * {@link FILE_STATUS#SPLITTING SPLITTING} are split again if the uploaded
+	 * file is still available, files in the states
+	 * {@link FILE_STATUS#SPLITTED SPLITTED} and {@link FILE_STATUS#DISTRIBUTING
+	 * DISTRIBUTING} are distributed again if the device files are still
+	 * available. As it is unknown whether the file already exists on the
+	 * storage connectors, it is uploaded or else updated.
+	 * 
+	 * @param cf
+	 *            The file.
+	 * @return <code>true</code> if the file was queued.
+	 */
+	public boolean resume(ICloudFile cf) {
+		this.fileid = cf.getFileId();
+		setByCloudFile(cf);
+		this.resumed = true;
+		try {
+			switch (FILE_STATUS.valueOf(this.status)) {
+			case UPLOADED:
+			case SPLITTING:
+				this.splitted = false;
+				if (!new File(this.config.getString("split.input.dir")
+						+ File.separator + this.userid + File.separator
+						+ this.path).isFile()) {
+					return false;
+				}
+				break;
+			case SPLITTED:
+			case DISTRIBUTING:
+				this.splitted = true;
+				String so = this.config.getString("split.output.dir")
+						+ File.separator + this.hash;
+				for (String ext : new String[] { ".0", ".1", ".2", ".m" }) {
+					if (!new File(so + ext).isFile()) {
+						return false;
+					}
+				}
+				break;
+			default:
+				return false;
+			}
+		} catch (MissingConfigValueException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return this.uploads.offer(this.fileid, this);
+	}
+
 	@Override
 	public void reset() {
 		this.path = null;
@@ -446,76 +1102,571 @@ public class CoreAccess extends Thread implements ICoreAccess {
 		this.hash = null;
 		this.uploadstate = false;
 		this.status = null;
+		this.splitted = false;
+		this.resumed = false;
+		this.inline = null;
 	}
 
+	/**
+	 * Splits and distributes the file. If this fails, the uploaded or split
+	 * files are kept and the file is reset to the state
+	 * {@link FILE_STATUS#UPLOADED UPLOADED} or {@link FILE_STATUS#SPLITTED
+	 * SPLITTED}, so that the {@link UploadScheduler} can retry it later. A
+	 * file is ready once it is stored on at least
+	 * two storage connectors.
+	 */
 	@Override
 	public void run() {
-		// Update state to splitting
-		this.metadata.fileUpdateState(this.fileid, FILE_STATUS.SPLITTING);
+		boolean ready = false;
 		try {
-			// perform the splitting process
-			this.hash = RaidAccessInterface.splitInterface(
-					this.config.getString("split.input.dir"), this.userid
-							+ File.separator + this.path,
-					this.config.getString("split.output.dir"),
-					this.config.getString("file.password"));
+			if (!this.splitted) {
+				// Update state to splitting
+				this.metadata.fileUpdateState(this.fileid,
+						FILE_STATUS.SPLITTING);
 
-			// Verify the content of this.hash
-			if (this.hash.length() == 2) { // Error
-				int splitcode = ((this.hash.charAt(0) ^ 0xFF) << 8) & 0xff00
-						| ((this.hash.charAt(1) ^ 0xFF) & 0x00ff);
-				System.err.println(RaidAccessInterface
-						.getErrorMessage(splitcode));
-				removeFiles();
-				throw new IOException(
-						"Error splitting the given file. See above for more information");
-			} else if (this.hash.length() != 64) { // Unknown error
-				throw new IOException(
-						"Error splitting the given file. Cannot determine further information. The computed hash is: "
-								+ this.hash);
-			}
+				if (this.chunk()) {
+					this.metadata.fileUpdateState(this.fileid,
+							FILE_STATUS.DISTRIBUTED);
+					this.metadata.fileUpdateState(this.fileid,
+							FILE_STATUS.READY);
+					removeFiles();
+					this.uploadstate = true;
+					return;
+				}
 
-			// Update state to split
-			this.metadata.fileUpdate(this.fileid, this.path, this.hash,
-					new Date().getTime(), this.userid);
-			this.metadata.fileUpdateState(this.fileid, FILE_STATUS.SPLITTED);
+				// perform the splitting process
+				this.hash = this.codec.splitFile(
+						this.config.getString("split.input.dir"), this.userid
+								+ File.separator + this.path,
+						this.config.getString("split.output.dir"),
+						this.config.getString("file.password"));
+
+				// Update state to split
+				this.metadata.fileUpdate(this.fileid, this.path, this.hash,
+						new Date().getTime(), this.userid);
+				this.metadata.fileUpdateState(this.fileid,
+						FILE_STATUS.SPLITTED);
+				this.splitted = true;
+			}
 
 			IStorageConnector[] storageConnectors = this.coreService
 					.getStorageConnectors();
 
 			this.metadata
 					.fileUpdateState(this.fileid, FILE_STATUS.DISTRIBUTING);
-			if (this.update) {
-				// iterate over all connectors and upload the files with
-				// extension .0, .1 and .2 AND the .m file to all connectors
-				for (int i = 0; i < 3; i++) {
-					storageConnectors[i].update(this.hash);
-				}
-			} else {
-				// iterate over all connectors and upload the files with
-				// extension .0, .1 and .2 AND the .m file to all connectors
-				for (int i = 0; i < 3; i++) {
-					storageConnectors[i].upload(this.hash);
+			// upload the files with extension .0, .1 and .2 AND the .m file
+			// to all connectors at once. A small file is only stored in the
+			// .m file.
+			// A previous version may be stored inline, in a pack, in chunks
+			// or in device files, so the device files may or may not exist.
+			final boolean replace = this.update || this.resumed
+					|| !this.chunks(this.fileid).isEmpty()
+					|| this.metadata.packEntryGet(this.fileid) != null;
+			final String hash = this.hash;
+			final byte[][] inline = this.readInline();
+			if (inline == null && this.pack()) {
+				// The file is ready once its pack has been uploaded
+				this.uploadstate = true;
+				return;
+			}
+			List<Boolean> distributed = this.transfers.invokeAll(
+					storageConnectors, new TransferExecutor.Transfer<Boolean>() {
+						@Override
+						public Boolean run(IStorageConnector connector,
+								int index) {
+							if (!replace) {
+								return inline != null ? connector.putMetadata(
+										hash, inline[index]) : connector
+										.upload(hash);
+							}
+							// Deleting removes the meta data file as well,
+							// the split files are kept until the file is
+							// ready.
+							if (inline != null) {
+								return connector.delete(hash)
+										&& connector.putMetadata(hash,
+												inline[index]);
+							}
+							return connector.update(hash)
+									|| (connector.delete(hash) && connector
+											.upload(hash));
+						}
+					});
+			int count = 0;
+			for (int i = 0; i < 3; i++) {
+				if (Boolean.TRUE.equals(distributed.get(i))) {
+					count++;
+				} else {
+					System.err.println("CoreAccess: Cannot distribute "
+							+ this.hash + " to connector " + i);
 				}
 			}
+			if (count < 2) {
+				throw new IOException("Cannot distribute " + this.hash
+						+ " to two connectors");
+			}
+			// A previous version may have been stored in a pack or in chunks
+			this.metadata.packEntryDelete(this.fileid);
+			this.dropChunks(this.fileid);
 			this.metadata.fileUpdateState(this.fileid, FILE_STATUS.DISTRIBUTED);
 
 			this.metadata.fileUpdateState(this.fileid, FILE_STATUS.READY);
-
+			ready = true;
 		} catch (MissingConfigValueException e) {
-			this.uploadstate = false;
 			e.printStackTrace();
 		} catch (IOException e) {
-			this.uploadstate = false;
 			e.printStackTrace();
 		} catch (IllegalStateException e) {
-			this.uploadstate = false;
 			e.printStackTrace();
 		}
 
-		removeFiles();
+		if (ready) {
+			removeFiles();
+		} else {
+			this.metadata.fileUpdateState(this.fileid,
+					this.splitted ? FILE_STATUS.SPLITTED
+							: FILE_STATUS.UPLOADED);
+			this.uploads.fail(this.fileid, this.retry(this.fileid));
+		}
+		this.uploadstate = ready;
+	}
+
+	/**
+	 * @return A task that queues a failed file again, see
+	 *         {@link #resume(ICloudFile)}.
+	 */
+	private Runnable retry(final int fileid) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ICloudFile cf = metadata.fileById(fileid);
+				if (cf != null) {
+					new CoreAccess(codec, transfers, planner, uploads, packs,
+							metadata, config, coreService).resume(cf);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Builds the meta data files of a split file if it is small enough to be
+	 * stored inline, see {@link #INLINE_MAX_SIZE}.
+	 * 
+	 * @return The content of the meta data file of every connector or
+	 *         <code>null</code> if the file is stored in device files.
+	 * @throws IOException
+	 *             Thrown if the split files cannot be read.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the split output directory is not set.
+	 */
+	private byte[][] readInline() throws IOException,
+			MissingConfigValueException {
+		int max;
+		try {
+			max = Math.min(this.config.getInt("inline.size", null),
+					INLINE_MAX_SIZE);
+		} catch (Exception e) {
+			max = 0;
+		}
+		return this.readRecords(max);
+	}
+
+	/**
+	 * Appends a split file to the open pack of the {@link PackStore} if it is
+	 * small enough and uploaded asynchronously. Once the pack has been
+	 * uploaded, the file is ready and its split files are removed. If the
+	 * upload fails, the file keeps the state {@link FILE_STATUS#SPLITTED
+	 * SPLITTED} and is retried by the {@link UploadScheduler}.
+	 * 
+	 * @return <code>true</code> if the file was appended.
+	 * @throws IOException
+	 *             Thrown if the split files cannot be read.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the split output directory is not set.
+	 */
+	private boolean pack() throws IOException, MissingConfigValueException {
+		// A synchronous upload returns once the file is ready
+		if (this.packs == null
+				|| !this.config.getBoolean("upload.asynchronous")) {
+			return false;
+		}
+		byte[][] records = this.readRecords(this.packs.getThreshold());
+		if (records == null) {
+			return false;
+		}
+		final int fileid = this.fileid;
+		final int userid = this.userid;
+		final String hash = this.hash;
+		final String path = this.path;
+		final boolean update = this.update || this.resumed;
+		return this.packs.add(fileid, hash, records, new PackStore.Listener() {
+			@Override
+			public void stored(boolean stored) {
+				if (!stored) {
+					metadata.fileUpdateState(fileid, FILE_STATUS.SPLITTED);
+					uploads.fail(fileid, retry(fileid));
+					return;
+				}
+				if (update) {
+					// Remove the device files of a previous version
+					delete(hash);
+				}
+				dropChunks(fileid);
+				metadata.fileUpdateState(fileid, FILE_STATUS.DISTRIBUTED);
+				metadata.fileUpdateState(fileid, FILE_STATUS.READY);
+				removeFiles(hash, userid, path);
+			}
+		});
+	}
+
+	/**
+	 * Builds the meta data files of a split file stored inline, which are
+	 * also the records of a file stored in a pack.
+	 * 
+	 * @param max
+	 *            The maximum size of the data devices.
+	 * @return The content of the meta data file of every connector or
+	 *         <code>null</code> if the file is larger than <code>max</code>.
+	 * @throws IOException
+	 *             Thrown if the split files cannot be read.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the split output directory is not set.
+	 */
+	private byte[][] readRecords(int max) throws IOException,
+			MissingConfigValueException {
+		if (max <= 0) {
+			return null;
+		}
+		String so = this.config.getString("split.output.dir")
+				+ File.separator + this.hash;
+		// The data devices contain the encrypted file
+		if (new File(so + ".0").length() + new File(so + ".1").length() > max) {
+			return null;
+		}
+		int mdlen = this.codec.getMetadataByteLength();
+		byte[] md = readFile(new File(so + ".m"));
+		if (md.length > mdlen) {
+			throw new IOException("Invalid meta data of " + this.hash);
+		}
+		byte[][] inline = new byte[3][];
+		for (int i = 0; i < 3; i++) {
+			byte[] device = readFile(new File(so + "." + i));
+			inline[i] = new byte[mdlen + INLINE_HEADER + device.length];
+			System.arraycopy(md, 0, inline[i], 0, md.length);
+			System.arraycopy(
+					String.format("%08x", device.length).getBytes("US-ASCII"),
+					0, inline[i], mdlen, INLINE_HEADER);
+			System.arraycopy(device, 0, inline[i], mdlen + INLINE_HEADER,
+					device.length);
+		}
+		return inline;
+	}
+
+	/**
+	 * Splits the uploaded file into content-defined chunks if it is larger
+	 * than the maximum chunk size of <code>chunk.size</code>, see
+	 * {@link #chunkSize()}. Every chunk is identified by a HMAC of its
+	 * content and only split and distributed if neither the previous version
+	 * nor another file contains it yet, otherwise a reference to the stored
+	 * chunk is taken. The chunks of the previous version are released
+	 * afterwards, so an edit of a large file only distributes the chunks
+	 * around the edit.
+	 * 
+	 * @return <code>true</code> if the file was split into chunks.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read or a chunk cannot be
+	 *             distributed.
+	 * @throws MissingConfigValueException
+	 *             Thrown if a directory or the file password is not set.
+	 */
+	private boolean chunk() throws IOException, MissingConfigValueException {
+		int size = this.chunkSize();
+		File input = new File(this.config.getString("split.input.dir")
+				+ File.separator + this.userid + File.separator + this.path);
+		if (size == 0 || input.length() <= 4L * size) {
+			return false;
+		}
+		IStorageConnector[] storageConnectors = this.coreService
+				.getStorageConnectors();
+		Mac mac;
+		try {
+			mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(this.config.getString("file.password")
+					.getBytes("UTF-8"), "HmacSHA256"));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+
+		List<String> ids = new ArrayList<String>();
+		List<Long> offsets = new ArrayList<Long>();
+		Collection<IChunkEntry> previous;
+		int distributed = 0;
+		long bytes = 0;
+		boolean stored = false;
+		InputStream is = new FileInputStream(input);
+		try {
+			Chunker chunker = new Chunker(is, size);
+			long offset = 0;
+			byte[] chunk;
+			while ((chunk = chunker.next()) != null) {
+				String id = toHex(mac.doFinal(chunk));
+				if (this.metadata.chunkAcquire(id) == null) {
+					this.storeChunk(storageConnectors, id, chunk);
+					distributed++;
+					bytes += chunk.length;
+				}
+				ids.add(id);
+				offsets.add(offset);
+				offset += chunk.length;
+			}
+
+			this.hash = this.codec.getHash(this.userid + File.separator
+					+ this.path);
+			this.metadata.fileUpdate(this.fileid, this.path, this.hash,
+					new Date().getTime(), this.userid);
+			previous = this.chunks(this.fileid);
+			long[] o = new long[offsets.size()];
+			for (int i = 0; i < o.length; i++) {
+				o[i] = offsets.get(i);
+			}
+			if (!this.metadata.fileChunksPut(this.fileid,
+					ids.toArray(new String[ids.size()]), o)) {
+				throw new IOException("Cannot store the chunks of "
+						+ this.path);
+			}
+			stored = true;
+		} finally {
+			is.close();
+			if (!stored) {
+				this.releaseChunks(ids);
+			}
+		}
+
+		// Remove the previous version
+		List<String> released = new ArrayList<String>();
+		for (IChunkEntry entry : previous) {
+			released.add(entry.getChunk());
+		}
+		this.releaseChunks(released);
+		this.metadata.packEntryDelete(this.fileid);
+		if (previous.isEmpty() && (this.update || this.resumed)) {
+			this.delete(this.hash);
+		}
+		System.out.println("CoreAccess: Stored " + this.path + " in "
+				+ ids.size() + " chunks, distributed " + distributed
+				+ " of them with " + bytes + " bytes");
+		return true;
+	}
+
+	/**
+	 * Splits and distributes a chunk that is not stored yet and inserts it
+	 * with one reference. If another upload stores the same chunk meanwhile,
+	 * the RAID files are removed again and a reference to the other chunk is
+	 * taken.
+	 * 
+	 * @param storageConnectors
+	 *            The storage connectors.
+	 * @param id
+	 *            The id of the chunk.
+	 * @param chunk
+	 *            The content of the chunk.
+	 * @throws IOException
+	 *             Thrown if the chunk cannot be split or is stored on less
+	 *             than two storage connectors.
+	 * @throws MissingConfigValueException
+	 *             Thrown if the split output directory or the file password
+	 *             is not set.
+	 */
+	private void storeChunk(IStorageConnector[] storageConnectors, String id,
+			byte[] chunk) throws IOException, MissingConfigValueException {
+		while (true) {
+			// Every upload splits the chunk into its own RAID files
+			SplitOutputStream sos = this.codec.split("chunks" + File.separator
+					+ id + File.separator + UUID.randomUUID(),
+					this.config.getString("split.output.dir"),
+					this.config.getString("file.password"));
+			final String hash;
+			try {
+				try {
+					sos.write(chunk);
+				} finally {
+					sos.close();
+				}
+				hash = sos.getHash();
+				CoreAccess access = this.chunkAccess(hash);
+				final byte[][] inline = access.readInline();
+				List<Boolean> distributed = this.transfers.invokeAll(
+						storageConnectors,
+						new TransferExecutor.Transfer<Boolean>() {
+							@Override
+							public Boolean run(IStorageConnector connector,
+									int index) {
+								if (inline != null) {
+									return connector.putMetadata(hash,
+											inline[index]);
+								}
+								return connector.upload(hash);
+							}
+						});
+				int count = 0;
+				for (int i = 0; i < distributed.size(); i++) {
+					if (Boolean.TRUE.equals(distributed.get(i))) {
+						count++;
+					} else {
+						System.err.println("CoreAccess: Cannot distribute "
+								+ hash + " to connector " + i);
+					}
+				}
+				if (count < 2) {
+					this.delete(hash);
+					throw new IOException("Cannot distribute the chunk " + id);
+				}
+			} finally {
+				removeFiles(sos.getHash(), -1, null);
+			}
+			if (this.metadata.chunkNew(id, hash, chunk.length)) {
+				return;
+			}
+			this.delete(hash);
+			if (this.metadata.chunkAcquire(id) != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * If <code>chunk.size</code> is set, updates of a file are split into
+	 * chunks, so that an update only distributes the chunks that changed
+	 * since the previous version. Chunking is disabled by default, since the
+	 * chunks of a file are read one after the other and a chunked update is
+	 * not split while it is streamed. New files are only split into chunks if
+	 * <code>chunk.uploads</code> is set as well, e.g. to share the chunks of
+	 * copies of a file.
+	 * 
+	 * @return The average chunk size of <code>chunk.size</code> or
+	 *         <code>0</code> if the file is not split into chunks.
+	 */
+	private int chunkSize() {
+		int size;
+		boolean uploads;
+		try {
+			size = this.config.getInt("chunk.size", null);
+			uploads = this.config.getBoolean("chunk.uploads", false);
+		} catch (Exception e) {
+			return 0;
+		}
+		if (size != 0 && (size < 64 || Integer.bitCount(size) != 1)) {
+			System.err.println("CoreAccess: Invalid chunk size " + size
+					+ ", files are not split into chunks");
+			return 0;
+		}
+		// The update flag is lost if an update is resumed
+		if (this.update || uploads || !this.chunks(this.fileid).isEmpty()) {
+			return size;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return A {@link CoreAccess} for the RAID files of a chunk.
+	 */
+	private CoreAccess chunkAccess(String hash) {
+		CoreAccess access = new CoreAccess(this.codec, this.transfers,
+				this.planner, this.uploads, null, this.metadata, this.config,
+				this.coreService);
+		access.hash = hash;
+		return access;
+	}
+
+	/**
+	 * @return The chunks of a file ordered by their offset.
+	 */
+	private List<IChunkEntry> chunks(int fileid) {
+		Collection<IChunkEntry> chunks = this.metadata.fileChunks(fileid);
+		if (chunks == null) {
+			return new ArrayList<IChunkEntry>();
+		}
+		return new ArrayList<IChunkEntry>(chunks);
+	}
 
-		this.uploadstate = true;
+	/**
+	 * Removes the chunks from a file and releases them.
+	 * 
+	 * @return <code>true</code> if the file was split into chunks.
+	 */
+	private boolean dropChunks(int fileid) {
+		List<IChunkEntry> chunks = this.chunks(fileid);
+		if (chunks.isEmpty()) {
+			return false;
+		}
+		this.metadata.fileChunksDelete(fileid);
+		List<String> ids = new ArrayList<String>();
+		for (IChunkEntry entry : chunks) {
+			ids.add(entry.getChunk());
+		}
+		this.releaseChunks(ids);
+		return true;
+	}
+
+	/**
+	 * Releases a reference to every chunk and removes the RAID files of the
+	 * chunks that are not referenced anymore.
+	 */
+	private void releaseChunks(List<String> ids) {
+		for (String id : ids) {
+			String hash = this.metadata.chunkRelease(id);
+			if (hash != null) {
+				this.delete(hash);
+			}
+		}
+	}
+
+	/**
+	 * Removes the RAID files <code>hash</code> from all storage connectors.
+	 */
+	private void delete(final String hash) {
+		this.transfers.invokeAll(this.coreService.getStorageConnectors(),
+				new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index) {
+						return connector.delete(hash);
+					}
+				});
+	}
+
+	/**
+	 * @return The hex representation of <code>b</code>.
+	 */
+	private static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte x : b) {
+			sb.append(String.format("%02x", x & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The content of the small file <code>f</code>.
+	 * @throws IOException
+	 *             Thrown if the file cannot be read.
+	 */
+	private static byte[] readFile(File f) throws IOException {
+		byte[] data = new byte[(int) f.length()];
+		InputStream is = new FileInputStream(f);
+		try {
+			int pos = 0;
+			int len;
+			while (pos < data.length
+					&& (len = is.read(data, pos, data.length - pos)) >= 0) {
+				pos += len;
+			}
+			if (pos < data.length) {
+				throw new IOException("Unexpected end of " + f);
+			}
+		} finally {
+			is.close();
+		}
+		return data;
 	}
 
 	private void setByCloudFile(ICloudFile cf) {
@@ -0,0 +1,634 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.dhbw_mannheim.cloudraid.core.ICloudRAIDService;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.metadatamgr.ICloudFile;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IPackEntry;
+
+/**
+ * Stores small files in packs instead of their own device files. The device
+ * data of many files is appended to a pack file per connector in the split
+ * output directory. Once a pack file exceeds the pack size or the pack is
+ * older than the delay, the pack is uploaded as one object per connector
+ * with {@link IStorageConnector#upload(String)}, together with an index of
+ * its files as meta data file. The location of every file in the pack is
+ * stored in the meta data database and read with ranged GETs.
+ * 
+ * Deleted and updated files leave holes in their packs. The compaction moves
+ * the files of sparse packs into new packs and deletes packs without files
+ * once the next compaction runs, so that readers of the old location are
+ * done with it.
+ * 
+ * @author Markus Holtermann
+ */
+public class PackStore {
+
+	/**
+	 * Is notified once the pack of a file has been stored.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param stored
+		 *            <code>true</code> if the pack has been uploaded and the
+		 *            location of the file has been stored;
+		 *            <code>false</code> if the upload failed.
+		 */
+		public void stored(boolean stored);
+
+	}
+
+	/**
+	 * A file appended to the open pack.
+	 */
+	private static class Entry {
+		int fileid;
+		String hash;
+		String from;
+		long[] offsets = new long[3];
+		long[] lengths = new long[3];
+		Listener listener;
+	}
+
+	/**
+	 * A pack whose files are appended to its pack files.
+	 */
+	private static class Pack {
+		String name = "pack-" + UUID.randomUUID().toString();
+		OutputStream[] files = new OutputStream[3];
+		long[] sizes = new long[3];
+		List<Entry> entries = new ArrayList<Entry>();
+	}
+
+	private ICloudRAIDService core;
+	private IMetadataManager metadata;
+	private TransferExecutor transfers;
+	private String dir;
+	private long size;
+	private int threshold;
+	private long delay;
+
+	private ScheduledThreadPoolExecutor timer;
+	private Pack open = null;
+	private boolean closed = false;
+
+	/**
+	 * Guards the registration of sealed packs against their compaction.
+	 */
+	private final Object registry = new Object();
+
+	private AtomicLong sealed = new AtomicLong();
+	private AtomicLong moved = new AtomicLong();
+	private AtomicLong deleted = new AtomicLong();
+	private AtomicLong degraded = new AtomicLong();
+
+	/**
+	 * @param core
+	 *            The core service providing the storage connectors.
+	 * @param metadata
+	 *            The meta data database storing the location of the files.
+	 * @param transfers
+	 *            The {@link TransferExecutor} to upload the packs with.
+	 * @param dir
+	 *            The directory of the pack files, the split output directory
+	 *            the storage connectors upload from.
+	 * @param size
+	 *            The size in bytes at which the pack file of a connector is
+	 *            uploaded.
+	 * @param threshold
+	 *            The maximum size of the device data of a file stored in a
+	 *            pack.
+	 * @param delay
+	 *            The time in milliseconds after which a pack is uploaded
+	 *            even if it is not full.
+	 */
+	public PackStore(ICloudRAIDService core, IMetadataManager metadata,
+			TransferExecutor transfers, String dir, long size, int threshold,
+			long delay) {
+		this.core = core;
+		this.metadata = metadata;
+		this.transfers = transfers;
+		this.dir = dir;
+		this.size = size;
+		this.threshold = threshold;
+		this.delay = delay;
+		this.timer = new ScheduledThreadPoolExecutor(1,
+				new WorkerThreadFactory("CloudRAID-pack-", false));
+		new File(dir).mkdirs();
+	}
+
+	/**
+	 * @return The maximum size of the device data of a file stored in a pack.
+	 */
+	public int getThreshold() {
+		return this.threshold;
+	}
+
+	/**
+	 * Runs the compaction every <code>interval</code> milliseconds.
+	 * 
+	 * @param interval
+	 *            The time between two compactions.
+	 * @param ratio
+	 *            The share of the size in percent up to which the files of a
+	 *            pack are moved, see {@link #compact(int)}.
+	 */
+	public void startCompaction(long interval, final int ratio) {
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact(ratio);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends a file to the open pack. The <code>listener</code> is notified
+	 * once the pack has been uploaded, which may happen in the calling thread
+	 * if the pack is full.
+	 * 
+	 * @param fileid
+	 *            The id of the file.
+	 * @param hash
+	 *            The hash of the file.
+	 * @param records
+	 *            The RAID meta data and device data of every connector, as
+	 *            stored in the meta data file of a file stored inline.
+	 * @param listener
+	 *            The listener to notify.
+	 * @return <code>true</code> if the file was appended,
+	 *         <code>false</code> if it must be stored in its own device
+	 *         files.
+	 */
+	public boolean add(int fileid, String hash, byte[][] records,
+			Listener listener) {
+		return this.add(fileid, hash, null, records, listener);
+	}
+
+	private boolean add(int fileid, String hash, String from,
+			byte[][] records, Listener listener) {
+		Pack full = null;
+		synchronized (this) {
+			if (this.closed) {
+				return false;
+			}
+			try {
+				if (this.open == null) {
+					this.open = this.create();
+				}
+				Entry entry = new Entry();
+				entry.fileid = fileid;
+				entry.hash = hash;
+				entry.from = from;
+				entry.listener = listener;
+				for (int i = 0; i < 3; i++) {
+					this.open.files[i].write(records[i]);
+					entry.offsets[i] = this.open.sizes[i];
+					entry.lengths[i] = records[i].length;
+					this.open.sizes[i] += records[i].length;
+				}
+				this.open.entries.add(entry);
+			} catch (IOException e) {
+				e.printStackTrace();
+				// The pack files are broken, its files are stored again
+				if (this.open != null) {
+					this.fail(this.open);
+					this.open = null;
+				}
+				return false;
+			}
+			for (int i = 0; i < 3; i++) {
+				if (this.open.sizes[i] >= this.size) {
+					full = this.open;
+					this.open = null;
+					break;
+				}
+			}
+		}
+		if (full != null) {
+			this.seal(full);
+		}
+		return true;
+	}
+
+	/**
+	 * Uploads the open pack even if it is not full.
+	 */
+	public void flush() {
+		Pack pack;
+		synchronized (this) {
+			pack = this.open;
+			this.open = null;
+		}
+		if (pack != null) {
+			this.seal(pack);
+		}
+	}
+
+	/**
+	 * Creates the pack files of a new pack and schedules its upload after the
+	 * delay.
+	 */
+	private Pack create() throws IOException {
+		final Pack pack = new Pack();
+		try {
+			for (int i = 0; i < 3; i++) {
+				pack.files[i] = new BufferedOutputStream(new FileOutputStream(
+						this.file(pack.name, String.valueOf(i))));
+			}
+		} catch (IOException e) {
+			this.fail(pack);
+			throw e;
+		}
+		this.timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (PackStore.this) {
+					if (PackStore.this.open != pack) {
+						return;
+					}
+					PackStore.this.open = null;
+				}
+				seal(pack);
+			}
+		}, this.delay, TimeUnit.MILLISECONDS);
+		return pack;
+	}
+
+	/**
+	 * Uploads a pack and stores the location of its files. The files of a
+	 * pack that cannot be uploaded keep their previous location.
+	 */
+	private void seal(Pack pack) {
+		boolean stored = false;
+		try {
+			for (OutputStream os : pack.files) {
+				os.close();
+			}
+			this.writeIndex(pack);
+			stored = this.upload(pack.name);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (stored) {
+			long total = pack.sizes[0] + pack.sizes[1] + pack.sizes[2];
+			int n = pack.entries.size();
+			int[] fileids = new int[n];
+			String[] from = new String[n];
+			long[][] offsets = new long[n][];
+			long[][] lengths = new long[n][];
+			for (int i = 0; i < n; i++) {
+				Entry entry = pack.entries.get(i);
+				fileids[i] = entry.fileid;
+				from[i] = entry.from;
+				offsets[i] = entry.offsets;
+				lengths[i] = entry.lengths;
+			}
+			int count;
+			synchronized (this.registry) {
+				count = this.metadata.packStore(pack.name, total, fileids,
+						from, offsets, lengths);
+			}
+			stored = count >= 0;
+			if (stored) {
+				this.moved.addAndGet(count);
+				this.sealed.incrementAndGet();
+				System.out.println("PackStore: stored pack " + pack.name
+						+ " with " + n + " files and " + total + " bytes");
+			} else {
+				// None of the files has been stored in the pack
+				this.delete(pack.name);
+				System.err.println("PackStore: Cannot store the files of pack "
+						+ pack.name);
+			}
+		}
+		this.remove(pack.name);
+		for (Entry entry : pack.entries) {
+			if (entry.listener != null) {
+				try {
+					entry.listener.stored(stored);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Discards a pack whose pack files cannot be written and notifies the
+	 * listeners of its files.
+	 */
+	private void fail(Pack pack) {
+		for (OutputStream os : pack.files) {
+			try {
+				if (os != null) {
+					os.close();
+				}
+			} catch (IOException ignore) {
+			}
+		}
+		this.remove(pack.name);
+		for (Entry entry : pack.entries) {
+			if (entry.listener != null) {
+				entry.listener.stored(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index of a pack, one line per file: the id, hash, offsets
+	 * and lengths of the file. It allows to rebuild the locations of the
+	 * files from the storage connectors.
+	 */
+	private void writeIndex(Pack pack) throws IOException {
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(
+				this.file(pack.name, "m")));
+		try {
+			for (Entry entry : pack.entries) {
+				StringBuilder line = new StringBuilder();
+				line.append(entry.fileid).append(' ').append(entry.hash);
+				for (int i = 0; i < 3; i++) {
+					line.append(' ').append(entry.offsets[i]).append(' ')
+							.append(entry.lengths[i]);
+				}
+				line.append('\n');
+				os.write(line.toString().getBytes("US-ASCII"));
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Uploads a pack to all connectors. Like the device files of a file, a
+	 * pack is stored once two connectors accepted it, since its files can be
+	 * restored from two of them. Otherwise the pack is removed from the
+	 * connectors again.
+	 * 
+	 * @return <code>true</code> if the pack has been uploaded.
+	 */
+	private boolean upload(final String name) {
+		IStorageConnector[] connectors = this.core.getStorageConnectors();
+		List<Boolean> uploaded = this.transfers.invokeAll(connectors,
+				new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index) {
+						return connector.upload(name);
+					}
+				});
+		int count = 0;
+		for (int i = 0; i < 3; i++) {
+			if (Boolean.TRUE.equals(uploaded.get(i))) {
+				count++;
+			} else {
+				System.err.println("PackStore: Cannot upload pack " + name
+						+ " to connector " + i);
+			}
+		}
+		if (count < 2) {
+			this.delete(name);
+			return false;
+		}
+		if (count < 3) {
+			this.degraded.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a pack from all connectors.
+	 * 
+	 * @return <code>true</code> if the pack has been removed.
+	 */
+	private boolean delete(final String name) {
+		IStorageConnector[] connectors = this.core.getStorageConnectors();
+		List<Boolean> deleted = this.transfers.invokeAll(connectors,
+				new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index) {
+						return connector.delete(name);
+					}
+				});
+		return !deleted.contains(null) && !deleted.contains(Boolean.FALSE);
+	}
+
+	/**
+	 * Compacts the packs whose files take at most <code>ratio</code> percent
+	 * of their size. The files of such a pack are read from the storage
+	 * connectors and moved to the open pack, which is uploaded at the end.
+	 * A pack without files is removed from the connectors and the database.
+	 * 
+	 * @param ratio
+	 *            The share of the size in percent.
+	 * @return The number of packs compacted or removed.
+	 */
+	public int compact(int ratio) {
+		Collection<String> packs = this.metadata.packListSparse(ratio);
+		if (packs == null) {
+			return 0;
+		}
+		int count = 0;
+		for (String name : packs) {
+			Collection<IPackEntry> entries;
+			// A pack is registered together with its files
+			synchronized (this.registry) {
+				entries = this.metadata.packEntryList(name);
+			}
+			if (entries == null) {
+				continue;
+			}
+			if (entries.isEmpty()) {
+				if (this.delete(name) && this.metadata.packDelete(name) == 1) {
+					this.deleted.incrementAndGet();
+					count++;
+				}
+			} else if (this.move(name, entries)) {
+				count++;
+			}
+		}
+		this.flush();
+		if (count > 0) {
+			System.out.println("PackStore: compacted " + count + " packs");
+		}
+		return count;
+	}
+
+	/**
+	 * Moves the files of a pack to the open pack. The records of every file
+	 * are read with ranged GETs, so that a pack is never loaded as a whole.
+	 * If the record of a file is missing on one connector, the file is moved
+	 * without a record for it.
+	 * 
+	 * @return <code>true</code> if the files have been moved.
+	 */
+	private boolean move(final String name, Collection<IPackEntry> entries) {
+		IStorageConnector[] connectors = this.core.getStorageConnectors();
+		for (final IPackEntry entry : entries) {
+			ICloudFile cf = this.metadata.fileById(entry.getFileId());
+			if (cf == null) {
+				// The file has been deleted meanwhile
+				continue;
+			}
+			List<byte[]> read = this.transfers.invokeAll(connectors,
+					new TransferExecutor.Transfer<byte[]>() {
+						@Override
+						public byte[] run(IStorageConnector connector,
+								int index) throws IOException {
+							long length = entry.getLength(index);
+							if (length <= 0 || length > Integer.MAX_VALUE) {
+								return null;
+							}
+							InputStream is = connector.get(name,
+									entry.getOffset(index), length);
+							return is == null ? null : read(is, (int) length);
+						}
+					});
+			byte[][] records = new byte[3][];
+			int missing = 0;
+			for (int i = 0; i < 3; i++) {
+				records[i] = read.get(i);
+				if (records[i] == null) {
+					// The file stays readable from the other two connectors
+					records[i] = new byte[0];
+					missing++;
+				}
+			}
+			if (missing > 1) {
+				System.err.println("PackStore: Cannot read file "
+						+ entry.getFileId() + " of pack " + name);
+				return false;
+			}
+			if (!this.add(entry.getFileId(), cf.getHash(), name, records,
+					null)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The first <code>length</code> bytes of <code>is</code> or
+	 *         <code>null</code> if it is shorter.
+	 */
+	private static byte[] read(InputStream is, int length) throws IOException {
+		byte[] data = new byte[length];
+		try {
+			int pos = 0;
+			while (pos < length) {
+				int len = is.read(data, pos, length - pos);
+				if (len < 0) {
+					break;
+				}
+				pos += len;
+			}
+			return pos == length ? data : null;
+		} finally {
+			is.close();
+		}
+	}
+
+	private File file(String name, String ext) {
+		return new File(this.dir + File.separator + name + "." + ext);
+	}
+
+	private void remove(String name) {
+		for (String ext : new String[] { "0", "1", "2", "m" }) {
+			this.file(name, ext).delete();
+		}
+	}
+
+	/**
+	 * @return The number of packs uploaded since the start.
+	 */
+	public long getSealedCount() {
+		return this.sealed.get();
+	}
+
+	/**
+	 * @return The number of files moved by the compaction since the start.
+	 */
+	public long getMovedCount() {
+		return this.moved.get();
+	}
+
+	/**
+	 * @return The number of packs removed by the compaction since the start.
+	 */
+	public long getDeletedCount() {
+		return this.deleted.get();
+	}
+
+	/**
+	 * @return The number of packs uploaded to two connectors only since the
+	 *         start.
+	 */
+	public long getDegradedCount() {
+		return this.degraded.get();
+	}
+
+	/**
+	 * Stops packing files. The open pack is discarded, its files keep the
+	 * state {@link IMetadataManager.FILE_STATUS#DISTRIBUTING DISTRIBUTING}
+	 * and are recovered on the next start.
+	 */
+	public void shutdown() {
+		this.timer.shutdownNow();
+		Pack pack;
+		synchronized (this) {
+			this.closed = true;
+			pack = this.open;
+			this.open = null;
+		}
+		if (pack != null) {
+			for (OutputStream os : pack.files) {
+				try {
+					os.close();
+				} catch (IOException ignore) {
+				}
+			}
+			this.remove(pack.name);
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+
+/**
+ * Decides from which {@link IStorageConnector}s the device files of a file are
+ * read. Only two of the three devices are required to restore a file, the
+ * third one is only read if one of them is missing or corrupt.
+ * 
+ * The planner keeps the latencies of the last {@value #SAMPLES} requests of
+ * every connector, i.e. the time until the first byte of a device file
+ * arrived. A failed request counts as {@value #FAILURE_LATENCY} milliseconds.
+ * 
+ * @author Markus Holtermann
+ */
+public class ReadPlanner {
+
+	/**
+	 * The number of latencies kept per connector.
+	 */
+	public static final int SAMPLES = 32;
+
+	/**
+	 * The latency in milliseconds recorded for a failed request.
+	 */
+	public static final long FAILURE_LATENCY = 60000;
+
+	private long[][] samples;
+	private int[] count;
+	private double hedgePercentile = 95;
+
+	/**
+	 * @param connectors
+	 *            The number of storage connectors.
+	 */
+	public ReadPlanner(int connectors) {
+		this.samples = new long[connectors][SAMPLES];
+		this.count = new int[connectors];
+	}
+
+	/**
+	 * Records the latency of a request.
+	 * 
+	 * @param connector
+	 *            The index of the connector.
+	 * @param millis
+	 *            The time in milliseconds until the first byte of the device
+	 *            file arrived.
+	 */
+	public synchronized void record(int connector, long millis) {
+		this.samples[connector][this.count[connector] % SAMPLES] = millis;
+		this.count[connector]++;
+	}
+
+	/**
+	 * Records a failed request.
+	 * 
+	 * @param connector
+	 *            The index of the connector.
+	 */
+	public void fail(int connector) {
+		this.record(connector, FAILURE_LATENCY);
+	}
+
+	/**
+	 * Opens a device file and records the time until its first byte arrived.
+	 * If the device file is missing or cannot be read, a failure is recorded.
+	 * 
+	 * @param connector
+	 *            The storage connector.
+	 * @param index
+	 *            The index of the connector.
+	 * @param resource
+	 *            The resource of the device file.
+	 * @param offset
+	 *            The first byte of the device file.
+	 * @param length
+	 *            The number of bytes or <code>-1</code> for the whole device
+	 *            file.
+	 * @return The device file or <code>null</code> if it is missing.
+	 * @throws IOException
+	 *             Thrown if the device file cannot be read.
+	 */
+	public InputStream open(IStorageConnector connector, int index,
+			String resource, long offset, long length) throws IOException {
+		long start = System.currentTimeMillis();
+		PushbackInputStream is = null;
+		boolean opened = false;
+		try {
+			InputStream in = (length < 0) ? connector.get(resource)
+					: connector.get(resource, offset, length);
+			if (in == null) {
+				return null;
+			}
+			is = new PushbackInputStream(in, 1);
+			int b = is.read();
+			if (b >= 0) {
+				is.unread(b);
+			}
+			opened = true;
+		} finally {
+			if (!opened) {
+				this.fail(index);
+				if (is != null) {
+					try {
+						is.close();
+					} catch (IOException ignore) {
+					}
+				}
+			}
+		}
+		this.record(index, System.currentTimeMillis() - start);
+		return is;
+	}
+
+	/**
+	 * @param connector
+	 *            The index of the connector.
+	 * @param percentile
+	 *            The percentile between <code>0</code> and <code>100</code>.
+	 * @return The given percentile of the recorded latencies in milliseconds
+	 *         or <code>-1</code> if no latency is known.
+	 */
+	public synchronized long getLatency(int connector, double percentile) {
+		int n = Math.min(this.count[connector], SAMPLES);
+		if (n == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(this.samples[connector], n);
+		Arrays.sort(sorted);
+		int idx = (int) Math.ceil(percentile / 100.0 * n) - 1;
+		return sorted[Math.max(0, Math.min(n - 1, idx))];
+	}
+
+	/**
+	 * Sets the percentile of the latencies after which a request is hedged,
+	 * see {@link #getHedgeDelay(int)}.
+	 * 
+	 * @param percentile
+	 *            The percentile between <code>0</code> and <code>100</code>.
+	 *            The value <code>0</code> disables hedging.
+	 */
+	public void setHedgePercentile(double percentile) {
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * @param connector
+	 *            The index of the connector.
+	 * @return The time in milliseconds after which a request to the
+	 *         connector is considered slow and the next connector is
+	 *         requested as well or <code>-1</code> if requests are not hedged.
+	 */
+	public long getHedgeDelay(int connector) {
+		if (this.hedgePercentile <= 0) {
+			return -1;
+		}
+		return this.getLatency(connector, this.hedgePercentile);
+	}
+
+	/**
+	 * Orders the connectors by the order in which their device files should
+	 * be read. Connectors with <code>preferred</code> set come first, e.g.
+	 * because their meta data is valid. Then connectors are ordered by their
+	 * median latency. Connectors without any recorded latency are tried first
+	 * to learn about them.
+	 * 
+	 * @param preferred
+	 *            The connectors to read from first.
+	 * @return The indexes of all connectors. The first two are the devices to
+	 *         read, the others are only required if they fail.
+	 */
+	public int[] plan(boolean[] preferred) {
+		int n = preferred.length;
+		Integer[] order = new Integer[n];
+		final long[] key = new long[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			key[i] = this.getLatency(i, 50);
+			if (!preferred[i]) {
+				key[i] += Long.MAX_VALUE / 2;
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return key[a] < key[b] ? -1 : key[a] > key[b] ? 1 : a
+						.compareTo(b);
+			}
+		});
+		int[] plan = new int[n];
+		for (int i = 0; i < n; i++) {
+			plan[i] = order[i];
+		}
+		return plan;
+	}
+
+}
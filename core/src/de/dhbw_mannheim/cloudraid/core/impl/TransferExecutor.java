@@ -0,0 +1,327 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+
+/**
+ * Runs the transfers of the device files with the {@link IStorageConnector}s
+ * concurrently on a bounded number of threads. A transfer is not limited in
+ * its duration, since a large device file on a slow link may take long while
+ * it makes progress. A stalled transfer fails with the connect and read
+ * timeouts of its connection instead, see {@link HttpConnections}.
+ * 
+ * @author Markus Holtermann
+ */
+public class TransferExecutor {
+
+	/**
+	 * A transfer with a single storage connector.
+	 * 
+	 * @param <T>
+	 *            The result of the transfer.
+	 */
+	public interface Transfer<T> {
+
+		/**
+		 * @param connector
+		 *            The storage connector.
+		 * @param index
+		 *            The index of the connector, which is the device number.
+		 * @return The result of the transfer.
+		 * @throws Exception
+		 *             Thrown if the transfer fails.
+		 */
+		public T run(IStorageConnector connector, int index) throws Exception;
+
+	}
+
+	/**
+	 * A {@link Transfer} that remembers when it was started.
+	 */
+	private static class TimedTransfer<T> implements Callable<T> {
+
+		private Transfer<T> transfer;
+		private IStorageConnector connector;
+		private int index;
+		private volatile long started = 0;
+
+		TimedTransfer(Transfer<T> transfer, IStorageConnector connector,
+				int index) {
+			this.transfer = transfer;
+			this.connector = connector;
+			this.index = index;
+		}
+
+		@Override
+		public T call() throws Exception {
+			this.started = System.currentTimeMillis();
+			return this.transfer.run(this.connector, this.index);
+		}
+
+	}
+
+	private ThreadPoolExecutor executor;
+	private WorkerThreadFactory factory;
+
+	/**
+	 * @param threads
+	 *            The maximum number of concurrent transfers.
+	 */
+	public TransferExecutor(int threads) {
+		this(threads, false);
+	}
+
+	/**
+	 * @param threads
+	 *            The maximum number of concurrent transfers.
+	 * @param virtual
+	 *            <code>true</code> to run every transfer on a virtual thread
+	 *            if the runtime supports them. As a virtual thread does not
+	 *            occupy a platform thread while it waits for a storage,
+	 *            <code>threads</code> can be much larger then.
+	 */
+	public TransferExecutor(int threads, boolean virtual) {
+		this.factory = new WorkerThreadFactory("CloudRAID-transfer-", virtual);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				this.factory);
+		this.executor.allowCoreThreadTimeOut(true);
+		if (this.factory.isVirtual()) {
+			// Virtual threads are not worth keeping alive
+			this.executor.setKeepAliveTime(1L, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the transfers run on virtual threads.
+	 */
+	public boolean isVirtual() {
+		return this.factory.isVirtual();
+	}
+
+	/**
+	 * Runs the <code>transfer</code> with all <code>connectors</code>
+	 * concurrently and waits for them. A transfer that fails or is
+	 * interrupted has the result <code>null</code>.
+	 * 
+	 * @param connectors
+	 *            The storage connectors.
+	 * @param transfer
+	 *            The transfer to run with every connector.
+	 * @return The results in the order of the connectors.
+	 */
+	public <T> List<T> invokeAll(IStorageConnector[] connectors,
+			Transfer<T> transfer) {
+		int[] indexes = new int[connectors.length];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = i;
+		}
+		return this.invokeAll(connectors, indexes, transfer);
+	}
+
+	/**
+	 * Runs the <code>transfer</code> with the <code>connectors</code> at the
+	 * given <code>indexes</code> concurrently and waits for them, see
+	 * {@link #invokeAll(IStorageConnector[], Transfer)}.
+	 * 
+	 * @param connectors
+	 *            The storage connectors.
+	 * @param indexes
+	 *            The indexes of the connectors to use.
+	 * @param transfer
+	 *            The transfer to run with every selected connector.
+	 * @return The results in the order of the <code>indexes</code>.
+	 */
+	public <T> List<T> invokeAll(IStorageConnector[] connectors,
+			int[] indexes, Transfer<T> transfer) {
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (int i : indexes) {
+			futures.add(this.executor.submit(new TimedTransfer<T>(transfer,
+					connectors[i], i)));
+		}
+		List<T> results = new ArrayList<T>();
+		for (int i = 0; i < indexes.length; i++) {
+			results.add(this.await(futures.get(i)));
+		}
+		return results;
+	}
+
+	/**
+	 * Runs the <code>transfer</code> with the first <code>needed</code>
+	 * connectors of <code>order</code> and waits until <code>needed</code>
+	 * transfers succeeded. The transfers are hedged: if a transfer takes
+	 * longer than the <code>delays</code> of its connector, or fails, the
+	 * transfer with the next connector of <code>order</code> is started. The
+	 * transfers that are still running once enough succeeded are cancelled.
+	 * 
+	 * @param connectors
+	 *            The storage connectors.
+	 * @param order
+	 *            The indexes of the connectors in the order to use them.
+	 * @param needed
+	 *            The number of successful transfers required.
+	 * @param delays
+	 *            The time in milliseconds per connector after which the next
+	 *            connector is started or <code>-1</code> to only start it if
+	 *            the transfer fails.
+	 * @param transfer
+	 *            The transfer to run.
+	 * @return The results per connector. Connectors that were not used, that
+	 *         failed or were cancelled have the result <code>null</code>. More
+	 *         than <code>needed</code> results are returned if transfers
+	 *         finished at the same time.
+	 */
+	public <T> List<T> invokeHedged(IStorageConnector[] connectors,
+			int[] order, int needed, long[] delays, Transfer<T> transfer) {
+		List<T> results = new ArrayList<T>();
+		for (int i = 0; i < connectors.length; i++) {
+			results.add(null);
+		}
+		ExecutorCompletionService<T> service = new ExecutorCompletionService<T>(
+				this.executor);
+		Map<Future<T>, TimedTransfer<T>> running = new HashMap<Future<T>, TimedTransfer<T>>();
+		boolean[] hedged = new boolean[connectors.length];
+		int next = 0, succeeded = 0;
+		for (; next < Math.min(needed, order.length); next++) {
+			TimedTransfer<T> task = new TimedTransfer<T>(transfer,
+					connectors[order[next]], order[next]);
+			running.put(service.submit(task), task);
+		}
+		try {
+			while (succeeded < needed && !running.isEmpty()) {
+				// Find the transfer to hedge next
+				long now = System.currentTimeMillis(), wait = Long.MAX_VALUE;
+				boolean hedge = false;
+				for (Map.Entry<Future<T>, TimedTransfer<T>> e : running
+						.entrySet()) {
+					TimedTransfer<T> t = e.getValue();
+					if (t.started == 0) {
+						// Check again once the queued transfer started
+						wait = Math.min(wait, 50);
+						continue;
+					}
+					if (!hedged[t.index] && delays[t.index] >= 0
+							&& next < order.length) {
+						long left = t.started + delays[t.index] - now;
+						if (left <= 0) {
+							hedged[t.index] = true;
+							hedge = true;
+							break;
+						}
+						wait = Math.min(wait, left);
+					}
+				}
+
+				Future<T> done = null;
+				if (!hedge) {
+					done = wait == Long.MAX_VALUE ? service.take() : service
+							.poll(wait, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						continue;
+					}
+				}
+				TimedTransfer<T> task = done == null ? null : running
+						.remove(done);
+				T result = task == null ? null : this.result(done);
+				if (result != null) {
+					results.set(task.index, result);
+					succeeded++;
+				} else if (next < order.length) {
+					task = new TimedTransfer<T>(transfer,
+							connectors[order[next]], order[next]);
+					running.put(service.submit(task), task);
+					next++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (Map.Entry<Future<T>, TimedTransfer<T>> e : running.entrySet()) {
+				// Keep the results of transfers that finished meanwhile
+				if (!e.getKey().cancel(true) && e.getKey().isDone()) {
+					T result = this.result(e.getKey());
+					if (result != null) {
+						results.set(e.getValue().index, result);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return The result of the finished <code>future</code> or
+	 *         <code>null</code> if it failed.
+	 */
+	private <T> T result(Future<T> future) {
+		try {
+			return future.get();
+		} catch (CancellationException e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until the transfer finished.
+	 * 
+	 * @return The result or <code>null</code>.
+	 */
+	private <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Cancels all running transfers and stops the threads.
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+}
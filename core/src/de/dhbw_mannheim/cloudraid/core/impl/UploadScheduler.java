@@ -0,0 +1,380 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits and distributes uploaded files on a bounded number of threads. At
+ * most <code>capacity</code> files wait for a thread, a caller that submits
+ * another file is blocked until there is room again or the timeout is over.
+ * 
+ * Files that could not be queued are not lost: they keep their state in the
+ * meta data database which is the persistent part of the queue. Once the
+ * queue runs empty after a file was rejected, the recovery set by
+ * {@link #setRecovery(Runnable)} is run to queue them again.
+ * 
+ * Files that failed are retried after a delay that doubles with every
+ * consecutive failure of the file, up to {@value #MAX_RETRY_DELAY}
+ * milliseconds. Until then, they are not queued again.
+ * 
+ * @author Markus Holtermann
+ */
+public class UploadScheduler {
+
+	/**
+	 * The maximum time in milliseconds until a failed file is retried.
+	 */
+	public static final long MAX_RETRY_DELAY = 3600000;
+
+	private ThreadPoolExecutor executor;
+	private ScheduledThreadPoolExecutor timer;
+	private long retryDelay = 30000;
+	private Semaphore slots;
+	private long timeout;
+
+	/**
+	 * The queued files and the time they were queued, the oldest first.
+	 */
+	private Map<Integer, Long> queued = new LinkedHashMap<Integer, Long>();
+	private Set<Integer> running = new HashSet<Integer>();
+
+	/**
+	 * The number of consecutive failures per file.
+	 */
+	private Map<Integer, Integer> failures = new HashMap<Integer, Integer>();
+
+	/**
+	 * The failed files waiting for their retry.
+	 */
+	private Set<Integer> waiting = new HashSet<Integer>();
+
+	private Runnable recovery = null;
+	private AtomicBoolean pending = new AtomicBoolean(false);
+	private AtomicLong completed = new AtomicLong();
+	private AtomicLong rejected = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param threads
+	 *            The number of files processed at once.
+	 * @param capacity
+	 *            The number of files that may wait for a thread.
+	 * @param timeout
+	 *            The time in milliseconds a caller waits for room in the
+	 *            queue.
+	 */
+	public UploadScheduler(int threads, int capacity, long timeout) {
+		this.slots = new Semaphore(capacity, true);
+		this.timeout = timeout;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new WorkerThreadFactory("CloudRAID-upload-", false));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.timer = new ScheduledThreadPoolExecutor(1,
+				new WorkerThreadFactory("CloudRAID-retry-", false));
+	}
+
+	/**
+	 * Sets the time until a file that failed for the first time is retried.
+	 * 
+	 * @param delay
+	 *            The delay in milliseconds.
+	 */
+	public void setRetryDelay(long delay) {
+		this.retryDelay = delay;
+	}
+
+	/**
+	 * Sets the task that queues the files which were rejected before. It is
+	 * run on a worker or the retry thread and must only use
+	 * {@link #offer(int, Runnable)}.
+	 * 
+	 * @param recovery
+	 *            The recovery task.
+	 */
+	public void setRecovery(Runnable recovery) {
+		this.recovery = recovery;
+	}
+
+	/**
+	 * Queues the <code>job</code> for the file <code>fileid</code>. If the
+	 * queue is full, the caller is blocked until there is room again or the
+	 * timeout is over.
+	 * 
+	 * @param fileid
+	 *            The id of the file.
+	 * @param job
+	 *            The job that splits and distributes the file.
+	 * @return <code>true</code> if the job was queued, <code>false</code> if
+	 *         the queue is still full or the file is already queued or
+	 *         processed.
+	 */
+	public boolean submit(int fileid, Runnable job) {
+		try {
+			if (this.slots.tryAcquire(this.timeout, TimeUnit.MILLISECONDS)) {
+				return this.queue(fileid, job);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.rejected.incrementAndGet();
+		this.pending.set(true);
+		System.err.println("UploadScheduler: queue is full, file " + fileid
+				+ " is queued again later");
+		return false;
+	}
+
+	/**
+	 * Queues the <code>job</code> for the file <code>fileid</code> if there
+	 * is room in the queue without waiting.
+	 * 
+	 * @see #submit(int, Runnable)
+	 */
+	public boolean offer(int fileid, Runnable job) {
+		if (this.slots.tryAcquire()) {
+			return this.queue(fileid, job);
+		}
+		this.pending.set(true);
+		return false;
+	}
+
+	/**
+	 * Counts a file that could not be split or distributed and schedules its
+	 * retry. The job has to keep the file in a state from which it can be
+	 * queued again. Until the retry, the file is not queued, neither by the
+	 * recovery nor by another caller.
+	 * 
+	 * @param fileid
+	 *            The id of the file.
+	 * @param retry
+	 *            The task that queues the file again or <code>null</code> to
+	 *            run the recovery instead.
+	 */
+	public void fail(final int fileid, final Runnable retry) {
+		this.failed.incrementAndGet();
+		long delay;
+		synchronized (this) {
+			Integer count = this.failures.get(fileid);
+			count = count == null ? 1 : count + 1;
+			this.failures.put(fileid, count);
+			this.waiting.add(fileid);
+			delay = this.retryDelay << Math.min(count - 1, 30);
+			if (delay <= 0 || delay > MAX_RETRY_DELAY) {
+				delay = MAX_RETRY_DELAY;
+			}
+		}
+		System.err.println("UploadScheduler: file " + fileid
+				+ " failed, it is retried in " + delay + " ms");
+		try {
+			this.timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (UploadScheduler.this) {
+						UploadScheduler.this.waiting.remove(fileid);
+					}
+					if (retry != null) {
+						retry.run();
+					} else {
+						UploadScheduler.this.pending.set(true);
+						UploadScheduler.this.recover();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			// The scheduler is shut down, the file is recovered on the next
+			// start
+			synchronized (this) {
+				this.waiting.remove(fileid);
+			}
+		}
+	}
+
+	private boolean queue(final int fileid, final Runnable job) {
+		synchronized (this) {
+			if (this.waiting.contains(fileid)) {
+				this.slots.release();
+				return false;
+			}
+			if (this.queued.containsKey(fileid)
+					|| this.running.contains(fileid)) {
+				// Check the state of the file again once it is processed
+				this.pending.set(true);
+				this.slots.release();
+				return false;
+			}
+			this.queued.put(fileid, System.currentTimeMillis());
+		}
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					UploadScheduler.this.run(fileid, job);
+				}
+			});
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				this.queued.remove(fileid);
+			}
+			this.slots.release();
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the <code>job</code> for the file <code>fileid</code> in the
+	 * calling thread, bypassing the queue.
+	 * 
+	 * @return <code>true</code> if the job was run, <code>false</code> if the
+	 *         file is already queued or processed.
+	 */
+	public boolean execute(int fileid, Runnable job) {
+		synchronized (this) {
+			if (this.waiting.contains(fileid)
+					|| this.queued.containsKey(fileid)
+					|| this.running.contains(fileid)) {
+				return false;
+			}
+			this.running.add(fileid);
+		}
+		this.process(fileid, job);
+		return true;
+	}
+
+	private void run(int fileid, Runnable job) {
+		long waited;
+		synchronized (this) {
+			waited = System.currentTimeMillis() - this.queued.remove(fileid);
+			this.running.add(fileid);
+		}
+		this.slots.release();
+		if (waited > 1000) {
+			System.out.println("UploadScheduler: file " + fileid
+					+ " waited " + waited + " ms in the queue");
+		}
+		this.process(fileid, job);
+		this.recover();
+	}
+
+	/**
+	 * Runs the <code>job</code> of a running file. The consecutive failures
+	 * of the file are forgotten once it did not fail.
+	 */
+	private void process(int fileid, Runnable job) {
+		boolean failed = true;
+		try {
+			job.run();
+			failed = false;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				this.running.remove(fileid);
+				if (!failed && !this.waiting.contains(fileid)) {
+					this.failures.remove(fileid);
+				}
+			}
+			this.completed.incrementAndGet();
+		}
+		if (failed) {
+			this.fail(fileid, null);
+		}
+	}
+
+	/**
+	 * Runs the recovery if files were rejected and the queue is empty.
+	 */
+	private void recover() {
+		if (this.recovery != null && this.getQueueDepth() == 0
+				&& this.pending.compareAndSet(true, false)) {
+			this.recovery.run();
+		}
+	}
+
+	/**
+	 * @return The number of files waiting for a thread.
+	 */
+	public synchronized int getQueueDepth() {
+		return this.queued.size();
+	}
+
+	/**
+	 * @return The time in milliseconds the oldest queued file is waiting or
+	 *         <code>0</code> if the queue is empty.
+	 */
+	public synchronized long getQueueAge() {
+		Iterator<Long> it = this.queued.values().iterator();
+		return it.hasNext() ? System.currentTimeMillis() - it.next() : 0;
+	}
+
+	/**
+	 * @return The number of files being split or distributed right now.
+	 */
+	public synchronized int getActiveCount() {
+		return this.running.size();
+	}
+
+	/**
+	 * @return The number of files processed since the start.
+	 */
+	public long getCompletedCount() {
+		return this.completed.get();
+	}
+
+	/**
+	 * @return The number of files that could not be split or distributed
+	 *         since the start.
+	 */
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	/**
+	 * @return The number of files that could not be queued since the start.
+	 */
+	public long getRejectedCount() {
+		return this.rejected.get();
+	}
+
+	/**
+	 * Stops accepting new files. Queued files keep their state in the
+	 * database and are recovered on the next start.
+	 */
+	public void shutdown() {
+		this.timer.shutdownNow();
+		this.executor.shutdownNow();
+	}
+
+}
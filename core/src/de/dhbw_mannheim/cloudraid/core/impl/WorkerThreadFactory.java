@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.dhbw_mannheim.cloudraid.core.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the {@link TransferExecutor} and the
+ * {@link UploadScheduler}. Optionally creates virtual threads, which is
+ * cheap for transfers that mostly wait for slow cloud storages. Virtual
+ * threads require a Java runtime that provides <code>Thread.ofVirtual()</code>
+ * and are looked up reflectively, as this bundle still runs on older
+ * runtimes. On those, platform threads are created instead.
+ * 
+ * @author Markus Holtermann
+ */
+final class WorkerThreadFactory implements ThreadFactory {
+
+	private String prefix;
+	private ThreadFactory virtual = null;
+	private AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param prefix
+	 *            The prefix of the thread names.
+	 * @param virtual
+	 *            <code>true</code> to create virtual threads if available.
+	 */
+	WorkerThreadFactory(String prefix, boolean virtual) {
+		this.prefix = prefix;
+		if (virtual) {
+			this.virtual = virtualFactory(prefix);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if virtual threads are created.
+	 */
+	boolean isVirtual() {
+		return this.virtual != null;
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		if (this.virtual != null) {
+			return this.virtual.newThread(r);
+		}
+		Thread t = new Thread(r, this.prefix + this.count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * @return A factory of virtual threads or <code>null</code> if the
+	 *         runtime does not support them.
+	 */
+	private static ThreadFactory virtualFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> klass = Class.forName("java.lang.Thread$Builder");
+			Method name = klass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 1L);
+			return (ThreadFactory) klass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// Thread.ofVirtual() does not exist or is a preview feature
+			return null;
+		}
+	}
+
+}
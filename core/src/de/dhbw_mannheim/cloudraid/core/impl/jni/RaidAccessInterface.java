@@ -22,6 +22,8 @@
 
 package de.dhbw_mannheim.cloudraid.core.impl.jni;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Florian Bausch, Markus Holtermann
  */
@@ -41,6 +43,7 @@ public class RaidAccessInterface {
 	public static final int OPENERR_OUT = 0x0080;
 	public static final int METADATA_ERROR = 0x0100;
 	public static final int SUCCESS_SPLIT = 0x0200;
+	public static final int BLOCKSIZE_ERROR = 0x0400;
 
 	public static String getErrorMessage(int code) {
 		StringBuffer sb = new StringBuffer();
@@ -74,13 +77,55 @@ public class RaidAccessInterface {
 		if ((code & RaidAccessInterface.SUCCESS_SPLIT) >= 1) {
 			sb.append("Split successful");
 		}
+		if ((code & RaidAccessInterface.BLOCKSIZE_ERROR) >= 1) {
+			sb.append("Invalid block size");
+		}
 		return sb.toString();
 	}
 
+	/**
+	 * Decodes the value returned by
+	 * {@link #splitInterface(String, String, String, String, int)} and
+	 * {@link #splitClose(long)}.
+	 * 
+	 * @param hash
+	 *            The returned value.
+	 * @return {@link #SUCCESS_SPLIT} if <code>hash</code> is a valid base
+	 *         name, otherwise the error code. <code>0</code> if the error is
+	 *         unknown.
+	 */
+	public static int getSplitStatus(String hash) {
+		if (hash == null) {
+			return 0;
+		} else if (hash.length() == 64) {
+			return RaidAccessInterface.SUCCESS_SPLIT;
+		} else if (hash.length() == 2) {
+			return ((hash.charAt(0) ^ 0xFF) << 8) & 0xff00
+					| ((hash.charAt(1) ^ 0xFF) & 0x00ff);
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The default number of bytes each device contributes to a
+	 *         stripe.
+	 */
+	public static native int getBlockSize();
+
+	/**
+	 * @return The largest block size accepted by the split functions.
+	 */
+	public static native int getMaxBlockSize();
+
 	public static native int getMetadataByteLength();
 
 	public static native String getName();
 
+	/**
+	 * @return The number of threads that split and merge a file.
+	 */
+	public static native int getThreadCount();
+
 	public static native String getVendor();
 
 	public static native String getVersion();
@@ -107,6 +152,104 @@ public class RaidAccessInterface {
 	public static native int mergeInterface(String tempInputDirPath,
 			String hash, String outputFilePath, String key);
 
+	/**
+	 * Opens a streaming merge. In contrast to
+	 * {@link #mergeInterface(String, String, String, String)} the device files
+	 * are not read from disk but passed stripe by stripe to
+	 * {@link #mergeBlock(long, byte[], int[], boolean, byte[])}.
+	 * 
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param deadDevice
+	 *            The device (<code>0</code>, <code>1</code> or <code>2</code>)
+	 *            that is not used to restore the original file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @return A handle for
+	 *         {@link #mergeBlock(long, byte[], int[], boolean, byte[])} and
+	 *         {@link #mergeClose(long)} or <code>0</code> if no memory could be
+	 *         allocated.
+	 */
+	public static native long mergeOpen(byte[] metadata, int deadDevice,
+			String key);
+
+	/**
+	 * Merges the next stripe.
+	 * 
+	 * @param handle
+	 *            The handle returned by
+	 *            {@link #mergeOpen(byte[], int, String)}.
+	 * @param in
+	 *            A buffer of three blocks of the block size stored in the meta
+	 *            data
+	 *            containing the primary device, the secondary device and the
+	 *            parity of the stripe in this order.
+	 * @param inLen
+	 *            The number of bytes read for the primary device, the secondary
+	 *            device and the parity.
+	 * @param last
+	 *            <code>true</code> if this is the last stripe of the file.
+	 * @param out
+	 *            A buffer of two blocks of the block size stored in the meta
+	 *            data
+	 *            that receives the decrypted data.
+	 * @return The number of bytes written to <code>out</code> or
+	 *         <code>-1</code> if the merge failed. The error code is returned
+	 *         by {@link #mergeClose(long)}.
+	 */
+	public static native int mergeBlock(long handle, byte[] in, int[] inLen,
+			boolean last, byte[] out);
+
+	/**
+	 * Finishes a streaming merge, verifies the checksum of the merged data and
+	 * releases all resources held by the <code>handle</code>. The handle MUST
+	 * NOT be used afterwards.
+	 * 
+	 * @param handle
+	 *            The handle returned by
+	 *            {@link #mergeOpen(byte[], int, String)}.
+	 * @return Return the success and error code of the merge.
+	 */
+	public static native int mergeClose(long handle);
+
+	/**
+	 * Merges as many stripes as available from the direct buffers
+	 * <code>dev0</code>, <code>dev1</code> and <code>dev2</code> into the
+	 * direct buffer <code>out</code>. The buffers are accessed by the native
+	 * library without copying them. The buffer of the dead device may be
+	 * <code>null</code>.
+	 * 
+	 * @param handle
+	 *            The handle returned by
+	 *            {@link #mergeOpen(byte[], int, String)}.
+	 * @param dev0
+	 *            The data of device <code>0</code>.
+	 * @param dev1
+	 *            The data of device <code>1</code>.
+	 * @param dev2
+	 *            The data of device <code>2</code>.
+	 * @param devOffset
+	 *            The offsets of the next unread byte of each device buffer.
+	 *            They are updated to the bytes consumed.
+	 * @param devLimit
+	 *            The offsets behind the last available byte of each device
+	 *            buffer.
+	 * @param last
+	 *            <code>true</code> if the device buffers contain the end of
+	 *            the device files. Otherwise a stripe is only merged if the
+	 *            following stripe has been started too.
+	 * @param out
+	 *            The buffer that receives the decrypted data.
+	 * @param outOffset
+	 *            The offset in <code>out</code>.
+	 * @return The number of bytes written to <code>out</code> or
+	 *         <code>-1</code> if the merge failed. The error code is returned
+	 *         by {@link #mergeClose(long)}.
+	 */
+	public static native int mergeBuffer(long handle, ByteBuffer dev0,
+			ByteBuffer dev1, ByteBuffer dev2, int[] devOffset, int[] devLimit,
+			boolean last, ByteBuffer out, int outOffset);
+
 	/**
 	 * <p>
 	 * This function splits the file <code>inputBasePath</code> +
@@ -146,11 +289,162 @@ public class RaidAccessInterface {
 	 *            The key for file encryption. The encryption is done before the
 	 *            file inputFilePath is split into the chunks. (E.g.
 	 *            <code>eph3Oodotah0peiy</code>)
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe, at
+	 *            most {@link #getMaxBlockSize()}. Larger blocks mean fewer
+	 *            stripes and less per-stripe overhead.
 	 * @return The base name of the RAID files with 64 characters, or an integer
 	 *         that specifies the return value if something went wrong.
 	 *         Referring to the example:
 	 *         <code>4cf17f73ea0316baffbe8f5eae2451b0f245a5f098378e283acf39143e1c69b3</code>
 	 */
 	public static native String splitInterface(String inputBasePath,
-			String inputFilePath, String tempOutputDirPath, String key);
+			String inputFilePath, String tempOutputDirPath, String key,
+			int blockSize);
+
+	/**
+	 * Opens a streaming split. In contrast to
+	 * {@link #splitInterface(String, String, String, String, int)} the input is not
+	 * read from a file but passed to {@link #splitWrite(long, byte[], int, int)}
+	 * as it arrives. The output files are named and written as described for
+	 * {@link #splitInterface(String, String, String, String, int)}.
+	 * 
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>). The names of the RAID
+	 *            files are derived from it.
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator (
+	 *            <code>/tmp/cloudraid/</code>)!
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @return A handle for {@link #splitWrite(long, byte[], int, int)} and
+	 *         {@link #splitClose(long)} or <code>0</code> if no memory could be
+	 *         allocated.
+	 */
+	public static native long splitOpen(String inputFilePath,
+			String tempOutputDirPath, String key, int blockSize);
+
+	/**
+	 * Splits the next <code>len</code> bytes of <code>buf</code> starting at
+	 * <code>off</code>.
+	 * 
+	 * @param handle
+	 *            The handle returned by
+	 *            {@link #splitOpen(String, String, String, int)}.
+	 * @param buf
+	 *            The input buffer.
+	 * @param off
+	 *            The offset in <code>buf</code>.
+	 * @param len
+	 *            The number of bytes to split.
+	 * @return <code>0</code> on success, otherwise the error code.
+	 */
+	public static native int splitWrite(long handle, byte[] buf, int off,
+			int len);
+
+	/**
+	 * Finishes a streaming split, writes the meta data file and releases all
+	 * resources held by the <code>handle</code>. The handle MUST NOT be used
+	 * afterwards. If the split failed, all output files are removed.
+	 * 
+	 * @param handle
+	 *            The handle returned by
+	 *            {@link #splitOpen(String, String, String, int)}.
+	 * @return The base name of the RAID files with 64 characters, or the error
+	 *         code as returned by
+	 *         {@link #splitInterface(String, String, String, String, int)}.
+	 */
+	public static native String splitClose(long handle);
+
+	/**
+	 * Opens a split of direct buffers. In contrast to
+	 * {@link #splitOpen(String, String, String, int)} no files are written. The
+	 * data of the three devices is written to the buffers passed to
+	 * {@link #splitBuffer(long, ByteBuffer, int, int, ByteBuffer, ByteBuffer, ByteBuffer, int[])}
+	 * instead.
+	 * 
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @return A handle for
+	 *         {@link #splitBuffer(long, ByteBuffer, int, int, ByteBuffer, ByteBuffer, ByteBuffer, int[])}
+	 *         and
+	 *         {@link #splitBufferClose(long, ByteBuffer, ByteBuffer, ByteBuffer, int[], byte[])}
+	 *         or <code>0</code> if no memory could be allocated.
+	 */
+	public static native long splitBufferOpen(String key, int blockSize);
+
+	/**
+	 * Splits <code>length</code> bytes of the direct buffer <code>in</code>
+	 * starting at <code>offset</code>. Completed stripes are written to the
+	 * direct buffers <code>dev0</code>, <code>dev1</code> and
+	 * <code>dev2</code>. Each of them MUST be able to take
+	 * <code>blockSize * (length / (2 * blockSize) + 1)</code> bytes with the
+	 * block size passed to {@link #splitBufferOpen(String, int)}.
+	 * 
+	 * @param handle
+	 *            The handle returned by {@link #splitBufferOpen(String, int)}.
+	 * @param in
+	 *            The input buffer.
+	 * @param offset
+	 *            The offset in <code>in</code>.
+	 * @param length
+	 *            The number of bytes to split.
+	 * @param dev0
+	 *            Receives the data of device <code>0</code>.
+	 * @param dev1
+	 *            Receives the data of device <code>1</code>.
+	 * @param dev2
+	 *            Receives the data of device <code>2</code>.
+	 * @param devOffset
+	 *            The offsets in the device buffers to write to. They are
+	 *            updated to the bytes written.
+	 * @return <code>0</code> on success, otherwise the error code.
+	 */
+	public static native int splitBuffer(long handle, ByteBuffer in,
+			int offset, int length, ByteBuffer dev0, ByteBuffer dev1,
+			ByteBuffer dev2, int[] devOffset);
+
+	/**
+	 * Finishes a split of direct buffers and releases all resources held by
+	 * the <code>handle</code>. The handle MUST NOT be used afterwards. The
+	 * last stripe is written to the device buffers, which MUST be able to take
+	 * one block each.
+	 * 
+	 * @param handle
+	 *            The handle returned by {@link #splitBufferOpen(String, int)}.
+	 * @param dev0
+	 *            Receives the data of device <code>0</code>.
+	 * @param dev1
+	 *            Receives the data of device <code>1</code>.
+	 * @param dev2
+	 *            Receives the data of device <code>2</code>.
+	 * @param devOffset
+	 *            The offsets in the device buffers to write to. They are
+	 *            updated to the bytes written.
+	 * @param metadata
+	 *            Receives the content of the meta data file. It MUST have
+	 *            {@link #getMetadataByteLength()} bytes; older meta data
+	 *            versions are shorter and followed by zeros. If it is
+	 *            <code>null</code>, the split is aborted.
+	 * @return Return the success and error code of the split.
+	 */
+	public static native int splitBufferClose(long handle, ByteBuffer dev0,
+			ByteBuffer dev1, ByteBuffer dev2, int[] devOffset, byte[] metadata);
+
+	/**
+	 * Sets the number of threads that split and merge a file. Every thread
+	 * processes one hash chunk of a file at a time.
+	 * 
+	 * @param threads
+	 *            The number of threads or <code>0</code> for one thread per
+	 *            processor.
+	 * @return The number of threads now in use.
+	 */
+	public static native int setThreadCount(int threads);
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.jni;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Merges direct {@link ByteBuffer}s in the native library. The device data is
+ * merged and decrypted without temporary files and without copying it between
+ * Java and the native library.
+ * 
+ * All buffers MUST be direct buffers. They are read and written from their
+ * position to their limit and their positions are advanced accordingly.
+ * 
+ * @author Markus Holtermann
+ */
+public class RaidBufferMerger {
+
+	private long handle;
+	private int[] offset = new int[3];
+	private int[] limit = new int[3];
+
+	/**
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param deadDevice
+	 *            The device that is not used to restore the data. Its buffer
+	 *            may be <code>null</code>.
+	 * @param key
+	 *            The key for file decryption.
+	 * @throws IOException
+	 *             Thrown if the native merge context cannot be created.
+	 */
+	public RaidBufferMerger(byte[] metadata, int deadDevice, String key)
+			throws IOException {
+		this.handle = RaidAccessInterface.mergeOpen(metadata, deadDevice, key);
+		if (this.handle == 0) {
+			throw new IOException("Cannot allocate the merge context");
+		}
+	}
+
+	/**
+	 * Aborts the merge and releases the native resources. Calling this method
+	 * after {@link #finish()} has no effect.
+	 */
+	public void abort() {
+		if (this.handle != 0) {
+			RaidAccessInterface.mergeClose(this.handle);
+			this.handle = 0;
+		}
+	}
+
+	/**
+	 * Verifies the checksum of the merged data and releases the native
+	 * resources. MUST be called after all data has been merged.
+	 * 
+	 * @throws IOException
+	 *             Thrown if the merged data does not match the meta data.
+	 */
+	public void finish() throws IOException {
+		if (this.handle == 0) {
+			throw new IOException("Merge already finished");
+		}
+		int status = RaidAccessInterface.mergeClose(this.handle);
+		this.handle = 0;
+		if (status != RaidAccessInterface.SUCCESS_MERGE) {
+			throw new IOException("Error merging the data: "
+					+ RaidAccessInterface.getErrorMessage(status));
+		}
+	}
+
+	/**
+	 * Merges as many stripes as possible from the device buffers into
+	 * <code>out</code>. A stripe is only merged if <code>out</code> has
+	 * <code>2 * {@link RaidAccessInterface#getBlockSize()}</code> bytes
+	 * remaining.
+	 * 
+	 * @param devices
+	 *            The buffers of the devices <code>0</code>, <code>1</code> and
+	 *            <code>2</code>. The buffer of the dead device may be
+	 *            <code>null</code>.
+	 * @param last
+	 *            <code>true</code> if the device buffers contain the end of
+	 *            the device files.
+	 * @param out
+	 *            The buffer that receives the decrypted data.
+	 * @return The number of bytes written to <code>out</code>.
+	 * @throws IOException
+	 *             Thrown if the merge failed. The native resources are
+	 *             released.
+	 */
+	public int merge(ByteBuffer[] devices, boolean last, ByteBuffer out)
+			throws IOException {
+		if (this.handle == 0) {
+			throw new IOException("Merge already finished");
+		}
+		ByteBuffer[] d = new ByteBuffer[3];
+		for (int i = 0; i < 3; i++) {
+			this.offset[i] = 0;
+			this.limit[i] = 0;
+			if (devices[i] != null) {
+				d[i] = devices[i].slice();
+				this.limit[i] = d[i].limit();
+			}
+		}
+		int len = RaidAccessInterface.mergeBuffer(this.handle, d[0], d[1],
+				d[2], this.offset, this.limit, last, out.slice(), 0);
+		if (len < 0) {
+			int status = RaidAccessInterface.mergeClose(this.handle);
+			this.handle = 0;
+			throw new IOException("Error merging the data: "
+					+ RaidAccessInterface.getErrorMessage(status));
+		}
+		for (int i = 0; i < 3; i++) {
+			if (devices[i] != null) {
+				devices[i].position(devices[i].position() + this.offset[i]);
+			}
+		}
+		out.position(out.position() + len);
+		return len;
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.jni;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.dhbw_mannheim.cloudraid.core.impl.raid.Raid5Metadata;
+
+/**
+ * Splits direct {@link ByteBuffer}s in the native library. The data is
+ * encrypted and split into three device buffers without temporary files and
+ * without copying it between Java and the native library. The checksums are
+ * computed while the data is split.
+ * 
+ * All buffers MUST be direct buffers. They are read and written from their
+ * position to their limit and their positions are advanced accordingly.
+ * 
+ * @author Markus Holtermann
+ */
+public class RaidBufferSplitter {
+
+	private long handle;
+	private int blockSize;
+	private int[] offset = new int[3];
+
+	/**
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @throws IOException
+	 *             Thrown if the native split context cannot be allocated or
+	 *             the block size is invalid.
+	 */
+	public RaidBufferSplitter(String key, int blockSize) throws IOException {
+		if (blockSize <= 0 || blockSize > RaidAccessInterface.getMaxBlockSize()) {
+			throw new IOException("Invalid block size " + blockSize);
+		}
+		this.blockSize = blockSize;
+		this.handle = RaidAccessInterface.splitBufferOpen(key, blockSize);
+		if (this.handle == 0) {
+			throw new IOException("Cannot allocate the split context");
+		}
+	}
+
+	/**
+	 * Aborts the split and releases the native resources. Calling this method
+	 * after {@link #finish(ByteBuffer[])} has no effect.
+	 */
+	public void abort() {
+		if (this.handle != 0) {
+			RaidAccessInterface.splitBufferClose(this.handle, null, null, null,
+					this.offset, null);
+			this.handle = 0;
+		}
+	}
+
+	/**
+	 * @return The number of bytes each device contributes to a stripe. The
+	 *         device buffers MUST have this many bytes remaining for
+	 *         {@link #finish(ByteBuffer[])}.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * Returns the number of bytes each device buffer must have remaining for a
+	 * call of {@link #split(ByteBuffer, ByteBuffer[])} with
+	 * <code>length</code> bytes of input.
+	 * 
+	 * @param length
+	 *            The number of input bytes.
+	 * @return The minimum size of each device buffer.
+	 */
+	public int getDeviceBufferSize(int length) {
+		return this.blockSize * (length / (2 * this.blockSize) + 1);
+	}
+
+	private void advance(ByteBuffer[] devices) {
+		for (int i = 0; i < 3; i++) {
+			devices[i].position(devices[i].position() + this.offset[i]);
+		}
+	}
+
+	/**
+	 * Splits the last stripe into the device buffers, which MUST have
+	 * {@link #getBlockSize()} bytes remaining, and returns the meta data. The native resources are released.
+	 * 
+	 * @param devices
+	 *            The buffers of the devices <code>0</code>, <code>1</code> and
+	 *            <code>2</code>.
+	 * @return The content of the meta data file.
+	 * @throws IOException
+	 *             Thrown if the split failed.
+	 */
+	public byte[] finish(ByteBuffer[] devices) throws IOException {
+		if (this.handle == 0) {
+			throw new IOException("Split already finished");
+		}
+		byte[] metadata = new byte[RaidAccessInterface.getMetadataByteLength()];
+		ByteBuffer[] d = slice(devices);
+		int status = RaidAccessInterface.splitBufferClose(this.handle, d[0],
+				d[1], d[2], this.offset, metadata);
+		this.handle = 0;
+		if (status != RaidAccessInterface.SUCCESS_SPLIT) {
+			throw new IOException("Error splitting the data: "
+					+ RaidAccessInterface.getErrorMessage(status));
+		}
+		this.advance(devices);
+		int length = Raid5Metadata.getByteLength(Raid5Metadata
+				.parse(metadata).getVersion());
+		return Arrays.copyOf(metadata, length);
+	}
+
+	private ByteBuffer[] slice(ByteBuffer[] devices) {
+		ByteBuffer[] d = new ByteBuffer[3];
+		for (int i = 0; i < 3; i++) {
+			d[i] = devices[i].slice();
+			this.offset[i] = 0;
+		}
+		return d;
+	}
+
+	/**
+	 * Splits the remaining bytes of <code>in</code>. Each device buffer MUST
+	 * have {@link #getDeviceBufferSize(int)} bytes remaining.
+	 * 
+	 * @param in
+	 *            The input buffer.
+	 * @param devices
+	 *            The buffers of the devices <code>0</code>, <code>1</code> and
+	 *            <code>2</code>.
+	 * @throws IOException
+	 *             Thrown if the split failed. The native resources are
+	 *             released.
+	 */
+	public void split(ByteBuffer in, ByteBuffer[] devices) throws IOException {
+		if (this.handle == 0) {
+			throw new IOException("Split already finished");
+		}
+		ByteBuffer[] d = slice(devices);
+		int status = RaidAccessInterface.splitBuffer(this.handle, in,
+				in.position(), in.remaining(), d[0], d[1], d[2], this.offset);
+		if (status != 0) {
+			this.abort();
+			throw new IOException("Error splitting the data: "
+					+ RaidAccessInterface.getErrorMessage(status));
+		}
+		in.position(in.limit());
+		this.advance(devices);
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.jni;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.dhbw_mannheim.cloudraid.core.impl.raid.MergeInputStream;
+
+/**
+ * A {@link MergeInputStream} that merges the stripes in the native library.
+ * 
+ * @author Markus Holtermann
+ */
+public class RaidMergeInputStream extends MergeInputStream {
+
+	private long handle;
+
+	/**
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @throws IOException
+	 *             Thrown if a required device is not available or the merge
+	 *             cannot be initialized.
+	 * @see RaidAccessInterface#mergeOpen(byte[], int, String)
+	 */
+	public RaidMergeInputStream(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key) throws IOException {
+		super(devices, deadDevice, parseMetadata(devices, metadata)
+				.getBlockSize());
+		this.handle = RaidAccessInterface.mergeOpen(metadata, deadDevice, key);
+		if (this.handle == 0) {
+			this.close();
+			throw new IOException("Cannot allocate the merge context");
+		}
+	}
+
+	@Override
+	protected void finish() throws IOException {
+		int status = RaidAccessInterface.mergeClose(this.handle);
+		this.handle = 0;
+		if (status != RaidAccessInterface.SUCCESS_MERGE) {
+			throw new IOException("Error merging the file: "
+					+ RaidAccessInterface.getErrorMessage(status));
+		}
+	}
+
+	@Override
+	protected int mergeBlock(byte[] in, int[] inLen, int parityPos,
+			int deadDevice, boolean last, byte[] out) throws IOException {
+		int len = RaidAccessInterface.mergeBlock(this.handle, in, inLen, last,
+				out);
+		if (len < 0) {
+			this.finish();
+			throw new IOException("Error merging the file");
+		}
+		return len;
+	}
+
+	@Override
+	protected void release() {
+		if (this.handle != 0) {
+			RaidAccessInterface.mergeClose(this.handle);
+			this.handle = 0;
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.jni;
+
+import java.io.IOException;
+
+import de.dhbw_mannheim.cloudraid.core.impl.raid.SplitOutputStream;
+
+/**
+ * A {@link SplitOutputStream} that splits the data in the native library. The
+ * data is encrypted, split and written to the device files while it is being
+ * received. Thus the original file never needs to be stored on disk.
+ * 
+ * @author Markus Holtermann
+ */
+public class RaidSplitOutputStream extends SplitOutputStream {
+
+	private long handle;
+	private String hash = null;
+	private byte[] single = new byte[1];
+
+	/**
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>).
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator.
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @throws IOException
+	 *             Thrown if the native split context cannot be allocated or
+	 *             the block size is invalid.
+	 * @see RaidAccessInterface#splitOpen(String, String, String, int)
+	 */
+	public RaidSplitOutputStream(String inputFilePath,
+			String tempOutputDirPath, String key, int blockSize)
+			throws IOException {
+		if (blockSize <= 0 || blockSize > RaidAccessInterface.getMaxBlockSize()) {
+			throw new IOException("Invalid block size " + blockSize);
+		}
+		this.handle = RaidAccessInterface.splitOpen(inputFilePath,
+				tempOutputDirPath, key, blockSize);
+		if (this.handle == 0) {
+			throw new IOException("Cannot allocate the split context");
+		}
+	}
+
+	/**
+	 * Finishes the split and writes the meta data file. Calling this method
+	 * more than once has no effect.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.handle != 0) {
+			String value = RaidAccessInterface.splitClose(this.handle);
+			this.handle = 0;
+			int status = RaidAccessInterface.getSplitStatus(value);
+			if (status != RaidAccessInterface.SUCCESS_SPLIT) {
+				throw new IOException("Error splitting the file: "
+						+ RaidAccessInterface.getErrorMessage(status));
+			}
+			this.hash = value;
+		}
+	}
+
+	@Override
+	public String getHash() {
+		return this.hash;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.handle == 0) {
+			throw new IOException("Stream closed");
+		}
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		int status = RaidAccessInterface.splitWrite(this.handle, b, off, len);
+		if (status != 0) {
+			throw new IOException(RaidAccessInterface.getErrorMessage(status));
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.single[0] = (byte) b;
+		this.write(this.single, 0, 1);
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128 in counter mode as implemented by <code>aes_ctr_crypt()</code> in
+ * the native library. The first 16 bytes of the salted key are the AES key,
+ * the next 16 bytes the initial counter block, which is incremented as a
+ * 128 bit big-endian number.
+ * 
+ * @author Markus Holtermann
+ */
+class AesCtr extends Raid5Cipher {
+
+	private static final int BLOCK_BYTES = 16;
+
+	private Cipher cipher;
+
+	/**
+	 * @param key
+	 *            The salted key. At least 32 bytes are required.
+	 * @throws IOException
+	 *             Thrown if AES/CTR is not available.
+	 */
+	AesCtr(byte[] key) throws IOException {
+		this(key, 0L);
+	}
+
+	/**
+	 * @param key
+	 *            The salted key. At least 32 bytes are required.
+	 * @param offset
+	 *            The position of the first byte to encrypt or decrypt in the
+	 *            file.
+	 * @throws IOException
+	 *             Thrown if AES/CTR is not available.
+	 */
+	AesCtr(byte[] key, long offset) throws IOException {
+		byte[] iv = new byte[BLOCK_BYTES];
+		System.arraycopy(key, BLOCK_BYTES, iv, 0, BLOCK_BYTES);
+		long blocks = offset / BLOCK_BYTES;
+		for (int i = BLOCK_BYTES - 1; i >= 0 && blocks != 0; i--) {
+			long sum = (iv[i] & 0xff) + (blocks & 0xff);
+			iv[i] = (byte) sum;
+			blocks = (blocks >>> 8) + (sum >>> 8);
+		}
+		try {
+			this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+			this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0,
+					BLOCK_BYTES, "AES"), new IvParameterSpec(iv));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("AES/CTR is not available: "
+					+ e.getMessage());
+		}
+		int skip = (int) (offset % BLOCK_BYTES);
+		if (skip > 0) {
+			byte[] clean = new byte[skip];
+			this.crypt(clean, 0, skip);
+		}
+	}
+
+	@Override
+	void crypt(byte[] buf, int off, int len) throws IOException {
+		try {
+			this.cipher.update(buf, off, len, buf, off);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+}
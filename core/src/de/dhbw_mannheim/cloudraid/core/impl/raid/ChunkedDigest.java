@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.security.MessageDigest;
+
+/**
+ * A checksum over chunks of a fixed length: the SHA-256 of the concatenated
+ * SHA-256 digests of all chunks. The last chunk may be shorter, an empty input
+ * has no chunks. It is the same as <code>chunk_hash</code> in the native
+ * library and allows the chunks to be hashed independently of each other.
+ * 
+ * If the chunk length is <code>0</code>, the checksum is the plain SHA-256 of
+ * the input as used by meta data versions before {@link Raid5Metadata#VERSION}.
+ * 
+ * @author Markus Holtermann
+ */
+final class ChunkedDigest {
+
+	private long chunkLength;
+	private long fill = 0;
+	private MessageDigest tree = Raid5.sha256();
+	private MessageDigest chunk = Raid5.sha256();
+
+	/**
+	 * @param chunkLength
+	 *            The number of bytes per chunk or <code>0</code> for a plain
+	 *            SHA-256.
+	 */
+	ChunkedDigest(long chunkLength) {
+		this.chunkLength = chunkLength;
+	}
+
+	/**
+	 * @param b
+	 *            The data.
+	 * @param off
+	 *            The offset of the data in <code>b</code>.
+	 * @param len
+	 *            The number of bytes to hash.
+	 */
+	void update(byte[] b, int off, int len) {
+		if (this.chunkLength == 0) {
+			this.tree.update(b, off, len);
+			return;
+		}
+		while (len > 0) {
+			int n = (int) Math.min(len, this.chunkLength - this.fill);
+			this.chunk.update(b, off, n);
+			this.fill += n;
+			off += n;
+			len -= n;
+			if (this.fill == this.chunkLength) {
+				this.tree.update(this.chunk.digest());
+				this.fill = 0;
+			}
+		}
+	}
+
+	/**
+	 * Completes the checksum. The digest must not be used afterwards.
+	 * 
+	 * @return The checksum as hex string.
+	 */
+	String hexDigest() {
+		if (this.chunkLength != 0 && this.fill > 0) {
+			this.tree.update(this.chunk.digest());
+			this.fill = 0;
+		}
+		return Raid5.toHex(this.tree.digest());
+	}
+
+}
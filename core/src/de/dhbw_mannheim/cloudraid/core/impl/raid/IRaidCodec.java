@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A codec implements the split and merge of files into the RAID files
+ * <code>.0</code>, <code>.1</code>, <code>.2</code> and the meta data file
+ * <code>.m</code>. All codecs MUST produce and accept the same format.
+ * 
+ * @author Markus Holtermann
+ */
+public interface IRaidCodec {
+
+	/**
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>).
+	 * @return The base name of the RAID files of the file with 64 characters.
+	 */
+	public String getHash(String inputFilePath);
+
+	/**
+	 * @return The maximum number of bytes of the meta data file. Shorter meta
+	 *         data files are followed by zeros when read into a buffer of
+	 *         this size.
+	 */
+	public int getMetadataByteLength();
+
+	/**
+	 * @return The name of the RAID implementation.
+	 */
+	public String getName();
+
+	/**
+	 * @return The vendor of the RAID implementation.
+	 */
+	public String getVendor();
+
+	/**
+	 * @return The version of the RAID implementation.
+	 */
+	public String getVersion();
+
+	/**
+	 * Returns an {@link InputStream} that merges the given device streams while
+	 * they are read. The returned stream closes the device streams.
+	 * 
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @return The merged file.
+	 * @throws IOException
+	 *             Thrown if the merge cannot be started.
+	 */
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key) throws IOException;
+
+	/**
+	 * Returns an {@link InputStream} that merges the given device streams from
+	 * the stripe <code>firstStripe</code> on. A stripe holds
+	 * <code>2 * blockSize</code> bytes of the file and
+	 * <code>blockSize</code> bytes of every device, so the device streams
+	 * have to start at <code>firstStripe * blockSize</code> and the merged
+	 * data at <code>firstStripe * 2 * blockSize</code> of the file. The
+	 * checksum is only verified if <code>firstStripe</code> is
+	 * <code>0</code>.
+	 * 
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @param firstStripe
+	 *            The index of the first stripe.
+	 * @return The merged file from the first stripe on.
+	 * @throws IOException
+	 *             Thrown if the merge cannot be started.
+	 */
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key, long firstStripe) throws IOException;
+
+	/**
+	 * Merges the RAID files <code>hash</code> in the directory
+	 * <code>tempInputDirPath</code> into <code>outputFilePath</code>. A device
+	 * file that is missing or does not match the meta data is ignored.
+	 * 
+	 * @param tempInputDirPath
+	 *            The complete, absolute path to the temporary input directory.
+	 *            The path must end with the path separator!
+	 * @param hash
+	 *            The base name of the RAID files with 64 characters.
+	 * @param outputFilePath
+	 *            The complete, absolute path to the original file. An existing
+	 *            file will be overwritten!
+	 * @param key
+	 *            The key for file decryption.
+	 * @throws IOException
+	 *             Thrown if the merge failed.
+	 */
+	public void mergeFile(String tempInputDirPath, String hash,
+			String outputFilePath, String key) throws IOException;
+
+	/**
+	 * Returns a {@link SplitOutputStream} that splits all data written to it
+	 * into the directory <code>tempOutputDirPath</code>.
+	 * 
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>). The names of the RAID
+	 *            files are derived from it.
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator!
+	 * @param key
+	 *            The key for file encryption.
+	 * @return The stream to write the file to.
+	 * @throws IOException
+	 *             Thrown if the split cannot be started.
+	 */
+	public SplitOutputStream split(String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException;
+
+	/**
+	 * Splits the file <code>inputBasePath</code> + <code>inputFilePath</code>
+	 * into the directory <code>tempOutputDirPath</code>.
+	 * 
+	 * @param inputBasePath
+	 *            The base path of all uploads.
+	 * @param inputFilePath
+	 *            The path to the original file relative to the inputBasePath.
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator!
+	 * @param key
+	 *            The key for file encryption.
+	 * @return The base name of the RAID files with 64 characters.
+	 * @throws IOException
+	 *             Thrown if the split failed.
+	 */
+	public String splitFile(String inputBasePath, String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException;
+
+}
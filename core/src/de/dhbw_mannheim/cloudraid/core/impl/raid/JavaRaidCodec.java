@@ -0,0 +1,316 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@link IRaidCodec} implemented in pure Java. It does not require the
+ * native <code>cloudraid</code> library and produces the same files.
+ * 
+ * @author Markus Holtermann
+ */
+public class JavaRaidCodec implements IRaidCodec {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private int blockSize;
+
+	/**
+	 * Creates a codec that splits with the default block size of
+	 * {@value Raid5Metadata#DEFAULT_BLOCK_SIZE} bytes.
+	 */
+	public JavaRaidCodec() {
+		this(Raid5Metadata.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe when
+	 *            splitting. Merging uses the block size stored in the meta
+	 *            data.
+	 */
+	public JavaRaidCodec(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return The block size used for splitting.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * A stream that computes the checksum of a device file while it is read.
+	 */
+	private static class HashingInputStream extends FilterInputStream {
+
+		private ChunkedDigest digest;
+
+		HashingInputStream(InputStream in, long chunkLength) {
+			super(in);
+			this.digest = new ChunkedDigest(chunkLength);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r > 0) {
+				this.digest.update(b, off, r);
+			}
+			return r;
+		}
+
+	}
+
+	/**
+	 * Checks whether the lengths of the device files <code>a</code> and
+	 * <code>b</code> fit the file described by <code>md</code>. Device files
+	 * only differ in the last stripe, whose secondary device is
+	 * {@link Raid5Metadata#getMissing()} bytes shorter than the other two. Same
+	 * rule as <code>device_lengths_match()</code> in the native library.
+	 * 
+	 * @return The length the third device file must have or <code>-1</code>
+	 *         if the lengths do not fit.
+	 */
+	private static long expectedLength(long[] length, int a, int b,
+			Raid5Metadata md) {
+		long max = Math.max(length[a], length[b]);
+		long n = max > 0 ? (max - 1) / md.getBlockSize() + 1 : 0;
+		long last = n > 0 ? max - (n - 1) * md.getBlockSize() : 0;
+		if (length[a] < 0 || length[b] < 0 || last < md.getMissing()) {
+			return -1;
+		}
+		long expected = -1;
+		for (int i = 0; i < 3; i++) {
+			long l = (n > 0 && i == n % 3) ? max - md.getMissing() : max;
+			if (i != a && i != b) {
+				expected = l;
+			} else if (length[i] != l) {
+				return -1;
+			}
+		}
+		return expected;
+	}
+
+	@Override
+	public String getHash(String inputFilePath) {
+		return Raid5.sha256Hex(inputFilePath);
+	}
+
+	@Override
+	public int getMetadataByteLength() {
+		return Raid5Metadata.BYTES;
+	}
+
+	@Override
+	public String getName() {
+		return "CloudRAID-RAID5";
+	}
+
+	@Override
+	public String getVendor() {
+		return "CloudRAID Team";
+	}
+
+	@Override
+	public String getVersion() {
+		return "1.0.0";
+	}
+
+	@Override
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key) throws IOException {
+		return new Raid5MergeInputStream(devices, deadDevice, metadata, key);
+	}
+
+	@Override
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key, long firstStripe) throws IOException {
+		return new Raid5MergeInputStream(devices, deadDevice, metadata, key,
+				firstStripe);
+	}
+
+	@Override
+	public void mergeFile(String tempInputDirPath, String hash,
+			String outputFilePath, String key) throws IOException {
+		String basePath = tempInputDirPath + hash;
+		byte[] metadata = new byte[Raid5Metadata.BYTES];
+		InputStream meta = new FileInputStream(basePath + ".m");
+		try {
+			int len = 0, r;
+			while (len < metadata.length
+					&& (r = meta.read(metadata, len, metadata.length - len)) >= 0) {
+				len += r;
+			}
+		} finally {
+			meta.close();
+		}
+		Raid5Metadata md = Raid5Metadata.parse(metadata);
+
+		// Same rule as merge_file(): only read two devices and leave out a
+		// missing device or one whose length does not fit the others.
+		long[] length = new long[3];
+		for (int i = 0; i < 3; i++) {
+			File f = new File(basePath + "." + i);
+			length[i] = f.isFile() ? f.length() : -1;
+		}
+		int dead = -1;
+		for (int d = 2; d >= 0 && dead < 0; d--) {
+			if (expectedLength(length, (d + 1) % 3, (d + 2) % 3, md) >= 0) {
+				dead = d;
+			}
+		}
+		if (dead < 0) {
+			throw new IOException(
+					"Error merging the given file: Too many devices are invalid");
+		}
+
+		HashingInputStream[] devices = this.openDevices(basePath, dead, md);
+		try {
+			this.mergeDevices(devices, dead, metadata, key, outputFilePath);
+			return;
+		} catch (IOException e) {
+			// Merge again if exactly one of the devices read is corrupt and
+			// the device left out can replace it.
+			int bad = -1;
+			for (int i = 0; i < 3; i++) {
+				if (devices[i] != null
+						&& !md.getHash(i).equals(devices[i].digest.hexDigest())) {
+					if (bad >= 0) {
+						throw e;
+					}
+					bad = i;
+				}
+			}
+			if (bad < 0
+					|| expectedLength(length, dead, 3 - bad - dead, md) < 0) {
+				throw e;
+			}
+			dead = bad;
+		}
+		this.mergeDevices(this.openDevices(basePath, dead, md), dead,
+				metadata, key, outputFilePath);
+	}
+
+	/**
+	 * Opens all device files except <code>dead</code>.
+	 */
+	private HashingInputStream[] openDevices(String basePath, int dead,
+			Raid5Metadata md) throws IOException {
+		HashingInputStream[] devices = new HashingInputStream[3];
+		try {
+			for (int i = 0; i < 3; i++) {
+				if (i != dead) {
+					devices[i] = new HashingInputStream(new BufferedInputStream(
+							new FileInputStream(basePath + "." + i),
+							BUFFER_SIZE), md.getChunkLength(i));
+				}
+			}
+		} catch (IOException e) {
+			MergeInputStream.closeAll(devices);
+			throw e;
+		}
+		return devices;
+	}
+
+	/**
+	 * Merges the opened <code>devices</code> into the file
+	 * <code>outputFilePath</code> and closes them.
+	 */
+	private void mergeDevices(InputStream[] devices, int dead,
+			byte[] metadata, String key, String outputFilePath)
+			throws IOException {
+		InputStream is = this.merge(devices, dead, metadata, key);
+		try {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(
+					outputFilePath), BUFFER_SIZE);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = is.read(buf)) >= 0) {
+					os.write(buf, 0, len);
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public SplitOutputStream split(String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException {
+		return new Raid5SplitOutputStream(inputFilePath, tempOutputDirPath,
+				key, this.blockSize);
+	}
+
+	@Override
+	public String splitFile(String inputBasePath, String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(
+				inputBasePath + inputFilePath), BUFFER_SIZE);
+		try {
+			SplitOutputStream os = this.split(inputFilePath,
+					tempOutputDirPath, key);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = is.read(buf)) >= 0) {
+					os.write(buf, 0, len);
+				}
+			} catch (IOException e) {
+				try {
+					os.close();
+				} catch (IOException ignore) {
+				}
+				String base = tempOutputDirPath + Raid5.sha256Hex(inputFilePath);
+				for (String ext : new String[] { ".0", ".1", ".2", ".m" }) {
+					new File(base + ext).delete();
+				}
+				throw e;
+			}
+			os.close();
+			return os.getHash();
+		} finally {
+			is.close();
+		}
+	}
+
+}
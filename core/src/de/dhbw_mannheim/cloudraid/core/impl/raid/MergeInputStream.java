@@ -0,0 +1,322 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * An {@link InputStream} that merges the RAID files while they are read from
+ * the storage devices. Data is available as soon as the first stripe has been
+ * received, independent of the size of the file.
+ * 
+ * This class reads the stripes from the devices. Merging and decrypting a
+ * stripe is left to the codec specific subclasses.
+ * 
+ * The checksum of the merged data can only be verified after the last stripe
+ * has been read. If it does not match the meta data, the final call to one of
+ * the <code>read</code> methods throws an {@link IOException} instead of
+ * signaling the end of the stream.
+ * 
+ * @author Markus Holtermann
+ */
+public abstract class MergeInputStream extends InputStream {
+
+	private PushbackInputStream[] devices = new PushbackInputStream[3];
+	private int deadDevice;
+	private int parityPos = 2;
+
+	private int blockSize;
+	private byte[] in;
+	private int[] inLen = new int[3];
+	private byte[] out;
+	private int pos = 0;
+	private int count = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @throws IOException
+	 *             Thrown if a required device is not available.
+	 */
+	protected MergeInputStream(InputStream[] devices, int deadDevice,
+			int blockSize) throws IOException {
+		this(devices, deadDevice, blockSize, 0);
+	}
+
+	/**
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>, each starting at the
+	 *            stripe <code>firstStripe</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @param firstStripe
+	 *            The index of the first stripe provided by the devices. It
+	 *            determines the position of the parity.
+	 * @throws IOException
+	 *             Thrown if a required device is not available.
+	 */
+	protected MergeInputStream(InputStream[] devices, int deadDevice,
+			int blockSize, long firstStripe) throws IOException {
+		if (deadDevice < 0 || deadDevice > 2) {
+			throw new IllegalArgumentException("Invalid dead device "
+					+ deadDevice);
+		}
+		this.deadDevice = deadDevice;
+		for (int i = 0; i < 3; i++) {
+			if (i != deadDevice) {
+				if (devices[i] == null) {
+					closeAll(devices);
+					throw new IOException("Device " + i
+							+ " is required for the merge");
+				}
+				this.devices[i] = new PushbackInputStream(devices[i]);
+			} else if (devices[i] != null) {
+				try {
+					devices[i].close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		this.parityPos = (int) ((2 + firstStripe) % 3);
+		this.blockSize = blockSize;
+		this.in = new byte[3 * this.blockSize];
+		this.out = new byte[2 * this.blockSize];
+	}
+
+	/**
+	 * Closes all given streams and ignores any errors.
+	 * 
+	 * @param streams
+	 *            The streams to close. Entries may be <code>null</code>.
+	 */
+	protected static void closeAll(InputStream[] streams) {
+		for (int i = 0; i < streams.length; i++) {
+			if (streams[i] != null) {
+				try {
+					streams[i].close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the meta data before the stream is constructed, e.g. to determine
+	 * the block size. If the meta data is invalid, the devices are closed.
+	 * 
+	 * @param devices
+	 *            The streams providing the device files.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @return The parsed meta data.
+	 * @throws IOException
+	 *             Thrown if the meta data is invalid.
+	 */
+	protected static Raid5Metadata parseMetadata(InputStream[] devices,
+			byte[] metadata) throws IOException {
+		try {
+			return Raid5Metadata.parse(metadata);
+		} catch (IOException e) {
+			closeAll(devices);
+			throw e;
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return this.count - this.pos;
+	}
+
+	/**
+	 * Closes the device streams and releases the codec resources. If the
+	 * stream has not been read completely, the checksum is not verified.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!this.eof) {
+			this.eof = true;
+			this.release();
+		}
+		closeAll(this.devices);
+	}
+
+	/**
+	 * Reads and merges the next stripe.
+	 * 
+	 * @return <code>false</code> at the end of the file.
+	 * @throws IOException
+	 *             Thrown if reading a device fails or the merged data does not
+	 *             match the meta data.
+	 */
+	private boolean fill() throws IOException {
+		if (this.eof) {
+			return false;
+		}
+
+		// The primary device is stored at [0], the secondary at [1] and the
+		// parity at [2]
+		int total = 0;
+		for (int i = 0; i < 3; i++) {
+			int device = (i == 2) ? this.parityPos : (this.parityPos + 1 + i) % 3;
+			this.inLen[i] = (device == this.deadDevice) ? 0 : this.readBlock(
+					this.devices[device], i * this.blockSize);
+			total += this.inLen[i];
+		}
+
+		if (total == 0) {
+			this.eof = true;
+			this.finish();
+			return false;
+		}
+
+		// The missing bytes have to be taken into account for the last stripe
+		// only. That is the case when a non-parity device reached its end.
+		boolean last = false;
+		for (int i = 0; i < 3; i++) {
+			if (i != this.parityPos && i != this.deadDevice) {
+				int c = this.devices[i].read();
+				if (c == -1) {
+					last = true;
+				} else {
+					this.devices[i].unread(c);
+				}
+			}
+		}
+
+		int len;
+		try {
+			len = this.mergeBlock(this.in, this.inLen, this.parityPos,
+					this.deadDevice, last, this.out);
+		} catch (IOException e) {
+			this.eof = true;
+			throw e;
+		}
+		this.parityPos = (this.parityPos + 1) % 3;
+		this.pos = 0;
+		this.count = len;
+		return true;
+	}
+
+	/**
+	 * Called after the last stripe has been merged. Implementations verify the
+	 * checksum and release their resources.
+	 * 
+	 * @throws IOException
+	 *             Thrown if the merged data does not match the meta data.
+	 */
+	protected abstract void finish() throws IOException;
+
+	/**
+	 * Merges and decrypts a stripe.
+	 * 
+	 * @param in
+	 *            A buffer of <code>3 * blockSize</code> bytes containing the
+	 *            primary device, the secondary device and the parity of the
+	 *            stripe in this order.
+	 * @param inLen
+	 *            The number of bytes read for the primary device, the secondary
+	 *            device and the parity.
+	 * @param parityPos
+	 *            The device holding the parity of this stripe.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param last
+	 *            <code>true</code> if this is the last stripe of the file.
+	 * @param out
+	 *            A buffer of <code>2 * blockSize</code> bytes that receives the
+	 *            decrypted data.
+	 * @return The number of bytes written to <code>out</code>.
+	 * @throws IOException
+	 *             Thrown if the stripe cannot be merged. Implementations
+	 *             release their resources before.
+	 */
+	protected abstract int mergeBlock(byte[] in, int[] inLen, int parityPos,
+			int deadDevice, boolean last, byte[] out) throws IOException;
+
+	@Override
+	public int read() throws IOException {
+		while (this.pos >= this.count) {
+			if (!this.fill()) {
+				return -1;
+			}
+		}
+		return this.out[this.pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (this.pos >= this.count) {
+			if (!this.fill()) {
+				return -1;
+			}
+		}
+		int n = Math.min(len, this.count - this.pos);
+		System.arraycopy(this.out, this.pos, b, off, n);
+		this.pos += n;
+		return n;
+	}
+
+	/**
+	 * Reads up to one block from the given device into {@link #in}.
+	 * 
+	 * @return The number of bytes read.
+	 */
+	private int readBlock(InputStream device, int offset) throws IOException {
+		int n = 0;
+		while (n < this.blockSize) {
+			int r = device.read(this.in, offset + n, this.blockSize - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * Called if the stream is closed before the last stripe has been merged.
+	 * Implementations release their resources.
+	 */
+	protected abstract void release();
+
+}
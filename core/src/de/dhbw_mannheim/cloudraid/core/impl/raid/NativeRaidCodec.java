@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidAccessInterface;
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidMergeInputStream;
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidSplitOutputStream;
+
+/**
+ * The {@link IRaidCodec} backed by the native <code>cloudraid</code> library.
+ * 
+ * @author Markus Holtermann
+ */
+public class NativeRaidCodec implements IRaidCodec {
+
+	private int blockSize;
+
+	/**
+	 * Creates a codec that splits with the default block size of
+	 * {@value Raid5Metadata#DEFAULT_BLOCK_SIZE} bytes.
+	 */
+	public NativeRaidCodec() {
+		this(Raid5Metadata.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe when
+	 *            splitting. Merging uses the block size stored in the meta
+	 *            data.
+	 */
+	public NativeRaidCodec(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return The block size used for splitting.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	@Override
+	public String getHash(String inputFilePath) {
+		return Raid5.sha256Hex(inputFilePath);
+	}
+
+	@Override
+	public int getMetadataByteLength() {
+		return RaidAccessInterface.getMetadataByteLength();
+	}
+
+	@Override
+	public String getName() {
+		return RaidAccessInterface.getName();
+	}
+
+	@Override
+	public String getVendor() {
+		return RaidAccessInterface.getVendor();
+	}
+
+	@Override
+	public String getVersion() {
+		return RaidAccessInterface.getVersion();
+	}
+
+	@Override
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key) throws IOException {
+		return new RaidMergeInputStream(devices, deadDevice, metadata, key);
+	}
+
+	/**
+	 * The native merge always starts at the first stripe, a merge from a
+	 * later stripe is done by the bit-compatible Java codec.
+	 */
+	@Override
+	public InputStream merge(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key, long firstStripe) throws IOException {
+		if (firstStripe == 0) {
+			return this.merge(devices, deadDevice, metadata, key);
+		}
+		return new Raid5MergeInputStream(devices, deadDevice, metadata, key,
+				firstStripe);
+	}
+
+	@Override
+	public void mergeFile(String tempInputDirPath, String hash,
+			String outputFilePath, String key) throws IOException {
+		int mergecode = RaidAccessInterface.mergeInterface(tempInputDirPath,
+				hash, outputFilePath, key);
+		if (mergecode != RaidAccessInterface.SUCCESS_MERGE) {
+			throw new IOException("Error merging the given file: "
+					+ RaidAccessInterface.getErrorMessage(mergecode));
+		}
+	}
+
+	@Override
+	public SplitOutputStream split(String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException {
+		return new RaidSplitOutputStream(inputFilePath, tempOutputDirPath, key,
+				this.blockSize);
+	}
+
+	@Override
+	public String splitFile(String inputBasePath, String inputFilePath,
+			String tempOutputDirPath, String key) throws IOException {
+		String hash = RaidAccessInterface.splitInterface(inputBasePath,
+				inputFilePath, tempOutputDirPath, key, this.blockSize);
+		int splitcode = RaidAccessInterface.getSplitStatus(hash);
+		if (splitcode == 0) {
+			throw new IOException(
+					"Error splitting the given file. Cannot determine further information. The computed hash is: "
+							+ hash);
+		} else if (splitcode != RaidAccessInterface.SUCCESS_SPLIT) {
+			throw new IOException("Error splitting the given file: "
+					+ RaidAccessInterface.getErrorMessage(splitcode));
+		}
+		return hash;
+	}
+
+}
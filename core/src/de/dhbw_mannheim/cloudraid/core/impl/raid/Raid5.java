@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The RAID5 block operations of the Java codec. They are bit-compatible with
+ * <code>split_byte_block()</code> and <code>merge_byte_block()</code> in the
+ * native library.
+ * 
+ * The parity is computed eight bytes at a time on {@link ByteBuffer}s.
+ * 
+ * @author Markus Holtermann
+ */
+final class Raid5 {
+
+	private static final String HEX = "0123456789abcdef";
+
+	/**
+	 * Merges a stripe.
+	 * 
+	 * @param in
+	 *            The primary device at <code>0</code>, the secondary device at
+	 *            <code>blockSize</code> and the parity at
+	 *            <code>2 * blockSize</code>.
+	 * @param inLen
+	 *            The number of bytes of the primary device, the secondary
+	 *            device and the parity.
+	 * @param deadRole
+	 *            The role of the dead device in this stripe: <code>0</code>
+	 *            for the primary device, <code>1</code> for the secondary
+	 *            device and <code>2</code> for the parity.
+	 * @param missing
+	 *            The number of bytes the secondary device is shorter than the
+	 *            primary device in this stripe.
+	 * @param out
+	 *            Receives the merged data.
+	 * @param blockSize
+	 *            The block size.
+	 * @return The number of bytes written to <code>out</code>.
+	 * @throws IOException
+	 *             Thrown if the input is inconsistent.
+	 */
+	static int merge(ByteBuffer in, int[] inLen, int deadRole, int missing,
+			ByteBuffer out, int blockSize) throws IOException {
+		switch (deadRole) {
+		case 2:
+			copy(in, 0, out, 0, inLen[0]);
+			copy(in, blockSize, out, blockSize, inLen[1]);
+			return inLen[0] + inLen[1];
+		case 1:
+			int len = inLen[0] - missing;
+			if (len < 0 || len > inLen[2]) {
+				throw new IOException("Inconsistent stripe");
+			}
+			copy(in, 0, out, 0, inLen[0]);
+			xor(in, 0, in, 2 * blockSize, out, blockSize, len);
+			return inLen[0] + len;
+		case 0:
+			if (inLen[1] > inLen[2]) {
+				throw new IOException("Inconsistent stripe");
+			}
+			xor(in, blockSize, in, 2 * blockSize, out, 0, inLen[1]);
+			not(in, 2 * blockSize + inLen[1], out, inLen[1], inLen[2]
+					- inLen[1]);
+			copy(in, blockSize, out, blockSize, inLen[1]);
+			return inLen[1] + inLen[2];
+		default:
+			throw new IllegalArgumentException("Invalid role " + deadRole);
+		}
+	}
+
+	/**
+	 * Computes the parity of a stripe. The primary device is stored at
+	 * <code>0</code> of <code>in</code>, the secondary device at
+	 * <code>blockSize</code>.
+	 * 
+	 * @param in
+	 *            The stripe.
+	 * @param len
+	 *            The length of the stripe.
+	 * @param parity
+	 *            Receives the parity.
+	 * @param outLen
+	 *            Receives the number of bytes for the primary device, the
+	 *            secondary device and the parity.
+	 * @param blockSize
+	 *            The block size.
+	 */
+	static void split(ByteBuffer in, int len, ByteBuffer parity,
+			int[] outLen, int blockSize) {
+		if (len > blockSize) {
+			int partial = len - blockSize;
+			xor(in, 0, in, blockSize, parity, 0, partial);
+			// Parity of the overflowing bytes
+			not(in, partial, parity, partial, blockSize - partial);
+			outLen[0] = blockSize;
+			outLen[1] = partial;
+			outLen[2] = blockSize;
+		} else {
+			not(in, 0, parity, 0, len);
+			outLen[0] = len;
+			outLen[1] = 0;
+			outLen[2] = len;
+		}
+	}
+
+	private static void copy(ByteBuffer src, int srcOff, ByteBuffer dst,
+			int dstOff, int len) {
+		System.arraycopy(src.array(), src.arrayOffset() + srcOff, dst.array(),
+				dst.arrayOffset() + dstOff, len);
+	}
+
+	private static void not(ByteBuffer src, int srcOff, ByteBuffer dst,
+			int dstOff, int len) {
+		int i = 0;
+		for (; i + 8 <= len; i += 8) {
+			dst.putLong(dstOff + i, ~src.getLong(srcOff + i));
+		}
+		for (; i < len; i++) {
+			dst.put(dstOff + i, (byte) ~src.get(srcOff + i));
+		}
+	}
+
+	private static void xor(ByteBuffer a, int aOff, ByteBuffer b, int bOff,
+			ByteBuffer dst, int dstOff, int len) {
+		int i = 0;
+		for (; i + 8 <= len; i += 8) {
+			dst.putLong(dstOff + i, a.getLong(aOff + i) ^ b.getLong(bOff + i));
+		}
+		for (; i < len; i++) {
+			dst.put(dstOff + i, (byte) (a.get(aOff + i) ^ b.get(bOff + i)));
+		}
+	}
+
+	/**
+	 * @return A new SHA-256 message digest.
+	 */
+	static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The SHA-256 checksum of the UTF-8 representation of
+	 *         <code>s</code> as hex string.
+	 */
+	static String sha256Hex(String s) {
+		try {
+			return toHex(sha256().digest(s.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Computes the RC4 key the same way as the native library: the HMAC-SHA256
+	 * of the salt with the password as key, padded with zeros to
+	 * {@link Raid5Metadata#SALT_BYTES} bytes.
+	 * 
+	 * @param key
+	 *            The password.
+	 * @param salt
+	 *            The salt.
+	 * @return The salted key.
+	 */
+	static byte[] saltedKey(String key, byte[] salt) {
+		byte[] k0 = new byte[64];
+		byte[] k = keyBytes(key);
+		if (k.length > k0.length) {
+			k = sha256().digest(k);
+		}
+		System.arraycopy(k, 0, k0, 0, k.length);
+
+		byte[] pad = new byte[64];
+		for (int i = 0; i < 64; i++) {
+			pad[i] = (byte) (k0[i] ^ 0x36);
+		}
+		MessageDigest md = sha256();
+		md.update(pad);
+		md.update(salt);
+		byte[] inner = md.digest();
+		for (int i = 0; i < 64; i++) {
+			pad[i] = (byte) (k0[i] ^ 0x5c);
+		}
+		md.update(pad);
+		md.update(inner);
+		return Arrays.copyOf(md.digest(), Raid5Metadata.SALT_BYTES);
+	}
+
+	/**
+	 * The native library is handed the modified UTF-8 representation of the
+	 * key but only uses as many bytes as the key has characters.
+	 */
+	private static byte[] keyBytes(String key) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			new DataOutputStream(bos).writeUTF(key);
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return Arrays.copyOfRange(bos.toByteArray(), 2, 2 + key.length());
+	}
+
+	/**
+	 * @return The lower case hex representation of <code>b</code>.
+	 */
+	static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(2 * b.length);
+		for (int i = 0; i < b.length; i++) {
+			sb.append(HEX.charAt((b[i] >> 4) & 0xf));
+			sb.append(HEX.charAt(b[i] & 0xf));
+		}
+		return sb.toString();
+	}
+
+	private Raid5() {
+	}
+
+}
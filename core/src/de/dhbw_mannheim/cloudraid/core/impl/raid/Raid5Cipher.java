@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+
+/**
+ * The cipher of a file as selected by its meta data version, matching
+ * <code>cipher_init()</code> in the native library.
+ * 
+ * @author Markus Holtermann
+ */
+abstract class Raid5Cipher {
+
+	/**
+	 * @param key
+	 *            The key for file encryption.
+	 * @param metadata
+	 *            The meta data providing the version and the salt.
+	 * @return RC4 for meta data versions 2 and 3, AES-128-CTR otherwise.
+	 * @throws IOException
+	 *             Thrown if the cipher is not available.
+	 */
+	static Raid5Cipher create(String key, Raid5Metadata metadata)
+			throws IOException {
+		return create(key, metadata, 0);
+	}
+
+	/**
+	 * @param key
+	 *            The key for file encryption.
+	 * @param metadata
+	 *            The meta data providing the version and the salt.
+	 * @param offset
+	 *            The position of the first byte to encrypt or decrypt in the
+	 *            file. RC4 has to generate the key stream up to this position,
+	 *            AES-128-CTR starts right at it.
+	 * @return RC4 for meta data versions 2 and 3, AES-128-CTR otherwise.
+	 * @throws IOException
+	 *             Thrown if the cipher is not available.
+	 */
+	static Raid5Cipher create(String key, Raid5Metadata metadata, long offset)
+			throws IOException {
+		byte[] salted = Raid5.saltedKey(key, metadata.getSalt());
+		if (metadata.getVersion() >= Raid5Metadata.VERSION_4) {
+			return new AesCtr(salted, offset);
+		}
+		Rc4 rc4 = new Rc4(salted);
+		byte[] clean = new byte[(int) Math.min(offset, 64 * 1024)];
+		for (long left = offset; left > 0; left -= clean.length) {
+			rc4.crypt(clean, 0, (int) Math.min(clean.length, left));
+		}
+		return rc4;
+	}
+
+	/**
+	 * Encrypts or decrypts <code>len</code> bytes of <code>buf</code> in place.
+	 * Consecutive calls continue the key stream.
+	 */
+	abstract void crypt(byte[] buf, int off, int len) throws IOException;
+
+}
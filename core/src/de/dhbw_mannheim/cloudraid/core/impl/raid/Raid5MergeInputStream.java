@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The {@link MergeInputStream} of the Java codec.
+ * 
+ * @author Markus Holtermann
+ */
+public class Raid5MergeInputStream extends MergeInputStream {
+
+	private Raid5Metadata metadata;
+	private ChunkedDigest digest;
+	private Raid5Cipher cipher;
+
+	private ByteBuffer inBuffer = null;
+	private ByteBuffer outBuffer = null;
+
+	/**
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @throws IOException
+	 *             Thrown if a required device is not available or the meta
+	 *             data is invalid.
+	 */
+	public Raid5MergeInputStream(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key) throws IOException {
+		this(devices, deadDevice, metadata, key, 0);
+	}
+
+	/**
+	 * Merges the file from the stripe <code>firstStripe</code> on. Unless
+	 * <code>firstStripe</code> is <code>0</code>, the checksum cannot be
+	 * verified.
+	 * 
+	 * @param devices
+	 *            The streams providing the device files <code>.0</code>,
+	 *            <code>.1</code> and <code>.2</code>, each starting at the
+	 *            stripe <code>firstStripe</code>. The entry for the
+	 *            <code>deadDevice</code> may be <code>null</code>.
+	 * @param deadDevice
+	 *            The device that is not used to restore the file.
+	 * @param metadata
+	 *            The content of the meta data file.
+	 * @param key
+	 *            The key for file decryption.
+	 * @param firstStripe
+	 *            The index of the first stripe.
+	 * @throws IOException
+	 *             Thrown if a required device is not available or the meta
+	 *             data is invalid.
+	 */
+	public Raid5MergeInputStream(InputStream[] devices, int deadDevice,
+			byte[] metadata, String key, long firstStripe) throws IOException {
+		super(devices, deadDevice, parseMetadata(devices, metadata)
+				.getBlockSize(), firstStripe);
+		this.metadata = Raid5Metadata.parse(metadata);
+		this.cipher = Raid5Cipher.create(key, this.metadata, firstStripe * 2
+				* this.metadata.getBlockSize());
+		if (firstStripe == 0) {
+			this.digest = new ChunkedDigest(this.metadata.getChunkLength(3));
+		}
+	}
+
+	@Override
+	protected void finish() throws IOException {
+		if (this.digest == null) {
+			return;
+		}
+		String hash = this.digest.hexDigest();
+		if (!hash.equals(this.metadata.getHash(3))) {
+			throw new IOException(
+					"Error merging the file: Hash sum failure during merge");
+		}
+	}
+
+	@Override
+	protected int mergeBlock(byte[] in, int[] inLen, int parityPos,
+			int deadDevice, boolean last, byte[] out) throws IOException {
+		if (this.inBuffer == null || this.inBuffer.array() != in) {
+			this.inBuffer = ByteBuffer.wrap(in).order(ByteOrder.nativeOrder());
+		}
+		if (this.outBuffer == null || this.outBuffer.array() != out) {
+			this.outBuffer = ByteBuffer.wrap(out).order(ByteOrder.nativeOrder());
+		}
+
+		int deadRole;
+		if (deadDevice == parityPos) {
+			deadRole = 2;
+		} else if (deadDevice == (parityPos + 1) % 3) {
+			deadRole = 0;
+		} else {
+			deadRole = 1;
+		}
+
+		int len = Raid5.merge(this.inBuffer, inLen, deadRole,
+				last ? this.metadata.getMissing() : 0, this.outBuffer,
+				this.metadata.getBlockSize());
+		if (this.digest != null) {
+			this.digest.update(out, 0, len);
+		}
+		this.cipher.crypt(out, 0, len);
+		return len;
+	}
+
+	@Override
+	protected void release() {
+	}
+
+}
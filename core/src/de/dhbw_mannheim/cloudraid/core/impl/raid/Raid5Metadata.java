@@ -0,0 +1,342 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * The content of the meta data file <code>.m</code> as written by
+ * <code>write_metadata()</code> in the native library:
+ * 
+ * <ul>
+ * <li>the version as two hex digits,</li>
+ * <li>the SHA-256 checksums of the device files <code>.0</code>,
+ * <code>.1</code>, <code>.2</code> and of the encrypted input file as 64 hex
+ * digits each,</li>
+ * <li>the {@value #SALT_BYTES} bytes of the encryption salt,</li>
+ * <li>the difference between the longest and the shortest device file as four
+ * (version 2) or eight (version 3) hex digits and</li>
+ * <li>the block size as eight hex digits (version 3 and later) and</li>
+ * <li>the number of stripes per hash chunk as eight hex digits (version 5
+ * only).</li>
+ * </ul>
+ * 
+ * Version 2 implies the default block size of {@value #DEFAULT_BLOCK_SIZE}
+ * bytes. Versions 2 and 3 are encrypted with RC4, version 4 has the layout of
+ * version 3 and is encrypted with AES-128 in counter mode. Version 5 uses
+ * chunk hashes as checksums, see {@link ChunkedDigest}. Versions before 5 are
+ * only written on request.
+ * 
+ * @author Markus Holtermann
+ */
+public class Raid5Metadata {
+
+	/**
+	 * The RC4 encrypted meta data version for files with the default block
+	 * size.
+	 */
+	public static final int VERSION_2 = 2;
+
+	/**
+	 * The RC4 encrypted meta data version for files with any block size.
+	 */
+	public static final int VERSION_3 = 3;
+
+	/**
+	 * The AES-128-CTR encrypted meta data version for files with any block
+	 * size.
+	 */
+	public static final int VERSION_4 = 4;
+
+	/**
+	 * The AES-128-CTR encrypted meta data version with chunk hashes.
+	 */
+	public static final int VERSION = 5;
+
+	/**
+	 * The block size implied by {@link #VERSION_2}.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * The largest supported block size.
+	 */
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The number of device bytes covered by one hash chunk.
+	 */
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * The length of the encryption salt.
+	 */
+	public static final int SALT_BYTES = 256;
+
+	/**
+	 * The length of a meta data file of {@link #VERSION_2}.
+	 */
+	public static final int V2_BYTES = 2 + 4 * 64 + SALT_BYTES + 4;
+
+	/**
+	 * The length of a meta data file of {@link #VERSION_3} and
+	 * {@link #VERSION_4}.
+	 */
+	public static final int V3_BYTES = 2 + 4 * 64 + SALT_BYTES + 8 + 8;
+
+	/**
+	 * The maximum length of a meta data file.
+	 */
+	public static final int BYTES = 2 + 4 * 64 + SALT_BYTES + 8 + 8 + 8;
+
+	/**
+	 * @param version
+	 *            The meta data version.
+	 * @return The length of a meta data file of the given version.
+	 */
+	public static int getByteLength(int version) {
+		if (version == VERSION_2) {
+			return V2_BYTES;
+		}
+		return version < VERSION ? V3_BYTES : BYTES;
+	}
+
+	/**
+	 * @param blockSize
+	 *            The block size of a file.
+	 * @return The number of stripes per hash chunk for files split with the
+	 *         given block size.
+	 */
+	public static int getDefaultChunkStripes(int blockSize) {
+		return blockSize < CHUNK_SIZE ? CHUNK_SIZE / blockSize : 1;
+	}
+
+	/**
+	 * Reads the meta data from the content of a meta data file.
+	 * 
+	 * @param data
+	 *            The content of the meta data file. Additional trailing bytes
+	 *            are ignored.
+	 * @return The meta data.
+	 * @throws IOException
+	 *             Thrown if the data is not a valid meta data file.
+	 */
+	public static Raid5Metadata parse(byte[] data) throws IOException {
+		if (data == null || data.length < 2) {
+			throw new IOException("The meta data is incomplete.");
+		}
+		Raid5Metadata md = new Raid5Metadata();
+		try {
+			md.version = Integer.parseInt(ascii(data, 0, 2), 16);
+			if (md.version < VERSION_2 || md.version > VERSION) {
+				throw new IOException("Unsupported meta data version "
+						+ md.version);
+			}
+			if (data.length < getByteLength(md.version)) {
+				throw new IOException("The meta data is incomplete.");
+			}
+			int pos = 2;
+			for (int i = 0; i < 4; i++) {
+				md.hashes[i] = ascii(data, pos, 64);
+				pos += 64;
+			}
+			System.arraycopy(data, pos, md.salt, 0, SALT_BYTES);
+			pos += SALT_BYTES;
+			if (md.version == VERSION_2) {
+				md.missing = Integer.parseInt(ascii(data, pos, 4), 16);
+				md.blockSize = DEFAULT_BLOCK_SIZE;
+			} else {
+				md.missing = Integer.parseInt(ascii(data, pos, 8), 16);
+				md.blockSize = Integer.parseInt(ascii(data, pos + 8, 8), 16);
+			}
+			if (md.version >= VERSION) {
+				md.chunkStripes = Integer.parseInt(ascii(data, pos + 16, 8),
+						16);
+				if (md.chunkStripes <= 0) {
+					throw new IOException("Invalid hash chunk size "
+							+ md.chunkStripes);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid meta data: " + e.getMessage());
+		}
+		if (md.blockSize <= 0 || md.blockSize > MAX_BLOCK_SIZE) {
+			throw new IOException("Invalid block size " + md.blockSize);
+		}
+		return md;
+	}
+
+	private static String ascii(byte[] data, int offset, int length)
+			throws UnsupportedEncodingException {
+		return new String(data, offset, length, "US-ASCII");
+	}
+
+	private int version = VERSION;
+	private String[] hashes = new String[4];
+	private byte[] salt = new byte[SALT_BYTES];
+	private int missing = 0;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int chunkStripes = 0;
+
+	/**
+	 * @return The number of bytes every device contributes to a stripe.
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * @param idx
+	 *            <code>0</code> - <code>2</code> for the device files,
+	 *            <code>3</code> for the input file.
+	 * @return The length of the hash chunks of the given file or
+	 *         <code>0</code> if its checksum is a plain SHA-256.
+	 */
+	public int getChunkLength(int idx) {
+		int length = this.chunkStripes * this.blockSize;
+		return idx == 3 ? 2 * length : length;
+	}
+
+	/**
+	 * @return The number of stripes per hash chunk or <code>0</code> before
+	 *         {@link #VERSION}.
+	 */
+	public int getChunkStripes() {
+		return this.chunkStripes;
+	}
+
+	/**
+	 * @param idx
+	 *            <code>0</code> - <code>2</code> for the device files,
+	 *            <code>3</code> for the input file.
+	 * @return The SHA-256 checksum as hex string.
+	 */
+	public String getHash(int idx) {
+		return this.hashes[idx];
+	}
+
+	/**
+	 * @return The difference between the longest and the shortest device file.
+	 */
+	public int getMissing() {
+		return this.missing;
+	}
+
+	/**
+	 * @return The encryption salt.
+	 */
+	public byte[] getSalt() {
+		return this.salt;
+	}
+
+	/**
+	 * @return The meta data version.
+	 */
+	public int getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @param blockSize
+	 *            The number of bytes every device contributes to a stripe.
+	 *            {@link #VERSION_2} requires {@link #DEFAULT_BLOCK_SIZE}.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param chunkStripes
+	 *            The number of stripes per hash chunk. It is only stored for
+	 *            {@link #VERSION}.
+	 */
+	public void setChunkStripes(int chunkStripes) {
+		this.chunkStripes = chunkStripes;
+	}
+
+	/**
+	 * @param idx
+	 *            <code>0</code> - <code>2</code> for the device files,
+	 *            <code>3</code> for the input file.
+	 * @param hash
+	 *            The SHA-256 checksum as hex string.
+	 */
+	public void setHash(int idx, String hash) {
+		this.hashes[idx] = hash;
+	}
+
+	/**
+	 * @param missing
+	 *            The difference between the longest and the shortest device
+	 *            file.
+	 */
+	public void setMissing(int missing) {
+		this.missing = missing;
+	}
+
+	/**
+	 * @param version
+	 *            The meta data version. It also selects the cipher.
+	 */
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return The content of the meta data file.
+	 */
+	public byte[] toByteArray() {
+		byte[] data = new byte[getByteLength(this.version)];
+		try {
+			byte[] b = String.format("%02x", this.version).getBytes("US-ASCII");
+			System.arraycopy(b, 0, data, 0, 2);
+			int pos = 2;
+			for (int i = 0; i < 4; i++) {
+				b = String.format("%64s", this.hashes[i]).getBytes("US-ASCII");
+				System.arraycopy(b, 0, data, pos, 64);
+				pos += 64;
+			}
+			System.arraycopy(this.salt, 0, data, pos, SALT_BYTES);
+			pos += SALT_BYTES;
+			if (this.version == VERSION_2) {
+				b = String.format("%04x", this.missing).getBytes("US-ASCII");
+			} else {
+				b = String.format("%08x%08x", this.missing, this.blockSize)
+						.getBytes("US-ASCII");
+			}
+			if (this.version >= VERSION) {
+				System.arraycopy(b, 0, data, pos, b.length);
+				pos += b.length;
+				b = String.format("%08x", this.chunkStripes).getBytes(
+						"US-ASCII");
+			}
+			System.arraycopy(b, 0, data, pos, b.length);
+		} catch (UnsupportedEncodingException e) {
+			// US-ASCII is always supported
+			throw new IllegalStateException(e);
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+
+/**
+ * The {@link SplitOutputStream} of the Java codec. It writes the same files as
+ * <code>split_file()</code> in the native library.
+ * 
+ * @author Markus Holtermann
+ */
+public class Raid5SplitOutputStream extends SplitOutputStream {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private int blockSize;
+	private String name;
+	private String basePath;
+	private OutputStream[] devices = new OutputStream[3];
+	private long[] deviceLength = new long[3];
+	private ChunkedDigest[] digests = new ChunkedDigest[4];
+	private Raid5Metadata metadata = new Raid5Metadata();
+	private Raid5Cipher cipher;
+
+	private byte[] chars;
+	private ByteBuffer charsBuffer;
+	private byte[] parity;
+	private ByteBuffer parityBuffer;
+	private int[] outLen = new int[3];
+	private int fill = 0;
+	private int parityPos = 2;
+
+	private String hash = null;
+	private boolean closed = false;
+	private byte[] single = new byte[1];
+
+	/**
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>).
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator.
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @throws IOException
+	 *             Thrown if the output files cannot be created or the block
+	 *             size is invalid.
+	 */
+	public Raid5SplitOutputStream(String inputFilePath,
+			String tempOutputDirPath, String key, int blockSize)
+			throws IOException {
+		this(inputFilePath, tempOutputDirPath, key, blockSize,
+				Raid5Metadata.VERSION);
+	}
+
+	/**
+	 * @param inputFilePath
+	 *            The virtual path of the file (
+	 *            <code>CloudRAID/test/file.txt</code>).
+	 * @param tempOutputDirPath
+	 *            The complete, absolute path to the temporary output directory.
+	 *            The directory MUST exist and end with the path separator.
+	 * @param key
+	 *            The key for file encryption.
+	 * @param blockSize
+	 *            The number of bytes each device contributes to a stripe.
+	 * @param version
+	 *            The meta data version to write. Versions older than
+	 *            {@link Raid5Metadata#VERSION} are encrypted with RC4 and
+	 *            only meant to create files for older installations.
+	 * @throws IOException
+	 *             Thrown if the output files cannot be created, the block size
+	 *             or the version is invalid.
+	 */
+	public Raid5SplitOutputStream(String inputFilePath,
+			String tempOutputDirPath, String key, int blockSize, int version)
+			throws IOException {
+		if (blockSize <= 0 || blockSize > Raid5Metadata.MAX_BLOCK_SIZE) {
+			throw new IOException("Invalid block size " + blockSize);
+		}
+		if (version < Raid5Metadata.VERSION_2
+				|| version > Raid5Metadata.VERSION
+				|| (version == Raid5Metadata.VERSION_2 && blockSize != Raid5Metadata.DEFAULT_BLOCK_SIZE)) {
+			throw new IOException("Invalid meta data version " + version);
+		}
+		this.blockSize = blockSize;
+		this.metadata.setBlockSize(blockSize);
+		this.metadata.setVersion(version);
+		if (version >= Raid5Metadata.VERSION) {
+			this.metadata.setChunkStripes(Raid5Metadata
+					.getDefaultChunkStripes(blockSize));
+		}
+		RANDOM.nextBytes(this.metadata.getSalt());
+		this.cipher = Raid5Cipher.create(key, this.metadata);
+		this.chars = new byte[2 * blockSize];
+		this.charsBuffer = ByteBuffer.wrap(this.chars).order(
+				ByteOrder.nativeOrder());
+		this.parity = new byte[blockSize];
+		this.parityBuffer = ByteBuffer.wrap(this.parity).order(
+				ByteOrder.nativeOrder());
+		this.name = Raid5.sha256Hex(inputFilePath);
+		this.basePath = tempOutputDirPath + this.name;
+		try {
+			for (int i = 0; i < 3; i++) {
+				this.devices[i] = new BufferedOutputStream(new FileOutputStream(
+						this.basePath + "." + i), 64 * 1024);
+			}
+		} catch (IOException e) {
+			this.abort();
+			throw e;
+		}
+		for (int i = 0; i < 4; i++) {
+			this.digests[i] = new ChunkedDigest(
+					this.metadata.getChunkLength(i));
+		}
+	}
+
+	/**
+	 * Closes and removes all output files.
+	 */
+	private void abort() {
+		this.closed = true;
+		for (int i = 0; i < 3; i++) {
+			if (this.devices[i] != null) {
+				try {
+					this.devices[i].close();
+				} catch (IOException ignore) {
+				}
+			}
+			new File(this.basePath + "." + i).delete();
+		}
+		new File(this.basePath + ".m").delete();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		try {
+			if (this.fill > 0) {
+				this.process();
+			}
+			long min = Long.MAX_VALUE, max = 0;
+			for (int i = 0; i < 3; i++) {
+				this.devices[i].close();
+				min = Math.min(min, this.deviceLength[i]);
+				max = Math.max(max, this.deviceLength[i]);
+			}
+			for (int i = 0; i < 4; i++) {
+				this.metadata.setHash(i, this.digests[i].hexDigest());
+			}
+			this.metadata.setMissing((int) (max - min));
+
+			FileOutputStream meta = new FileOutputStream(this.basePath + ".m");
+			try {
+				meta.write(this.metadata.toByteArray());
+			} finally {
+				meta.close();
+			}
+		} catch (IOException e) {
+			this.abort();
+			throw e;
+		}
+		this.closed = true;
+		this.hash = this.name;
+	}
+
+	@Override
+	public String getHash() {
+		return this.hash;
+	}
+
+	/**
+	 * Encrypts, hashes and splits the {@link #fill} bytes in {@link #chars}
+	 * and writes them to the device files.
+	 */
+	private void process() throws IOException {
+		this.cipher.crypt(this.chars, 0, this.fill);
+		this.digests[3].update(this.chars, 0, this.fill);
+
+		Raid5.split(this.charsBuffer, this.fill, this.parityBuffer,
+				this.outLen, this.blockSize);
+
+		int primary = (this.parityPos + 1) % 3;
+		int secondary = (this.parityPos + 2) % 3;
+		this.write(primary, this.chars, 0, this.outLen[0]);
+		this.write(secondary, this.chars, this.blockSize, this.outLen[1]);
+		this.write(this.parityPos, this.parity, 0, this.outLen[2]);
+
+		this.parityPos = (this.parityPos + 1) % 3;
+		this.fill = 0;
+	}
+
+	private void write(int device, byte[] b, int off, int len)
+			throws IOException {
+		if (len > 0) {
+			this.devices[device].write(b, off, len);
+			this.digests[device].update(b, off, len);
+			this.deviceLength[device] += len;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.closed) {
+			throw new IOException("Stream closed");
+		}
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		try {
+			while (len > 0) {
+				int l = Math.min(this.chars.length - this.fill, len);
+				System.arraycopy(b, off, this.chars, this.fill, l);
+				this.fill += l;
+				off += l;
+				len -= l;
+				if (this.fill == this.chars.length) {
+					this.process();
+				}
+			}
+		} catch (IOException e) {
+			this.abort();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.single[0] = (byte) b;
+		this.write(this.single, 0, 1);
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+/**
+ * RC4 as implemented by <code>prepare_key()</code> and <code>rc4()</code> in
+ * the native library, including dropping the first 3072 bytes of the key
+ * stream.
+ * 
+ * @author Markus Holtermann
+ */
+class Rc4 extends Raid5Cipher {
+
+	private byte[] state = new byte[256];
+	private int x = 0;
+	private int y = 0;
+
+	/**
+	 * @param key
+	 *            The key. All bytes are used for the key schedule.
+	 */
+	Rc4(byte[] key) {
+		for (int i = 0; i < 256; i++) {
+			this.state[i] = (byte) i;
+		}
+		int index1 = 0;
+		int index2 = 0;
+		for (int i = 0; i < 256; i++) {
+			index2 = ((key[index1] & 0xff) + (this.state[i] & 0xff) + index2) & 0xff;
+			byte t = this.state[i];
+			this.state[i] = this.state[index2];
+			this.state[index2] = t;
+			index1 = (index1 + 1) % key.length;
+		}
+
+		// It is recommended to drop the first 3072 bytes after initializing
+		// the key
+		byte[] clean = new byte[3072];
+		this.crypt(clean, 0, clean.length);
+	}
+
+	@Override
+	void crypt(byte[] buf, int off, int len) {
+		byte[] s = this.state;
+		int x = this.x;
+		int y = this.y;
+		for (int i = off; i < off + len; i++) {
+			x = (x + 1) & 0xff;
+			byte sx = s[x];
+			y = (y + sx) & 0xff;
+			byte sy = s[y];
+			s[x] = sy;
+			s[y] = sx;
+			buf[i] ^= s[(sx + sy) & 0xff];
+		}
+		this.x = x;
+		this.y = y;
+	}
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.impl.raid;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that splits all data written to it into the RAID
+ * files. The meta data file is written when the stream is closed. If the split
+ * fails, {@link #close()} throws an exception and removes the RAID files.
+ * 
+ * @author Markus Holtermann
+ */
+public abstract class SplitOutputStream extends OutputStream {
+
+	/**
+	 * @return The base name of the RAID files with 64 characters, or
+	 *         <code>null</code> if the stream has not been closed successfully.
+	 */
+	public abstract String getHash();
+
+}
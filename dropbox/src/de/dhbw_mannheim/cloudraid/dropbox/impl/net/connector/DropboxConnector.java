@@ -27,11 +27,15 @@ import static org.scribe.model.Verb.POST;
 import static org.scribe.model.Verb.PUT;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.util.Arrays;
+import java.util.Map;
 
 import javax.activation.MimetypesFileTypeMap;
 
@@ -48,7 +52,9 @@ import org.scribe.oauth.OAuthService;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
 
 /**
  * The API wrapper for Dropbox (API version 1).
@@ -57,6 +63,7 @@ import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
  * 
  */
 public class DropboxConnector implements IStorageConnector {
+	private static final int BUFFER_SIZE = 64 * 1024;
 	private static final String ROOT_NAME = "sandbox";
 	private static final String DELETE_URL = "https://api.dropbox.com/1/fileops/delete?root="
 			+ DropboxConnector.ROOT_NAME + "&path=";
@@ -155,6 +162,7 @@ public class DropboxConnector implements IStorageConnector {
 			throws InstantiationException {
 		this.id = connectorid;
 		this.config = config;
+		HttpConnections.configure(config);
 		String kAccessTokenSecret = String.format(
 				"connector.%d.accessTokenSecret", this.id);
 		String kAccessTokenValue = String.format(
@@ -204,20 +212,32 @@ public class DropboxConnector implements IStorageConnector {
 
 	@Override
 	public void disconnect() {
+		System.out.println(HttpConnections.getStatistics());
 	}
 
 	@Override
 	public InputStream get(String resource) {
-		Response response = performGet(resource, String.valueOf(this.id));
+		Response response = performGet(resource, String.valueOf(this.id),
+				null);
 		if (response == null) {
 			return null;
 		}
 		return response.getStream();
 	}
 
+	@Override
+	public InputStream get(String resource, long offset, long length) {
+		Response response = performGet(resource, String.valueOf(this.id),
+				RangedInputStream.header(offset, length));
+		if (response == null) {
+			return null;
+		}
+		return ranged(response, offset, length);
+	}
+
 	@Override
 	public byte[] getMetadata(String resource, int size) {
-		Response response = performGet(resource, "m");
+		Response response = performGet(resource, "m", null);
 		if (response == null) {
 			return null;
 		}
@@ -225,18 +245,34 @@ public class DropboxConnector implements IStorageConnector {
 		byte meta[] = new byte[size];
 		Arrays.fill(meta, (byte) 0);
 		try {
-			bis.read(meta, 0, size);
+			int pos = 0;
+			int len;
+			while (pos < size
+					&& (len = bis.read(meta, pos, size - pos)) >= 0) {
+				pos += len;
+			}
 		} catch (IOException ignore) {
 			meta = null;
 		} finally {
-			try {
-				bis.close();
-			} catch (Exception ignore) {
-			}
+			HttpConnections.release(bis);
 		}
 		return meta;
 	}
 
+	@Override
+	public boolean putMetadata(String resource, byte[] data) {
+		System.out.println("PUT " + resource + ".m");
+		OAuthRequest request = new OAuthRequest(PUT, DropboxConnector.PUT_URL
+				+ resource + ".m?overwrite=true");
+		request.addHeader("Content-Type", "application/octet-stream");
+		request.addPayload(data);
+		this.service.signRequest(this.accessToken, request);
+		Response response = send(request);
+		System.out.println(response.getCode());
+		HttpConnections.release(response.getStream());
+		return response.getCode() == 200;
+	}
+
 	/**
 	 * Restores a file, if the meta data say that that it is deleted
 	 * ("is_deleted" must be "true"). This must be done to be able to overwrite
@@ -251,8 +287,9 @@ public class DropboxConnector implements IStorageConnector {
 		OAuthRequest request = new OAuthRequest(GET,
 				DropboxConnector.REVISION_URL + resource + "." + extension);
 		this.service.signRequest(this.accessToken, request);
-		Response response = request.send();
+		Response response = send(request);
 		if (response.getCode() != 200) {
+			HttpConnections.release(response.getStream());
 			return;
 		}
 		try {
@@ -266,7 +303,8 @@ public class DropboxConnector implements IStorageConnector {
 								DropboxConnector.RESTORE_URL + resource + "."
 										+ extension + "?rev=" + rev);
 						this.service.signRequest(this.accessToken, request);
-						response = request.send();
+						response = send(request);
+						HttpConnections.release(response.getStream());
 					}
 					break;
 				}
@@ -290,7 +328,7 @@ public class DropboxConnector implements IStorageConnector {
 		OAuthRequest request = new OAuthRequest(POST,
 				DropboxConnector.DELETE_URL + resource + "." + extension);
 		this.service.signRequest(this.accessToken, request);
-		Response response = request.send();
+		Response response = send(request);
 		System.out.println(response.getCode() + " " + response.getBody());
 		if (response.getCode() == 406) {
 			System.err.println("Would delete too many files");
@@ -299,26 +337,71 @@ public class DropboxConnector implements IStorageConnector {
 		return true;
 	}
 
+	/**
+	 * Limits the body of a response to a ranged GET request to the requested
+	 * range. A server that ignores the <code>Range</code> header answers with
+	 * the whole file, in this case the bytes before <code>offset</code> are
+	 * skipped.
+	 * 
+	 * @return The stream of the range or <code>null</code> if the request
+	 *         failed.
+	 */
+	private static InputStream ranged(Response response, long offset,
+			long length) {
+		try {
+			if (response.getCode() == 206) {
+				return new RangedInputStream(response.getStream(), 0, length);
+			} else if (response.getCode() == 200) {
+				return new RangedInputStream(response.getStream(), offset,
+						length);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		HttpConnections.release(response.getStream());
+		return null;
+	}
+
 	/**
 	 * Gets a file from the Dropbox servers.
 	 * 
 	 * @param resource
 	 *            The hash in the merge.input.dir
+	 * @param range
+	 *            The value of the <code>Range</code> header or
+	 *            <code>null</code> for the whole file.
 	 * @return the {@link Response} of the GET request on success, else null.
 	 */
-	private Response performGet(String resource, String extension) {
+	private Response performGet(String resource, String extension,
+			String range) {
 		System.out.println("GET " + resource + "." + extension);
 		OAuthRequest request = new OAuthRequest(GET, DropboxConnector.GET_URL
 				+ resource + "." + extension);
+		if (range != null) {
+			request.addHeader("Range", range);
+		}
 		this.service.signRequest(this.accessToken, request);
-		Response response = request.send();
+		Response response = send(request);
 		System.out.println(response.getCode());
 		if (response.getCode() == 404) {
+			HttpConnections.release(response.getStream());
 			return null;
 		}
 		return response;
 	}
 
+	/**
+	 * Sends a request over a kept-alive connection.
+	 * 
+	 * @param request
+	 *            The signed request.
+	 * @return The response of the server.
+	 */
+	private static Response send(OAuthRequest request) {
+		request.setConnectionKeepAlive(true);
+		return request.send();
+	}
+
 	/**
 	 * Uploads a file to the Dropbox servers.
 	 * 
@@ -346,38 +429,100 @@ public class DropboxConnector implements IStorageConnector {
 			}
 		}
 
-		byte[] fileBytes = new byte[(int) f.length()];
-		InputStream fis;
-		try {
-			fis = new FileInputStream(f);
-			fis.read(fileBytes);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
 		OAuthRequest request = new OAuthRequest(PUT, DropboxConnector.PUT_URL
 				+ resource + "." + extension + "?overwrite=true");
 		request.addHeader("Content-Type",
 				DropboxConnector.MIME_MAP.getContentType(f));
 		this.service.signRequest(this.accessToken, request);
-		request.addPayload(fileBytes);
-		Response response = request.send();
-		System.out.println(response.getCode() + " " + response.getBody());
-		if (response.getCode() == 411 || response.getCode() == 400) {
+		int code;
+		try {
+			code = sendFile(request, f);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		System.out.println(code);
+		if (code == 411 || code == 400) {
 			System.err.println("Could not PUT file to Dropbox.");
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Sends the signed <code>request</code> with the content of
+	 * <code>f</code> as body. The file is streamed to the server with a fixed
+	 * content length instead of being read into memory first.
+	 * 
+	 * @param request
+	 *            The signed request without a payload.
+	 * @param f
+	 *            The file to send.
+	 * @return The HTTP status code of the response.
+	 * @throws IOException
+	 *             Thrown, if the file cannot be read or sent.
+	 */
+	private static int sendFile(OAuthRequest request, File f)
+			throws IOException {
+		HttpURLConnection con = HttpConnections.open(request
+				.getCompleteUrl());
+		con.setRequestMethod(request.getVerb().name());
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			con.setRequestProperty(header.getKey(), header.getValue());
+		}
+		con.setDoOutput(true);
+		long length = f.length();
+		if (length <= Integer.MAX_VALUE) {
+			con.setFixedLengthStreamingMode((int) length);
+		} else {
+			con.setChunkedStreamingMode(BUFFER_SIZE);
+		}
+		byte[] buf = new byte[BUFFER_SIZE];
+		int len;
+		InputStream is = new FileInputStream(f);
+		try {
+			OutputStream os = con.getOutputStream();
+			try {
+				while ((len = is.read(buf)) >= 0) {
+					os.write(buf, 0, len);
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+
+		// Read the whole response, so the connection can be reused
+		int code = con.getResponseCode();
+		InputStream body = code >= 400 ? con.getErrorStream() : con
+				.getInputStream();
+		if (body != null) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				while ((len = body.read(buf)) >= 0) {
+					bos.write(buf, 0, len);
+				}
+			} finally {
+				body.close();
+			}
+			if (code >= 400) {
+				System.err.println(bos.toString());
+			}
+		}
+		return code;
+	}
+
 	@Override
 	public boolean update(String resource) {
 		System.out.println("Update " + resource + "." + this.id);
 		OAuthRequest request = new OAuthRequest(GET, DropboxConnector.META_URL
 				+ resource + "." + this.id);
 		this.service.signRequest(this.accessToken, request);
-		Response response = request.send();
+		Response response = send(request);
 		System.out.println(response.getCode());
+		HttpConnections.release(response.getStream());
 		boolean ret;
 		if (response.getCode() == 404) {
 			return false;
@@ -403,7 +548,7 @@ public class DropboxConnector implements IStorageConnector {
 		OAuthRequest request = new OAuthRequest(GET, DropboxConnector.META_URL
 				+ resource + "." + this.id);
 		this.service.signRequest(this.accessToken, request);
-		Response response = request.send();
+		Response response = send(request);
 		System.out.println(response.getCode());
 		System.out.println(response.getBody());
 		boolean ret = false;
@@ -36,6 +36,18 @@ public interface ICloudRAIDService {
 
 	public String getRAIDVersion();
 
+	/**
+	 * @return The number of uploaded files waiting to be split and
+	 *         distributed.
+	 */
+	public int getUploadQueueDepth();
+
+	/**
+	 * @return The time in milliseconds the oldest uploaded file is waiting to
+	 *         be split and distributed or <code>0</code> if none is waiting.
+	 */
+	public long getUploadQueueAge();
+
 	public ICoreAccess getSlot() throws InstantiationException;
 
 	public IStorageConnector[] getStorageConnectors();
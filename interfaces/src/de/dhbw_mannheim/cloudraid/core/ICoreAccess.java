@@ -72,6 +72,28 @@ public interface ICoreAccess {
 	 */
 	public InputStream getData(int fileid);
 
+	/**
+	 * Returns a range of a file. Only the stripes of the device files that
+	 * cover the range are retrieved and merged. This function <b>must not</b>
+	 * release itself from the {@link ICoreAccess} slots in the
+	 * {@link ICloudRAIDService}. A calling function <b>must</b> release the
+	 * slot!</br>
+	 * 
+	 * After closing the returned {@link InputStream}, the function
+	 * {@link #finishGetData(int)} <b>must</b> be called!
+	 * 
+	 * @param fileid
+	 *            The id for this file from the {@link IMetadataManager}
+	 * @param offset
+	 *            The first byte of the range.
+	 * @param length
+	 *            The number of bytes of the range. The range must not exceed
+	 *            the file.
+	 * @return Returns an InputStream providing exactly the bytes of the range
+	 *         or null in case of an error.
+	 */
+	public InputStream getData(int fileid, long offset, long length);
+
 	/**
 	 * This function <b>must</b> release itself from the {@link ICoreAccess}
 	 * slots in the {@link ICloudRAIDService}. A calling function <b>must
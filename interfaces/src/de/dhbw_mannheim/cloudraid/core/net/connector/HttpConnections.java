@@ -0,0 +1,269 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.net.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
+
+/**
+ * The HTTP connection layer shared by all {@link IStorageConnector}
+ * implementations. It keeps the connections to the storage servers alive, so
+ * that every request to a host reuses an idle connection of the JVM wide
+ * keep-alive cache instead of performing a new TCP and TLS handshake.
+ * <p>
+ * A connection only returns to the cache if the response has been read
+ * completely and the connection has not been disconnected. Connectors must
+ * therefore pass every response stream they do not read to the end to
+ * {@link #release(InputStream)} and must not call
+ * {@link HttpURLConnection#disconnect()}. Requests built with scribe must
+ * enable keep-alive explicitly, since scribe otherwise disables it for the
+ * whole JVM.
+ * <p>
+ * A transfer is limited by the time its connection may stall, not by its
+ * total duration: connecting and every read from the server fail once no
+ * data arrived for <code>transfer.timeout</code> seconds.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public final class HttpConnections {
+
+	/**
+	 * The default number of idle connections kept per host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	/**
+	 * The default time in seconds a connection may stall.
+	 */
+	public static final int DEFAULT_TIMEOUT = 60;
+
+	/**
+	 * The maximum number of bytes read from a response stream on release.
+	 * Larger remainders are cheaper to discard with the connection.
+	 */
+	private static final int DRAIN_LIMIT = 64 * 1024;
+
+	/**
+	 * Indicates, if the keep-alive properties have been set.
+	 */
+	private static boolean configured = false;
+
+	/**
+	 * The connect and read timeout in milliseconds or <code>0</code> for no
+	 * limit.
+	 */
+	private static int timeout = DEFAULT_TIMEOUT * 1000;
+
+	/**
+	 * The number of connections opened via {@link #open(String)}.
+	 */
+	private static final AtomicLong opened = new AtomicLong();
+
+	/**
+	 * The number of responses whose connection returned to the cache.
+	 */
+	private static final AtomicLong released = new AtomicLong();
+
+	/**
+	 * The number of responses whose connection had to be closed.
+	 */
+	private static final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Enables HTTP keep-alive and sets the number of idle connections kept per
+	 * host to <code>http.connections</code> from the config. The connect and
+	 * read timeouts of all connections, including those opened by scribe, are
+	 * set to <code>transfer.timeout</code> seconds, <code>0</code> disables
+	 * them. The JVM reads these properties when the first HTTP connection is
+	 * opened, so this has to be called before. Values passed to the JVM via
+	 * <code>-Dhttp.maxConnections</code> or
+	 * <code>-Dsun.net.client.defaultReadTimeout</code> take precedence.
+	 * 
+	 * @param config
+	 *            The config to read from or <code>null</code> to use the
+	 *            default.
+	 */
+	public static synchronized void configure(ICloudRAIDConfig config) {
+		if (configured) {
+			return;
+		}
+		int max = DEFAULT_MAX_CONNECTIONS;
+		int seconds = DEFAULT_TIMEOUT;
+		if (config != null) {
+			try {
+				max = config.getInt("http.connections", null);
+			} catch (Exception e) {
+				System.err.println("Invalid http.connections, using " + max);
+			}
+			try {
+				seconds = config.getInt("transfer.timeout", null);
+			} catch (Exception e) {
+				System.err.println("Invalid transfer.timeout, using "
+						+ seconds);
+			}
+			if (seconds < 0) {
+				System.err.println("Invalid transfer.timeout, using "
+						+ DEFAULT_TIMEOUT);
+				seconds = DEFAULT_TIMEOUT;
+			}
+		}
+		System.setProperty("http.keepAlive", "true");
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections",
+					String.valueOf(Math.max(1, max)));
+		}
+		timeout = seconds * 1000;
+		if (timeout > 0) {
+			for (String name : new String[] {
+					"sun.net.client.defaultConnectTimeout",
+					"sun.net.client.defaultReadTimeout" }) {
+				if (System.getProperty(name) == null) {
+					System.setProperty(name, String.valueOf(timeout));
+				}
+			}
+		}
+		configured = true;
+	}
+
+	/**
+	 * Opens a connection that takes part in the keep-alive cache and fails
+	 * if it stalls for longer than the configured timeout.
+	 * 
+	 * @param address
+	 *            The URL to connect to.
+	 * @return The unconnected connection.
+	 * @throws IOException
+	 *             Thrown, if the URL is invalid or not HTTP(S).
+	 */
+	public static HttpURLConnection open(String address) throws IOException {
+		configure(null);
+		HttpURLConnection con = (HttpURLConnection) new URL(address)
+				.openConnection();
+		con.setConnectTimeout(timeout);
+		con.setReadTimeout(timeout);
+		opened.incrementAndGet();
+		return con;
+	}
+
+	/**
+	 * Releases the response of a connection opened with
+	 * {@link #open(String)}, no matter if it succeeded or not.
+	 * 
+	 * @param con
+	 *            The connection. May be <code>null</code>.
+	 */
+	public static void release(HttpURLConnection con) {
+		if (con == null) {
+			return;
+		}
+		InputStream in = con.getErrorStream();
+		if (in == null) {
+			try {
+				in = con.getInputStream();
+			} catch (IOException e) {
+				in = con.getErrorStream();
+			}
+		}
+		release(in);
+	}
+
+	/**
+	 * Reads the rest of a response stream and closes it so that its
+	 * connection can be reused. If more than a few KiB are left, the
+	 * connection is closed instead.
+	 * 
+	 * @param in
+	 *            The response stream. May be <code>null</code>.
+	 */
+	public static void release(InputStream in) {
+		if (in == null) {
+			return;
+		}
+		boolean drained = false;
+		try {
+			byte[] buf = new byte[4096];
+			int total = 0;
+			while (!drained && total <= DRAIN_LIMIT) {
+				int len = in.read(buf);
+				if (len < 0) {
+					drained = true;
+				} else {
+					total += len;
+				}
+			}
+		} catch (IOException ignore) {
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ignore) {
+			}
+		}
+		if (drained) {
+			released.incrementAndGet();
+		} else {
+			discarded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The number of connections opened via {@link #open(String)}.
+	 */
+	public static long getOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return The number of released responses whose connection returned to
+	 *         the keep-alive cache.
+	 */
+	public static long getReleased() {
+		return released.get();
+	}
+
+	/**
+	 * @return The number of released responses whose connection had to be
+	 *         closed.
+	 */
+	public static long getDiscarded() {
+		return discarded.get();
+	}
+
+	/**
+	 * @return A one line summary of the pool metrics for logging.
+	 */
+	public static String getStatistics() {
+		return String.format("HTTP connections: %d opened, %d released, "
+				+ "%d discarded, %s idle per host", getOpened(),
+				getReleased(), getDiscarded(),
+				System.getProperty("http.maxConnections", "5"));
+	}
+
+	private HttpConnections() {
+	}
+}
@@ -91,6 +91,24 @@ public interface IStorageConnector {
 	 */
 	public InputStream get(String resource);
 
+	/**
+	 * Gets a range of a file from a cloud service. Implementations send a HTTP
+	 * <code>Range</code> header and must return exactly the requested bytes,
+	 * e.g. by wrapping the response in a {@link RangedInputStream}. The method
+	 * <b>must return <code>null</code></b>, if the resource is not available.
+	 * 
+	 * @param resource
+	 *            Retrieve the given resource
+	 * @param offset
+	 *            The first byte to read.
+	 * @param length
+	 *            The number of bytes to read or <code>-1</code> to read up to
+	 *            the end of the file.
+	 * @return An InputStream from the regarding range of the file or
+	 *         <code>null</code> for a missing resource
+	 */
+	public InputStream get(String resource, long offset, long length);
+
 	/**
 	 * Gets the RAID meta data for a file from a cloud service. The method
 	 * <b>returns <code>null</code> </b>, if the resource is not available.
@@ -101,6 +119,21 @@ public interface IStorageConnector {
 	 */
 	public byte[] getMetadata(String resource, int size);
 
+	/**
+	 * Stores the meta data file of a small file that is stored inline. Such a
+	 * file has no device file, the meta data file contains the RAID meta data
+	 * followed by the device data of this connector and is read back with
+	 * {@link #getMetadata(String, int)}. An existing meta data file is
+	 * overwritten.
+	 *
+	 * @param resource
+	 *            The resource to use
+	 * @param data
+	 *            The content of the meta data file.
+	 * @return true, if the file could be stored; false, if not.
+	 */
+	public boolean putMetadata(String resource, byte[] data);
+
 	/**
 	 * Changes an <b>existing</b> file to a cloud service. This method
 	 * <b>must</b> return false, if the file is not existent.
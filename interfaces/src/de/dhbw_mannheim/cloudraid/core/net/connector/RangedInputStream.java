@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core.net.connector;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits an {@link InputStream} to a range of bytes. It is used by the
+ * {@link IStorageConnector} implementations to return exactly the requested
+ * range, even if a server ignores the <code>Range</code> header and sends the
+ * whole file.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public class RangedInputStream extends FilterInputStream {
+
+	/**
+	 * The number of bytes left in the range, <code>-1</code> for all
+	 */
+	private long left;
+
+	/**
+	 * @param in
+	 *            The stream to read from.
+	 * @param skip
+	 *            The number of bytes to skip before the range starts.
+	 * @param length
+	 *            The number of bytes in the range or <code>-1</code> to read
+	 *            until the end of <code>in</code>.
+	 * @throws IOException
+	 *             Thrown, if <code>in</code> ends before <code>skip</code>
+	 *             bytes have been skipped.
+	 */
+	public RangedInputStream(InputStream in, long skip, long length)
+			throws IOException {
+		super(in);
+		this.left = length;
+		while (skip > 0) {
+			long n = in.skip(skip);
+			if (n <= 0) {
+				if (in.read() < 0) {
+					throw new IOException("Unexpected end of stream");
+				}
+				n = 1;
+			}
+			skip -= n;
+		}
+	}
+
+	/**
+	 * Creates the value of a <code>Range</code> header.
+	 * 
+	 * @param offset
+	 *            The first byte.
+	 * @param length
+	 *            The number of bytes or <code>-1</code> for all bytes from
+	 *            <code>offset</code> to the end.
+	 * @return The range, e.g. <code>bytes=0-1023</code>.
+	 * @throws IllegalArgumentException
+	 *             Thrown, if <code>offset</code> is negative or
+	 *             <code>length</code> is <code>0</code> or less than
+	 *             <code>-1</code>.
+	 */
+	public static String header(long offset, long length) {
+		if (offset < 0 || length == 0 || length < -1) {
+			throw new IllegalArgumentException("Invalid range " + offset
+					+ "+" + length);
+		}
+		return "bytes=" + offset + "-"
+				+ (length < 0 ? "" : String.valueOf(offset + length - 1));
+	}
+
+	@Override
+	public int available() throws IOException {
+		int n = super.available();
+		return this.left < 0 ? n : (int) Math.min(n, this.left);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (this.left == 0) {
+			return -1;
+		}
+		int b = super.read();
+		if (b >= 0 && this.left > 0) {
+			this.left--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (this.left == 0) {
+			return -1;
+		}
+		if (this.left > 0) {
+			len = (int) Math.min(len, this.left);
+		}
+		int n = super.read(b, off, len);
+		if (n > 0 && this.left > 0) {
+			this.left -= n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (this.left >= 0) {
+			n = Math.min(n, this.left);
+		}
+		long skipped = super.skip(n);
+		if (this.left > 0) {
+			this.left -= skipped;
+		}
+		return skipped;
+	}
+}
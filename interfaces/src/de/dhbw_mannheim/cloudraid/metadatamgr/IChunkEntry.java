@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.metadatamgr;
+
+/**
+ * A chunk of a file that is split into content-defined chunks. Every chunk is
+ * stored once, in its own RAID files, and shared by all files containing it.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public interface IChunkEntry {
+
+	/**
+	 * Returns the id of the chunk, the keyed digest of its content.
+	 * 
+	 * @return The chunk id.
+	 */
+	public String getChunk();
+
+	/**
+	 * Returns the base name of the RAID files of the chunk.
+	 * 
+	 * @return The hashed name.
+	 */
+	public String getHash();
+
+	/**
+	 * Returns the length of the chunk.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getLength();
+
+	/**
+	 * Returns the position of the chunk in the file.
+	 * 
+	 * @return The first byte of the chunk in the file.
+	 */
+	public long getOffset();
+
+}
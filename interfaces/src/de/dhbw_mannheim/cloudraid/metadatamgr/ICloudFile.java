@@ -37,6 +37,14 @@ public interface ICloudFile {
 	 */
 	public String getName();
 
+	/**
+	 * Returns the size of the original file in bytes.
+	 * 
+	 * @return The size or <code>-1</code> if it is unknown, e.g. for files
+	 *         uploaded before the size has been recorded.
+	 */
+	public long getSize();
+
 	/**
 	 * Returns the file's status.
 	 * 
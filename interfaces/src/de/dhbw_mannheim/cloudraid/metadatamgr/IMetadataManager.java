@@ -72,7 +72,8 @@ public interface IMetadataManager {
 		 */
 		UPLOADED,
 		/**
-		 * File is going to be uploaded. Next state will be UPLOADED
+		 * File is going to be uploaded. Next state will be UPLOADED, or
+		 * SPLITTING if the file is split while it is uploaded
 		 */
 		UPLOADING
 	}
@@ -116,6 +117,43 @@ public interface IMetadataManager {
 	 */
 	public boolean changeUserPwd(String username, String password, int userId);
 
+	/**
+	 * Takes a reference to a stored chunk, e.g. because a new file contains
+	 * it. The chunk is kept until all references are released.
+	 * 
+	 * @param chunk
+	 *            The id of the chunk.
+	 * @return The base name of the RAID files of the chunk or
+	 *         <code>null</code> if the chunk is not stored.
+	 */
+	public String chunkAcquire(String chunk);
+
+	/**
+	 * Inserts a chunk whose RAID files have been stored. The new chunk has
+	 * one reference, taken by the caller.
+	 * 
+	 * @param chunk
+	 *            The id of the chunk.
+	 * @param hash
+	 *            The base name of the RAID files of the chunk.
+	 * @param size
+	 *            The length of the chunk.
+	 * @return true, if the chunk has been inserted; false, if it exists
+	 *         already or cannot be inserted.
+	 */
+	public boolean chunkNew(String chunk, String hash, long size);
+
+	/**
+	 * Releases a reference to a chunk. A chunk without references is deleted
+	 * from the database and its RAID files have to be removed by the caller.
+	 * 
+	 * @param chunk
+	 *            The id of the chunk.
+	 * @return The base name of the RAID files of a deleted chunk or
+	 *         <code>null</code> if the chunk is still referenced.
+	 */
+	public String chunkRelease(String chunk);
+
 	/**
 	 * Creates a connection to a specific database.
 	 * 
@@ -138,6 +176,40 @@ public interface IMetadataManager {
 	 */
 	public boolean disconnect();
 
+	/**
+	 * Returns the chunks of a file.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @return The chunks ordered by their offset. The list is empty if the
+	 *         file is not split into chunks.
+	 */
+	public Collection<IChunkEntry> fileChunks(int fileId);
+
+	/**
+	 * Removes the chunks from a file. The references to the chunks have to
+	 * be released by the caller.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @return The number of deleted records or -1
+	 */
+	public int fileChunksDelete(int fileId);
+
+	/**
+	 * Stores the chunks of a file, replacing previous chunks. A reference to
+	 * every chunk has to be taken by the caller.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @param chunks
+	 *            The ids of the chunks in the order of the file.
+	 * @param offsets
+	 *            The position of every chunk in the file.
+	 * @return true, if the chunks have been stored.
+	 */
+	public boolean fileChunksPut(int fileId, String[] chunks, long[] offsets);
+
 	/**
 	 * Returns a ResultSet for the given file id.
 	 * 
@@ -176,6 +248,15 @@ public interface IMetadataManager {
 	 */
 	public Collection<ICloudFile> fileList(int userId);
 
+	/**
+	 * Returns all files of all users in the given state, ordered by their id.
+	 * 
+	 * @param state
+	 *            The state of the files.
+	 * @return The files in the given state.
+	 */
+	public Collection<ICloudFile> fileList(FILE_STATUS state);
+
 	/**
 	 * Inserts a data set into the database.
 	 * 
@@ -221,6 +302,17 @@ public interface IMetadataManager {
 	 */
 	public boolean fileUpdateState(int id, FILE_STATUS state);
 
+	/**
+	 * Update the size of a file.
+	 * 
+	 * @param id
+	 *            The id of the regarding file
+	 * @param size
+	 *            The size of the original file in bytes
+	 * @return True if the size has been updated
+	 */
+	public boolean fileUpdateSize(int id, long size);
+
 	/**
 	 * Creates the database schemas.
 	 * 
@@ -228,4 +320,128 @@ public interface IMetadataManager {
 	 */
 	public boolean initialize();
 
+	/**
+	 * Deletes a pack. The pack must not contain any files anymore.
+	 * 
+	 * @param pack
+	 *            The name of the pack.
+	 * @return The number of deleted records or -1
+	 */
+	public int packDelete(String pack);
+
+	/**
+	 * Removes a file from its pack, e.g. because it is stored in its own
+	 * device files now.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @return The number of deleted records or -1
+	 */
+	public int packEntryDelete(int fileId);
+
+	/**
+	 * Returns the location of a file in its pack.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @return The location or <code>null</code> if the file is not stored in
+	 *         a pack.
+	 */
+	public IPackEntry packEntryGet(int fileId);
+
+	/**
+	 * Returns the locations of all files stored in a pack.
+	 * 
+	 * @param pack
+	 *            The name of the pack.
+	 * @return The locations of the files.
+	 */
+	public Collection<IPackEntry> packEntryList(String pack);
+
+	/**
+	 * Moves a file from one pack to another, unless it is not stored in the
+	 * old pack anymore, e.g. because it has been updated meanwhile.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @param from
+	 *            The name of the old pack.
+	 * @param to
+	 *            The name of the new pack.
+	 * @param offsets
+	 *            The offset of the device data of every connector in the new
+	 *            pack.
+	 * @param lengths
+	 *            The length of the device data of every connector.
+	 * @return true, if the file has been moved.
+	 */
+	public boolean packEntryMove(int fileId, String from, String to,
+			long[] offsets, long[] lengths);
+
+	/**
+	 * Stores the location of a file in a pack. A previous location of the
+	 * file is replaced.
+	 * 
+	 * @param fileId
+	 *            The id of the file
+	 * @param pack
+	 *            The name of the pack.
+	 * @param offsets
+	 *            The offset of the device data of every connector in the pack.
+	 * @param lengths
+	 *            The length of the device data of every connector.
+	 * @return true, if the location has been stored.
+	 */
+	public boolean packEntryPut(int fileId, String pack, long[] offsets,
+			long[] lengths);
+
+	/**
+	 * Returns the packs whose files take at most the given share of their
+	 * size, including the packs that do not contain any files anymore.
+	 * 
+	 * @param percent
+	 *            The share of the size in percent.
+	 * @return The names of the packs.
+	 */
+	public Collection<String> packListSparse(int percent);
+
+	/**
+	 * Inserts a pack together with the locations of its files in one
+	 * transaction, so that either all of them or nothing is stored. A file
+	 * with a previous pack in <code>from</code> is only moved if it is still
+	 * stored in that pack, see
+	 * {@link #packEntryMove(int, String, String, long[], long[])}. The
+	 * previous location of any other file is replaced.
+	 * 
+	 * @param pack
+	 *            The name of the pack.
+	 * @param size
+	 *            The size of the pack objects of all connectors in bytes.
+	 * @param fileIds
+	 *            The ids of the files.
+	 * @param from
+	 *            The name of the pack every file is moved from or
+	 *            <code>null</code>.
+	 * @param offsets
+	 *            The offsets of the device data of every file and connector
+	 *            in the pack.
+	 * @param lengths
+	 *            The lengths of the device data of every file and connector.
+	 * @return The number of files moved from another pack or -1 if nothing
+	 *         has been stored.
+	 */
+	public int packStore(String pack, long size, int[] fileIds,
+			String[] from, long[][] offsets, long[][] lengths);
+
+	/**
+	 * Inserts a pack into the database.
+	 * 
+	 * @param pack
+	 *            The name of the pack.
+	 * @param size
+	 *            The size of the pack objects of all connectors in bytes.
+	 * @return true, if the pack has been inserted.
+	 */
+	public boolean packNew(String pack, long size);
+
 }
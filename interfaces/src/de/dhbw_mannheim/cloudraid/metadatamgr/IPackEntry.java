@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details.
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.metadatamgr;
+
+/**
+ * The location of a file that is stored in a pack: the device data of every
+ * connector is a range of the pack object on this connector.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public interface IPackEntry {
+
+	/**
+	 * Returns the file ID.
+	 * 
+	 * @return The file ID.
+	 */
+	public int getFileId();
+
+	/**
+	 * Returns the length of the range of a connector.
+	 * 
+	 * @param device
+	 *            The id of the connector.
+	 * @return The number of bytes.
+	 */
+	public long getLength(int device);
+
+	/**
+	 * Returns the offset of the range of a connector.
+	 * 
+	 * @param device
+	 *            The id of the connector.
+	 * @return The first byte in the pack object.
+	 */
+	public long getOffset(int device);
+
+	/**
+	 * Returns the name of the pack.
+	 * 
+	 * @return The pack name.
+	 */
+	public String getPack();
+
+}
@@ -0,0 +1,77 @@
+package de.dhbw_mannheim.cloudraid.metadatamgr.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Vector;
+
+import de.dhbw_mannheim.cloudraid.metadatamgr.IChunkEntry;
+
+/**
+ * An implementation of {@link IChunkEntry} that can read data from the
+ * {@link HSQLMetadataManager} database.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public class HSQLChunkEntry implements IChunkEntry {
+
+	/**
+	 * Creates from a {@link ResultSet} a Collection of {@link IChunkEntry}s.
+	 * The cursor must be set before the first row.
+	 * 
+	 * @param rs
+	 *            A SQL {@link ResultSet}.
+	 * @return The Collection.
+	 * @throws SQLException
+	 */
+	protected static Collection<IChunkEntry> createEntryList(ResultSet rs)
+			throws SQLException {
+		Vector<IChunkEntry> ret = new Vector<IChunkEntry>();
+		while (rs.next()) {
+			ret.add(new HSQLChunkEntry(rs));
+		}
+		return ret;
+	}
+
+	private String chunk;
+	private String hash;
+	private long offset;
+	private long length;
+
+	/**
+	 * Creates a {@link IChunkEntry} from a {@link ResultSet}. The cursor must
+	 * be set on a row.
+	 * 
+	 * @param rs
+	 *            The {@link ResultSet}.
+	 * @throws SQLException
+	 */
+	protected HSQLChunkEntry(ResultSet rs) throws SQLException {
+		this.chunk = rs.getString("chunk_id");
+		this.hash = rs.getString("hash_name");
+		this.offset = rs.getLong("chunk_offset");
+		this.length = rs.getLong("chunk_size");
+	}
+
+	@Override
+	public String getChunk() {
+		return this.chunk;
+	}
+
+	@Override
+	public String getHash() {
+		return this.hash;
+	}
+
+	@Override
+	public long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public long getOffset() {
+		return this.offset;
+	}
+
+}
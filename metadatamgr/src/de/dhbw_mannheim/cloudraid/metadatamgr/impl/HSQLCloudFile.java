@@ -40,6 +40,7 @@ public class HSQLCloudFile implements ICloudFile {
 	private String status;
 	private long lastMod;
 	private int fileid;
+	private long size;
 
 	/**
 	 * Creates a {@link ICloudFile} from a {@link ResultSet}. The cursor must be
@@ -56,6 +57,7 @@ public class HSQLCloudFile implements ICloudFile {
 		this.status = rs.getString("status");
 		this.lastMod = rs.getTimestamp("last_mod").getTime();
 		this.fileid = rs.getInt("id");
+		this.size = rs.getLong("file_size");
 	}
 
 	@Override
@@ -78,6 +80,11 @@ public class HSQLCloudFile implements ICloudFile {
 		return this.path;
 	}
 
+	@Override
+	public long getSize() {
+		return this.size;
+	}
+
 	@Override
 	public String getStatus() {
 		return this.status;
@@ -35,12 +35,15 @@ import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Vector;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.ConfigException;
 import de.dhbw_mannheim.cloudraid.config.exceptions.InvalidConfigValueException;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IChunkEntry;
 import de.dhbw_mannheim.cloudraid.metadatamgr.ICloudFile;
 import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IPackEntry;
 
 /**
  * An implementation of the {@link IMetadataManager} for the HSQL database
@@ -61,6 +64,31 @@ public class HSQLMetadataManager implements IMetadataManager {
 	 */
 	private PreparedStatement authUserStatement = null;
 
+	/**
+	 * 
+	 */
+	private PreparedStatement chunkAcquireStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement chunkAddStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement chunkDeleteStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement chunkGetStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement chunkReleaseStmnt = null;
+
 	/**
 	 * 
 	 */
@@ -78,6 +106,21 @@ public class HSQLMetadataManager implements IMetadataManager {
 	 */
 	private PreparedStatement fileByIdStmnt = null;
 
+	/**
+	 * 
+	 */
+	private PreparedStatement fileChunkAddStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement fileChunksDeleteStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement fileChunksGetStmnt = null;
+
 	/**
 	 * 
 	 */
@@ -93,6 +136,11 @@ public class HSQLMetadataManager implements IMetadataManager {
 	 */
 	private PreparedStatement fileUpdateStatusStmnt = null;
 
+	/**
+	 * 
+	 */
+	private PreparedStatement fileUpdateSizeStmnt = null;
+
 	/**
 	 * 
 	 */
@@ -113,6 +161,51 @@ public class HSQLMetadataManager implements IMetadataManager {
 	 */
 	private PreparedStatement listFiles = null;
 
+	/**
+	 * 
+	 */
+	private PreparedStatement listFilesByState = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement listSparsePacks = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packAddStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packDeleteStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packEntryAddStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packEntryDeleteStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packEntryGetStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packEntryListStmnt = null;
+
+	/**
+	 * 
+	 */
+	private PreparedStatement packEntryMoveStmnt = null;
+
 	/**
 	 * 
 	 */
@@ -235,6 +328,80 @@ public class HSQLMetadataManager implements IMetadataManager {
 		return true;
 	}
 
+	@Override
+	public synchronized String chunkAcquire(String chunk) {
+		try {
+			this.chunkAcquireStmnt.setString(1, chunk);
+			this.chunkAcquireStmnt.execute();
+			if (this.chunkAcquireStmnt.getUpdateCount() == 1) {
+				return this.chunkHash(chunk);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * @return The base name of the RAID files of the chunk or
+	 *         <code>null</code> if the chunk is not stored.
+	 */
+	private String chunkHash(String chunk) throws SQLException {
+		this.chunkGetStmnt.setString(1, chunk);
+		this.chunkGetStmnt.execute();
+		ResultSet rs = this.chunkGetStmnt.getResultSet();
+		if (rs != null && rs.next()) {
+			return rs.getString("hash_name");
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized boolean chunkNew(String chunk, String hash, long size) {
+		try {
+			// The same chunk may have been stored by another upload meanwhile
+			if (this.chunkHash(chunk) != null) {
+				return false;
+			}
+			this.chunkAddStmnt.setString(1, chunk);
+			this.chunkAddStmnt.setString(2, hash);
+			this.chunkAddStmnt.setLong(3, size);
+			this.chunkAddStmnt.execute();
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				this.con.rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized String chunkRelease(String chunk) {
+		try {
+			String hash = this.chunkHash(chunk);
+			this.chunkReleaseStmnt.setString(1, chunk);
+			this.chunkReleaseStmnt.execute();
+			this.chunkDeleteStmnt.setString(1, chunk);
+			this.chunkDeleteStmnt.execute();
+			if (this.chunkDeleteStmnt.getUpdateCount() == 1) {
+				return hash;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	@Override
 	public synchronized boolean connect(String database, String username,
 			String password) {
@@ -269,7 +436,16 @@ public class HSQLMetadataManager implements IMetadataManager {
 		this.addUserStatement = null;
 		this.authUserStatement = null;
 
+		this.chunkAcquireStmnt = null;
+		this.chunkAddStmnt = null;
+		this.chunkDeleteStmnt = null;
+		this.chunkGetStmnt = null;
+		this.chunkReleaseStmnt = null;
+
 		this.fileAddStmnt = null;
+		this.fileChunkAddStmnt = null;
+		this.fileChunksDeleteStmnt = null;
+		this.fileChunksGetStmnt = null;
 		this.fileDeleteStmnt = null;
 		this.fileGetStmnt = null;
 		this.fileUpdateStatusStmnt = null;
@@ -278,6 +454,16 @@ public class HSQLMetadataManager implements IMetadataManager {
 		this.getUserSaltStatement = null;
 
 		this.listFiles = null;
+		this.listFilesByState = null;
+
+		this.listSparsePacks = null;
+		this.packAddStmnt = null;
+		this.packDeleteStmnt = null;
+		this.packEntryAddStmnt = null;
+		this.packEntryDeleteStmnt = null;
+		this.packEntryGetStmnt = null;
+		this.packEntryListStmnt = null;
+		this.packEntryMoveStmnt = null;
 
 		try {
 			if (this.con != null) {
@@ -290,6 +476,70 @@ public class HSQLMetadataManager implements IMetadataManager {
 		return true;
 	}
 
+	@Override
+	public synchronized Collection<IChunkEntry> fileChunks(int fileId) {
+		try {
+			this.fileChunksGetStmnt.setInt(1, fileId);
+			this.fileChunksGetStmnt.execute();
+			return HSQLChunkEntry.createEntryList(this.fileChunksGetStmnt
+					.getResultSet());
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized int fileChunksDelete(int fileId) {
+		try {
+			this.fileChunksDeleteStmnt.setInt(1, fileId);
+			this.fileChunksDeleteStmnt.execute();
+			return this.fileChunksDeleteStmnt.getUpdateCount();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized boolean fileChunksPut(int fileId, String[] chunks,
+			long[] offsets) {
+		try {
+			this.con.setAutoCommit(false);
+			try {
+				this.fileChunksDeleteStmnt.setInt(1, fileId);
+				this.fileChunksDeleteStmnt.execute();
+				for (int i = 0; i < chunks.length; i++) {
+					this.fileChunkAddStmnt.setInt(1, fileId);
+					this.fileChunkAddStmnt.setInt(2, i);
+					this.fileChunkAddStmnt.setString(3, chunks[i]);
+					this.fileChunkAddStmnt.setLong(4, offsets[i]);
+					this.fileChunkAddStmnt.addBatch();
+				}
+				this.fileChunkAddStmnt.executeBatch();
+				this.con.commit();
+				return true;
+			} finally {
+				this.con.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				this.con.rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	@Override
 	public ICloudFile fileById(int fileId) {
 		try {
@@ -354,6 +604,21 @@ public class HSQLMetadataManager implements IMetadataManager {
 		return null;
 	}
 
+	@Override
+	public synchronized Collection<ICloudFile> fileList(FILE_STATUS state) {
+		try {
+			this.listFilesByState.setString(1, state.toString());
+			this.listFilesByState.execute();
+			return HSQLCloudFile.createFileList(this.listFilesByState
+					.getResultSet());
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	@Override
 	public int fileNew(String path, String hash, long lastMod, int userId) {
 		try {
@@ -420,6 +685,21 @@ public class HSQLMetadataManager implements IMetadataManager {
 		return false;
 	}
 
+	@Override
+	public boolean fileUpdateSize(int id, long size) {
+		try {
+			this.fileUpdateSizeStmnt.setLong(1, size);
+			this.fileUpdateSizeStmnt.setInt(2, id);
+			this.fileUpdateSizeStmnt.execute();
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	@Override
 	public synchronized boolean initialize() {
 		try {
@@ -439,10 +719,55 @@ public class HSQLMetadataManager implements IMetadataManager {
 					+ "last_mod TIMESTAMP NOT NULL, "
 					+ "status VARCHAR(32) NOT NULL, "
 					+ "user_id INTEGER NULL, "
+					+ "file_size BIGINT DEFAULT -1 NOT NULL, "
 					+ "FOREIGN KEY ( user_id ) REFERENCES cloudraid_users ( id ),"
 					+ "UNIQUE ( user_id, path_name ) );";
 			this.statement.execute(createTable);
 
+			// Databases created before the file size was recorded
+			ResultSet rs = this.con.getMetaData().getColumns(null, null,
+					"CLOUDRAID_FILES", "FILE_SIZE");
+			if (!rs.next()) {
+				this.statement
+						.execute("ALTER TABLE cloudraid_files ADD COLUMN file_size BIGINT DEFAULT -1 NOT NULL;");
+			}
+			rs.close();
+
+			createTable = "CREATE CACHED TABLE IF NOT EXISTS cloudraid_chunks ("
+					+ "chunk_id VARCHAR(64) NOT NULL PRIMARY KEY, "
+					+ "hash_name VARCHAR(256) NOT NULL, "
+					+ "chunk_size BIGINT NOT NULL, "
+					+ "refcount INTEGER NOT NULL );";
+			this.statement.execute(createTable);
+
+			createTable = "CREATE CACHED TABLE IF NOT EXISTS cloudraid_file_chunks ("
+					+ "file_id INTEGER NOT NULL, "
+					+ "chunk_index INTEGER NOT NULL, "
+					+ "chunk_id VARCHAR(64) NOT NULL, "
+					+ "chunk_offset BIGINT NOT NULL, "
+					+ "PRIMARY KEY ( file_id, chunk_index ), "
+					+ "FOREIGN KEY ( file_id ) REFERENCES cloudraid_files ( id ) ON DELETE CASCADE, "
+					+ "FOREIGN KEY ( chunk_id ) REFERENCES cloudraid_chunks ( chunk_id ) );";
+			this.statement.execute(createTable);
+
+			createTable = "CREATE CACHED TABLE IF NOT EXISTS cloudraid_packs ("
+					+ "pack_name VARCHAR(64) NOT NULL PRIMARY KEY, "
+					+ "pack_size BIGINT NOT NULL );";
+			this.statement.execute(createTable);
+
+			createTable = "CREATE CACHED TABLE IF NOT EXISTS cloudraid_pack_entries ("
+					+ "file_id INTEGER NOT NULL PRIMARY KEY, "
+					+ "pack_name VARCHAR(64) NOT NULL, "
+					+ "offset0 BIGINT NOT NULL, "
+					+ "length0 BIGINT NOT NULL, "
+					+ "offset1 BIGINT NOT NULL, "
+					+ "length1 BIGINT NOT NULL, "
+					+ "offset2 BIGINT NOT NULL, "
+					+ "length2 BIGINT NOT NULL, "
+					+ "FOREIGN KEY ( file_id ) REFERENCES cloudraid_files ( id ) ON DELETE CASCADE, "
+					+ "FOREIGN KEY ( pack_name ) REFERENCES cloudraid_packs ( pack_name ) );";
+			this.statement.execute(createTable);
+
 			this.addUserStatement = this.con
 					.prepareStatement("INSERT INTO cloudraid_users VALUES (NULL, ?, ?, ? );");
 			this.authUserStatement = this.con
@@ -450,8 +775,24 @@ public class HSQLMetadataManager implements IMetadataManager {
 
 			this.fileAddStmnt = this.con
 					.prepareStatement(
-							"INSERT INTO cloudraid_files VALUES (NULL, ?, ?, ?, ?, ? );",
+							"INSERT INTO cloudraid_files ( path_name, hash_name, last_mod, status, user_id ) VALUES (?, ?, ?, ?, ? );",
 							Statement.RETURN_GENERATED_KEYS);
+			this.chunkAcquireStmnt = this.con
+					.prepareStatement("UPDATE cloudraid_chunks SET refcount = refcount + 1 WHERE chunk_id = ? ;");
+			this.chunkAddStmnt = this.con
+					.prepareStatement("INSERT INTO cloudraid_chunks ( chunk_id, hash_name, chunk_size, refcount ) VALUES (?, ?, ?, 1 );");
+			this.chunkDeleteStmnt = this.con
+					.prepareStatement("DELETE FROM cloudraid_chunks WHERE chunk_id = ? AND refcount <= 0 ;");
+			this.chunkGetStmnt = this.con
+					.prepareStatement("SELECT hash_name FROM cloudraid_chunks WHERE chunk_id = ? ;");
+			this.chunkReleaseStmnt = this.con
+					.prepareStatement("UPDATE cloudraid_chunks SET refcount = refcount - 1 WHERE chunk_id = ? AND refcount > 0 ;");
+			this.fileChunkAddStmnt = this.con
+					.prepareStatement("INSERT INTO cloudraid_file_chunks ( file_id, chunk_index, chunk_id, chunk_offset ) VALUES (?, ?, ?, ? );");
+			this.fileChunksDeleteStmnt = this.con
+					.prepareStatement("DELETE FROM cloudraid_file_chunks WHERE file_id = ? ;");
+			this.fileChunksGetStmnt = this.con
+					.prepareStatement("SELECT f.chunk_id, f.chunk_offset, c.hash_name, c.chunk_size FROM cloudraid_file_chunks f JOIN cloudraid_chunks c ON c.chunk_id = f.chunk_id WHERE f.file_id = ? ORDER BY f.chunk_index;");
 			this.fileByIdStmnt = this.con
 					.prepareStatement("SELECT * FROM cloudraid_files WHERE id = ? ;");
 			this.fileDeleteStmnt = this.con
@@ -460,6 +801,8 @@ public class HSQLMetadataManager implements IMetadataManager {
 					.prepareStatement("SELECT * FROM cloudraid_files WHERE path_name = ? AND user_id = ? ;");
 			this.fileUpdateStatusStmnt = this.con
 					.prepareStatement("UPDATE cloudraid_files SET status = ? WHERE id = ? ;");
+			this.fileUpdateSizeStmnt = this.con
+					.prepareStatement("UPDATE cloudraid_files SET file_size = ? WHERE id = ? ;");
 			this.fileUpdateStmnt = this.con
 					.prepareStatement("UPDATE cloudraid_files SET path_name = ? , hash_name = ? , last_mod = ? , status = ? , user_id = ? WHERE id = ? ;");
 
@@ -471,6 +814,25 @@ public class HSQLMetadataManager implements IMetadataManager {
 
 			this.listFiles = this.con
 					.prepareStatement("SELECT * FROM cloudraid_files WHERE user_id = ?;");
+			this.listFilesByState = this.con
+					.prepareStatement("SELECT * FROM cloudraid_files WHERE status = ? ORDER BY id;");
+
+			this.listSparsePacks = this.con
+					.prepareStatement("SELECT p.pack_name FROM cloudraid_packs p LEFT JOIN cloudraid_pack_entries e ON e.pack_name = p.pack_name GROUP BY p.pack_name, p.pack_size HAVING COALESCE(SUM(e.length0 + e.length1 + e.length2), 0) * 100 <= p.pack_size * ? ;");
+			this.packAddStmnt = this.con
+					.prepareStatement("INSERT INTO cloudraid_packs ( pack_name, pack_size ) VALUES (?, ? );");
+			this.packDeleteStmnt = this.con
+					.prepareStatement("DELETE FROM cloudraid_packs WHERE pack_name = ? ;");
+			this.packEntryAddStmnt = this.con
+					.prepareStatement("INSERT INTO cloudraid_pack_entries ( file_id, pack_name, offset0, length0, offset1, length1, offset2, length2 ) VALUES (?, ?, ?, ?, ?, ?, ?, ? );");
+			this.packEntryDeleteStmnt = this.con
+					.prepareStatement("DELETE FROM cloudraid_pack_entries WHERE file_id = ? ;");
+			this.packEntryGetStmnt = this.con
+					.prepareStatement("SELECT * FROM cloudraid_pack_entries WHERE file_id = ? ;");
+			this.packEntryListStmnt = this.con
+					.prepareStatement("SELECT * FROM cloudraid_pack_entries WHERE pack_name = ? ORDER BY file_id;");
+			this.packEntryMoveStmnt = this.con
+					.prepareStatement("UPDATE cloudraid_pack_entries SET pack_name = ? , offset0 = ? , length0 = ? , offset1 = ? , length1 = ? , offset2 = ? , length2 = ? WHERE file_id = ? AND pack_name = ? ;");
 
 			return true;
 		} catch (SQLException e) {
@@ -487,6 +849,209 @@ public class HSQLMetadataManager implements IMetadataManager {
 		}
 	}
 
+	@Override
+	public synchronized int packDelete(String pack) {
+		try {
+			this.packDeleteStmnt.setString(1, pack);
+			this.packDeleteStmnt.execute();
+			return this.packDeleteStmnt.getUpdateCount();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized int packEntryDelete(int fileId) {
+		try {
+			this.packEntryDeleteStmnt.setInt(1, fileId);
+			this.packEntryDeleteStmnt.execute();
+			return this.packEntryDeleteStmnt.getUpdateCount();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized IPackEntry packEntryGet(int fileId) {
+		try {
+			this.packEntryGetStmnt.setInt(1, fileId);
+			this.packEntryGetStmnt.execute();
+			ResultSet rs = this.packEntryGetStmnt.getResultSet();
+			if (rs != null && rs.next()) {
+				return new HSQLPackEntry(rs);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized Collection<IPackEntry> packEntryList(String pack) {
+		try {
+			this.packEntryListStmnt.setString(1, pack);
+			this.packEntryListStmnt.execute();
+			return HSQLPackEntry.createEntryList(this.packEntryListStmnt
+					.getResultSet());
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized boolean packEntryMove(int fileId, String from,
+			String to, long[] offsets, long[] lengths) {
+		try {
+			this.packEntryMoveStmnt.setString(1, to);
+			for (int i = 0; i < 3; i++) {
+				this.packEntryMoveStmnt.setLong(2 + 2 * i, offsets[i]);
+				this.packEntryMoveStmnt.setLong(3 + 2 * i, lengths[i]);
+			}
+			this.packEntryMoveStmnt.setInt(8, fileId);
+			this.packEntryMoveStmnt.setString(9, from);
+			this.packEntryMoveStmnt.execute();
+			return this.packEntryMoveStmnt.getUpdateCount() == 1;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean packEntryPut(int fileId, String pack,
+			long[] offsets, long[] lengths) {
+		try {
+			// Replace the previous location of an updated file
+			this.packEntryDeleteStmnt.setInt(1, fileId);
+			this.packEntryDeleteStmnt.execute();
+			this.packEntryAddStmnt.setInt(1, fileId);
+			this.packEntryAddStmnt.setString(2, pack);
+			for (int i = 0; i < 3; i++) {
+				this.packEntryAddStmnt.setLong(3 + 2 * i, offsets[i]);
+				this.packEntryAddStmnt.setLong(4 + 2 * i, lengths[i]);
+			}
+			this.packEntryAddStmnt.execute();
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				this.con.rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized Collection<String> packListSparse(int percent) {
+		try {
+			this.listSparsePacks.setInt(1, percent);
+			this.listSparsePacks.execute();
+			ResultSet rs = this.listSparsePacks.getResultSet();
+			Vector<String> ret = new Vector<String>();
+			while (rs.next()) {
+				ret.add(rs.getString("pack_name"));
+			}
+			return ret;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized int packStore(String pack, long size, int[] fileIds,
+			String[] from, long[][] offsets, long[][] lengths) {
+		try {
+			this.con.setAutoCommit(false);
+			try {
+				this.packAddStmnt.setString(1, pack);
+				this.packAddStmnt.setLong(2, size);
+				this.packAddStmnt.execute();
+				int moved = 0;
+				for (int i = 0; i < fileIds.length; i++) {
+					PreparedStatement stmnt;
+					int pos;
+					if (from[i] == null) {
+						// Replace the previous location of an updated file
+						this.packEntryDeleteStmnt.setInt(1, fileIds[i]);
+						this.packEntryDeleteStmnt.execute();
+						stmnt = this.packEntryAddStmnt;
+						stmnt.setInt(1, fileIds[i]);
+						stmnt.setString(2, pack);
+						pos = 3;
+					} else {
+						stmnt = this.packEntryMoveStmnt;
+						stmnt.setString(1, pack);
+						stmnt.setInt(8, fileIds[i]);
+						stmnt.setString(9, from[i]);
+						pos = 2;
+					}
+					for (int j = 0; j < 3; j++) {
+						stmnt.setLong(pos + 2 * j, offsets[i][j]);
+						stmnt.setLong(pos + 1 + 2 * j, lengths[i][j]);
+					}
+					stmnt.execute();
+					if (from[i] != null) {
+						moved += stmnt.getUpdateCount();
+					}
+				}
+				this.con.commit();
+				return moved;
+			} catch (SQLException e) {
+				this.con.rollback();
+				throw e;
+			} finally {
+				this.con.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+
+	@Override
+	public synchronized boolean packNew(String pack, long size) {
+		try {
+			this.packAddStmnt.setString(1, pack);
+			this.packAddStmnt.setLong(2, size);
+			this.packAddStmnt.execute();
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			try {
+				this.con.rollback();
+			} catch (SQLException e1) {
+				e1.printStackTrace();
+			}
+		} catch (NullPointerException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	/**
 	 * @param config
 	 */
@@ -0,0 +1,79 @@
+package de.dhbw_mannheim.cloudraid.metadatamgr.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Vector;
+
+import de.dhbw_mannheim.cloudraid.metadatamgr.IPackEntry;
+
+/**
+ * An implementation of {@link IPackEntry} that can read data from the
+ * {@link HSQLMetadataManager} database.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public class HSQLPackEntry implements IPackEntry {
+
+	/**
+	 * Creates from a {@link ResultSet} a Collection of {@link IPackEntry}s. The
+	 * cursor must be set before the first row.
+	 * 
+	 * @param rs
+	 *            A SQL {@link ResultSet}.
+	 * @return The Collection.
+	 * @throws SQLException
+	 */
+	protected static Collection<IPackEntry> createEntryList(ResultSet rs)
+			throws SQLException {
+		Vector<IPackEntry> ret = new Vector<IPackEntry>();
+		while (rs.next()) {
+			ret.add(new HSQLPackEntry(rs));
+		}
+		return ret;
+	}
+
+	private int fileid;
+	private String pack;
+	private long[] offsets = new long[3];
+	private long[] lengths = new long[3];
+
+	/**
+	 * Creates a {@link IPackEntry} from a {@link ResultSet}. The cursor must be
+	 * set on a row.
+	 * 
+	 * @param rs
+	 *            The {@link ResultSet}.
+	 * @throws SQLException
+	 */
+	protected HSQLPackEntry(ResultSet rs) throws SQLException {
+		this.fileid = rs.getInt("file_id");
+		this.pack = rs.getString("pack_name");
+		for (int i = 0; i < 3; i++) {
+			this.offsets[i] = rs.getLong("offset" + i);
+			this.lengths[i] = rs.getLong("length" + i);
+		}
+	}
+
+	@Override
+	public int getFileId() {
+		return this.fileid;
+	}
+
+	@Override
+	public long getLength(int device) {
+		return this.lengths[device];
+	}
+
+	@Override
+	public long getOffset(int device) {
+		return this.offsets[device];
+	}
+
+	@Override
+	public String getPack() {
+		return this.pack;
+	}
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "aes.h"
+
+#include <string.h>
+
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+#define AES_X86 1
+#include <immintrin.h>
+#endif
+
+/*
+ * AES-128 in counter mode as specified by FIPS-197 and NIST SP 800-38A. Only
+ * the encryption is needed since CTR mode XORs the data with the encrypted
+ * counter blocks in both directions.
+ *
+ * The software implementation uses a single 1 KiB table that is built on
+ * first use. If the CPU supports AES-NI, it is used instead.
+ */
+
+static unsigned char sbox[256];
+static uint32_t te0[256];
+static int tables_ready = 0;
+
+typedef void (*ctr_kernel_t)(unsigned char *buf, size_t blocks, uint64_t block, const aes_ctr_key *key);
+static ctr_kernel_t ctr_kernel = NULL;
+static const char *kernel_name = NULL;
+
+#define ROTR8(x) (((x) >> 8) | ((x) << 24))
+#define GETU32(p) (((uint32_t)(p)[0] << 24) | ((uint32_t)(p)[1] << 16) | ((uint32_t)(p)[2] << 8) | ((uint32_t)(p)[3]))
+#define PUTU32(p, v) { (p)[0] = (unsigned char)((v) >> 24); (p)[1] = (unsigned char)((v) >> 16); (p)[2] = (unsigned char)((v) >> 8); (p)[3] = (unsigned char)(v); }
+
+static unsigned char xtime(unsigned char x)
+{
+    return (unsigned char)((x << 1) ^ ((x & 0x80) ? 0x1b : 0x00));
+}
+
+/**
+ * Build the S-box from the multiplicative inverse in GF(2^8) followed by the
+ * affine transformation, and the round table from the S-box.
+ */
+static void build_tables(void)
+{
+    unsigned char p = 1, q = 1, s, m2;
+    int i;
+
+    /* p walks through all elements as powers of 3, q through their inverses */
+    do {
+        p = p ^ xtime(p);
+        q ^= q << 1;
+        q ^= q << 2;
+        q ^= q << 4;
+        q ^= (q & 0x80) ? 0x09 : 0x00;
+        s = q ^ (unsigned char)((q << 1) | (q >> 7)) ^ (unsigned char)((q << 2) | (q >> 6)) ^ (unsigned char)((q << 3) | (q >> 5)) ^ (unsigned char)((q << 4) | (q >> 4));
+        sbox[p] = s ^ 0x63;
+    } while(p != 1);
+    sbox[0] = 0x63;
+
+    for(i = 0; i < 256; i++) {
+        s = sbox[i];
+        m2 = xtime(s);
+        te0[i] = ((uint32_t) m2 << 24) | ((uint32_t) s << 16) | ((uint32_t) s << 8) | (uint32_t)(m2 ^ s);
+    }
+    tables_ready = 1;
+}
+
+/**
+ * Build the counter block for the block number `block` relative to the
+ * initial counter block of `*key`.
+ */
+static void counter_block(const aes_ctr_key *key, uint64_t block, unsigned char out[AES_BLOCK_BYTES])
+{
+    uint64_t lo = key->iv_lo + block;
+    uint64_t hi = key->iv_hi + (lo < key->iv_lo ? 1 : 0);
+    int i;
+    for(i = 0; i < 8; i++) {
+        out[i] = (unsigned char)(hi >> (56 - 8 * i));
+        out[8 + i] = (unsigned char)(lo >> (56 - 8 * i));
+    }
+}
+
+static void encrypt_soft(const aes_ctr_key *key, const unsigned char in[AES_BLOCK_BYTES], unsigned char out[AES_BLOCK_BYTES])
+{
+    const uint32_t *rk = key->rk;
+    uint32_t s0, s1, s2, s3, t0, t1, t2, t3;
+    int r;
+
+    s0 = GETU32(in) ^ rk[0];
+    s1 = GETU32(in + 4) ^ rk[1];
+    s2 = GETU32(in + 8) ^ rk[2];
+    s3 = GETU32(in + 12) ^ rk[3];
+    for(r = 1; r < AES_ROUNDS; r++) {
+        rk += 4;
+        t0 = te0[s0 >> 24] ^ ROTR8(te0[(s1 >> 16) & 0xff]) ^ ROTR8(ROTR8(te0[(s2 >> 8) & 0xff])) ^ ROTR8(ROTR8(ROTR8(te0[s3 & 0xff]))) ^ rk[0];
+        t1 = te0[s1 >> 24] ^ ROTR8(te0[(s2 >> 16) & 0xff]) ^ ROTR8(ROTR8(te0[(s3 >> 8) & 0xff])) ^ ROTR8(ROTR8(ROTR8(te0[s0 & 0xff]))) ^ rk[1];
+        t2 = te0[s2 >> 24] ^ ROTR8(te0[(s3 >> 16) & 0xff]) ^ ROTR8(ROTR8(te0[(s0 >> 8) & 0xff])) ^ ROTR8(ROTR8(ROTR8(te0[s1 & 0xff]))) ^ rk[2];
+        t3 = te0[s3 >> 24] ^ ROTR8(te0[(s0 >> 16) & 0xff]) ^ ROTR8(ROTR8(te0[(s1 >> 8) & 0xff])) ^ ROTR8(ROTR8(ROTR8(te0[s2 & 0xff]))) ^ rk[3];
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+    }
+    rk += 4;
+    t0 = ((uint32_t) sbox[s0 >> 24] << 24) ^ ((uint32_t) sbox[(s1 >> 16) & 0xff] << 16) ^ ((uint32_t) sbox[(s2 >> 8) & 0xff] << 8) ^ (uint32_t) sbox[s3 & 0xff] ^ rk[0];
+    t1 = ((uint32_t) sbox[s1 >> 24] << 24) ^ ((uint32_t) sbox[(s2 >> 16) & 0xff] << 16) ^ ((uint32_t) sbox[(s3 >> 8) & 0xff] << 8) ^ (uint32_t) sbox[s0 & 0xff] ^ rk[1];
+    t2 = ((uint32_t) sbox[s2 >> 24] << 24) ^ ((uint32_t) sbox[(s3 >> 16) & 0xff] << 16) ^ ((uint32_t) sbox[(s0 >> 8) & 0xff] << 8) ^ (uint32_t) sbox[s1 & 0xff] ^ rk[2];
+    t3 = ((uint32_t) sbox[s3 >> 24] << 24) ^ ((uint32_t) sbox[(s0 >> 16) & 0xff] << 16) ^ ((uint32_t) sbox[(s1 >> 8) & 0xff] << 8) ^ (uint32_t) sbox[s2 & 0xff] ^ rk[3];
+    PUTU32(out, t0);
+    PUTU32(out + 4, t1);
+    PUTU32(out + 8, t2);
+    PUTU32(out + 12, t3);
+}
+
+static void ctr_soft(unsigned char *buf, size_t blocks, uint64_t block, const aes_ctr_key *key)
+{
+    unsigned char ctr[AES_BLOCK_BYTES], ks[AES_BLOCK_BYTES];
+    size_t b;
+    int i;
+    for(b = 0; b < blocks; b++) {
+        counter_block(key, block + b, ctr);
+        encrypt_soft(key, ctr, ks);
+        for(i = 0; i < AES_BLOCK_BYTES; i++) {
+            buf[b * AES_BLOCK_BYTES + i] ^= ks[i];
+        }
+    }
+}
+
+#ifdef AES_X86
+__attribute__((target("aes,sse2")))
+static void ctr_aesni(unsigned char *buf, size_t blocks, uint64_t block, const aes_ctr_key *key)
+{
+    __m128i rk[AES_ROUNDS + 1], c[4];
+    unsigned char ctr[4][AES_BLOCK_BYTES];
+    size_t b;
+    int r, j, n;
+
+    for(r = 0; r <= AES_ROUNDS; r++) {
+        rk[r] = _mm_loadu_si128((const __m128i *) &key->rk_bytes[r * AES_BLOCK_BYTES]);
+    }
+    /* Four blocks at once to hide the latency of aesenc */
+    for(b = 0; b < blocks; b += n) {
+        n = (blocks - b < 4) ? (int)(blocks - b) : 4;
+        for(j = 0; j < n; j++) {
+            counter_block(key, block + b + j, ctr[j]);
+            c[j] = _mm_xor_si128(_mm_loadu_si128((const __m128i *) ctr[j]), rk[0]);
+        }
+        for(r = 1; r < AES_ROUNDS; r++) {
+            for(j = 0; j < n; j++) {
+                c[j] = _mm_aesenc_si128(c[j], rk[r]);
+            }
+        }
+        for(j = 0; j < n; j++) {
+            __m128i *p = (__m128i *) &buf[(b + j) * AES_BLOCK_BYTES];
+            c[j] = _mm_aesenclast_si128(c[j], rk[AES_ROUNDS]);
+            _mm_storeu_si128(p, _mm_xor_si128(_mm_loadu_si128(p), c[j]));
+        }
+    }
+}
+#endif
+
+static void select_kernel(void)
+{
+    if(!tables_ready) {
+        build_tables();
+    }
+#ifdef AES_X86
+    __builtin_cpu_init();
+    if(__builtin_cpu_supports("aes") && __builtin_cpu_supports("sse2")) {
+        kernel_name = "aesni";
+        ctr_kernel = ctr_aesni;
+        return;
+    }
+#endif
+    kernel_name = "soft";
+    ctr_kernel = ctr_soft;
+}
+
+/**
+ * Force the AES implementation `*name`, either "soft" or "aesni". This is
+ * meant for tests and benchmarks. Returns 0 on success or 1 if it is not
+ * supported by this CPU, in which case the current implementation is kept.
+ */
+LIBEXPORT int set_aes_kernel(const char *name)
+{
+    if(ctr_kernel == NULL) {
+        select_kernel();
+    }
+    if(strcmp(name, "soft") == 0) {
+        kernel_name = "soft";
+        ctr_kernel = ctr_soft;
+        return 0;
+    }
+#ifdef AES_X86
+    if(strcmp(name, "aesni") == 0 && __builtin_cpu_supports("aes") && __builtin_cpu_supports("sse2")) {
+        kernel_name = "aesni";
+        ctr_kernel = ctr_aesni;
+        return 0;
+    }
+#endif
+    return 1;
+}
+
+/**
+ * Returns the name of the AES implementation in use.
+ */
+LIBEXPORT const char *get_aes_kernel(void)
+{
+    if(ctr_kernel == NULL) {
+        select_kernel();
+    }
+    return kernel_name;
+}
+
+/**
+ * Expand the AES-128 key `key_data` into `*key` and store the initial counter
+ * block `iv`.
+ */
+LIBEXPORT void aes_ctr_init(aes_ctr_key *key, const unsigned char key_data[AES_KEY_BYTES], const unsigned char iv[AES_BLOCK_BYTES])
+{
+    static const uint32_t rcon[10] = {0x01000000, 0x02000000, 0x04000000, 0x08000000, 0x10000000,
+                                      0x20000000, 0x40000000, 0x80000000, 0x1b000000, 0x36000000
+                                     };
+    uint32_t t;
+    int i;
+
+    if(ctr_kernel == NULL) {
+        select_kernel();
+    }
+
+    for(i = 0; i < 4; i++) {
+        key->rk[i] = GETU32(&key_data[4 * i]);
+    }
+    for(i = 4; i < 4 * (AES_ROUNDS + 1); i++) {
+        t = key->rk[i - 1];
+        if(i % 4 == 0) {
+            t = ((uint32_t) sbox[(t >> 16) & 0xff] << 24) ^ ((uint32_t) sbox[(t >> 8) & 0xff] << 16) ^ ((uint32_t) sbox[t & 0xff] << 8) ^ (uint32_t) sbox[t >> 24] ^ rcon[i / 4 - 1];
+        }
+        key->rk[i] = key->rk[i - 4] ^ t;
+    }
+    for(i = 0; i < 4 * (AES_ROUNDS + 1); i++) {
+        PUTU32(&key->rk_bytes[4 * i], key->rk[i]);
+    }
+
+    key->iv_hi = 0;
+    key->iv_lo = 0;
+    for(i = 0; i < 8; i++) {
+        key->iv_hi = (key->iv_hi << 8) | iv[i];
+        key->iv_lo = (key->iv_lo << 8) | iv[8 + i];
+    }
+}
+
+/**
+ * Encrypt the single block `in` with the key `*key`.
+ */
+LIBEXPORT void aes_encrypt_block(const aes_ctr_key *key, const unsigned char in[AES_BLOCK_BYTES], unsigned char out[AES_BLOCK_BYTES])
+{
+    if(!tables_ready) {
+        build_tables();
+    }
+    encrypt_soft(key, in, out);
+}
+
+/**
+ * Encrypt or decrypt the `buffer_len` characters of `*buffer_ptr` in place.
+ * `offset` is the position of `*buffer_ptr[0]` in the whole stream. Since
+ * the key stream only depends on the position, any part of a stream can be
+ * processed independently and in any order.
+ */
+LIBEXPORT void aes_ctr_crypt(unsigned char *buffer_ptr, size_t buffer_len, unsigned long long offset, const aes_ctr_key *key)
+{
+    unsigned char ctr[AES_BLOCK_BYTES], ks[AES_BLOCK_BYTES];
+    uint64_t block = offset / AES_BLOCK_BYTES;
+    size_t skip = offset % AES_BLOCK_BYTES, blocks, i;
+
+    if(ctr_kernel == NULL) {
+        select_kernel();
+    }
+
+    /* Finish a partially used block */
+    if(skip > 0 && buffer_len > 0) {
+        counter_block(key, block, ctr);
+        encrypt_soft(key, ctr, ks);
+        for(i = skip; i < AES_BLOCK_BYTES && buffer_len > 0; i++, buffer_len--) {
+            *buffer_ptr++ ^= ks[i];
+        }
+        block++;
+    }
+
+    blocks = buffer_len / AES_BLOCK_BYTES;
+    if(blocks > 0) {
+        ctr_kernel(buffer_ptr, blocks, block, key);
+        buffer_ptr += blocks * AES_BLOCK_BYTES;
+        buffer_len -= blocks * AES_BLOCK_BYTES;
+        block += blocks;
+    }
+
+    /* Start a partially used block */
+    if(buffer_len > 0) {
+        counter_block(key, block, ctr);
+        encrypt_soft(key, ctr, ks);
+        for(i = 0; i < buffer_len; i++) {
+            buffer_ptr[i] ^= ks[i];
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+#ifndef AES_H
+#define AES_H 1
+
+#include "defines.h"
+
+#include <stddef.h>
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C"
+{
+#endif
+
+#define AES_BLOCK_BYTES 16
+#define AES_KEY_BYTES 16
+#define AES_ROUNDS 10
+
+    /**
+     * An expanded AES-128 key plus the initial counter block for the CTR
+     * mode. The counter block is incremented as one 128 bit big endian
+     * integer, which is compatible with "AES/CTR/NoPadding" in Java.
+     */
+    typedef struct aes_ctr_key {
+        uint32_t rk[4 * (AES_ROUNDS + 1)];
+        unsigned char rk_bytes[AES_BLOCK_BYTES * (AES_ROUNDS + 1)];
+        uint64_t iv_hi;
+        uint64_t iv_lo;
+    } aes_ctr_key;
+
+    LIBEXPORT void aes_ctr_init(aes_ctr_key *key, const unsigned char key_data[AES_KEY_BYTES], const unsigned char iv[AES_BLOCK_BYTES]);
+    LIBEXPORT void aes_ctr_crypt(unsigned char *buffer_ptr, size_t buffer_len, unsigned long long offset, const aes_ctr_key *key);
+    LIBEXPORT void aes_encrypt_block(const aes_ctr_key *key, const unsigned char in[AES_BLOCK_BYTES], unsigned char out[AES_BLOCK_BYTES]);
+    LIBEXPORT const char *get_aes_kernel(void);
+    LIBEXPORT int set_aes_kernel(const char *name);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
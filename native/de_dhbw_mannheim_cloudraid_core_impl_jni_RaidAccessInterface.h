@@ -27,6 +27,24 @@ extern "C" {
 #define de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface_METADATA_ERROR 256L
 #undef de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface_SUCCESS_SPLIT
 #define de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface_SUCCESS_SPLIT 512L
+#undef de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface_BLOCKSIZE_ERROR
+#define de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface_BLOCKSIZE_ERROR 1024L
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    getBlockSize
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getBlockSize
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    getMaxBlockSize
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getMaxBlockSize
+  (JNIEnv *, jclass);
+
 /*
  * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
  * Method:    getMetadataByteLength
@@ -43,6 +61,14 @@ JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccess
 JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getName
   (JNIEnv *, jclass);
 
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    getThreadCount
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getThreadCount
+  (JNIEnv *, jclass);
+
 /*
  * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
  * Method:    getVendor
@@ -67,13 +93,101 @@ JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAcc
 JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeInterface
   (JNIEnv *, jclass, jstring, jstring, jstring, jstring);
 
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    mergeOpen
+ * Signature: ([BILjava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeOpen
+  (JNIEnv *, jclass, jbyteArray, jint, jstring);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    mergeBlock
+ * Signature: (J[B[IZ[B)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeBlock
+  (JNIEnv *, jclass, jlong, jbyteArray, jintArray, jboolean, jbyteArray);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    mergeClose
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeClose
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    mergeBuffer
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;[I[IZLjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeBuffer
+  (JNIEnv *, jclass, jlong, jobject, jobject, jobject, jintArray, jintArray, jboolean, jobject, jint);
+
 /*
  * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
  * Method:    splitInterface
- * Signature: (Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Ljava/lang/String;
+ * Signature: (Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)Ljava/lang/String;
  */
 JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitInterface
-  (JNIEnv *, jclass, jstring, jstring, jstring, jstring);
+  (JNIEnv *, jclass, jstring, jstring, jstring, jstring, jint);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitOpen
+ * Signature: (Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitOpen
+  (JNIEnv *, jclass, jstring, jstring, jstring, jint);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitWrite
+ * Signature: (J[BII)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitWrite
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitClose
+ * Signature: (J)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitClose
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitBufferOpen
+ * Signature: (Ljava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBufferOpen
+  (JNIEnv *, jclass, jstring, jint);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitBuffer
+ * Signature: (JLjava/nio/ByteBuffer;IILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;[I)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBuffer
+  (JNIEnv *, jclass, jlong, jobject, jint, jint, jobject, jobject, jobject, jintArray);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    splitBufferClose
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;[I[B)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBufferClose
+  (JNIEnv *, jclass, jlong, jobject, jobject, jobject, jintArray, jbyteArray);
+
+/*
+ * Class:     de_dhbw_mannheim_cloudraid_core_impl_jni_RaidAccessInterface
+ * Method:    setThreadCount
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_setThreadCount
+  (JNIEnv *, jclass, jint);
 
 #ifdef __cplusplus
 }
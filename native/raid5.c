@@ -29,6 +29,7 @@
 #include <stdlib.h>
 #include <string.h>
 #include <stddef.h>
+#include <stdint.h>
 
 #if DEBUG>=1
 #define DEBUGPRINT(...) fprintf (stderr, "%s:%s():%d: %s\n", __FILE__, __func__, __LINE__, __VA_ARGS__)
@@ -50,32 +51,195 @@
 #define DEBUG3(...)
 #endif
 
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+#define PARITY_X86 1
+#include <immintrin.h>
+#endif
+
+/*
+ * The parity kernels compute `dst = a ^ b` and `dst = ~a` for `len`
+ * characters. `dst` MUST NOT overlap `a` or `b`. The kernel is selected once
+ * at runtime by `select_parity_kernel()` depending on the CPU features.
+ */
+typedef void (*xor_kernel_t)(unsigned char *dst, const unsigned char *a, const unsigned char *b, size_t len);
+typedef void (*not_kernel_t)(unsigned char *dst, const unsigned char *a, size_t len);
+
+static void xor_byte(unsigned char *dst, const unsigned char *a, const unsigned char *b, size_t len)
+{
+    size_t i;
+    for(i = 0; i < len; i++) {
+        dst[i] = a[i] ^ b[i];
+    }
+}
+
+static void not_byte(unsigned char *dst, const unsigned char *a, size_t len)
+{
+    size_t i;
+    for(i = 0; i < len; i++) {
+        dst[i] = ~a[i];
+    }
+}
+
+/* memcpy() is used for the unaligned word access and compiles to plain loads. */
+static void xor_word(unsigned char *dst, const unsigned char *a, const unsigned char *b, size_t len)
+{
+    size_t i = 0;
+    uint64_t x, y;
+    for(; i + 8 <= len; i += 8) {
+        memcpy(&x, &a[i], 8);
+        memcpy(&y, &b[i], 8);
+        x ^= y;
+        memcpy(&dst[i], &x, 8);
+    }
+    xor_byte(&dst[i], &a[i], &b[i], len - i);
+}
+
+static void not_word(unsigned char *dst, const unsigned char *a, size_t len)
+{
+    size_t i = 0;
+    uint64_t x;
+    for(; i + 8 <= len; i += 8) {
+        memcpy(&x, &a[i], 8);
+        x = ~x;
+        memcpy(&dst[i], &x, 8);
+    }
+    not_byte(&dst[i], &a[i], len - i);
+}
+
+#ifdef PARITY_X86
+__attribute__((target("sse2")))
+static void xor_sse2(unsigned char *dst, const unsigned char *a, const unsigned char *b, size_t len)
+{
+    size_t i = 0;
+    for(; i + 16 <= len; i += 16) {
+        __m128i x = _mm_loadu_si128((const __m128i *) &a[i]);
+        __m128i y = _mm_loadu_si128((const __m128i *) &b[i]);
+        _mm_storeu_si128((__m128i *) &dst[i], _mm_xor_si128(x, y));
+    }
+    xor_word(&dst[i], &a[i], &b[i], len - i);
+}
+
+__attribute__((target("sse2")))
+static void not_sse2(unsigned char *dst, const unsigned char *a, size_t len)
+{
+    size_t i = 0;
+    const __m128i ones = _mm_set1_epi8((char) 0xff);
+    for(; i + 16 <= len; i += 16) {
+        __m128i x = _mm_loadu_si128((const __m128i *) &a[i]);
+        _mm_storeu_si128((__m128i *) &dst[i], _mm_xor_si128(x, ones));
+    }
+    not_word(&dst[i], &a[i], len - i);
+}
+
+__attribute__((target("avx2")))
+static void xor_avx2(unsigned char *dst, const unsigned char *a, const unsigned char *b, size_t len)
+{
+    size_t i = 0;
+    for(; i + 32 <= len; i += 32) {
+        __m256i x = _mm256_loadu_si256((const __m256i *) &a[i]);
+        __m256i y = _mm256_loadu_si256((const __m256i *) &b[i]);
+        _mm256_storeu_si256((__m256i *) &dst[i], _mm256_xor_si256(x, y));
+    }
+    xor_sse2(&dst[i], &a[i], &b[i], len - i);
+}
+
+__attribute__((target("avx2")))
+static void not_avx2(unsigned char *dst, const unsigned char *a, size_t len)
+{
+    size_t i = 0;
+    const __m256i ones = _mm256_set1_epi8((char) 0xff);
+    for(; i + 32 <= len; i += 32) {
+        __m256i x = _mm256_loadu_si256((const __m256i *) &a[i]);
+        _mm256_storeu_si256((__m256i *) &dst[i], _mm256_xor_si256(x, ones));
+    }
+    not_sse2(&dst[i], &a[i], len - i);
+}
+#endif
+
+static xor_kernel_t xor_kernel = NULL;
+static not_kernel_t not_kernel = NULL;
+static const char *kernel_name = NULL;
+
 /**
- * This function is used to merge two input char arrays to the output array.
- *
- * `*in` MUST have a length of `3*RAID5BLOCKSIZE`.
- *
- * The `in_len` array contains the length of the three possible input char
- * arrays, where each in put array has at most `RAID5BLOCKSIZE` characters.
- *
- * Depending on the current parity position `parity_pos`, the primary device is
- * `(parity_pos+1)%3` and the secondary device `(parity_pos+2)%3`.
- *
- * The `dead_device` parameter denotes the device that is not taken into
- * account for building the original char array.
- *
- * The `missing` parameter tells this function how many characters are missing
- * in the secondary device `(parity_pos+2)%3`. This information must be read
- * from the meta data file and cannot be retrieved from the other parameters.
- *
- * `*out` is a pointer to the output char array. `*out` NEED NOT to be NULL and
- * MUST have a size of `2*RAID5BLOCKSIZE`!
- *
- * `*out_len` will contain the length of the `*out` buffer. Or -1 if something went wrong
+ * Select the fastest parity kernel supported by the CPU. Concurrent calls are
+ * harmless since they select the same kernel.
+ */
+static void select_parity_kernel(void)
+{
+#ifdef PARITY_X86
+    __builtin_cpu_init();
+    if(__builtin_cpu_supports("avx2")) {
+        set_parity_kernel("avx2");
+        return;
+    }
+    if(__builtin_cpu_supports("sse2")) {
+        set_parity_kernel("sse2");
+        return;
+    }
+#endif
+    set_parity_kernel("word");
+}
+
+/**
+ * Force the parity kernel `*name`, one of "byte", "word", "sse2" or "avx2".
+ * This is meant for tests and benchmarks. Returns 0 on success or 1 if the
+ * kernel is not supported by this CPU, in which case the current kernel is
+ * kept.
+ */
+LIBEXPORT int set_parity_kernel(const char *name)
+{
+    xor_kernel_t x = NULL;
+    not_kernel_t n = NULL;
+    const char *k = NULL;
+
+    if(strcmp(name, "byte") == 0) {
+        x = xor_byte;
+        n = not_byte;
+        k = "byte";
+    } else if(strcmp(name, "word") == 0) {
+        x = xor_word;
+        n = not_word;
+        k = "word";
+    }
+#ifdef PARITY_X86
+    else if(strcmp(name, "sse2") == 0 && __builtin_cpu_supports("sse2")) {
+        x = xor_sse2;
+        n = not_sse2;
+        k = "sse2";
+    } else if(strcmp(name, "avx2") == 0 && __builtin_cpu_supports("avx2")) {
+        x = xor_avx2;
+        n = not_avx2;
+        k = "avx2";
+    }
+#endif
+    if(x == NULL) {
+        return 1;
+    }
+    kernel_name = k;
+    not_kernel = n;
+    xor_kernel = x;
+    return 0;
+}
+
+/**
+ * Returns the name of the parity kernel in use.
+ */
+LIBEXPORT const char *get_parity_kernel(void)
+{
+    if(xor_kernel == NULL) {
+        select_parity_kernel();
+    }
+    return kernel_name;
+}
+
+/**
+ * Merge one stripe as described for `merge_byte_block()`. `in[0]`, `in[1]`
+ * and `in[2]` point to the blocks of the primary, the secondary and the
+ * parity device.
  */
-void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsigned int parity_pos, const unsigned int dead_device, const unsigned int missing, unsigned char *out, size_t *out_len)
+static void merge_stripe(const unsigned char *in[], const size_t in_len[], const unsigned int parity_pos, const unsigned int dead_device, const unsigned int missing, unsigned char *out, size_t *out_len, const size_t block_size)
 {
-    int i, len;
+    int len;
     if(parity_pos > 2 || dead_device > 2) {  /* just to assure */
         DEBUG2("Either the values for parity (%u) or the dead device (%u) are to large. Allowed 0, 1 or 2.", parity_pos, dead_device);
         *out_len = -1;
@@ -97,14 +261,14 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
      */
 
     /*
-     * *in always contains the primary device in [0], the secondary device in [1] and the parity in [2] except the file does not exist
+     * in[0] always points to the primary device, in[1] to the secondary device and in[2] to the parity except the file does not exist
      */
     if(dead_device == parity_pos) {  /* (x0|y0) (x1|y1) (x2|y2) */
         DEBUG3("The dead device is the parity too for this block");
-        memcpy(&out[0], &in[0], in_len[0]);    /* Copy the first part of the read bytes */
+        memcpy(&out[0], in[0], in_len[0]);    /* Copy the first part of the read bytes */
         *out_len = in_len[0];
         if(in_len[1] > 0) {
-            memcpy(&out[RAID5BLOCKSIZE], &in[RAID5BLOCKSIZE], in_len[1]);    /* Copy the second part of the read bytes */
+            memcpy(&out[block_size], in[1], in_len[1]);    /* Copy the second part of the read bytes */
             *out_len += in_len[1];
         }
     } else {
@@ -116,11 +280,11 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
              * output is the content of in[0] plus the XOR of in[0] and in[2] for in_len[0] - missing characters
              *
              */
-            memcpy(&out[0], &in[0], in_len[0]);    /* Copy the first part of the read bytes */
+            memcpy(&out[0], in[0], in_len[0]);    /* Copy the first part of the read bytes */
             len = in_len[0] - missing; /* Set the expected length of the secondary device */
             *out_len = in_len[0] + len;
-            for(i = 0; i < len; i++) {
-                out[RAID5BLOCKSIZE + i] = in[i] ^ in[2 * RAID5BLOCKSIZE + i];
+            if(len > 0) {
+                xor_kernel(&out[block_size], in[0], in[2], len);
             }
         }
 
@@ -135,13 +299,11 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
                  *
                  */
                 *out_len = in_len[1] + in_len[2];
-                for(i = 0; i < in_len[1]; i++) {
-                    out[i] = in[RAID5BLOCKSIZE + i] ^ in[2 * RAID5BLOCKSIZE + i];
-                }
-                for(i = in_len[1]; i < in_len[2]; i++) {
-                    out[i] = in[2 * RAID5BLOCKSIZE + i] ^ 0xFF;
+                xor_kernel(&out[0], in[1], in[2], in_len[1]);
+                if(in_len[2] > in_len[1]) {
+                    not_kernel(&out[in_len[1]], &in[2][in_len[1]], in_len[2] - in_len[1]);
                 }
-                memcpy(&out[RAID5BLOCKSIZE], &in[RAID5BLOCKSIZE], in_len[1]);    /* Copy the second part of the read bytes */
+                memcpy(&out[block_size], in[1], in_len[1]);    /* Copy the second part of the read bytes */
             } else {
                 DEBUG3("Unknown state for merge: dead device: %d, parity on %d", dead_device, parity_pos);
                 *out_len = -1;
@@ -150,6 +312,43 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
     }
 }
 
+/**
+ * This function is used to merge two input char arrays to the output array.
+ *
+ * `*in` MUST have a length of `3*block_size`.
+ *
+ * The `in_len` array contains the length of the three possible input char
+ * arrays, where each in put array has at most `block_size` characters.
+ *
+ * Depending on the current parity position `parity_pos`, the primary device is
+ * `(parity_pos+1)%3` and the secondary device `(parity_pos+2)%3`.
+ *
+ * The `dead_device` parameter denotes the device that is not taken into
+ * account for building the original char array.
+ *
+ * The `missing` parameter tells this function how many characters are missing
+ * in the secondary device `(parity_pos+2)%3`. This information must be read
+ * from the meta data file and cannot be retrieved from the other parameters.
+ *
+ * `*out` is a pointer to the output char array. `*out` NEED NOT to be NULL and
+ * MUST have a size of `2*block_size`!
+ *
+ * `*out_len` will contain the length of the `*out` buffer. Or -1 if something went wrong
+ *
+ * `block_size` is the block size of the file.
+ */
+void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsigned int parity_pos, const unsigned int dead_device, const unsigned int missing, unsigned char *out, size_t *out_len, const size_t block_size)
+{
+    const unsigned char *p[3];
+    if(xor_kernel == NULL) {
+        select_parity_kernel();
+    }
+    p[0] = &in[0];
+    p[1] = &in[block_size];
+    p[2] = &in[2 * block_size];
+    merge_stripe(p, in_len, parity_pos, dead_device, missing, out, out_len, block_size);
+}
+
 /**
  * Split the input char array `*in` into three output arrays in `*out`.
  *
@@ -160,9 +359,9 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
  *
  * The output will be stored in `*out` as follows:
  *  - The primary device will be stored at `&out[0]`.
- *  - The secondary device will be stored at `&out[RAID5BLOCKSIZE]`.
+ *  - The secondary device will be stored at `&out[block_size]`.
  *  - The tertiary device, also know as the parity, will be stored in
- *    `&out[2*RAID5BLOCKSIZE]`.
+ *    `&out[2*block_size]`.
  *
  * The length of the three output buffers, that are stored in `*out`, will be
  * saved in `out_len[]` as follows:
@@ -170,35 +369,32 @@ void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsi
  *  - `out_len[1]` contains the length for the secondary device.
  *  - `out_len[2]` contains the length for the tertiary device / parity.
  *
- * If the input length `in_len` is smaller or equal the `RAID5BLOCKSIZE`, the
+ * If the input length `in_len` is smaller or equal the `block_size`, the
  * `out_len[0]` and `out_len[2]` will be `in_len` and `out_len[1]` will be 0.
  * Otherwise `out_len[0]` and `out_len[2]` will be equal to the
- * `RAID5BLOCKSIZE` and `out_len[1]` will be the difference between `in_len`
- * and `RAID5BLOCKSIZE`.
+ * `block_size` and `out_len[1]` will be the difference between `in_len`
+ * and `block_size`.
  */
-void split_byte_block(const unsigned char *in, const size_t in_len, unsigned char *out, size_t out_len[])
+void split_byte_block(const unsigned char *in, const size_t in_len, unsigned char *out, size_t out_len[], const size_t block_size)
 {
-    int i, partial;
-    if(in_len > RAID5BLOCKSIZE) {
+    size_t partial;
+    if(xor_kernel == NULL) {
+        select_parity_kernel();
+    }
+    if(in_len > block_size) {
         DEBUG3("The input length for this block is larger than the RAID5 blocksize. Hence using the secondary device file too.");
-        partial = in_len - RAID5BLOCKSIZE; /* in case of in in_len == 2 * RAID5BLOCKSIZE, partial == RAID5BLOCKSIZE */
-        memcpy(&out[0], &in[0], RAID5BLOCKSIZE);    /* Copy the first part of the read bytes */
-        memcpy(&out[RAID5BLOCKSIZE], &in[RAID5BLOCKSIZE], partial);    /* Copy the second part of the read bytes */
-        for(i = 0; i < partial; i++) {
-            out[2 * RAID5BLOCKSIZE + i] = out[i] ^ out[RAID5BLOCKSIZE + i]; /* Bytewise calculation of the parity */
-        }
-        for(i = partial; i < RAID5BLOCKSIZE; i++) {  /* no effect for in_len == 2 * RAID5BLOCKSIZE */
-            out[2 * RAID5BLOCKSIZE + i] = ~out[i]; /* Parity of the overflowing bytes */
-        }
-        out_len[0] = RAID5BLOCKSIZE;
+        partial = in_len - block_size; /* in case of in in_len == 2 * block_size, partial == block_size */
+        memcpy(&out[0], &in[0], block_size);    /* Copy the first part of the read bytes */
+        memcpy(&out[block_size], &in[block_size], partial);    /* Copy the second part of the read bytes */
+        xor_kernel(&out[2 * block_size], &out[0], &out[block_size], partial); /* Calculation of the parity */
+        not_kernel(&out[2 * block_size + partial], &out[partial], block_size - partial); /* Parity of the overflowing bytes, no effect for in_len == 2 * block_size */
+        out_len[0] = block_size;
         out_len[1] = partial;
-        out_len[2] = RAID5BLOCKSIZE;
+        out_len[2] = block_size;
     } else {
         DEBUG3("The input length for this block is smaller or equal to the RAID5 blocksize. No need for the secondary device file.");
         memcpy(&out[0], &in[0], in_len);    /* Copy the first part of the read bytes */
-        for(i = 0; i < in_len; i++) {
-            out[2 * RAID5BLOCKSIZE + i] = ~out[i]; /* Parity of the overflowing bytes */
-        }
+        not_kernel(&out[2 * block_size], &out[0], in_len); /* Parity of the overflowing bytes */
         out_len[0] = in_len;
         out_len[1] = 0;
         out_len[2] = in_len;
@@ -206,130 +402,354 @@ void split_byte_block(const unsigned char *in, const size_t in_len, unsigned cha
 }
 
 /**
- * Split the input file `*in` into three device files `devices[0]`,
- * `devices[1]` and `devices[2]`. The parity for the first `2*RAID5BLOCKSIZE`
- * characters read from `*in` will be stored in `devices[2]` and will continue
- * on devices`[0]` and devices`[1]`
+ * Returns the number of stripes per hash chunk for files split with
+ * `block_size`.
+ */
+static unsigned int default_chunk_stripes(const size_t block_size)
+{
+    return (block_size < RAID5CHUNKSIZE) ? RAID5CHUNKSIZE / block_size : 1;
+}
+
+/**
+ * Feed the `len` characters of `*data` into the hash chunk `*chunk` which
+ * already holds `*fill` of `chunk_len` characters. The characters MUST NOT
+ * exceed the chunk. Once it is complete, its digest is stored in `digest`
+ * and 1 is returned.
+ */
+static int chunk_piece_update(sha256_ctx *chunk, size_t *fill, const size_t chunk_len, const unsigned char *data, const size_t len, unsigned char digest[SHA256_DIGEST_LENGTH])
+{
+    sha256_update(data, len, chunk);
+    *fill += len;
+    if(chunk_len > 0 && *fill == chunk_len) {
+        sha256_final(digest, chunk);
+        return 1;
+    }
+    return 0;
+}
+
+/**
+ * The stripes of one hash chunk, or of the part of it contained in the
+ * current batch. The tasks of a batch are processed in parallel by
+ * `split_task_run()`. The hash state of the chunk continued by the first task
+ * is copied from and the state of the chunk left open by the last task is
+ * copied back to the split context.
+ */
+typedef struct split_task {
+    sha256_ctx chunk[4];
+    size_t fill[4];
+    int done[4];
+    unsigned char digest[4][SHA256_DIGEST_LENGTH];
+    raid5_split_ctx *ctx;
+    unsigned char *chars;
+    unsigned char *parity;
+    size_t len;
+    unsigned long long stripe;
+} split_task;
+
+/**
+ * Encrypt, hash and compute the parity of the stripes of the split task
+ * `*arg`. The device data is written by `split_batch()` afterwards.
+ */
+static void split_task_run(void *arg)
+{
+    split_task *t = (split_task *) arg;
+    raid5_split_ctx *ctx = t->ctx;
+    size_t bs = ctx->block_size, pos, len, l0, l1;
+    unsigned long long s = t->stripe;
+    unsigned char *p, *par;
+    int pp, i;
+
+    for(pos = 0; pos < t->len; pos += 2 * bs, s++) {
+        p = &t->chars[pos];
+        par = &t->parity[pos / 2];
+        len = (t->len - pos < 2 * bs) ? t->len - pos : 2 * bs;
+#if ENCRYPT_DATA != 0
+        if(ctx->cipher.aes) {
+            cipher_crypt_at(&ctx->cipher, p, len, s * 2 * bs);
+        } else {
+            cipher_crypt(&ctx->cipher, p, len);
+        }
+#endif
+        /* The same lengths and parity as split_byte_block() */
+        l1 = (len > bs) ? len - bs : 0;
+        l0 = len - l1;
+        xor_kernel(par, p, &p[bs], l1);
+        not_kernel(&par[l1], &p[l1], l0 - l1);
+
+        pp = (2 + s) % 3;
+        t->done[3] |= chunk_piece_update(&t->chunk[3], &t->fill[3], ctx->hash[3].chunk_len, p, len, t->digest[3]);
+        i = (pp + 1) % 3;
+        t->done[i] |= chunk_piece_update(&t->chunk[i], &t->fill[i], ctx->hash[i].chunk_len, p, l0, t->digest[i]);
+        i = (pp + 2) % 3;
+        t->done[i] |= chunk_piece_update(&t->chunk[i], &t->fill[i], ctx->hash[i].chunk_len, &p[bs], l1, t->digest[i]);
+        t->done[pp] |= chunk_piece_update(&t->chunk[pp], &t->fill[pp], ctx->hash[pp].chunk_len, par, l0, t->digest[pp]);
+    }
+}
+
+/**
+ * Write `len` characters of `*buf` to the device `d` of the split context
+ * `*ctx`.
+ */
+static void split_write(raid5_split_ctx *ctx, const int d, const unsigned char *buf, const size_t len)
+{
+    if(len == 0) {
+        return;
+    }
+    if(ctx->devices[d] != NULL) {
+        if(fwrite(buf, sizeof(unsigned char), len, ctx->devices[d]) != len) {
+            ctx->status |= OPENERR_DEV0 << d;
+            DEBUGPRINT("Cannot write to device file during split");
+        }
+    } else if(ctx->dev_buf[d] != NULL && ctx->dev_pos[d] + len <= ctx->dev_cap[d]) {
+        memcpy(&ctx->dev_buf[d][ctx->dev_pos[d]], buf, len);
+        ctx->dev_pos[d] += len;
+    } else {
+        ctx->status |= OPENERR_DEV0 << d;
+        DEBUGPRINT("Device buffer too small during split");
+    }
+    ctx->dev_len[d] += len;
+}
+
+/**
+ * Encrypt, hash and split the complete stripes collected in `ctx->chars` and
+ * write them to the devices. If `final` is non-zero, the last incomplete
+ * stripe is split too. The stripes are divided into tasks at the hash chunk
+ * boundaries, which are run on `ctx->threads` threads if the cipher allows
+ * to encrypt them independently.
+ */
+static void split_batch(raid5_split_ctx *ctx, const int final)
+{
+    split_task *tasks = (split_task *) ctx->tasks, *t;
+    size_t bs = ctx->block_size, len, pos, l, l0, l1, count = 0, i;
+    unsigned long long s, chunk = ctx->metadata.chunk_stripes;
+    int pp, d, threads = ctx->threads;
+
+    len = final ? ctx->fill : ctx->fill - ctx->fill % (2 * bs);
+    if(len == 0) {
+        return;
+    }
+#if ENCRYPT_DATA != 0
+    if(!ctx->cipher.aes) {
+        threads = 1;
+    }
+#endif
+
+    for(pos = 0, s = ctx->stripes; pos < len; pos += l, s += (l + 2 * bs - 1) / (2 * bs)) {
+        t = &tasks[count++];
+        l = (chunk - s % chunk) * 2 * bs;
+        l = (l < len - pos) ? l : len - pos;
+        t->ctx = ctx;
+        t->chars = &ctx->chars[pos];
+        t->parity = &ctx->parity[pos / 2];
+        t->len = l;
+        t->stripe = s;
+        for(d = 0; d < 4; d++) {
+            if(pos == 0) {
+                memcpy(&t->chunk[d], &ctx->hash[d].chunk, sizeof(sha256_ctx));
+                t->fill[d] = ctx->hash[d].fill;
+            } else {
+                sha256_init(&t->chunk[d]);
+                t->fill[d] = 0;
+            }
+            t->done[d] = 0;
+        }
+    }
+    run_tasks(split_task_run, tasks, sizeof(split_task), count, threads);
+
+    for(pos = 0, s = ctx->stripes; pos < len; pos += 2 * bs, s++) {
+        l = (len - pos < 2 * bs) ? len - pos : 2 * bs;
+        l1 = (l > bs) ? l - bs : 0;
+        l0 = l - l1;
+        pp = (2 + s) % 3;
+        split_write(ctx, (pp + 1) % 3, &ctx->chars[pos], l0);
+        split_write(ctx, (pp + 2) % 3, &ctx->chars[pos + bs], l1);
+        split_write(ctx, pp, &ctx->parity[pos / 2], l0);
+    }
+    DEBUG3("Split %lu input characters in %lu tasks", len, count);
+
+    for(i = 0; i < count; i++) {
+        t = &tasks[i];
+        for(d = 0; d < 4; d++) {
+            if(t->done[d]) {
+                chunk_hash_add(&ctx->hash[d], t->digest[d]);
+            } else {
+                memcpy(&ctx->hash[d].chunk, &t->chunk[d], sizeof(sha256_ctx));
+                ctx->hash[d].fill = t->fill[d];
+            }
+        }
+    }
+
+    ctx->stripes += (len + 2 * bs - 1) / (2 * bs);
+    ctx->fill -= len;
+    if(ctx->fill > 0) {
+        memmove(ctx->chars, &ctx->chars[len], ctx->fill);
+    }
+}
+
+/**
+ * Initialize the split context `*ctx` for writing to the three device files
+ * `devices[0]`, `devices[1]` and `devices[2]`. The parity for the first
+ * `2*block_size` characters will be stored in `devices[2]` and will
+ * continue on devices`[0]` and devices`[1]`.
  *
- * The meta data will be written to the `*meta` parameter.
+ * If `*devices` is NULL, the device data is written to the buffers set by
+ * `split_set_buffers()`.
  *
- * `*key` is the result of the `prepare_key()` function.
+ * `block_size` is the number of characters every device contributes to a
+ * stripe.
  *
- * All other return codes than `SUCCESS_SPLIT` (0x04) mark a failure during
- * split.
+ * `*key` is the password that is salted and used to encrypt the data.
+ *
+ * The number of threads is taken from `get_thread_count()`.
+ *
+ * Returns 0 on success. In any case `split_final()` MUST be called to release
+ * the resources held by `*ctx`.
  */
-LIBEXPORT int split_file(FILE *in, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen)
+LIBEXPORT int split_init(raid5_split_ctx *ctx, FILE *devices[], const unsigned char *key, const int keylen, const size_t block_size)
 {
-    unsigned char *chars = NULL, *out = NULL, parity_pos = 2, *hash = NULL;
-    size_t rlen, *out_len = NULL, l = 0, min = -1, max = 0;
-    int status = 0;
-
-    /* sha context
-       the last element [3] is for the input file */
-    sha256_ctx sha256_ctx[4];
+    size_t chunks;
     int i;
-    unsigned char *salted_key = NULL;
-    rc4_key rc4key;
-    unsigned long hmac_ret = 0;
-
-    raid5md metadata;
-    new_metadata(&metadata);
-    metadata.version = RAID5_METADATA_VERSION;
 
-    chars = (unsigned char *) calloc(2 * RAID5BLOCKSIZE, sizeof(unsigned char));
-    out = (unsigned char *) calloc(3 * RAID5BLOCKSIZE, sizeof(unsigned char));
-    out_len = (size_t *) calloc(3, sizeof(size_t));
-    salted_key = (unsigned char *) calloc(ENCRYPTION_SALT_BYTES, sizeof(unsigned char));
-    hash = (unsigned char *) calloc(65, sizeof(unsigned char));
-    if(chars == NULL) {
-        status |= MEMERR_BUF;
+    memset(ctx, 0, sizeof(raid5_split_ctx));
+    for(i = 0; devices != NULL && i < 3; i++) {
+        ctx->devices[i] = devices[i];
+    }
+
+    new_metadata(&ctx->metadata);
+    ctx->metadata.version = RAID5_METADATA_VERSION;
+    ctx->metadata.block_size = block_size;
+    ctx->block_size = block_size;
+    if(check_block_size(block_size) != 0) {
+        ctx->status |= BLOCKSIZE_ERROR;
+        DEBUG1("Invalid block size %lu", block_size);
+        return ctx->status;
+    }
+    if(xor_kernel == NULL) {
+        select_parity_kernel();
+    }
+
+    /* One hash chunk per thread, limited by RAID5BATCHSIZE */
+    ctx->metadata.chunk_stripes = default_chunk_stripes(block_size);
+    ctx->threads = get_thread_count();
+    chunks = RAID5BATCHSIZE / (2 * block_size * ctx->metadata.chunk_stripes);
+    chunks = (chunks < (size_t) ctx->threads) ? chunks : (size_t) ctx->threads;
+    chunks = (chunks > 0) ? chunks : 1;
+    ctx->cap = chunks * ctx->metadata.chunk_stripes * 2 * block_size;
+
+    ctx->chars = (unsigned char *) calloc(ctx->cap, sizeof(unsigned char));
+    ctx->parity = (unsigned char *) calloc(ctx->cap / 2, sizeof(unsigned char));
+    ctx->tasks = calloc(chunks + 1, sizeof(split_task));
+    if(ctx->chars == NULL) {
+        ctx->status |= MEMERR_BUF;
         DEBUGPRINT("Cannot allocate memory for read buffer");
         goto end;
     }
-    if(out == NULL) {
-        status |= MEMERR_BUF;
+    if(ctx->parity == NULL || ctx->tasks == NULL) {
+        ctx->status |= MEMERR_BUF;
         DEBUGPRINT("Cannot allocate memory for output buffer");
         goto end;
     }
-    if(out_len == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for output length");
-        goto end;
-    }
-    if(salted_key == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for salted key");
-        goto end;
-    }
-    if(hash == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for hash");
-        goto end;
-    }
 
-    /* create the sha256 context */
-    for(i = 0; i < 4; i++) {
-        sha256_init(&sha256_ctx[i]);
+    /* create the hash contexts */
+    for(i = 0; i < 3; i++) {
+        chunk_hash_init(&ctx->hash[i], ctx->metadata.chunk_stripes * block_size);
     }
+    chunk_hash_init(&ctx->hash[3], ctx->metadata.chunk_stripes * 2 * block_size);
 
-    rlen = fread(chars, sizeof(unsigned char), 2 * RAID5BLOCKSIZE, in);
-    DEBUG3("Read %lu bytes", rlen);
 #if ENCRYPT_DATA != 0
 #ifndef EMPTY_SALT
-    i = create_salt((unsigned char *)metadata.salt);
+    i = create_salt((unsigned char *)ctx->metadata.salt);
     if(i != 0) {
-        status |= MEMERR_BUF;
+        ctx->status |= MEMERR_BUF;
         DEBUGPRINT("Cannot generate salt");
         DEBUG1("Got return value %d but expected 0", i);
     }
 #endif
 
-    hmac_ret = hmac(key, keylen, metadata.salt, ENCRYPTION_SALT_BYTES, salted_key);
-    if(hmac_ret != 0) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot compute salted hash");
-        DEBUG1("Got return value %lu for HMAC but expected 0", hmac_ret);
-    }
-    prepare_key(salted_key, ENCRYPTION_SALT_BYTES, &rc4key);
+    ctx->status |= cipher_init(&ctx->cipher, &ctx->metadata, key, keylen);
 #endif
-    while(rlen > 0) {
-#if ENCRYPT_DATA != 0
-        /* encrypt the input file */
-        DEBUG1("Encryption enabled");
-        rc4(chars, rlen, &rc4key);
-#endif
-        sha256_update(chars, rlen, &sha256_ctx[3]);
 
-        split_byte_block(chars, rlen, out, out_len);
-        DEBUG3("Split %lu input bytes into %lu (%lu/%lu/%lu) for devices %d/%d/%d", rlen, out_len[0] + out_len[1] + out_len[2], out_len[0], out_len[1], out_len[2], (parity_pos + 1) % 3, (parity_pos + 2) % 3, parity_pos);
-        fwrite(&out[0], sizeof(unsigned char), out_len[0], devices[(parity_pos + 1) % 3]);
-        if(out_len[1] > 0) {
-            fwrite(&out[RAID5BLOCKSIZE], sizeof(unsigned char), out_len[1], devices[(parity_pos + 2) % 3]);
-        }
-        fwrite(&out[2 * RAID5BLOCKSIZE], sizeof(unsigned char), out_len[2], devices[parity_pos]);
+end:
+    return ctx->status;
+}
 
-        for(i = 0; i < 3; i++) {
-            sha256_update(&out[i * RAID5BLOCKSIZE], out_len[i], &sha256_ctx[(parity_pos + 1 + i) % 3]);
+/**
+ * Feed `in_len` characters from `*in` into the split context `*ctx`. The
+ * characters are collected until the buffer of the context is full and then
+ * split and written to the device files; the remainder is kept until the
+ * next call or `split_final()`. If the context writes to memory buffers, all
+ * complete stripes are split before returning.
+ *
+ * Returns 0 on success, otherwise the accumulated error status.
+ */
+LIBEXPORT int split_update(raid5_split_ctx *ctx, const unsigned char *in, size_t in_len)
+{
+    size_t l;
+
+    if(ctx->status != 0) {
+        return ctx->status;
+    }
+    while(in_len > 0) {
+        l = ctx->cap - ctx->fill;
+        l = (l < in_len) ? l : in_len;
+        memcpy(&ctx->chars[ctx->fill], in, l);
+        ctx->fill += l;
+        in += l;
+        in_len -= l;
+        if(ctx->fill == ctx->cap) {
+            split_batch(ctx, 0);
         }
+    }
+    if(ctx->devices[0] == NULL && ctx->fill >= 2 * ctx->block_size) {
+        split_batch(ctx, 0);
+    }
+    return ctx->status;
+}
 
-        parity_pos = (parity_pos + 1) % 3;
-        rlen = fread(chars, sizeof(char), 2 * RAID5BLOCKSIZE, in);
-        DEBUG3("Read %lu bytes", rlen);
+/**
+ * Set the memory buffers the split context `*ctx` writes the data of the
+ * three devices to, if it has been initialized without device files. The data
+ * for device `i` is written to `buf[i]` starting at `pos[i]`; `cap[i]` is the
+ * size of `buf[i]`. The write positions are updated in `ctx->dev_pos[]`.
+ *
+ * The buffers MUST be able to take all stripes that are completed by the
+ * next `split_update()` or `split_final_buffer()`. That is at most
+ * `block_size` characters per `2*block_size` input characters plus
+ * `block_size` characters.
+ */
+LIBEXPORT void split_set_buffers(raid5_split_ctx *ctx, unsigned char *buf[], const size_t cap[], const size_t pos[])
+{
+    int i;
+    for(i = 0; i < 3; i++) {
+        ctx->dev_buf[i] = buf[i];
+        ctx->dev_cap[i] = cap[i];
+        ctx->dev_pos[i] = pos[i];
     }
-    if(ferror(in)) {
-        status |= OPENERR_IN;
-        DEBUGPRINT("Error while reading the input file for split");
-        goto end;
+}
+
+/**
+ * Split the remaining characters of the split context `*ctx` and compute the
+ * meta data.
+ */
+static void split_finish(raid5_split_ctx *ctx)
+{
+    unsigned char hash[65];
+    size_t min = -1, max = 0;
+    int i;
+
+    if(ctx->status != 0) {
+        return;
     }
 
+    split_batch(ctx, 1);
+
     for(i = 0; i < 4; i++) {
-        sha256_end(hash, &sha256_ctx[i]);
-        set_metadata_hash(&metadata, i, hash);
+        chunk_hash_end(hash, &ctx->hash[i]);
+        set_metadata_hash(&ctx->metadata, i, hash);
         if(i < 3) {
             DEBUG2("The hash for device file %d is %s", i, hash);
-            l = ftell(devices[i]);
-            min = (min <= l) ? min : l;
-            max = (max >= l) ? max : l;
+            min = (min <= ctx->dev_len[i]) ? min : ctx->dev_len[i];
+            max = (max >= ctx->dev_len[i]) ? max : ctx->dev_len[i];
         }
 #if DEBUG>=2
         if(i == 3) {
@@ -337,223 +757,621 @@ LIBEXPORT int split_file(FILE *in, FILE *devices[], FILE *meta, const unsigned c
         }
 #endif
     }
-    metadata.missing = max - min;
-    status |= write_metadata(meta, &metadata);
-    if(status != 0) {
-        DEBUGPRINT("Meta data error");
-        goto end;
-    }
-
-    status |= SUCCESS_SPLIT;
-
-end:
-    DEBUG1("Split finished with status %d", status);
+    ctx->metadata.missing = max - min;
+}
 
-    if(hash != NULL) {
-        free(hash);
-    }
+/**
+ * Release the resources held by the split context `*ctx`.
+ */
+static void split_release(raid5_split_ctx *ctx)
+{
+    DEBUG1("Split finished with status %d", ctx->status);
 
-    if(salted_key != NULL) {
-        free(salted_key);
-    }
-    if(out_len != NULL) {
-        free(out_len);
+    if(ctx->parity != NULL) {
+        free(ctx->parity);
+        ctx->parity = NULL;
     }
-    if(out != NULL) {
-        free(out);
+    if(ctx->chars != NULL) {
+        free(ctx->chars);
+        ctx->chars = NULL;
     }
-    if(chars != NULL) {
-        free(chars);
+    if(ctx->tasks != NULL) {
+        free(ctx->tasks);
+        ctx->tasks = NULL;
     }
-    return status;
 }
 
 /**
- * Merge the device files `devices[0]`, `devices[1]` and `devices[2]` and write
- * them to `*out`. The parity for the first `2*RAID5BLOCKSIZE` characters
- * written to `*out` will be taken from `devices[2]` and will continue on
- * devices`[0]` and devices`[1]`.
+ * Split the remaining characters of the split context `*ctx` and write the
+ * meta data to the `*meta` parameter. All resources held by `*ctx` will be
+ * released. The device files are not closed.
  *
- * The meta data will be read from the `*meta` parameter.
+ * All other return codes than `SUCCESS_SPLIT` (0x200) mark a failure during
+ * split.
+ */
+LIBEXPORT int split_final(raid5_split_ctx *ctx, FILE *meta)
+{
+    split_finish(ctx);
+    if(ctx->status == 0) {
+        ctx->status |= write_metadata(meta, &ctx->metadata);
+        if(ctx->status != 0) {
+            DEBUGPRINT("Meta data error");
+        } else {
+            ctx->status |= SUCCESS_SPLIT;
+        }
+    }
+    split_release(ctx);
+    return ctx->status;
+}
+
+/**
+ * Split the remaining characters of the split context `*ctx` into the device
+ * buffers and write the meta data to `*meta` which MUST have a size of at
+ * least `RAID5_METADATA_BYTES`. All resources held by `*ctx` will be
+ * released.
+ *
+ * All other return codes than `SUCCESS_SPLIT` (0x200) mark a failure during
+ * split.
+ */
+LIBEXPORT int split_final_buffer(raid5_split_ctx *ctx, unsigned char *meta, const size_t meta_len)
+{
+    split_finish(ctx);
+    if(ctx->status == 0) {
+        ctx->status |= write_metadata_buffer(meta, meta_len, &ctx->metadata);
+        if(ctx->status != 0) {
+            DEBUGPRINT("Meta data error");
+        } else {
+            ctx->status |= SUCCESS_SPLIT;
+        }
+    }
+    split_release(ctx);
+    return ctx->status;
+}
+
+/**
+ * Split the input file `*in` into three device files `devices[0]`,
+ * `devices[1]` and `devices[2]`. The parity for the first `2*block_size`
+ * characters read from `*in` will be stored in `devices[2]` and will continue
+ * on devices`[0]` and devices`[1]`
+ *
+ * The meta data will be written to the `*meta` parameter.
+ *
+ * `block_size` is the number of characters every device contributes to a
+ * stripe, e.g. `RAID5BLOCKSIZE`.
  *
  * `*key` is the result of the `prepare_key()` function.
  *
+ * The input is read in batches of up to `RAID5BATCHSIZE` characters whose
+ * hash chunks are processed by `get_thread_count()` threads.
+ *
+ * All other return codes than `SUCCESS_SPLIT` (0x200) mark a failure during
+ * split.
+ */
+LIBEXPORT int split_file(FILE *in, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen, const size_t block_size)
+{
+    size_t rlen;
+    raid5_split_ctx ctx;
+
+    if(split_init(&ctx, devices, key, keylen, block_size) != 0) {
+        goto end;
+    }
+
+    /* Read directly into the buffer of the context to save a copy */
+    while((rlen = fread(&ctx.chars[ctx.fill], sizeof(unsigned char), ctx.cap - ctx.fill, in)) > 0) {
+        DEBUG3("Read %lu bytes", rlen);
+        ctx.fill += rlen;
+        if(ctx.fill == ctx.cap) {
+            split_batch(&ctx, 0);
+            if(ctx.status != 0) {
+                goto end;
+            }
+        }
+    }
+    if(ferror(in)) {
+        ctx.status |= OPENERR_IN;
+        DEBUGPRINT("Error while reading the input file for split");
+    }
+
+end:
+    return split_final(&ctx, meta);
+}
+
+/**
+ * Initialize the merge context `*ctx` for the file described by `*metadata`.
+ * The device `dead_device` will not be taken into account for building the
+ * original data.
+ *
+ * `*key` is the password that is salted and used to decrypt the data.
+ *
+ * Returns 0 on success, otherwise the error status.
+ */
+LIBEXPORT int merge_init(raid5_merge_ctx *ctx, const raid5md *metadata, const unsigned char dead_device, const unsigned char *key, const int keylen)
+{
+    memset(ctx, 0, sizeof(raid5_merge_ctx));
+    ctx->parity_pos = 2;
+    ctx->dead_device = dead_device;
+    memcpy(&ctx->metadata, metadata, sizeof(raid5md));
+    chunk_hash_init(&ctx->hash, (size_t) ctx->metadata.chunk_stripes * 2 * ctx->metadata.block_size);
+    if(xor_kernel == NULL) {
+        select_parity_kernel();
+    }
+
+    if(check_metadata_version(ctx->metadata.version) != 0) {
+        ctx->status |= METADATA_ERROR;
+        return ctx->status;
+    }
+#if ENCRYPT_DATA != 0
+    ctx->status |= cipher_init(&ctx->cipher, &ctx->metadata, key, keylen);
+#endif
+    return ctx->status;
+}
+
+/**
+ * Merge the next stripe. `*in` and `in_len[]` are laid out as described for
+ * `merge_byte_block()`. `last` MUST be non-zero if and only if this is the
+ * last stripe of the file, i.e. a non-parity device reached its end.
+ *
+ * The decrypted data is written to `*out` which MUST have a size of
+ * `2*block_size` of the meta data. `*out_len` will contain the number of characters
+ * written.
+ *
+ * Returns 0 on success, otherwise the error status.
+ */
+LIBEXPORT int merge_update(raid5_merge_ctx *ctx, const unsigned char *in, const size_t in_len[], const int last, unsigned char *out, size_t *out_len)
+{
+    *out_len = 0;
+    if(ctx->status != 0) {
+        return ctx->status;
+    }
+
+    merge_byte_block(in, in_len, ctx->parity_pos, ctx->dead_device, last ? ctx->metadata.missing : 0, out, out_len, ctx->metadata.block_size);
+    DEBUG3("Merged %lu bytes into %lu", in_len[0] + in_len[1] + in_len[2], *out_len);
+    if(*out_len == -1) {
+        *out_len = 0;
+        ctx->status |= OPENERR_IN;
+        DEBUGPRINT("The output contains no data.");
+        return ctx->status;
+    }
+
+    chunk_hash_update(&ctx->hash, out, *out_len);
+
+#if ENCRYPT_DATA != 0
+    /* decrypt the output */
+    DEBUG1("Encryption enabled");
+    cipher_crypt(&ctx->cipher, out, *out_len);
+#endif
+
+    ctx->parity_pos = (ctx->parity_pos + 1) % 3;
+    ctx->stripes++;
+    return ctx->status;
+}
+
+/**
+ * Finish the merge and verify the checksum of the merged data against the
+ * meta data.
+ *
  * All other return codes than `SUCCESS_MERGE` mark a failure during
  * merge.
  */
-LIBEXPORT int merge_file(FILE *out, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen)
+LIBEXPORT int merge_final(raid5_merge_ctx *ctx)
 {
-    unsigned char *in = NULL, *buf = NULL, parity_pos = 2, dead_device, i, *hash = NULL;
-    size_t *in_len = NULL, out_len, l = 0;
-    int status = 0, mds;
-    raid5md metadata, md_read;
-    unsigned char *salted_key = NULL;
-    rc4_key rc4key;
-    sha256_ctx sha256_ctx;
-    unsigned long hmac_ret = 0;
+    unsigned char hash[65];
 
-    new_metadata(&metadata);
-    new_metadata(&md_read);
+    if(ctx->status != 0) {
+        return ctx->status;
+    }
 
-    status |= read_metadata(meta, &metadata);
+    chunk_hash_end(hash, &ctx->hash);
 
-    create_metadata(devices, &md_read);
-    md_read.version = RAID5_METADATA_VERSION;
+    if(memcmp(hash, ctx->metadata.hash_in, 64) != 0) {
+        ctx->status |= METADATA_ERROR;
+        DEBUGPRINT("Hash sum failure during merge!");
+        DEBUG2("\tComputed: %s\n", hash);
+        DEBUG2("\tExpected: %s\n", ctx->metadata.hash_in);
+    } else {
+        ctx->status |= SUCCESS_MERGE;
+    }
+    return ctx->status;
+}
 
-    mds = cmp_metadata(&metadata, &md_read);
+/**
+ * The stripes of one hash chunk, or of the part of it contained in the
+ * current batch, that are merged by `merge_task_run()`. See `split_task`.
+ * The hash chunks of the devices are at the indexes 0 - 2, the one of the
+ * output at index 3. The devices are only hashed if `dev_hash` is set.
+ */
+typedef struct merge_task {
+    sha256_ctx chunk[4];
+    size_t fill[4];
+    int done[4];
+    unsigned char digest[4][SHA256_DIGEST_LENGTH];
+    raid5_merge_ctx *ctx;
+    chunk_hash *dev_hash;
+    unsigned char *dev[3];
+    size_t dev_len[3];
+    unsigned char *out;
+    size_t out_len;
+    size_t stripes;
+    unsigned long long stripe;
+    int last;
+    int status;
+} merge_task;
 
-    if((mds & METADATA_MISS_DEV0) == 0 && (mds & METADATA_MISS_DEV1) == 0) {
-        DEBUG2("dead device is 2");
-        dead_device = 2;
-    } else {
-        if((mds & METADATA_MISS_DEV1) == 0 && (mds & METADATA_MISS_DEV2) == 0) {
-            DEBUG2("dead device is 0");
-            dead_device = 0;
+/**
+ * Merge, hash and decrypt the stripes of the merge task `*arg`.
+ */
+static void merge_task_run(void *arg)
+{
+    merge_task *t = (merge_task *) arg;
+    raid5_merge_ctx *ctx = t->ctx;
+    size_t bs = ctx->metadata.block_size, in_len[3], out_len, k, pos;
+    const unsigned char *in[3];
+    unsigned long long s;
+    int pp, i, d, last;
+
+    t->out_len = 0;
+    for(k = 0, s = t->stripe; k < t->stripes; k++, s++) {
+        pp = (2 + s) % 3;
+        for(i = 0; i < 3; i++) {
+            d = (pp + 1 + i) % 3;
+            pos = k * bs;
+            in[i] = (t->dev[d] != NULL) ? &t->dev[d][pos] : NULL;
+            in_len[i] = (t->dev_len[d] > pos) ? t->dev_len[d] - pos : 0;
+            in_len[i] = (in_len[i] < bs) ? in_len[i] : bs;
+            if(t->dev_hash != NULL && in[i] != NULL) {
+                t->done[d] |= chunk_piece_update(&t->chunk[d], &t->fill[d], t->dev_hash[d].chunk_len, in[i], in_len[i], t->digest[d]);
+            }
+        }
+        last = t->last && k == t->stripes - 1;
+        merge_stripe(in, in_len, pp, ctx->dead_device, last ? ctx->metadata.missing : 0, &t->out[t->out_len], &out_len, bs);
+        if(out_len == -1) {
+            t->status |= OPENERR_IN;
+            return;
+        }
+        t->done[3] |= chunk_piece_update(&t->chunk[3], &t->fill[3], ctx->hash.chunk_len, &t->out[t->out_len], out_len, t->digest[3]);
+#if ENCRYPT_DATA != 0
+        if(ctx->cipher.aes) {
+            cipher_crypt_at(&ctx->cipher, &t->out[t->out_len], out_len, s * 2 * bs);
         } else {
-            if((mds & METADATA_MISS_DEV2) == 0 && (mds & METADATA_MISS_DEV0) == 0) {
-                DEBUG2("dead device is 1");
-                dead_device = 1;
+            cipher_crypt(&ctx->cipher, &t->out[t->out_len], out_len);
+        }
+#endif
+        t->out_len += out_len;
+    }
+}
+
+/**
+ * Continue the hash `*h` with the hash chunk `idx` of the merge task `*t`.
+ */
+static void merge_task_hash(chunk_hash *h, const merge_task *t, const int idx)
+{
+    if(t->done[idx]) {
+        chunk_hash_add(h, t->digest[idx]);
+    } else {
+        memcpy(&h->chunk, &t->chunk[idx], sizeof(sha256_ctx));
+        h->fill = t->fill[idx];
+    }
+}
+
+/**
+ * Merge `stripes` stripes whose device data is stored in `dev[]`, with
+ * `dev_len[]` characters per device, into `*out`. `last` is non-zero if the
+ * last of them is the last stripe of the file. The stripes are divided into
+ * tasks at the hash chunk boundaries as done by `split_batch()`.
+ *
+ * If `dev_hash` is not NULL, the data of every device in `dev[]` is fed into
+ * its chunk hash `dev_hash[]` as well.
+ *
+ * Returns 0 on success, otherwise the error status. `*out_len` will contain
+ * the number of characters written to `*out`.
+ */
+static int merge_batch(raid5_merge_ctx *ctx, merge_task *tasks, int threads, unsigned char *dev[], const size_t dev_len[], chunk_hash dev_hash[], const size_t stripes, const int last, unsigned char *out, size_t *out_len)
+{
+    size_t bs = ctx->metadata.block_size, count = 0, k, l, i;
+    unsigned long long chunk = ctx->metadata.chunk_stripes, s;
+    merge_task *t;
+    int d;
+
+#if ENCRYPT_DATA != 0
+    if(!ctx->cipher.aes) {
+        threads = 1;
+    }
+#endif
+
+    for(k = 0, s = ctx->stripes; k < stripes; k += l, s += l) {
+        t = &tasks[count++];
+        l = (chunk > 0) ? chunk - s % chunk : stripes;
+        l = (l < stripes - k) ? l : stripes - k;
+        memset(t, 0, sizeof(merge_task));
+        t->ctx = ctx;
+        t->dev_hash = dev_hash;
+        for(d = 0; d < 3; d++) {
+            t->dev[d] = (dev[d] != NULL) ? &dev[d][k * bs] : NULL;
+            t->dev_len[d] = (dev_len[d] > k * bs) ? dev_len[d] - k * bs : 0;
+        }
+        t->out = &out[k * 2 * bs];
+        t->stripes = l;
+        t->stripe = s;
+        t->last = last && k + l == stripes;
+        for(d = 0; d < 4; d++) {
+            if(k == 0 && d == 3) {
+                memcpy(&t->chunk[d], &ctx->hash.chunk, sizeof(sha256_ctx));
+                t->fill[d] = ctx->hash.fill;
+            } else if(k == 0 && dev_hash != NULL) {
+                memcpy(&t->chunk[d], &dev_hash[d].chunk, sizeof(sha256_ctx));
+                t->fill[d] = dev_hash[d].fill;
             } else {
-                status |= METADATA_ERROR;
-                DEBUGPRINT("The meta data for at least two files is does not match");
-                goto end;
+                sha256_init(&t->chunk[d]);
             }
+        }
+    }
+    run_tasks(merge_task_run, tasks, sizeof(merge_task), count, threads);
 
+    *out_len = 0;
+    for(i = 0; i < count; i++) {
+        t = &tasks[i];
+        ctx->status |= t->status;
+        merge_task_hash(&ctx->hash, t, 3);
+        for(d = 0; d < 3 && dev_hash != NULL; d++) {
+            if(dev[d] != NULL) {
+                merge_task_hash(&dev_hash[d], t, d);
+            }
         }
+        *out_len += t->out_len;
     }
+    ctx->stripes += stripes;
+    ctx->parity_pos = (2 + ctx->stripes) % 3;
+    return ctx->status;
+}
 
-    in = (unsigned char *) calloc(3 * RAID5BLOCKSIZE, sizeof(unsigned char));
-    in_len = (size_t *) calloc(3, sizeof(size_t));
-    buf = (unsigned char *) calloc(2 * RAID5BLOCKSIZE, sizeof(unsigned char));
-    salted_key = (unsigned char *) calloc(ENCRYPTION_SALT_BYTES, sizeof(unsigned char));
-    hash = (unsigned char *) calloc(65, sizeof(unsigned char));
-    if(in == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for the input buffer");
-        goto end;
+/**
+ * Returns non-zero if the lengths `len[a]` and `len[b]` of two device files
+ * fit the file described by `*md`. Device files only differ in the last
+ * stripe, whose secondary device is `missing` characters shorter than the
+ * other two. `*expected` is set to the length the third device must have.
+ */
+static int device_lengths_match(const long len[], const int a, const int b, const raid5md *md, long *expected)
+{
+    long max, last, l, n;
+    int i;
+
+    max = (len[a] > len[b]) ? len[a] : len[b];
+    n = (max > 0) ? (max - 1) / (long) md->block_size + 1 : 0;
+    last = (n > 0) ? max - (n - 1) * (long) md->block_size : 0;
+    if(len[a] < 0 || len[b] < 0 || last < (long) md->missing) {
+        return 0;
     }
-    if(in_len == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for the input length");
-        goto end;
+    for(i = 0; i < 3; i++) {
+        l = (n > 0 && i == n % 3) ? max - (long) md->missing : max;
+        if(i != a && i != b) {
+            *expected = l;
+        } else if(len[i] != l) {
+            return 0;
+        }
     }
-    if(buf == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for the output buffer");
-        goto end;
+    return 1;
+}
+
+/**
+ * Choose the device that is not read by `merge_file()` from the cheap
+ * checks: a device that is not available or whose length does not fit the
+ * other two. If all devices fit, device 2 is not read. `len[]` contains the
+ * length of every device file or -1 if it is not known.
+ *
+ * Returns the device or -1 if at least two devices are unusable.
+ */
+static int choose_dead_device(FILE *devices[], const long len[], const raid5md *md)
+{
+    long expected;
+    int d, a, b;
+
+    for(d = 2; d >= 0; d--) {
+        a = (d + 1) % 3;
+        b = (d + 2) % 3;
+        if(devices[a] == NULL || devices[b] == NULL) {
+            continue;
+        }
+        if(len[a] < 0 || len[b] < 0 || device_lengths_match(len, a, b, md, &expected)) {
+            return d;
+        }
     }
-    if(salted_key == NULL) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for salt");
+    return -1;
+}
+
+/**
+ * Merge the devices of `devices[]` except `dead_device` into `*out` as
+ * described for `merge_file()`. The data of the devices is hashed while it
+ * is merged. `*bad` is set to the `METADATA_MISS_DEV0` - `METADATA_MISS_DEV2`
+ * flags of the merged devices whose checksum does not match `*metadata`.
+ *
+ * All other return codes than `SUCCESS_MERGE` mark a failure during
+ * merge.
+ */
+static int merge_devices(FILE *out, FILE *devices[], raid5md *metadata, const unsigned char dead_device, const unsigned char *key, const int keylen, int *bad)
+{
+    unsigned char *dev[3] = {NULL, NULL, NULL}, *buf = NULL, hash[65];
+    merge_task *tasks = NULL;
+    size_t dev_len[3] = {0, 0, 0}, stripes, chunks, out_len, bs, n, i;
+    int status = 0, last, c, threads;
+    chunk_hash dev_hash[3];
+    raid5md md_read;
+    raid5_merge_ctx ctx;
+
+    *bad = 0;
+    status |= merge_init(&ctx, metadata, dead_device, key, keylen);
+    if(status != 0) {
         goto end;
     }
-    if(hash == NULL) {
+
+    /* One hash chunk per thread, limited by RAID5BATCHSIZE */
+    bs = metadata->block_size;
+    threads = get_thread_count();
+    n = (metadata->chunk_stripes > 0) ? metadata->chunk_stripes : RAID5CHUNKSIZE / bs + 1;
+    chunks = RAID5BATCHSIZE / (2 * bs * n);
+    chunks = (chunks < (size_t) threads) ? chunks : (size_t) threads;
+    chunks = (chunks > 0) ? chunks : 1;
+    stripes = chunks * n;
+
+    buf = (unsigned char *) calloc(stripes * 2 * bs, sizeof(unsigned char));
+    tasks = (merge_task *) calloc(chunks + 1, sizeof(merge_task));
+    for(i = 0; i < 3; i++) {
+        chunk_hash_init(&dev_hash[i], (size_t) metadata->chunk_stripes * bs);
+        if(i != dead_device) {
+            dev[i] = (unsigned char *) calloc(stripes * bs, sizeof(unsigned char));
+            if(dev[i] == NULL) {
+                status |= MEMERR_BUF;
+                DEBUGPRINT("Cannot allocate memory for the input buffer");
+                goto end;
+            }
+        }
+    }
+    if(buf == NULL || tasks == NULL) {
         status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot allocate memory for hash");
+        DEBUGPRINT("Cannot allocate memory for the output buffer");
         goto end;
     }
-    sha256_init(&sha256_ctx);
 
-    in_len[0] = (devices[(parity_pos + 1) % 3]) ? fread(&in[0], sizeof(char), RAID5BLOCKSIZE, devices[(parity_pos + 1) % 3]) : 0;
-    in_len[1] = (devices[(parity_pos + 2) % 3]) ? fread(&in[RAID5BLOCKSIZE], sizeof(char), RAID5BLOCKSIZE, devices[(parity_pos + 2) % 3]) : 0;
-    in_len[2] = (devices[parity_pos]) ? fread(&in[2 * RAID5BLOCKSIZE], sizeof(char), RAID5BLOCKSIZE, devices[parity_pos]) : 0;
-    DEBUG3("Read %lu (%lu/%lu/%lu) bytes for devices %d/%d/%d", in_len[0] + in_len[1] + in_len[2], in_len[0], in_len[1], in_len[2], (parity_pos + 1) % 3, (parity_pos + 2) % 3, parity_pos);
-#if ENCRYPT_DATA != 0
-    hmac_ret = hmac(key, keylen, metadata.salt, ENCRYPTION_SALT_BYTES, salted_key);
-    if(hmac_ret != 0) {
-        status |= MEMERR_BUF;
-        DEBUGPRINT("Cannot compute salted hash");
-        DEBUG1("Got return value %lu for HMAC but expected 0", hmac_ret);
-    }
-    prepare_key(salted_key, ENCRYPTION_SALT_BYTES, &rc4key);
-#endif
-    while(in_len[0] > 0 || in_len[1] > 0 || in_len[2] > 0) {
+    do {
         /*
-        * Detect end of file, since reading to the end but
-        * not beyond does NOT set the EOF marker! Afterwards
-        * the missing bytes can be set.
-        */
+         * Device files only differ in the last stripe. Thus the batch
+         * contains the last stripe if and only if all devices are read to
+         * their end. Reading to the end but not beyond does NOT set the EOF
+         * marker, hence the next character is peeked.
+         */
+        n = 0;
+        last = 1;
         for(i = 0; i < 3; i++) {
-            if(parity_pos != i && devices[i]) {
-                getc(devices[i]);
+            if(dev[i] == NULL) {
+                continue;
             }
-        }
-        l = ((devices[0] && feof(devices[0])) || (devices[1] && feof(devices[1])) || (devices[2] && feof(devices[2]))) ? metadata.missing : 0;
-        for(i = 0; i < 3; i++) {
-            if(parity_pos != i && devices[i] && !feof(devices[i])) {
-                fseek(devices[i], -1, SEEK_CUR);
+            dev_len[i] = fread(dev[i], sizeof(unsigned char), stripes * bs, devices[i]);
+            if(ferror(devices[i])) {
+                status |= OPENERR_DEV0 << i;
+                DEBUG1("Error reading from device %lu during merge", i);
+                goto end;
+            }
+            if((c = getc(devices[i])) != EOF) {
+                ungetc(c, devices[i]);
+                last = 0;
             }
+            n = (n > (dev_len[i] + bs - 1) / bs) ? n : (dev_len[i] + bs - 1) / bs;
         }
-        /* Call the merge */
-        merge_byte_block(in, in_len, parity_pos, dead_device, l, buf, &out_len);
-        DEBUG3("Merged %lu bytes into %lu", in_len[0] + in_len[1] + in_len[2], out_len);
-        if(out_len == -1) {
-            status |= OPENERR_IN;
-            DEBUGPRINT("The output contains no data.");
+        DEBUG3("Read %lu stripes for devices %lu/%lu/%lu", n, dev_len[0], dev_len[1], dev_len[2]);
+        if(n == 0) {
+            break;
+        }
+        if(merge_batch(&ctx, tasks, threads, dev, dev_len, dev_hash, n, last, buf, &out_len) != 0) {
+            status |= ctx.status;
             goto end;
         }
+        if(fwrite(buf, sizeof(unsigned char), out_len, out) != out_len) {
+            status |= OPENERR_OUT;
+            DEBUGPRINT("Cannot write the output file during merge");
+            goto end;
+        }
+    } while(!last);
 
-        sha256_update(buf, out_len, &sha256_ctx);
-
-
-#if ENCRYPT_DATA != 0
-        /* encrypt the input file */
-        DEBUG1("Encryption enabled");
-        rc4(buf, out_len, &rc4key);
-#endif
-
-        fwrite(buf, sizeof(unsigned char), out_len, out);
+    new_metadata(&md_read);
+    for(i = 0; i < 3; i++) {
+        if(dev[i] != NULL) {
+            chunk_hash_end(hash, &dev_hash[i]);
+            set_metadata_hash(&md_read, i, hash);
+            *bad |= cmp_metadata_hash(metadata, &md_read, i);
+        }
+    }
+    DEBUG2("Device checksum failures: %d", *bad);
 
-        parity_pos = (parity_pos + 1) % 3;
-        in_len[0] = (devices[(parity_pos + 1) % 3]) ? fread(&in[0], sizeof(char), RAID5BLOCKSIZE, devices[(parity_pos + 1) % 3]) : 0;
-        in_len[1] = (devices[(parity_pos + 2) % 3]) ? fread(&in[RAID5BLOCKSIZE], sizeof(char), RAID5BLOCKSIZE, devices[(parity_pos + 2) % 3]) : 0;
-        in_len[2] = (devices[parity_pos]) ? fread(&in[2 * RAID5BLOCKSIZE], sizeof(char), RAID5BLOCKSIZE, devices[parity_pos]) : 0;
-        DEBUG3("Read %lu (%lu/%lu/%lu) bytes for devices %d/%d/%d", in_len[0] + in_len[1] + in_len[2], in_len[0], in_len[1], in_len[2], (parity_pos + 1) % 3, (parity_pos + 2) % 3, parity_pos);
+    status |= merge_final(&ctx);
+end:
+    for(i = 0; i < 3; i++) {
+        if(dev[i] != NULL) {
+            free(dev[i]);
+        }
     }
-    if(devices[0] && ferror(devices[0])) {
-        status |= OPENERR_DEV0;
-        DEBUGPRINT("Error reading from device 0 for during merge");
-        goto end;
+    if(tasks != NULL) {
+        free(tasks);
     }
-    if(devices[1] && ferror(devices[1])) {
-        status |= OPENERR_DEV1;
-        DEBUGPRINT("Error reading from device 1 for during merge");
-        goto end;
+    if(buf != NULL) {
+        free(buf);
     }
-    if(devices[2] && ferror(devices[2])) {
-        status |= OPENERR_DEV2;
-        DEBUGPRINT("Error reading from device 2 for during merge");
+    return status;
+}
+
+/**
+ * Merge the device files `devices[0]`, `devices[1]` and `devices[2]` and write
+ * them to `*out`. The parity for the first `2*block_size` characters
+ * written to `*out` will be taken from `devices[2]` and will continue on
+ * devices`[0]` and devices`[1]`.
+ *
+ * The meta data will be read from the `*meta` parameter.
+ *
+ * `*key` is the result of the `prepare_key()` function.
+ *
+ * Only two devices are read. A device that is NULL or whose length does not
+ * fit the other devices is left out, otherwise `devices[2]`. The checksums of
+ * the devices and of the merged data are verified while merging. If the
+ * merged data is wrong and exactly one of the read devices is corrupt, the
+ * merge is repeated once with the device left out before. This requires
+ * `*out` and the devices to be seekable.
+ *
+ * The device files are read in batches of up to `RAID5BATCHSIZE` output
+ * characters whose hash chunks are processed by `get_thread_count()`
+ * threads. Files encrypted with RC4 are merged by a single thread.
+ *
+ * All other return codes than `SUCCESS_MERGE` mark a failure during
+ * merge.
+ */
+LIBEXPORT int merge_file(FILE *out, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen)
+{
+    long start[3] = {-1, -1, -1}, len[3] = {-1, -1, -1}, out_start, expected;
+    int status = 0, dead_device, bad, other, i;
+    raid5md metadata;
+
+    new_metadata(&metadata);
+    status |= read_metadata(meta, &metadata);
+    if(status != 0) {
         goto end;
     }
 
-    sha256_end(hash, &sha256_ctx);
+    for(i = 0; i < 3; i++) {
+        if(devices[i] == NULL || (start[i] = ftell(devices[i])) < 0) {
+            continue;
+        }
+        if(fseek(devices[i], 0, SEEK_END) == 0) {
+            len[i] = ftell(devices[i]) - start[i];
+        }
+        fseek(devices[i], start[i], SEEK_SET);
+    }
+    DEBUG3("Device lengths are %ld/%ld/%ld", len[0], len[1], len[2]);
 
-    if(memcmp(hash, metadata.hash_in, 64) != 0) {
+    dead_device = choose_dead_device(devices, len, &metadata);
+    if(dead_device < 0) {
         status |= METADATA_ERROR;
-        DEBUGPRINT("Hash sum failure during merge!");
-        DEBUG2("\tComputed: %s\n", hash);
-        DEBUG2("\tExpected: %s\n", metadata.hash_in);
-    } else {
-        status |= SUCCESS_MERGE;
+        DEBUGPRINT("At least two device files are missing or do not match the meta data");
+        goto end;
     }
-end:
-    DEBUG1("Merge finished with status %d", status);
+    DEBUG2("dead device is %d", dead_device);
 
-    if(hash != NULL) {
-        free(hash);
-    }
-    if(salted_key != NULL) {
-        free(salted_key);
-    }
-    if(buf != NULL) {
-        free(buf);
+    out_start = ftell(out);
+    status |= merge_devices(out, devices, &metadata, dead_device, key, keylen, &bad);
+    if(status != METADATA_ERROR || (bad != METADATA_MISS_DEV0 && bad != METADATA_MISS_DEV1 && bad != METADATA_MISS_DEV2)) {
+        goto end;
     }
-    if(in_len != NULL) {
-        free(in_len);
+
+    /* Exactly one of the merged devices is corrupt, replace it */
+    bad = (bad == METADATA_MISS_DEV0) ? 0 : ((bad == METADATA_MISS_DEV1) ? 1 : 2);
+    other = 3 - bad - dead_device;
+    if(devices[dead_device] == NULL || !(len[dead_device] < 0 || len[other] < 0 || device_lengths_match(len, dead_device, other, &metadata, &expected))) {
+        goto end;
     }
-    if(in != NULL) {
-        free(in);
+    DEBUG2("Device %d is corrupt, merging again", bad);
+    if(out_start < 0 || fseek(out, out_start, SEEK_SET) != 0 || fseek(devices[dead_device], start[dead_device], SEEK_SET) != 0 || fseek(devices[other], start[other], SEEK_SET) != 0) {
+        DEBUGPRINT("Cannot rewind the files to merge again");
+        goto end;
     }
+    status = merge_devices(out, devices, &metadata, bad, key, keylen, &i);
+end:
+    DEBUG1("Merge finished with status %d", status);
     return status;
 }
 
@@ -608,14 +1426,17 @@ LIBEXPORT int cmp_metadata_hash(raid5md *md1, raid5md *md2, const int idx)
 }
 
 /**
- * Takes 3 devices (`*devices[]`) and calculates the sha256 sum of each
- * file. The checksums are stored into the given raid5 meta data `*md`.
- * The function returns 0 on success or non-zero on error.
+ * Takes 3 devices (`*devices[]`) and calculates the checksum of each file as
+ * defined by the version, the block size and the hash chunk size of `*md`,
+ * which are kept. The checksums are stored into the given raid5 meta data
+ * `*md`. The function returns 0 on success or non-zero on error.
  */
 LIBEXPORT int create_metadata(FILE *devices[], raid5md *md)
 {
     int i;
     unsigned char *ascii = NULL;
+    unsigned char version;
+    unsigned int block_size, chunk_stripes;
     size_t fpos, l = 0, min = -1, max = 0;
 
     if(md == NULL) {
@@ -627,13 +1448,19 @@ LIBEXPORT int create_metadata(FILE *devices[], raid5md *md)
         return 1;
     }
 
+    version = md->version;
+    block_size = md->block_size;
+    chunk_stripes = md->chunk_stripes;
     new_metadata(md);    /* clean the metadata */
+    md->version = version;
+    md->block_size = block_size;
+    md->chunk_stripes = chunk_stripes;
 
     for(i = 0; i < 3; i++) {
         if(devices[i] != NULL) {
             fpos = ftell(devices[i]);
             rewind(devices[i]);
-            if(build_sha256_sum_file(devices[i], ascii) == 0) {
+            if(build_chunk_hash_file(devices[i], (size_t) chunk_stripes * block_size, ascii) == 0) {
                 set_metadata_hash(md, i, ascii);
             }
             l = ftell(devices[i]);
@@ -648,7 +1475,98 @@ LIBEXPORT int create_metadata(FILE *devices[], raid5md *md)
 }
 
 /**
- * Initialize a new raid5 meta data object `*md` with zeros.
+ * Initialize the chunk hash `*h` for chunks of `chunk_len` characters, or a
+ * plain SHA-256 if `chunk_len` is 0.
+ */
+LIBEXPORT void chunk_hash_init(chunk_hash *h, const size_t chunk_len)
+{
+    sha256_init(&h->tree);
+    sha256_init(&h->chunk);
+    h->chunk_len = chunk_len;
+    h->fill = 0;
+}
+
+/**
+ * Feed the `len` characters of `*data` into the chunk hash `*h`.
+ */
+LIBEXPORT void chunk_hash_update(chunk_hash *h, const unsigned char *data, size_t len)
+{
+    unsigned char digest[SHA256_DIGEST_LENGTH];
+    size_t l;
+
+    if(h->chunk_len == 0) {
+        sha256_update(data, len, &h->chunk);
+        return;
+    }
+    while(len > 0) {
+        l = h->chunk_len - h->fill;
+        l = (l < len) ? l : len;
+        if(chunk_piece_update(&h->chunk, &h->fill, h->chunk_len, data, l, digest)) {
+            chunk_hash_add(h, digest);
+        }
+        data += l;
+        len -= l;
+    }
+}
+
+/**
+ * Add the `digest` of the next complete chunk to the chunk hash `*h`. The
+ * current chunk of `*h` is discarded.
+ */
+LIBEXPORT void chunk_hash_add(chunk_hash *h, const unsigned char digest[SHA256_DIGEST_LENGTH])
+{
+    sha256_update(digest, SHA256_DIGEST_LENGTH, &h->tree);
+    sha256_init(&h->chunk);
+    h->fill = 0;
+}
+
+/**
+ * Finish the chunk hash `*h` and store it as hex string in `hash`.
+ */
+LIBEXPORT void chunk_hash_end(unsigned char hash[65], chunk_hash *h)
+{
+    unsigned char digest[SHA256_DIGEST_LENGTH];
+
+    if(h->chunk_len == 0) {
+        sha256_end(hash, &h->chunk);
+        return;
+    }
+    if(h->fill > 0) {
+        sha256_final(digest, &h->chunk);
+        chunk_hash_add(h, digest);
+    }
+    sha256_end(hash, &h->tree);
+}
+
+/**
+ * Compute the chunk hash with chunks of `chunk_len` characters of the file
+ * `*fp` from its current position and store it as hex string in `hash`.
+ * Returns 0 on success or 1 on a read error.
+ */
+LIBEXPORT int build_chunk_hash_file(FILE *fp, const size_t chunk_len, unsigned char hash[65])
+{
+    unsigned char *buf;
+    size_t l;
+    chunk_hash h;
+
+    buf = (unsigned char *) malloc(RAID5BLOCKSIZE * 64);
+    if(buf == NULL) {
+        return 1;
+    }
+    chunk_hash_init(&h, chunk_len);
+    while((l = fread(buf, sizeof(unsigned char), RAID5BLOCKSIZE * 64, fp)) > 0) {
+        chunk_hash_update(&h, buf, l);
+    }
+    free(buf);
+    if(ferror(fp)) {
+        return 1;
+    }
+    chunk_hash_end(hash, &h);
+    return 0;
+}
+
+/**
+ * Initialize a new raid5 meta data object `*md` with zeros.
  */
 LIBEXPORT void new_metadata(raid5md *md)
 {
@@ -660,7 +1578,114 @@ LIBEXPORT void new_metadata(raid5md *md)
         memset(md->salt, 0, ENCRYPTION_SALT_BYTES);
         md->version = 0;
         md->missing = 0;
+        md->block_size = 0;
+        md->chunk_stripes = 0;
+    }
+}
+
+/**
+ * Returns 0 if `block_size` can be used to split a file, otherwise
+ * BLOCKSIZE_ERROR.
+ */
+LIBEXPORT int check_block_size(const size_t block_size)
+{
+    if(block_size == 0 || block_size > RAID5MAXBLOCKSIZE) {
+        return BLOCKSIZE_ERROR;
+    }
+    return 0;
+}
+
+/**
+ * Returns 0 if meta data of version `version` can be read, otherwise
+ * METADATA_ERROR.
+ */
+LIBEXPORT int check_metadata_version(const unsigned char version)
+{
+    if(version < RAID5_METADATA_VERSION_2 || version > RAID5_METADATA_VERSION) {
+        return METADATA_ERROR;
+    }
+    return 0;
+}
+
+/**
+ * Initialize the cipher `*cipher` for the file described by `*md`. The
+ * password `*key` is salted with the salt of the meta data by HMAC-SHA256.
+ * Before version 4 the salted key is padded to `ENCRYPTION_SALT_BYTES`
+ * characters and used as RC4 key. Since version 4 the first 16 characters
+ * of the salted key are the AES key and the next 16 the initial counter
+ * block.
+ *
+ * Returns 0 on success, otherwise MEMERR_BUF.
+ */
+LIBEXPORT int cipher_init(raid5_cipher *cipher, const raid5md *md, const unsigned char *key, const int keylen)
+{
+    unsigned char *salted_key = NULL;
+    unsigned long hmac_ret = 0;
+
+    memset(cipher, 0, sizeof(raid5_cipher));
+    salted_key = (unsigned char *) calloc(ENCRYPTION_SALT_BYTES, sizeof(unsigned char));
+    if(salted_key == NULL) {
+        DEBUGPRINT("Cannot allocate memory for salted key");
+        return MEMERR_BUF;
+    }
+    hmac_ret = hmac(key, keylen, md->salt, ENCRYPTION_SALT_BYTES, salted_key);
+    if(hmac_ret != 0) {
+        DEBUGPRINT("Cannot compute salted hash");
+        DEBUG1("Got return value %lu for HMAC but expected 0", hmac_ret);
+        free(salted_key);
+        return MEMERR_BUF;
+    }
+    if(md->version >= RAID5_METADATA_VERSION_4) {
+        cipher->aes = 1;
+        aes_ctr_init(&cipher->aeskey, salted_key, &salted_key[AES_KEY_BYTES]);
+    } else {
+        prepare_key(salted_key, ENCRYPTION_SALT_BYTES, &cipher->rc4key);
+    }
+    free(salted_key);
+    return 0;
+}
+
+/**
+ * Encrypt or decrypt the `len` characters of `*buf` in place. They follow the
+ * characters passed in the previous call.
+ */
+LIBEXPORT void cipher_crypt(raid5_cipher *cipher, unsigned char *buf, const size_t len)
+{
+    if(cipher->aes) {
+        aes_ctr_crypt(buf, len, cipher->offset, &cipher->aeskey);
+    } else {
+        rc4(buf, len, &cipher->rc4key);
+    }
+    cipher->offset += len;
+}
+
+/**
+ * Encrypt or decrypt the `len` characters of `*buf` in place, starting at
+ * position `offset` of the file. The cipher `*cipher` is not modified, so
+ * different parts of a file may be processed concurrently.
+ *
+ * Returns 0 on success or METADATA_ERROR if the cipher of the file is RC4,
+ * which can only be used sequentially.
+ */
+LIBEXPORT int cipher_crypt_at(const raid5_cipher *cipher, unsigned char *buf, const size_t len, const unsigned long long offset)
+{
+    if(!cipher->aes) {
+        return METADATA_ERROR;
+    }
+    aes_ctr_crypt(buf, len, offset, &cipher->aeskey);
+    return 0;
+}
+
+/**
+ * Returns the number of characters of the meta data `*md` when written by
+ * `write_metadata()`.
+ */
+LIBEXPORT size_t metadata_length(const raid5md *md)
+{
+    if(md->version == RAID5_METADATA_VERSION_2) {
+        return RAID5_METADATA_V2_BYTES;
     }
+    return (md->version < RAID5_METADATA_VERSION) ? RAID5_METADATA_V3_BYTES : RAID5_METADATA_BYTES;
 }
 
 /**
@@ -671,6 +1696,8 @@ LIBEXPORT void print_metadata(raid5md *md)
     if(md != NULL) {
         printf("\nVersion: %02x\n", md->version);
         printf("Missing: %d\n", md->missing);
+        printf("Block size: %d\n", md->block_size);
+        printf("Chunk stripes: %d\n", md->chunk_stripes);
         printf("0: %64s\n", md->hash_dev0);
         printf("1: %64s\n", md->hash_dev1);
         printf("2: %64s\n", md->hash_dev2);
@@ -687,6 +1714,8 @@ LIBEXPORT void print_metadata(raid5md *md)
  * Read the meta data from the file pointer `*fp` and store it in the raid5
  * meta data object `*md`. The function returns 0 on success or 1 if either `*fp` is
  * or `*md` or both are NULL.
+ *
+ * Meta data of version 2 to 5 is supported.
  */
 LIBEXPORT int read_metadata(FILE *fp, raid5md *md)
 {
@@ -694,24 +1723,91 @@ LIBEXPORT int read_metadata(FILE *fp, raid5md *md)
         new_metadata(md);    /* clean the metadata */
         fscanf(fp, "%2hhu", & (md->version));
 
-        if(md->version != RAID5_METADATA_VERSION) {
+        if(check_metadata_version(md->version) != 0) {
             DEBUGPRINT("The meta data read from the meta data file is not suitable for this library.");
             DEBUG2("Found meta data version %d but expected %d", md->version, RAID5_METADATA_VERSION);
             return METADATA_ERROR;
         }
-        /* TODO: implement backwards compatibility */
 
         fscanf(fp, "%64s", md->hash_dev0);
         fscanf(fp, "%64s", md->hash_dev1);
         fscanf(fp, "%64s", md->hash_dev2);
         fscanf(fp, "%64s", md->hash_in);
         fread(md->salt, sizeof(unsigned char), ENCRYPTION_SALT_BYTES, fp);
-        fscanf(fp, "%4x", & (md->missing));
-        return 0;
+        if(md->version == RAID5_METADATA_VERSION_2) {
+            fscanf(fp, "%4x", & (md->missing));
+            md->block_size = RAID5BLOCKSIZE;
+        } else {
+            fscanf(fp, "%8x", & (md->missing));
+            fscanf(fp, "%8x", & (md->block_size));
+        }
+        if(md->version >= RAID5_METADATA_VERSION) {
+            fscanf(fp, "%8x", & (md->chunk_stripes));
+            if(md->chunk_stripes == 0) {
+                return METADATA_ERROR;
+            }
+        }
+        return check_block_size(md->block_size) ? METADATA_ERROR : 0;
     }
     return METADATA_ERROR;
 }
 
+/**
+ * Read the meta data from the `len` characters in `*buf` and store it in the
+ * raid5 meta data object `*md`. This is the in-memory counterpart of
+ * `read_metadata()`. The function returns 0 on success or METADATA_ERROR.
+ */
+LIBEXPORT int read_metadata_buffer(const unsigned char *buf, const size_t len, raid5md *md)
+{
+    char hex[9];
+    if(buf == NULL || md == NULL || len < 2) {
+        return METADATA_ERROR;
+    }
+    new_metadata(md);    /* clean the metadata */
+
+    memcpy(hex, buf, 2);
+    hex[2] = '\0';
+    md->version = (unsigned char) strtoul(hex, NULL, 16);
+    if(check_metadata_version(md->version) != 0 || len < metadata_length(md)) {
+        DEBUGPRINT("The meta data read from the buffer is not suitable for this library.");
+        DEBUG2("Found meta data version %d but expected %d", md->version, RAID5_METADATA_VERSION);
+        return METADATA_ERROR;
+    }
+    buf += 2;
+    memcpy(md->hash_dev0, buf, 64);
+    buf += 64;
+    memcpy(md->hash_dev1, buf, 64);
+    buf += 64;
+    memcpy(md->hash_dev2, buf, 64);
+    buf += 64;
+    memcpy(md->hash_in, buf, 64);
+    buf += 64;
+    memcpy(md->salt, buf, ENCRYPTION_SALT_BYTES);
+    buf += ENCRYPTION_SALT_BYTES;
+    if(md->version == RAID5_METADATA_VERSION_2) {
+        memcpy(hex, buf, 4);
+        hex[4] = '\0';
+        md->missing = (unsigned int) strtoul(hex, NULL, 16);
+        md->block_size = RAID5BLOCKSIZE;
+    } else {
+        memcpy(hex, buf, 8);
+        hex[8] = '\0';
+        md->missing = (unsigned int) strtoul(hex, NULL, 16);
+        buf += 8;
+        memcpy(hex, buf, 8);
+        md->block_size = (unsigned int) strtoul(hex, NULL, 16);
+    }
+    if(md->version >= RAID5_METADATA_VERSION) {
+        buf += 8;
+        memcpy(hex, buf, 8);
+        md->chunk_stripes = (unsigned int) strtoul(hex, NULL, 16);
+        if(md->chunk_stripes == 0) {
+            return METADATA_ERROR;
+        }
+    }
+    return check_block_size(md->block_size) ? METADATA_ERROR : 0;
+}
+
 /**
  * Set the hash `hash[65]` for a certain index `idx` in the raid5 meta data
  * object `*md`. Index will be used as follows:
@@ -753,12 +1849,62 @@ LIBEXPORT int write_metadata(FILE *fp, raid5md *md)
         fprintf(fp, "%64s", md->hash_dev2);
         fprintf(fp, "%64s", md->hash_in);
         fwrite(md->salt, sizeof(unsigned char), ENCRYPTION_SALT_BYTES, fp);
-        fprintf(fp, "%04x", md->missing);
+        if(md->version == RAID5_METADATA_VERSION_2) {
+            fprintf(fp, "%04x", md->missing);
+        } else {
+            fprintf(fp, "%08x", md->missing);
+            fprintf(fp, "%08x", md->block_size);
+        }
+        if(md->version >= RAID5_METADATA_VERSION) {
+            fprintf(fp, "%08x", md->chunk_stripes);
+        }
         return 0;
     }
     return METADATA_ERROR;
 }
 
+/**
+ * Write the meta data `*md` to the buffer `*buf` of `len` characters in the
+ * same format as `write_metadata()`.
+ */
+LIBEXPORT int write_metadata_buffer(unsigned char *buf, const size_t len, raid5md *md)
+{
+    char tmp[65];
+    if(buf == NULL || md == NULL || len < metadata_length(md)) {
+        return METADATA_ERROR;
+    }
+    sprintf(tmp, "%02x", md->version);
+    memcpy(buf, tmp, 2);
+    buf += 2;
+    sprintf(tmp, "%64s", md->hash_dev0);
+    memcpy(buf, tmp, 64);
+    buf += 64;
+    sprintf(tmp, "%64s", md->hash_dev1);
+    memcpy(buf, tmp, 64);
+    buf += 64;
+    sprintf(tmp, "%64s", md->hash_dev2);
+    memcpy(buf, tmp, 64);
+    buf += 64;
+    sprintf(tmp, "%64s", md->hash_in);
+    memcpy(buf, tmp, 64);
+    buf += 64;
+    memcpy(buf, md->salt, ENCRYPTION_SALT_BYTES);
+    buf += ENCRYPTION_SALT_BYTES;
+    if(md->version == RAID5_METADATA_VERSION_2) {
+        sprintf(tmp, "%04x", md->missing & 0xffff);
+        memcpy(buf, tmp, 4);
+    } else {
+        sprintf(tmp, "%08x%08x", md->missing, md->block_size);
+        memcpy(buf, tmp, 16);
+        buf += 16;
+    }
+    if(md->version >= RAID5_METADATA_VERSION) {
+        sprintf(tmp, "%08x", md->chunk_stripes);
+        memcpy(buf, tmp, 8);
+    }
+    return 0;
+}
+
 /**
  * Implements the mergeInterface method defined in the Java RaidAccessInterface
  * class.
@@ -878,7 +2024,7 @@ end:
  * class.
  */
 JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitInterface
-(JNIEnv *env, jclass cls, jstring _inputBasePath, jstring _inputFilePath, jstring _tempOutputDirPath, jstring _key)
+(JNIEnv *env, jclass cls, jstring _inputBasePath, jstring _inputFilePath, jstring _tempOutputDirPath, jstring _key, jint blockSize)
 {
     /* Convert the Java Strings to char arrays for usage in this C program. */
     const char *inputBasePath = (*env)->GetStringUTFChars(env, _inputBasePath, 0);
@@ -966,7 +2112,7 @@ JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAcc
     }
 
     /* Invoke the native split method. */
-    status |= split_file(fp, devices, meta, key, keyLength);
+    status |= split_file(fp, devices, meta, key, keyLength, blockSize);
     DEBUG1("Split finished with status %d", status);
 
 end:
@@ -1012,6 +2158,556 @@ end:
     return (*env)->NewStringUTF(env, retvalue);
 }
 
+/**
+ * The number of characters copied from a Java array at once.
+ */
+#define JNI_COPY_BYTES (64 * 1024)
+
+/**
+ * State of a split that is fed from Java via `splitWrite()`. It is handed to
+ * Java as an opaque handle by `splitOpen()` and released by `splitClose()`.
+ */
+typedef struct raid5_split_stream {
+    raid5_split_ctx ctx;
+    FILE *devices[3];
+    FILE *meta;
+    char *outputBaseName;
+    int tmpLength;
+    unsigned char *buf;
+} raid5_split_stream;
+
+/**
+ * Implements the splitOpen method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitOpen
+(JNIEnv *env, jclass cls, jstring _inputFilePath, jstring _tempOutputDirPath, jstring _key, jint blockSize)
+{
+    const char *inputFilePath = (*env)->GetStringUTFChars(env, _inputFilePath, 0);
+    const char *tempOutputDirPath = (*env)->GetStringUTFChars(env, _tempOutputDirPath, 0);
+    const unsigned char *key = (unsigned char *)(*env)->GetStringUTFChars(env, _key, 0);
+    const int keyLength = (*env)->GetStringLength(env, _key);
+    const int tmpLength = strlen(tempOutputDirPath);
+
+    unsigned char i;
+    raid5_split_stream *stream = NULL;
+
+    stream = (raid5_split_stream *) calloc(1, sizeof(raid5_split_stream));
+    if(stream == NULL) {
+        DEBUGPRINT("Cannot allocate memory for split stream");
+        goto end;
+    }
+
+    /* construct base output path:
+     *  - tmpfolder: tmpLength bytes, including ending slash /
+     *  - hash:      64 bytes
+     *  - extension: 2 bytes for .i
+     *  - \0:        1 byte
+     */
+    stream->tmpLength = tmpLength;
+    stream->outputBaseName = (char *) calloc(tmpLength + 64 + 2 + 1, sizeof(unsigned char));
+    stream->buf = (unsigned char *) calloc(JNI_COPY_BYTES, sizeof(unsigned char));
+    if(stream->outputBaseName == NULL || stream->buf == NULL) {
+        stream->ctx.status |= OPENERR_IN;
+        DEBUGPRINT("Cannot allocate memory for output path");
+        goto end;
+    }
+    memcpy(stream->outputBaseName, tempOutputDirPath, tmpLength);
+    /* build the hash */
+    sha256_data((unsigned char *) inputFilePath, strlen(inputFilePath), (unsigned char *) &stream->outputBaseName[ tmpLength ]);
+
+    /* open the files */
+    for(i = 0; i < 3; i++) {
+        sprintf(&stream->outputBaseName[ tmpLength + 64 ], ".%c", i + 0x30);
+        DEBUG1("Split output path for device file %d is %s", i, stream->outputBaseName);
+        stream->devices[i] = fopen(stream->outputBaseName, "wb");
+        if(stream->devices[i] == NULL) {
+            stream->ctx.status |= OPENERR_DEV0 << i;
+            DEBUGPRINT("Cannot open device for split");
+            goto end;
+        }
+    }
+
+    sprintf(&stream->outputBaseName[ tmpLength + 64 ], ".m");
+    DEBUG1("Split output path for meta data file is %s", stream->outputBaseName);
+    stream->meta = fopen(stream->outputBaseName, "wb");
+    if(stream->meta == NULL) {
+        stream->ctx.status |= METADATA_ERROR;
+        DEBUGPRINT("Cannot open meta data file for split");
+        goto end;
+    }
+
+    split_init(&stream->ctx, stream->devices, key, keyLength, blockSize);
+
+end:
+    (*env)->ReleaseStringUTFChars(env, _inputFilePath, inputFilePath);
+    (*env)->ReleaseStringUTFChars(env, _tempOutputDirPath, tempOutputDirPath);
+    (*env)->ReleaseStringUTFChars(env, _key, (char *)key);
+    return (jlong)(intptr_t) stream;
+}
+
+/**
+ * Implements the splitWrite method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitWrite
+(JNIEnv *env, jclass cls, jlong handle, jbyteArray _buf, jint off, jint len)
+{
+    raid5_split_stream *stream = (raid5_split_stream *)(intptr_t) handle;
+    jint l;
+
+    if(stream == NULL) {
+        return MEMERR_BUF;
+    }
+    while(len > 0 && stream->ctx.status == 0) {
+        l = (len < JNI_COPY_BYTES) ? len : JNI_COPY_BYTES;
+        (*env)->GetByteArrayRegion(env, _buf, off, l, (jbyte *) stream->buf);
+        if((*env)->ExceptionCheck(env)) {
+            stream->ctx.status |= OPENERR_IN;
+            break;
+        }
+        split_update(&stream->ctx, stream->buf, l);
+        off += l;
+        len -= l;
+    }
+    return stream->ctx.status;
+}
+
+/**
+ * Implements the splitClose method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitClose
+(JNIEnv *env, jclass cls, jlong handle)
+{
+    raid5_split_stream *stream = (raid5_split_stream *)(intptr_t) handle;
+    char retvalue[65];
+    int status;
+    unsigned char i;
+
+    if(stream == NULL) {
+        status = MEMERR_BUF;
+    } else {
+        status = split_final(&stream->ctx, stream->meta);
+        /* Close the files. */
+        for(i = 0; i < 3; i++) {
+            if(stream->devices[i] != NULL) {
+                fclose(stream->devices[i]);
+            }
+        }
+        if(stream->meta != NULL && fclose(stream->meta) != 0) {
+            status = (status | METADATA_ERROR) & ~SUCCESS_SPLIT;
+        }
+    }
+
+    if(status & SUCCESS_SPLIT) {
+        DEBUGPRINT("Split succeeded.");
+        memcpy(retvalue, &stream->outputBaseName[ stream->tmpLength ], 64);
+        retvalue[64] = '\0';
+        DEBUG2("Hash is %s", retvalue);
+    } else {
+        DEBUGPRINT("Split failed.");
+        retvalue[0] = ((status & 0xff00) >> 8) ^ 0xff;
+        retvalue[1] = ((status & 0x00ff)) ^ 0xff;
+        retvalue[2] = '\0';
+        /* Do not leave partially written device files behind. */
+        if(stream != NULL && stream->devices[0] != NULL) {
+            for(i = 0; i < 3; i++) {
+                sprintf(&stream->outputBaseName[ stream->tmpLength + 64 ], ".%c", i + 0x30);
+                remove(stream->outputBaseName);
+            }
+            sprintf(&stream->outputBaseName[ stream->tmpLength + 64 ], ".m");
+            remove(stream->outputBaseName);
+        }
+    }
+
+    if(stream != NULL) {
+        if(stream->buf != NULL) {
+            free(stream->buf);
+        }
+        if(stream->outputBaseName != NULL) {
+            free(stream->outputBaseName);
+        }
+        free(stream);
+    }
+    return (*env)->NewStringUTF(env, retvalue);
+}
+
+/**
+ * State of a merge that is fed from Java via `mergeBlock()`. It is handed to
+ * Java as an opaque handle by `mergeOpen()` and released by `mergeClose()`.
+ */
+typedef struct raid5_merge_stream {
+    raid5_merge_ctx ctx;
+    unsigned char *in;
+    unsigned char *out;
+} raid5_merge_stream;
+
+/**
+ * Implements the mergeOpen method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeOpen
+(JNIEnv *env, jclass cls, jbyteArray _metadata, jint deadDevice, jstring _key)
+{
+    const unsigned char *key = (unsigned char *)(*env)->GetStringUTFChars(env, _key, 0);
+    const int keyLength = (*env)->GetStringLength(env, _key);
+    const jsize mdLength = (*env)->GetArrayLength(env, _metadata);
+
+    raid5_merge_stream *stream = NULL;
+    unsigned char *mdbuf = NULL;
+    raid5md metadata;
+
+    stream = (raid5_merge_stream *) calloc(1, sizeof(raid5_merge_stream));
+    if(stream == NULL) {
+        DEBUGPRINT("Cannot allocate memory for merge stream");
+        goto end;
+    }
+    mdbuf = (unsigned char *) calloc(mdLength + 1, sizeof(unsigned char));
+    if(mdbuf == NULL) {
+        stream->ctx.status |= MEMERR_BUF;
+        DEBUGPRINT("Cannot allocate memory for meta data");
+        goto end;
+    }
+    if(deadDevice < 0 || deadDevice > 2) {
+        stream->ctx.status |= OPENERR_IN;
+        DEBUGPRINT("Invalid dead device for merge");
+        goto end;
+    }
+
+    (*env)->GetByteArrayRegion(env, _metadata, 0, mdLength, (jbyte *) mdbuf);
+    if(read_metadata_buffer(mdbuf, mdLength, &metadata) != 0) {
+        stream->ctx.status |= METADATA_ERROR;
+        DEBUGPRINT("Cannot read meta data for merge");
+        goto end;
+    }
+
+    stream->in = (unsigned char *) calloc(3 * metadata.block_size, sizeof(unsigned char));
+    stream->out = (unsigned char *) calloc(2 * metadata.block_size, sizeof(unsigned char));
+    if(stream->in == NULL || stream->out == NULL) {
+        stream->ctx.status |= MEMERR_BUF;
+        DEBUGPRINT("Cannot allocate memory for merge buffers");
+        goto end;
+    }
+
+    merge_init(&stream->ctx, &metadata, (unsigned char) deadDevice, key, keyLength);
+
+end:
+    if(mdbuf != NULL) {
+        free(mdbuf);
+    }
+    (*env)->ReleaseStringUTFChars(env, _key, (char *)key);
+    return (jlong)(intptr_t) stream;
+}
+
+/**
+ * Implements the mergeBlock method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeBlock
+(JNIEnv *env, jclass cls, jlong handle, jbyteArray _in, jintArray _inLen, jboolean last, jbyteArray _out)
+{
+    raid5_merge_stream *stream = (raid5_merge_stream *)(intptr_t) handle;
+    jint inLen[3];
+    size_t in_len[3], out_len = 0, bs;
+    int i;
+
+    if(stream == NULL || stream->ctx.status != 0) {
+        return -1;
+    }
+    bs = stream->ctx.metadata.block_size;
+
+    (*env)->GetIntArrayRegion(env, _inLen, 0, 3, inLen);
+    for(i = 0; i < 3; i++) {
+        if(inLen[i] < 0 || inLen[i] > bs) {
+            stream->ctx.status |= OPENERR_IN;
+            return -1;
+        }
+        in_len[i] = inLen[i];
+        if(in_len[i] > 0) {
+            (*env)->GetByteArrayRegion(env, _in, i * bs, inLen[i], (jbyte *) &stream->in[i * bs]);
+        }
+    }
+    if((*env)->ExceptionCheck(env)) {
+        stream->ctx.status |= OPENERR_IN;
+        return -1;
+    }
+
+    if(merge_update(&stream->ctx, stream->in, in_len, last, stream->out, &out_len) != 0) {
+        return -1;
+    }
+    (*env)->SetByteArrayRegion(env, _out, 0, out_len, (jbyte *) stream->out);
+    return out_len;
+}
+
+/**
+ * Implements the mergeClose method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeClose
+(JNIEnv *env, jclass cls, jlong handle)
+{
+    raid5_merge_stream *stream = (raid5_merge_stream *)(intptr_t) handle;
+    int status;
+
+    if(stream == NULL) {
+        return MEMERR_BUF;
+    }
+    status = merge_final(&stream->ctx);
+    DEBUG1("Merge finished with status %d", status);
+
+    if(stream->in != NULL) {
+        free(stream->in);
+    }
+    if(stream->out != NULL) {
+        free(stream->out);
+    }
+    free(stream);
+    return status;
+}
+
+/**
+ * Resolve the three direct buffers `dev0`, `dev1` and `dev2` into `buf[]` and
+ * `cap[]` and read the offsets from `_offset` into `pos[]`. A NULL buffer is
+ * allowed and results in a NULL address with capacity 0.
+ *
+ * Returns 0 on success or -1 if a buffer is not a direct buffer or an offset
+ * is out of range.
+ */
+static int get_device_buffers(JNIEnv *env, jobject dev0, jobject dev1, jobject dev2, jintArray _offset, unsigned char *buf[], size_t cap[], size_t pos[])
+{
+    jobject devs[3];
+    jint offset[3];
+    jlong c;
+    int i;
+
+    devs[0] = dev0;
+    devs[1] = dev1;
+    devs[2] = dev2;
+    (*env)->GetIntArrayRegion(env, _offset, 0, 3, offset);
+    if((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    for(i = 0; i < 3; i++) {
+        buf[i] = NULL;
+        cap[i] = 0;
+        pos[i] = 0;
+        if(devs[i] != NULL) {
+            buf[i] = (unsigned char *)(*env)->GetDirectBufferAddress(env, devs[i]);
+            c = (*env)->GetDirectBufferCapacity(env, devs[i]);
+            if(buf[i] == NULL || c < 0) {
+                DEBUGPRINT("Not a direct buffer");
+                return -1;
+            }
+            cap[i] = c;
+        }
+        if(offset[i] < 0 || offset[i] > cap[i]) {
+            DEBUG2("Invalid offset %d for device buffer %d", offset[i], i);
+            return -1;
+        }
+        pos[i] = offset[i];
+    }
+    return 0;
+}
+
+/**
+ * Write the offsets `pos[]` back to the Java int array `_offset`.
+ */
+static void set_device_offsets(JNIEnv *env, jintArray _offset, const size_t pos[])
+{
+    jint offset[3];
+    int i;
+
+    for(i = 0; i < 3; i++) {
+        offset[i] = pos[i];
+    }
+    (*env)->SetIntArrayRegion(env, _offset, 0, 3, offset);
+}
+
+/**
+ * Implements the mergeBuffer method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_mergeBuffer
+(JNIEnv *env, jclass cls, jlong handle, jobject dev0, jobject dev1, jobject dev2, jintArray _devOffset, jintArray _devLimit, jboolean last, jobject _out, jint outOffset)
+{
+    raid5_merge_stream *stream = (raid5_merge_stream *)(intptr_t) handle;
+    unsigned char *buf[3], *out;
+    size_t cap[3], pos[3], lim[3], in_len[3], avail[3], out_cap, out_len, written = 0, bs;
+    jint devLimit[3];
+    int i, d, stripe_last, complete;
+
+    if(stream == NULL || stream->ctx.status != 0) {
+        return -1;
+    }
+
+    bs = stream->ctx.metadata.block_size;
+    out = (unsigned char *)(*env)->GetDirectBufferAddress(env, _out);
+    out_cap = (*env)->GetDirectBufferCapacity(env, _out);
+    (*env)->GetIntArrayRegion(env, _devLimit, 0, 3, devLimit);
+    if(out == NULL || outOffset < 0 || outOffset > out_cap || (*env)->ExceptionCheck(env)
+            || get_device_buffers(env, dev0, dev1, dev2, _devOffset, buf, cap, pos) != 0) {
+        stream->ctx.status |= OPENERR_IN;
+        return -1;
+    }
+    for(i = 0; i < 3; i++) {
+        if(i == stream->ctx.dead_device) {
+            lim[i] = pos[i];
+        } else if(buf[i] == NULL || devLimit[i] < pos[i] || devLimit[i] > cap[i]) {
+            DEBUG2("Invalid limit for device buffer %d", i);
+            stream->ctx.status |= OPENERR_DEV0 << i;
+            return -1;
+        } else {
+            lim[i] = devLimit[i];
+        }
+    }
+
+    out += outOffset;
+    out_cap -= outOffset;
+    while(out_cap - written >= 2 * bs) {
+        /*
+         * The primary device is stored at [0], the secondary at [1] and the
+         * parity at [2]. Unless the end of the devices is available, the
+         * non-parity devices must provide at least one byte of the next stripe
+         * to tell whether this is the last stripe.
+         */
+        complete = 1;
+        for(i = 0; i < 3; i++) {
+            avail[i] = lim[i] - pos[i];
+            if(!last && i != stream->ctx.dead_device && avail[i] < bs + (i != stream->ctx.parity_pos)) {
+                complete = 0;
+            }
+        }
+        if(!complete) {
+            break;
+        }
+
+        stripe_last = 0;
+        for(i = 0; i < 3; i++) {
+            d = (i == 2) ? stream->ctx.parity_pos : (stream->ctx.parity_pos + 1 + i) % 3;
+            in_len[i] = (avail[d] < bs) ? avail[d] : bs;
+            if(d != stream->ctx.dead_device && d != stream->ctx.parity_pos && avail[d] == in_len[i]) {
+                stripe_last = 1;
+            }
+        }
+        if(in_len[0] + in_len[1] + in_len[2] == 0) {
+            break;
+        }
+        for(i = 0; i < 3; i++) {
+            d = (i == 2) ? stream->ctx.parity_pos : (stream->ctx.parity_pos + 1 + i) % 3;
+            memcpy(&stream->in[i * bs], &buf[d][pos[d]], in_len[i]);
+            pos[d] += in_len[i];
+        }
+
+        if(merge_update(&stream->ctx, stream->in, in_len, stripe_last, &out[written], &out_len) != 0) {
+            return -1;
+        }
+        written += out_len;
+    }
+
+    set_device_offsets(env, _devOffset, pos);
+    return written;
+}
+
+/**
+ * Implements the splitBufferOpen method defined in the Java
+ * RaidAccessInterface class.
+ */
+JNIEXPORT jlong JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBufferOpen
+(JNIEnv *env, jclass cls, jstring _key, jint blockSize)
+{
+    const unsigned char *key = (unsigned char *)(*env)->GetStringUTFChars(env, _key, 0);
+    const int keyLength = (*env)->GetStringLength(env, _key);
+    raid5_split_stream *stream = NULL;
+
+    stream = (raid5_split_stream *) calloc(1, sizeof(raid5_split_stream));
+    if(stream == NULL) {
+        DEBUGPRINT("Cannot allocate memory for split stream");
+    } else {
+        split_init(&stream->ctx, NULL, key, keyLength, blockSize);
+    }
+
+    (*env)->ReleaseStringUTFChars(env, _key, (char *)key);
+    return (jlong)(intptr_t) stream;
+}
+
+/**
+ * Implements the splitBuffer method defined in the Java RaidAccessInterface
+ * class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBuffer
+(JNIEnv *env, jclass cls, jlong handle, jobject _in, jint offset, jint length, jobject dev0, jobject dev1, jobject dev2, jintArray _devOffset)
+{
+    raid5_split_stream *stream = (raid5_split_stream *)(intptr_t) handle;
+    unsigned char *in, *buf[3];
+    size_t cap[3], pos[3];
+
+    if(stream == NULL) {
+        return MEMERR_BUF;
+    }
+    if(stream->ctx.status != 0) {
+        return stream->ctx.status;
+    }
+
+    in = (unsigned char *)(*env)->GetDirectBufferAddress(env, _in);
+    if(in == NULL || offset < 0 || length < 0 || (jlong) offset + length > (*env)->GetDirectBufferCapacity(env, _in)) {
+        stream->ctx.status |= OPENERR_IN;
+        DEBUGPRINT("Invalid input buffer for split");
+        return stream->ctx.status;
+    }
+    if(get_device_buffers(env, dev0, dev1, dev2, _devOffset, buf, cap, pos) != 0) {
+        stream->ctx.status |= OPENERR_OUT;
+        return stream->ctx.status;
+    }
+
+    split_set_buffers(&stream->ctx, buf, cap, pos);
+    split_update(&stream->ctx, &in[offset], length);
+    set_device_offsets(env, _devOffset, stream->ctx.dev_pos);
+    return stream->ctx.status;
+}
+
+/**
+ * Implements the splitBufferClose method defined in the Java
+ * RaidAccessInterface class.
+ */
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_splitBufferClose
+(JNIEnv *env, jclass cls, jlong handle, jobject dev0, jobject dev1, jobject dev2, jintArray _devOffset, jbyteArray _metadata)
+{
+    raid5_split_stream *stream = (raid5_split_stream *)(intptr_t) handle;
+    unsigned char *buf[3], *mdbuf = NULL;
+    size_t cap[3], pos[3];
+    int status;
+
+    if(stream == NULL) {
+        return MEMERR_BUF;
+    }
+
+    mdbuf = (unsigned char *) calloc(RAID5_METADATA_BYTES, sizeof(unsigned char));
+    if(mdbuf == NULL) {
+        stream->ctx.status |= MEMERR_BUF;
+        DEBUGPRINT("Cannot allocate memory for meta data");
+    } else if(_metadata == NULL || (*env)->GetArrayLength(env, _metadata) < RAID5_METADATA_BYTES) {
+        stream->ctx.status |= METADATA_ERROR;
+        DEBUGPRINT("Split aborted");
+    } else if(get_device_buffers(env, dev0, dev1, dev2, _devOffset, buf, cap, pos) != 0) {
+        stream->ctx.status |= OPENERR_OUT;
+    } else {
+        split_set_buffers(&stream->ctx, buf, cap, pos);
+    }
+
+    status = split_final_buffer(&stream->ctx, mdbuf, RAID5_METADATA_BYTES);
+    if(status & SUCCESS_SPLIT) {
+        set_device_offsets(env, _devOffset, stream->ctx.dev_pos);
+        (*env)->SetByteArrayRegion(env, _metadata, 0, RAID5_METADATA_BYTES, (jbyte *) mdbuf);
+    }
+
+    if(mdbuf != NULL) {
+        free(mdbuf);
+    }
+    free(stream);
+    return status;
+}
+
 JNIEXPORT jstring JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getName
 (JNIEnv *env, jclass cls)
 {
@@ -1035,3 +2731,27 @@ JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccess
 {
     return RAID5_METADATA_BYTES;
 }
+
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getBlockSize
+(JNIEnv *env, jclass cls)
+{
+    return RAID5BLOCKSIZE;
+}
+
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getMaxBlockSize
+(JNIEnv *env, jclass cls)
+{
+    return RAID5MAXBLOCKSIZE;
+}
+
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_getThreadCount
+(JNIEnv *env, jclass cls)
+{
+    return get_thread_count();
+}
+
+JNIEXPORT jint JNICALL Java_de_dhbw_1mannheim_cloudraid_core_impl_jni_RaidAccessInterface_setThreadCount
+(JNIEnv *env, jclass cls, jint threads)
+{
+    return set_thread_count(threads);
+}
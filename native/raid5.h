@@ -24,9 +24,11 @@
 #define RAID5_H 1
 
 #include "defines.h"
+#include "aes.h"
 #include "rc4.h"
 #include "utils.h"
 #include "sha2.h"
+#include "threads.h"
 
 #include <stdio.h>
 #include <stddef.h>
@@ -35,10 +37,35 @@
 #define ENCRYPT_DATA 1
 #endif
 
+/*
+ * The default block size. Every device contributes up to one block to a
+ * stripe. Files split with this block size use meta data version 2.
+ */
 #ifndef RAID5BLOCKSIZE
 #define RAID5BLOCKSIZE 1024
 #endif
 
+#ifndef RAID5MAXBLOCKSIZE
+#define RAID5MAXBLOCKSIZE (16 * 1024 * 1024)
+#endif
+
+/*
+ * The number of device characters covered by one hash chunk. The checksums
+ * of meta data version 5 are computed over chunks of whole stripes so that
+ * the stripes of a file can be processed in parallel.
+ */
+#ifndef RAID5CHUNKSIZE
+#define RAID5CHUNKSIZE (1024 * 1024)
+#endif
+
+/*
+ * The maximum number of input characters split or merged at once by all
+ * threads together.
+ */
+#ifndef RAID5BATCHSIZE
+#define RAID5BATCHSIZE (64 * 1024 * 1024)
+#endif
+
 #define _VERSION_ "1.0.0"
 #define _NAME_ "CloudRAID-RAID5"
 #define _VENDOR_ "CloudRAID Team"
@@ -53,6 +80,7 @@
 #define OPENERR_OUT    0x0080
 #define METADATA_ERROR 0x0100
 #define SUCCESS_SPLIT  0x0200
+#define BLOCKSIZE_ERROR 0x0400
 
 #define METADATA_MISS_DEV0    0x01
 #define METADATA_MISS_DEV1    0x02
@@ -68,6 +96,31 @@ extern "C"
 {
 #endif
 
+    /**
+     * The cipher of a file. Meta data version 4 and later use AES-128 in
+     * counter mode, older versions RC4. The counter mode allows to encrypt
+     * and decrypt any part of a file independently via `cipher_crypt_at()`.
+     */
+    typedef struct raid5_cipher {
+        int aes;
+        rc4_key rc4key;
+        aes_ctr_key aeskey;
+        unsigned long long offset;
+    } raid5_cipher;
+
+    /**
+     * A checksum over chunks of `chunk_len` characters: the SHA-256 of the
+     * concatenated SHA-256 digests of all chunks. The last chunk may be
+     * shorter, an empty input has no chunks. If `chunk_len` is 0, it is the
+     * plain SHA-256 of the input.
+     */
+    typedef struct chunk_hash {
+        sha256_ctx tree;
+        sha256_ctx chunk;
+        size_t chunk_len;
+        size_t fill;
+    } chunk_hash;
+
     typedef struct raid5md {
         unsigned char version;
         unsigned char hash_dev0[65];
@@ -76,25 +129,115 @@ extern "C"
         unsigned char hash_in[65];
         unsigned char salt[ENCRYPTION_SALT_BYTES];
         unsigned int missing;
+        unsigned int block_size;
+        unsigned int chunk_stripes;
     } raid5md;
 
-    static const unsigned char RAID5_METADATA_VERSION = 2;
-    static const unsigned int RAID5_METADATA_BYTES = 2 + 4 * 64 + ENCRYPTION_SALT_BYTES + 4;
-
-    void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsigned int parity_pos, const unsigned int dead_device, const unsigned int missing, unsigned char *out, size_t *out_len);
-    void split_byte_block(const unsigned char *in, const size_t in_len, unsigned char *out, size_t out_len[]);
+    /**
+     * State of an incremental split. The input is fed in arbitrarily sized
+     * chunks via `split_update()` and collected in `chars` until `cap`
+     * characters are available. This allows splitting data while it is still
+     * being received without staging it to disk first. The collected stripes
+     * are encrypted, split and hashed by up to `threads` threads.
+     *
+     * If no device files are given, the device data is written to the memory
+     * buffers set by `split_set_buffers()` instead. In this case all complete
+     * stripes are split at the end of every `split_update()`.
+     */
+    typedef struct raid5_split_ctx {
+        unsigned char *chars;
+        unsigned char *parity;
+        void *tasks;
+        size_t block_size;
+        size_t cap;
+        size_t fill;
+        size_t dev_len[3];
+        unsigned long long stripes;
+        int threads;
+        chunk_hash hash[4];
+        raid5_cipher cipher;
+        raid5md metadata;
+        FILE *devices[3];
+        unsigned char *dev_buf[3];
+        size_t dev_cap[3];
+        size_t dev_pos[3];
+        int status;
+    } raid5_split_ctx;
+
+    /**
+     * State of an incremental merge. The stripes are passed one by one to
+     * `merge_update()` which allows merging data while it is still being
+     * received from the storage devices.
+     */
+    typedef struct raid5_merge_ctx {
+        unsigned char parity_pos;
+        unsigned char dead_device;
+        unsigned long long stripes;
+        chunk_hash hash;
+        raid5_cipher cipher;
+        raid5md metadata;
+        int status;
+    } raid5_merge_ctx;
+
+    /*
+     * Version 2 implies the default block size. Version 3 additionally
+     * stores the block size and allows `missing` to exceed 16 bit. Both are
+     * encrypted with RC4. Version 4 has the layout of version 3 and is
+     * encrypted with AES-128 in counter mode. Version 5 additionally stores
+     * the number of stripes per hash chunk, its checksums are chunk hashes.
+     * Versions before 5 are only read. `RAID5_METADATA_BYTES` is the size of
+     * the largest meta data.
+     */
+    static const unsigned char RAID5_METADATA_VERSION_2 = 2;
+    static const unsigned char RAID5_METADATA_VERSION_3 = 3;
+    static const unsigned char RAID5_METADATA_VERSION_4 = 4;
+    static const unsigned char RAID5_METADATA_VERSION = 5;
+    static const unsigned int RAID5_METADATA_V2_BYTES = 2 + 4 * 64 + ENCRYPTION_SALT_BYTES + 4;
+    static const unsigned int RAID5_METADATA_V3_BYTES = 2 + 4 * 64 + ENCRYPTION_SALT_BYTES + 8 + 8;
+    static const unsigned int RAID5_METADATA_BYTES = 2 + 4 * 64 + ENCRYPTION_SALT_BYTES + 8 + 8 + 8;
+
+    void merge_byte_block(const unsigned char *in, const size_t in_len[], const unsigned int parity_pos, const unsigned int dead_device, const unsigned int missing, unsigned char *out, size_t *out_len, const size_t block_size);
+    void split_byte_block(const unsigned char *in, const size_t in_len, unsigned char *out, size_t out_len[], const size_t block_size);
 
     LIBEXPORT int merge_file(FILE *out, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen);
-    LIBEXPORT int split_file(FILE *in, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen);
+    LIBEXPORT int split_file(FILE *in, FILE *devices[], FILE *meta, const unsigned char *key, const int keylen, const size_t block_size);
+
+    LIBEXPORT int merge_init(raid5_merge_ctx *ctx, const raid5md *metadata, const unsigned char dead_device, const unsigned char *key, const int keylen);
+    LIBEXPORT int merge_update(raid5_merge_ctx *ctx, const unsigned char *in, const size_t in_len[], const int last, unsigned char *out, size_t *out_len);
+    LIBEXPORT int merge_final(raid5_merge_ctx *ctx);
+
+    LIBEXPORT int split_init(raid5_split_ctx *ctx, FILE *devices[], const unsigned char *key, const int keylen, const size_t block_size);
+    LIBEXPORT int split_update(raid5_split_ctx *ctx, const unsigned char *in, size_t in_len);
+    LIBEXPORT int split_final(raid5_split_ctx *ctx, FILE *meta);
+    LIBEXPORT int split_final_buffer(raid5_split_ctx *ctx, unsigned char *meta, const size_t meta_len);
+    LIBEXPORT void split_set_buffers(raid5_split_ctx *ctx, unsigned char *buf[], const size_t cap[], const size_t pos[]);
+
+    LIBEXPORT int set_parity_kernel(const char *name);
+    LIBEXPORT const char *get_parity_kernel(void);
+
+    LIBEXPORT int cipher_init(raid5_cipher *cipher, const raid5md *md, const unsigned char *key, const int keylen);
+    LIBEXPORT void cipher_crypt(raid5_cipher *cipher, unsigned char *buf, const size_t len);
+    LIBEXPORT int cipher_crypt_at(const raid5_cipher *cipher, unsigned char *buf, const size_t len, const unsigned long long offset);
+
+    LIBEXPORT void chunk_hash_init(chunk_hash *h, const size_t chunk_len);
+    LIBEXPORT void chunk_hash_update(chunk_hash *h, const unsigned char *data, size_t len);
+    LIBEXPORT void chunk_hash_add(chunk_hash *h, const unsigned char digest[SHA256_DIGEST_LENGTH]);
+    LIBEXPORT void chunk_hash_end(unsigned char hash[65], chunk_hash *h);
+    LIBEXPORT int build_chunk_hash_file(FILE *fp, const size_t chunk_len, unsigned char hash[65]);
 
+    LIBEXPORT int check_block_size(const size_t block_size);
+    LIBEXPORT int check_metadata_version(const unsigned char version);
     LIBEXPORT int cmp_metadata(raid5md *md1, raid5md *md2);
     LIBEXPORT int cmp_metadata_hash(raid5md *md1, raid5md *md2, const int idx);
     LIBEXPORT int create_metadata(FILE *devices[], raid5md *md);
     LIBEXPORT void new_metadata(raid5md *md);
     LIBEXPORT void print_metadata(raid5md *md);
     LIBEXPORT int read_metadata(FILE *fp, raid5md *md);
+    LIBEXPORT int read_metadata_buffer(const unsigned char *buf, const size_t len, raid5md *md);
+    LIBEXPORT size_t metadata_length(const raid5md *md);
     LIBEXPORT void set_metadata_hash(raid5md *md, const int idx, const unsigned char hash[65]);
     LIBEXPORT int write_metadata(FILE *fp, raid5md *md);
+    LIBEXPORT int write_metadata_buffer(unsigned char *buf, const size_t len, raid5md *md);
 
 #ifdef __cplusplus
 }
@@ -54,7 +54,7 @@ LIBEXPORT void rc4(unsigned char *buffer_ptr, int buffer_len, rc4_key *key)
     unsigned char y;
     unsigned char *state = NULL;
     unsigned char xorIndex;
-    short counter;
+    int counter;
 
     x = key->x;
     y = key->y;
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "aes.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+static void from_hex(const char *hex, unsigned char *out)
+{
+    unsigned int i, b;
+    for(i = 0; hex[2 * i] != '\0'; i++) {
+        sscanf(&hex[2 * i], "%2x", &b);
+        out[i] = (unsigned char) b;
+    }
+}
+
+/**
+ * Check the CTR mode of the current AES implementation against the test
+ * vectors at every offset and length. Returns the number of failures.
+ */
+static int check_ctr(void)
+{
+    /* NIST SP 800-38A F.5.1, CTR-AES128.Encrypt */
+    const char *ctr_key = "2b7e151628aed2a6abf7158809cf4f3c";
+    const char *ctr_iv = "f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff";
+    const char *ctr_in = "6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e5130c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710";
+    const char *ctr_out = "874d6191b620e3261bef6864990db6ce9806f66b7970fdff8617187bb9fffdff5ae4df3edbd5d35e5b4f09020db03eab1e031dda2fbe03d1792170a0f3009cee";
+    const char *carry_iv = "0000000000000000ffffffffffffffff";
+    const char *carry_ctr = "00000000000000010000000000000000";
+    unsigned char key_data[16], iv[16], in[64], expected[64], buf[64];
+    aes_ctr_key key;
+    int status = 0;
+    unsigned int off, len;
+
+    printf("Checking SP 800-38A CTR (%s) ... ", get_aes_kernel());
+    from_hex(ctr_key, key_data);
+    from_hex(ctr_iv, iv);
+    aes_ctr_init(&key, key_data, iv);
+    from_hex(ctr_in, in);
+    from_hex(ctr_out, expected);
+    for(off = 0; off < 64; off++) {
+        for(len = 0; off + len <= 64; len++) {
+            memcpy(buf, in, 64);
+            aes_ctr_crypt(&buf[off], len, off, &key);
+            if(memcmp(&buf[off], &expected[off], len) != 0) {
+                break;
+            }
+        }
+        if(off + len <= 64) {
+            break;
+        }
+    }
+    if(off == 64) {
+        printf("CORRECT!\n");
+    } else {
+        printf("FALSE at offset %u, length %u!\n", off, len);
+        status++;
+    }
+
+    /* The second counter block carries into the upper 64 bit */
+    printf("Checking CTR carry (%s) ... ", get_aes_kernel());
+    from_hex(carry_iv, iv);
+    aes_ctr_init(&key, key_data, iv);
+    from_hex(carry_ctr, in);
+    aes_encrypt_block(&key, in, expected);
+    memset(buf, 0, 64);
+    aes_ctr_crypt(buf, 64, 0, &key);
+    if(memcmp(&buf[16], expected, 16) == 0) {
+        printf("CORRECT!\n");
+    } else {
+        printf("FALSE!\n");
+        status++;
+    }
+    return status;
+}
+
+int main(void)
+{
+    /* FIPS-197 appendix C.1 */
+    const char *fips_key = "000102030405060708090a0b0c0d0e0f";
+    const char *fips_in = "00112233445566778899aabbccddeeff";
+    const char *fips_out = "69c4e0d86a7b0430d8cdb78070b4c55a";
+    const char *kernels[] = {"soft", "aesni"};
+    unsigned char key_data[16], iv[16], in[16], out[16], expected[16];
+    aes_ctr_key key;
+    int status = 0;
+    unsigned int k;
+
+    printf("Running test for AES:\n\n");
+
+    printf("Checking FIPS-197 block ... ");
+    from_hex(fips_key, key_data);
+    memset(iv, 0, sizeof(iv));
+    aes_ctr_init(&key, key_data, iv);
+    from_hex(fips_in, in);
+    from_hex(fips_out, expected);
+    aes_encrypt_block(&key, in, out);
+    if(memcmp(out, expected, 16) == 0) {
+        printf("CORRECT!\n");
+    } else {
+        printf("FALSE!\n");
+        status++;
+    }
+
+    for(k = 0; k < sizeof(kernels) / sizeof(kernels[0]); k++) {
+        if(set_aes_kernel(kernels[k]) == 0) {
+            status += check_ctr();
+        }
+    }
+    printf("\n");
+
+    return status;
+}
@@ -33,12 +33,356 @@
 #define BENCHSIZE 13056
 #endif
 
+#ifndef SPLITBLOCKSIZE
+#define SPLITBLOCKSIZE RAID5BLOCKSIZE
+#endif
+
 #define MAXSIZE 10737418240 /* 10 GiB */
 
+#ifndef PARITYBENCHSIZE
+#define PARITYBENCHSIZE 1073741824 /* 1 GiB */
+#endif
+
+static const char *kernels[] = {"byte", "word", "sse2", "avx2"};
+
+#if BENCHMARK != 1
+/**
+ * Split and merge blocks of various lengths with every parity kernel
+ * supported by the CPU and compare the result with the byte-wise kernel.
+ * Returns the number of failures.
+ */
+static int check_parity_kernels(void)
+{
+    const size_t block_size = 1000; /* not a multiple of any vector width */
+    const size_t lengths[] = {0, 1, 7, 8, 15, 16, 31, 33, 999, 1000, 1001, 1017, 1999, 2000};
+    const char *selected = get_parity_kernel();
+    unsigned char *in, *expected, *out, *merged;
+    size_t out_len[3], expected_len[3], in_len[3], merged_len;
+    unsigned int l, k, dead;
+    int failures = 0;
+
+    in = (unsigned char *) malloc(2 * block_size);
+    expected = (unsigned char *) calloc(3 * block_size, 1);
+    out = (unsigned char *) calloc(3 * block_size, 1);
+    merged = (unsigned char *) calloc(2 * block_size, 1);
+    if(!in || !expected || !out || !merged) {
+        fprintf(stderr, "Cannot allocate memory for the parity check!\n");
+        return 1;
+    }
+    for(l = 0; l < 2 * block_size; l++) {
+        in[l] = (unsigned char)((l * l + l) % 256);
+    }
+
+    for(k = 0; k < sizeof(kernels) / sizeof(kernels[0]); k++) {
+        if(set_parity_kernel(kernels[k]) != 0) {
+            printf("Parity kernel %s not supported\n", kernels[k]);
+            continue;
+        }
+        printf("Checking parity kernel %s ... ", get_parity_kernel());
+        for(l = 0; l < sizeof(lengths) / sizeof(lengths[0]); l++) {
+            set_parity_kernel("byte");
+            split_byte_block(in, lengths[l], expected, expected_len, block_size);
+            set_parity_kernel(kernels[k]);
+            split_byte_block(in, lengths[l], out, out_len, block_size);
+            if(memcmp(out_len, expected_len, sizeof(out_len)) != 0 ||
+                    memcmp(&out[0], &expected[0], out_len[0]) != 0 ||
+                    memcmp(&out[block_size], &expected[block_size], out_len[1]) != 0 ||
+                    memcmp(&out[2 * block_size], &expected[2 * block_size], out_len[2]) != 0) {
+                printf("FALSE for split of %lu bytes!\n", (unsigned long) lengths[l]);
+                failures++;
+                break;
+            }
+            /* parity_pos 2: device 0 is the primary, device 1 the secondary */
+            for(dead = 0; dead < 3; dead++) {
+                memcpy(in_len, out_len, sizeof(in_len));
+                if(dead < 2) {
+                    memset(&out[dead * block_size], 0, block_size);
+                }
+                merge_byte_block(out, in_len, 2, dead, out_len[0] - out_len[1], merged, &merged_len, block_size);
+                if(merged_len != lengths[l] ||
+                        memcmp(merged, in, out_len[0]) != 0 ||
+                        memcmp(&merged[block_size], &in[block_size], out_len[1]) != 0) {
+                    printf("FALSE for merge of %lu bytes without device %u!\n", (unsigned long) lengths[l], dead);
+                    failures++;
+                    break;
+                }
+                memcpy(out, expected, 3 * block_size);
+            }
+            if(dead < 3) {
+                break;
+            }
+        }
+        if(l == sizeof(lengths) / sizeof(lengths[0])) {
+            printf("CORRECT!\n");
+        }
+    }
+
+    free(in);
+    free(expected);
+    free(out);
+    free(merged);
+    set_parity_kernel(selected);
+    return failures;
+}
+#endif
+
+#if CHECKING == 1
+/**
+ * Read the file `*fp` from the start into a new buffer of `*len` characters.
+ */
+static unsigned char *read_all(FILE *fp, size_t *len)
+{
+    unsigned char *buf;
+    fseek(fp, 0, SEEK_END);
+    *len = ftell(fp);
+    rewind(fp);
+    buf = (unsigned char *) malloc(*len + 1);
+    if(buf != NULL && fread(buf, 1, *len, fp) != *len) {
+        free(buf);
+        buf = NULL;
+    }
+    return buf;
+}
+
+/**
+ * Split a file of several hash chunks with one and with four threads and
+ * merge it again without each of the devices. The device files and the meta
+ * data MUST be identical for both thread counts if the salt is empty.
+ * Returns the number of failures.
+ */
+static int check_threads(void)
+{
+    const size_t size = 5 * 2 * RAID5CHUNKSIZE + 777;
+    const int threads[] = {1, 4};
+    unsigned char *data, *merged, *buf[2][4] = {{NULL, NULL, NULL, NULL}, {NULL, NULL, NULL, NULL}};
+    size_t len[2][4] = {{0, 0, 0, 0}, {0, 0, 0, 0}}, l;
+    FILE *in, *files[2][4] = {{NULL, NULL, NULL, NULL}, {NULL, NULL, NULL, NULL}}, *devices[3], *out;
+    int t, i, dead, status, failures = 0;
+
+    data = (unsigned char *) malloc(size);
+    in = tmpfile();
+    if(data == NULL || in == NULL) {
+        fprintf(stderr, "Cannot create the input for the thread check!\n");
+        return 1;
+    }
+    for(l = 0; l < size; l++) {
+        data[l] = (unsigned char)((l * l + l) % 251);
+    }
+    fwrite(data, 1, size, in);
+
+    for(t = 0; t < 2; t++) {
+        printf("Checking %d thread(s) ... ", threads[t]);
+        set_thread_count(threads[t]);
+        for(i = 0; i < 4; i++) {
+            files[t][i] = tmpfile();
+        }
+        rewind(in);
+        status = split_file(in, files[t], files[t][3], (unsigned char *) "password", 8, RAID5BLOCKSIZE);
+        if((status & SUCCESS_SPLIT) == 0) {
+            printf("FALSE for split (%d)!\n", status);
+            failures++;
+            continue;
+        }
+        for(i = 0; i < 4; i++) {
+            buf[t][i] = read_all(files[t][i], &len[t][i]);
+        }
+
+        for(dead = 0; dead < 3; dead++) {
+            for(i = 0; i < 3; i++) {
+                devices[i] = (i == dead) ? NULL : files[t][i];
+                if(devices[i] != NULL) {
+                    rewind(devices[i]);
+                }
+            }
+            rewind(files[t][3]);
+            out = tmpfile();
+            status = merge_file(out, devices, files[t][3], (unsigned char *) "password", 8);
+            fflush(out);
+            merged = read_all(out, &l);
+            fclose(out);
+            if((status & SUCCESS_MERGE) == 0 || merged == NULL || l != size || memcmp(merged, data, size) != 0) {
+                printf("FALSE for merge without device %d (%d)!\n", dead, status);
+                failures++;
+                free(merged);
+                break;
+            }
+            free(merged);
+        }
+        if(dead == 3) {
+            printf("CORRECT!\n");
+        }
+    }
+
+#ifdef EMPTY_SALT
+    printf("Comparing the split of 1 and 4 threads ... ");
+    for(i = 0; i < 4; i++) {
+        if(buf[0][i] == NULL || buf[1][i] == NULL || len[0][i] != len[1][i] || memcmp(buf[0][i], buf[1][i], len[0][i]) != 0) {
+            printf("FALSE for file %d!\n", i);
+            failures++;
+            break;
+        }
+    }
+    if(i == 4) {
+        printf("CORRECT!\n");
+    }
+#endif
+
+    for(t = 0; t < 2; t++) {
+        for(i = 0; i < 4; i++) {
+            free(buf[t][i]);
+            if(files[t][i] != NULL) {
+                fclose(files[t][i]);
+            }
+        }
+    }
+    set_thread_count(0);
+    free(data);
+    fclose(in);
+    return failures;
+}
+
+/**
+ * Split a file and merge it with every device either changed in one
+ * character or shortened by one character. The merge MUST find the damaged
+ * device and leave it out. Returns the number of failures.
+ */
+static int check_corrupt_devices(void)
+{
+    const size_t size = 3 * 2 * RAID5CHUNKSIZE + 333;
+    unsigned char *data, *merged, *buf[4] = {NULL, NULL, NULL, NULL};
+    size_t len[4], l;
+    FILE *in, *files[4], *devices[3], *out;
+    int i, d, kind, status, failures = 0;
+
+    data = (unsigned char *) malloc(size);
+    in = tmpfile();
+    for(i = 0; i < 4; i++) {
+        files[i] = tmpfile();
+    }
+    if(data == NULL || in == NULL) {
+        fprintf(stderr, "Cannot create the input for the corruption check!\n");
+        return 1;
+    }
+    for(l = 0; l < size; l++) {
+        data[l] = (unsigned char)((l * 7 + l / 13) % 253);
+    }
+    fwrite(data, 1, size, in);
+    rewind(in);
+    status = split_file(in, files, files[3], (unsigned char *) "password", 8, RAID5BLOCKSIZE);
+    for(i = 0; i < 3; i++) {
+        buf[i] = read_all(files[i], &len[i]);
+    }
+    if((status & SUCCESS_SPLIT) == 0) {
+        printf("FALSE for split (%d)!\n", status);
+        failures++;
+        goto end;
+    }
+
+    for(kind = 0; kind < 2; kind++) {
+        for(d = 0; d < 3; d++) {
+            printf("Checking merge with %s device %d ... ", (kind == 0) ? "changed" : "shortened", d);
+            for(i = 0; i < 3; i++) {
+                devices[i] = tmpfile();
+                l = (i == d && kind == 1) ? len[i] - 1 : len[i];
+                fwrite(buf[i], 1, l, devices[i]);
+                if(i == d && kind == 0) {
+                    fseek(devices[i], len[i] / 2, SEEK_SET);
+                    fputc(buf[i][len[i] / 2] ^ 0x55, devices[i]);
+                }
+                rewind(devices[i]);
+            }
+            out = tmpfile();
+            rewind(files[3]);
+            status = merge_file(out, devices, files[3], (unsigned char *) "password", 8);
+            fflush(out);
+            merged = read_all(out, &l);
+            if((status & SUCCESS_MERGE) == 0 || merged == NULL || l != size || memcmp(merged, data, size) != 0) {
+                printf("FALSE (%d)!\n", status);
+                failures++;
+            } else {
+                printf("CORRECT!\n");
+            }
+            free(merged);
+            fclose(out);
+            for(i = 0; i < 3; i++) {
+                fclose(devices[i]);
+            }
+        }
+    }
+
+end:
+    for(i = 0; i < 4; i++) {
+        free(buf[i]);
+        fclose(files[i]);
+    }
+    free(data);
+    fclose(in);
+    return failures;
+}
+#endif
+
+#if PARITYBENCH == 1
+/**
+ * Measure the throughput of `split_byte_block()` and `merge_byte_block()` with
+ * every parity kernel supported by the CPU. The data is held in memory, so
+ * only the parity computation and the copying are measured.
+ */
+static void benchmark_parity_kernels(void)
+{
+    const size_t block_size = 64 * 1024;
+    const unsigned long rounds = PARITYBENCHSIZE / (2 * block_size);
+    unsigned char *in, *out, *merged;
+    size_t out_len[3], merged_len;
+    struct timeval start, end;
+    float elapsed_split, elapsed_merge;
+    unsigned long r;
+    unsigned int k;
+
+    in = (unsigned char *) malloc(2 * block_size);
+    out = (unsigned char *) malloc(3 * block_size);
+    merged = (unsigned char *) malloc(2 * block_size);
+    if(!in || !out || !merged) {
+        fprintf(stderr, "Cannot allocate memory for the parity benchmark!\n");
+        return;
+    }
+    for(r = 0; r < 2 * block_size; r++) {
+        in[r] = (unsigned char)((r * r + r) % 256);
+    }
+
+    for(k = 0; k < sizeof(kernels) / sizeof(kernels[0]); k++) {
+        if(set_parity_kernel(kernels[k]) != 0) {
+            continue;
+        }
+        gettimeofday(&start, NULL);
+        for(r = 0; r < rounds; r++) {
+            in[r % (2 * block_size)]++; /* keep the compiler from hoisting the loop */
+            split_byte_block(in, 2 * block_size - (r & 1), out, out_len, block_size);
+        }
+        gettimeofday(&end, NULL);
+        elapsed_split = ((end.tv_sec - start.tv_sec) * 1000000.0f + end.tv_usec - start.tv_usec) / 1000.0f;
+
+        gettimeofday(&start, NULL);
+        for(r = 0; r < rounds; r++) {
+            /* the primary device is dead: xor and not are both needed */
+            merge_byte_block(out, out_len, 2, 0, out_len[0] - out_len[1], merged, &merged_len, block_size);
+            out[r % (3 * block_size)]++;
+        }
+        gettimeofday(&end, NULL);
+        elapsed_merge = ((end.tv_sec - start.tv_sec) * 1000000.0f + end.tv_usec - start.tv_usec) / 1000.0f;
+
+        printf("\"kernel\";\"%s\";\"split\";\"%.3f\";\"merge\";\"%.3f\";\"bytes\";\"%lu\"\n", kernels[k], elapsed_split, elapsed_merge, rounds * 2 * block_size);
+    }
+
+    free(in);
+    free(out);
+    free(merged);
+}
+#endif
+
 int main(void)
 {
     unsigned long bs;
-    int i, status;
+    int i, status, failures = 0;
     FILE *fp[5] = {NULL, NULL, NULL, NULL, NULL};
     char *filename[] = {"test_raid5.dat",
                         "test_raid5.dev0.dat",
@@ -53,20 +397,35 @@ int main(void)
     unsigned char *ascii = NULL;
     char *assumed[] = {"3b6f5cf4c8c3e8b6c6894da81c1fcea588db14d088c5970c1b98faed940b2ce4",
                        "",
-                       "7d325d944a81a11c86b904ddd113d418bb1de188db55a14654cc489cb761f011",
-                       "ea9a1b730b11572714cedc1cdf3d3dd31b37283b608587661edf6e781c05f5fe",
+                       "e6f5b4acd66e608e3f2ee6c9739eeb9686318319dc91c82f96648c0c05802e14",
+                       "d58db4f4f93425c6c551fa368ceb022e1977cc81c83ed76e6a7df02eefe38d48",
                        "3b6f5cf4c8c3e8b6c6894da81c1fcea588db14d088c5970c1b98faed940b2ce4",
-                       "27a24e8b433337896e1559fd0359cc4e2df9c9c2a085668f0f336c1553d5ab7c",
-                       "f7e1a1681fef523d4091b91d5d27ac56015698548ffc32a29ca521ba1926ea20"
+                       "4841ba0c9c7703e0039d48c74f3d06109c1e58e271a92f3e769a8366bbcf77b1",
+                       "5e6956e2dd9c61b8efde840a381f36ff5befd82ac11a00ff6c1fe36158326425"
                       };
 #endif
 
+#if PARITYBENCH == 1
+    benchmark_parity_kernels();
+    return 0;
+#endif
+
 #if BENCHMARK == 1
     struct timeval start, end;
     float elapsed_split, elapsed_merge;
 #else
     printf("Running test for RAID5:\n\n");
 #endif
+
+#if BENCHMARK != 1
+    failures = check_parity_kernels();
+    printf("\n");
+#endif
+#if CHECKING == 1
+    failures += check_threads();
+    failures += check_corrupt_devices();
+    printf("\n");
+#endif
     /* BENCHSIZE must be between 1 byte and MAXSIZE */
     if(BENCHSIZE < 0 || BENCHSIZE > MAXSIZE) {
         fprintf(stderr, "Aborting. BENCHSIZE out of range.\n");
@@ -113,13 +472,13 @@ int main(void)
     /** perform the split **/
 #if BENCHMARK == 1
     gettimeofday(&start, NULL);
-    split_file(fp[0], &fp[1], fp[4], (char *) "password", 8);
+    split_file(fp[0], &fp[1], fp[4], (unsigned char *) "password", 8, SPLITBLOCKSIZE);
     gettimeofday(&end, NULL);
     elapsed_split = ((end.tv_sec - start.tv_sec) * 1000000.0f + end.tv_usec - start.tv_usec) / 1000.0f;
 #else
     printf("Start split ... ");
     fflush(stdout);
-    status = split_file(fp[0], &fp[1], fp[4], (unsigned char *) "password", 8);
+    status = split_file(fp[0], &fp[1], fp[4], (unsigned char *) "password", 8, SPLITBLOCKSIZE);
     if((status & SUCCESS_SPLIT) == 0) {
         fprintf(stderr, "Return code of split does not include the success flag(%d). Got %d.\n", SUCCESS_SPLIT, status);
     }
@@ -215,6 +574,6 @@ int main(void)
 #if BENCHMARK == 1
     printf("\"split\";\"%.3f\";\"merge\";\"%.3f\";\"bytes\";\"%d\"\n", elapsed_split, elapsed_merge , BENCHSIZE);
 #endif
-    return status;
+    return status + failures;
 }
 
@@ -1,9 +1,11 @@
 #!/bin/bash
 TOTERR=0
+for splitbs in 1024 300 ; do
 for fileid in 1 2 3 ; do
     for i in {0..28} ; do
         BS=$(($i*256))
         gcc test_raid5.c -DCHECKING=0 -DBENCHSIZE=${BS} -DFILEID=${fileid}\
+            -DSPLITBLOCKSIZE=${splitbs} \
             -Wall -pedantic -g "./build/usr/lib/libcloudraid.so" \
             -o "./testing/test_raid5_${BS}"
 
@@ -18,9 +20,9 @@ for fileid in 1 2 3 ; do
         in=${in:0:64}
         out=${out:0:64}
         if [ "${in}" == "${out}" ] ; then
-            echo "${BS} CORRECT"
+            echo "${BS} (${splitbs}) CORRECT"
         else
-            echo "${BS} FALSE"
+            echo "${BS} (${splitbs}) FALSE"
             if [ $RC -eq 0 ] ; then
                 TOTERR=$(($TOTERR+1))
             fi
@@ -29,4 +31,5 @@ for fileid in 1 2 3 ; do
     done
     rm test_raid5.*dat testing/test_raid5_*
 done
+done
 exit $TOTERR
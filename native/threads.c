@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "threads.h"
+
+#include <stdlib.h>
+
+#ifdef _WIN32
+#define THREADS_NONE 1
+#else
+#include <pthread.h>
+#include <unistd.h>
+#endif
+
+/*
+ * A minimal fork/join helper for the split and merge of large files. The
+ * calling thread and up to `threads - 1` additional threads take the tasks
+ * one by one until all are done. The threads only live for one call, which
+ * is cheap compared to the megabytes processed by each of them.
+ *
+ * Without pthreads all tasks are run by the calling thread.
+ */
+
+static int thread_count = 0;
+
+typedef struct task_queue {
+    task_func_t func;
+    unsigned char *tasks;
+    size_t task_size;
+    size_t count;
+    size_t next;
+} task_queue;
+
+/**
+ * Returns the number of threads used by `run_tasks()`. Unless set by
+ * `set_thread_count()` this is the number of online processors.
+ */
+LIBEXPORT int get_thread_count(void)
+{
+    long n = 1;
+    if(thread_count > 0) {
+        return thread_count;
+    }
+#if !defined(THREADS_NONE) && defined(_SC_NPROCESSORS_ONLN)
+    n = sysconf(_SC_NPROCESSORS_ONLN);
+#endif
+    return (n > 0) ? (int) n : 1;
+}
+
+/**
+ * Set the number of threads used by `run_tasks()`. A value of 0 selects the
+ * number of online processors. Returns the number of threads now in use.
+ */
+LIBEXPORT int set_thread_count(const int threads)
+{
+    thread_count = (threads > 0) ? threads : 0;
+#ifdef THREADS_NONE
+    thread_count = 1;
+#endif
+    return get_thread_count();
+}
+
+static void *task_worker(void *arg)
+{
+    task_queue *queue = (task_queue *) arg;
+    size_t i;
+
+    while((i = __sync_fetch_and_add(&queue->next, 1)) < queue->count) {
+        queue->func(&queue->tasks[i * queue->task_size]);
+    }
+    return NULL;
+}
+
+/**
+ * Run `func` for each of the `count` tasks of `task_size` bytes in the array
+ * `*tasks` on at most `threads` threads and return when all are done. Tasks
+ * are started in array order.
+ */
+LIBEXPORT void run_tasks(task_func_t func, void *tasks, const size_t task_size, const size_t count, int threads)
+{
+    task_queue queue;
+    size_t i;
+#ifndef THREADS_NONE
+    pthread_t *ids = NULL;
+    int started = 0;
+#endif
+
+    queue.func = func;
+    queue.tasks = (unsigned char *) tasks;
+    queue.task_size = task_size;
+    queue.count = count;
+    queue.next = 0;
+
+    if(threads > (int) count) {
+        threads = (int) count;
+    }
+#ifndef THREADS_NONE
+    if(threads > 1) {
+        ids = (pthread_t *) calloc(threads - 1, sizeof(pthread_t));
+    }
+    for(i = 0; ids != NULL && i < (size_t) threads - 1; i++) {
+        if(pthread_create(&ids[started], NULL, task_worker, &queue) == 0) {
+            started++;
+        }
+    }
+#endif
+    task_worker(&queue);
+#ifndef THREADS_NONE
+    for(i = 0; i < (size_t) started; i++) {
+        pthread_join(ids[i], NULL);
+    }
+    if(ids != NULL) {
+        free(ids);
+    }
+#endif
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+#ifndef THREADS_H
+#define THREADS_H 1
+
+#include "defines.h"
+
+#include <stddef.h>
+
+#ifdef __cplusplus
+extern "C"
+{
+#endif
+
+    /**
+     * A function processing the task `*task`. Tasks of one call of
+     * `run_tasks()` MUST be independent of each other.
+     */
+    typedef void (*task_func_t)(void *task);
+
+    LIBEXPORT int get_thread_count(void);
+    LIBEXPORT int set_thread_count(const int threads);
+    LIBEXPORT void run_tasks(task_func_t func, void *tasks, const size_t task_size, const size_t count, int threads);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
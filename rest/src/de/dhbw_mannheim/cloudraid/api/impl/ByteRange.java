@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.api.impl;
+
+import de.dhbw_mannheim.cloudraid.api.responses.IRestApiResponse;
+
+/**
+ * A single byte range of a <code>Range</code> header as defined by RFC 2616,
+ * section 14.35.
+ * 
+ * @author Markus Holtermann
+ * 
+ */
+public class ByteRange {
+
+	/**
+	 * Parses a <code>Range</code> header for a file of <code>size</code>
+	 * bytes that is sent with <code>resp</code>. The
+	 * <code>Content-Range</code> counts the bytes of the file, so ranges are
+	 * ignored for compressed responses.
+	 * 
+	 * @param header
+	 *            The value of the <code>Range</code> header.
+	 * @param size
+	 *            The size of the file.
+	 * @param resp
+	 *            The response the range is sent with.
+	 * @return The range or <code>null</code> if the header is invalid,
+	 *         requests multiple ranges or the response is compressed.
+	 */
+	public static ByteRange parse(String header, long size,
+			IRestApiResponse resp) {
+		if (resp.isCompressed()) {
+			return null;
+		}
+		return ByteRange.parse(header, size);
+	}
+
+	/**
+	 * Parses a <code>Range</code> header for a file of <code>size</code>
+	 * bytes. Only a single range is supported.
+	 * 
+	 * @param header
+	 *            The value of the <code>Range</code> header, e.g.
+	 *            <code>bytes=0-499</code>, <code>bytes=500-</code> or
+	 *            <code>bytes=-500</code>.
+	 * @param size
+	 *            The size of the file.
+	 * @return The range or <code>null</code> if the header is invalid or
+	 *         requests multiple ranges. In this case the header is ignored
+	 *         and the whole file is sent.
+	 */
+	public static ByteRange parse(String header, long size) {
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		String spec = header.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0 || spec.indexOf(',') >= 0) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.length() == 0) {
+				// The last bytes of the file
+				long suffix = Long.parseLong(last);
+				if (suffix < 0) {
+					return null;
+				}
+				return new ByteRange(Math.max(0, size - suffix), size - 1,
+						size);
+			}
+			long start = Long.parseLong(first);
+			long end = last.length() == 0 ? Long.MAX_VALUE : Long
+					.parseLong(last);
+			if (start < 0 || end < start) {
+				return null;
+			}
+			return new ByteRange(start, Math.min(end, size - 1), size);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private long start;
+	private long end;
+	private long size;
+
+	private ByteRange(long start, long end, long size) {
+		this.start = start;
+		this.end = end;
+		this.size = size;
+	}
+
+	/**
+	 * @return The value of the <code>Content-Range</code> header, e.g.
+	 *         <code>bytes 0-499/1234</code> or <code>bytes *&#47;1234</code>
+	 *         if the range is not satisfiable.
+	 */
+	public String getContentRange() {
+		if (!this.isSatisfiable()) {
+			return "bytes */" + this.size;
+		}
+		return "bytes " + this.start + "-" + this.end + "/" + this.size;
+	}
+
+	/**
+	 * @return The index of the last byte of the range.
+	 */
+	public long getEnd() {
+		return this.end;
+	}
+
+	/**
+	 * @return The number of bytes in the range.
+	 */
+	public long getLength() {
+		return this.end - this.start + 1;
+	}
+
+	/**
+	 * @return The index of the first byte of the range.
+	 */
+	public long getStart() {
+		return this.start;
+	}
+
+	/**
+	 * @return <code>true</code> if the range overlaps the file. Otherwise the
+	 *         response is <code>416 Requested Range Not Satisfiable</code>.
+	 */
+	public boolean isSatisfiable() {
+		return this.start < this.size && this.start <= this.end;
+	}
+
+}
@@ -22,16 +22,17 @@
 
 package de.dhbw_mannheim.cloudraid.api.impl;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
@@ -87,6 +88,11 @@ public class RestApiServlet extends HttpServlet {
 	 * Indicates the version of the API.
 	 */
 	private static final String API_VERSION = "0.3";
+
+	/**
+	 * The size of the chunks a file is downloaded in
+	 */
+	private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
 	private ICloudRAIDConfig config;
 
 	private Pattern userpattern;
@@ -203,6 +209,10 @@ public class RestApiServlet extends HttpServlet {
 				this.coreService.getRAIDName() + " v"
 						+ this.coreService.getRAIDVersion() + " by "
 						+ this.coreService.getRAIDVendor());
+		resp.writeField("Upload-Queue-Depth",
+				String.valueOf(this.coreService.getUploadQueueDepth()));
+		resp.writeField("Upload-Queue-Age",
+				String.valueOf(this.coreService.getUploadQueueAge()));
 		resp.writeField("Metadata-Service",
 				bundleVersionFromClass(this.metadata.getClass()));
 		resp.writeField("Configuration-Service",
@@ -363,18 +373,33 @@ public class RestApiServlet extends HttpServlet {
 	 * View to download a file. Method must be <code>GET</code> and path pattern
 	 * <code>^/file/([^/]+)/$</code>.
 	 * 
+	 * A single byte range can be requested with a <code>Range</code> header,
+	 * optionally guarded by <code>If-Range</code> with the
+	 * <code>ETag</code> or <code>Last-Modified</code> of a previous response.
+	 * Only the stripes covering the range are retrieved from the storage
+	 * connectors. Ranges are ignored for files whose size is unknown and if
+	 * the response is compressed.
+	 * 
 	 * @param req
 	 *            The request. Needs following HTTP header attributes:
 	 *            <ul>
 	 *            <li><code>Cookie: NAME=VALUE</code></li>
 	 *            </ul>
+	 *            Optional HTTP header attributes:
+	 *            <ul>
+	 *            <li><code>Range: bytes=FIRST-LAST</code></li>
+	 *            <li><code>If-Range: ETAG</code> or
+	 *            <code>If-Range: DATE</code></li>
+	 *            </ul>
 	 * @param resp
 	 *            Status codes:
 	 *            <ul>
 	 *            <li>200 - Success</li>
+	 *            <li>206 - Partial Content</li>
 	 *            <li>401 - Not logged in</li>
 	 *            <li>404 - File not found</li>
 	 *            <li>405 - Session id not submitted via cookie</li>
+	 *            <li>416 - Requested range not satisfiable</li>
 	 *            <li>500 - Error retrieving the file data</li>
 	 *            <li>503 - Session does not exist</li>
 	 *            </ul>
@@ -397,45 +422,80 @@ public class RestApiServlet extends HttpServlet {
 			resp.setStatusCode(404);
 			return;
 		}
+
+		String etag = "\"" + cf.getHash() + "-" + cf.getLastMod() + "\"";
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Last-Modified", httpDate(cf.getLastMod()));
+		ByteRange range = null;
+		if (cf.getSize() >= 0) {
+			// A range of a compressed response would be sent with the
+			// offsets of the uncompressed file
+			resp.setHeader("Accept-Ranges", resp.isCompressed() ? "none"
+					: "bytes");
+			if (ifRange(req, etag, cf.getLastMod())) {
+				range = ByteRange.parse(req.getHeader("Range"), cf.getSize(),
+						resp);
+			}
+		}
+		if (range != null && !range.isSatisfiable()) {
+			resp.setHeader("Content-Range", range.getContentRange());
+			resp.setStatusCode(416);
+			return;
+		}
+
 		ICoreAccess slot = null;
 		int statusCode = 500;
-		BufferedInputStream bis = null;
-		BufferedOutputStream bos = null;
+		InputStream is = null;
 		int fileid = -1;
 		try {
 			slot = this.coreService.getSlot();
 			fileid = cf.getFileId();
-			int bufsize = 4096;
-
-			InputStream is = slot.getData(fileid);
-			bis = new BufferedInputStream(is, bufsize);
-			bos = new BufferedOutputStream(resp.getOutputStream(), bufsize);
-			byte[] inputBytes = new byte[bufsize];
-			int readLength;
-			int written = 0;
-			while ((readLength = bis.read(inputBytes)) != -1) {
-				bos.write(inputBytes, 0, readLength);
-				written += readLength;
+
+			if (range != null) {
+				is = slot.getData(fileid, range.getStart(), range.getLength());
+			} else {
+				is = slot.getData(fileid);
+			}
+			if (is == null) {
+				throw new IOException("Cannot retrieve the file data");
+			}
+			// An error while reading the first chunk can still be reported
+			byte[] inputBytes = new byte[RestApiServlet.DOWNLOAD_BUFFER_SIZE];
+			int readLength = fill(is, inputBytes);
+
+			// The status and headers have to be set before the body. If the
+			// size is unknown, the body is sent with chunked transfer
+			// encoding.
+			if (range != null) {
+				statusCode = 206;
+				resp.setHeader("Content-Range", range.getContentRange());
+				resp.setContentLength(range.getLength());
+			} else {
+				statusCode = 200;
+				if (cf.getSize() >= 0) {
+					resp.setContentLength(cf.getSize());
+				}
 			}
-			resp.setContentLength(written);
+			resp.setStatusCode(statusCode);
 			resp.setContentType("application/octet-stream");
-			resp.flush();
 
-			statusCode = 200;
+			// Every chunk is passed on to the client at once
+			OutputStream os = resp.getOutputStream();
+			while (readLength != -1) {
+				os.write(inputBytes, 0, readLength);
+				resp.flush();
+				readLength = fill(is, inputBytes);
+			}
 		} catch (InstantiationException e) {
+			statusCode = 500;
 			e.printStackTrace();
 		} catch (IOException e) {
+			statusCode = 500;
 			e.printStackTrace();
 		} finally {
 			try {
-				if (bis != null) {
-					bis.close();
-				}
-			} catch (IOException ignore) {
-			}
-			try {
-				if (bos != null) {
-					bos.close();
+				if (is != null) {
+					is.close();
 				}
 			} catch (IOException ignore) {
 			}
@@ -446,6 +506,74 @@ public class RestApiServlet extends HttpServlet {
 		resp.setStatusCode(statusCode);
 	}
 
+	/**
+	 * Reads from <code>is</code> until <code>buf</code> is full or the end of
+	 * the stream is reached. Merging streams return one stripe per read,
+	 * this way the client receives full chunks.
+	 * 
+	 * @return The number of bytes read or <code>-1</code> at the end of the
+	 *         stream.
+	 * @throws IOException
+	 *             Thrown if reading fails.
+	 */
+	private static int fill(InputStream is, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int r = is.read(buf, n, buf.length - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return (n == 0 && buf.length > 0) ? -1 : n;
+	}
+
+	/**
+	 * Formats a date for the HTTP headers as defined by RFC 1123.
+	 * 
+	 * @param time
+	 *            Milliseconds since 01/01/1970.
+	 * @return The formatted date, e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+	 *         .
+	 */
+	private static String httpDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * Evaluates the <code>If-Range</code> header of a request.
+	 * 
+	 * @param req
+	 *            The request.
+	 * @param etag
+	 *            The current entity tag of the file.
+	 * @param lastMod
+	 *            The date of the last modification of the file.
+	 * @return <code>true</code> if there is no <code>If-Range</code> header or
+	 *         it matches the current version of the file.
+	 */
+	private static boolean ifRange(HttpServletRequest req, String etag,
+			long lastMod) {
+		String value = req.getHeader("If-Range");
+		if (value == null) {
+			return true;
+		}
+		value = value.trim();
+		if (value.startsWith("\"") || value.startsWith("W/")) {
+			// Weak entity tags never match
+			return value.equals(etag);
+		}
+		try {
+			// HTTP dates have a resolution of one second
+			return req.getDateHeader("If-Range") / 1000 == lastMod / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
 	/**
 	 * View to upload a new file. Method must be <code>POST</code> and path
 	 * pattern <code>^/file/([^/]+)/$</code>.
@@ -33,11 +33,30 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class GZIPPlainApiResponse extends PlainApiResponse {
 
+	/**
+	 * The size of the compressed output buffer
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Override
+	public boolean isCompressed() {
+		return true;
+	}
+
+	/**
+	 * The length of the compressed body is unknown until it has been
+	 * written, so it is sent with chunked transfer encoding.
+	 */
+	@Override
+	public void setContentLength(long len) {
+	}
+
 	@Override
 	public void setResponseObject(HttpServletResponse resp) {
 		this.resp = resp;
 		try {
-			this.out = new GZIPOutputStream(resp.getOutputStream());
+			this.out = new GZIPOutputStream(resp.getOutputStream(),
+					BUFFER_SIZE);
 			this.setHeader("Content-Encoding", "gzip");
 		} catch (IOException e) {
 			e.printStackTrace();
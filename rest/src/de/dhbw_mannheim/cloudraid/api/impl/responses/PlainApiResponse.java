@@ -73,6 +73,11 @@ public class PlainApiResponse implements IRestApiResponse {
 		return this.out;
 	}
 
+	@Override
+	public boolean isCompressed() {
+		return false;
+	}
+
 	@Override
 	public void send() throws IOException {
 		if (this.resp != null && this.out != null) {
@@ -83,9 +88,13 @@ public class PlainApiResponse implements IRestApiResponse {
 	}
 
 	@Override
-	public void setContentLength(int len) {
+	public void setContentLength(long len) {
 		if (this.resp != null) {
-			this.resp.setContentLength(len);
+			if (len <= Integer.MAX_VALUE) {
+				this.resp.setContentLength((int) len);
+			} else {
+				this.resp.setHeader("Content-Length", String.valueOf(len));
+			}
 		}
 	}
 
@@ -93,6 +102,7 @@ public class PlainApiResponse implements IRestApiResponse {
 	public void setContentType(String type) {
 		if (this.resp != null) {
 			this.mime = type;
+			this.resp.setContentType(type);
 		}
 	}
 
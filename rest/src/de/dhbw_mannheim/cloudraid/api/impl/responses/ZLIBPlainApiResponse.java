@@ -33,6 +33,19 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class ZLIBPlainApiResponse extends PlainApiResponse {
 
+	@Override
+	public boolean isCompressed() {
+		return true;
+	}
+
+	/**
+	 * The length of the compressed body is unknown until it has been
+	 * written, so it is sent with chunked transfer encoding.
+	 */
+	@Override
+	public void setContentLength(long len) {
+	}
+
 	@Override
 	public void setResponseObject(HttpServletResponse resp) {
 		this.resp = resp;
@@ -53,6 +53,12 @@ public interface IRestApiResponse {
 	 */
 	public OutputStream getOutputStream() throws IOException;
 
+	/**
+	 * @return <code>true</code> if the body is compressed with a
+	 *         <code>Content-Encoding</code>.
+	 */
+	public boolean isCompressed();
+
 	/**
 	 * @throws IOException
 	 * 
@@ -60,12 +66,20 @@ public interface IRestApiResponse {
 	public void send() throws IOException;
 
 	/**
-	 * Set the content length to <code>len</code>
+	 * Set the content length to <code>len</code>. It has to be set before the
+	 * body is written. Compressing responses ignore it, their length is only
+	 * known after the body has been written.
 	 * 
 	 * @param len
 	 */
-	public void setContentLength(int len);
+	public void setContentLength(long len);
 
+	/**
+	 * Set the content type to <code>type</code>. It is applied at once if the
+	 * body has not been written yet.
+	 * 
+	 * @param type
+	 */
 	public void setContentType(String type);
 
 	/**
@@ -23,15 +23,16 @@
 package de.dhbw_mannheim.cloudraid.sugarsync.impl.net.connector;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.xml.parsers.DocumentBuilder;
@@ -45,7 +46,9 @@ import org.xml.sax.SAXException;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
 
 /**
  * The API wrapper for SugarSync.
@@ -55,6 +58,11 @@ import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
  */
 public class SugarSyncConnector implements IStorageConnector {
 
+	/**
+	 * The size of the buffer used to stream files to SugarSync.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private final static String APP_AUTH_URL = "https://api.sugarsync.com/app-authorization";
 	private final static String AUTH_URL = "https://api.sugarsync.com/authorization";
 	private static final String FILE_CREATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><file><displayName>%s</displayName><mediaType>application/cloudraid</mediaType></file>";
@@ -68,9 +76,13 @@ public class SugarSyncConnector implements IStorageConnector {
 	 */
 	private ICloudRAIDConfig config = null;
 
-	private String baseURL = null;
+	private volatile String baseURL = null;
 
-	private DocumentBuilder docBuilder;
+	/**
+	 * Creates a {@link DocumentBuilder} per request, as a builder must not be
+	 * used by multiple threads at once.
+	 */
+	private DocumentBuilderFactory docBuilderFactory;
 
 	private String accessToken = "";
 
@@ -86,10 +98,10 @@ public class SugarSyncConnector implements IStorageConnector {
 			"yyyy-MM-dd'T'hhmmss.S Z");
 
 	/**
-	 * This HashMap contains name -> URL mappings, where name is the name of a
+	 * This Map contains name -> URL mappings, where name is the name of a
 	 * resource and URL the regarding URL.
 	 */
-	private HashMap<String, String> urlCache = new HashMap<String, String>();
+	private Map<String, String> urlCache = new ConcurrentHashMap<String, String>();
 
 	@Override
 	public boolean connect() {
@@ -117,10 +129,9 @@ public class SugarSyncConnector implements IStorageConnector {
 			try {
 				con.getOutputStream().write(authReq.getBytes());
 				this.accessToken = con.getHeaderField("Location");
-				doc = this.docBuilder.parse(con.getInputStream());
-				con.getInputStream().close();
+				doc = this.parse(con.getInputStream());
 			} finally {
-				con.disconnect();
+				HttpConnections.release(con);
 			}
 			String expiration = doc.getElementsByTagName("expiration").item(0)
 					.getTextContent().trim();
@@ -164,6 +175,7 @@ public class SugarSyncConnector implements IStorageConnector {
 			throws InstantiationException {
 		this.id = connectorid;
 		this.config = config;
+		HttpConnections.configure(config);
 		String kUsername = String.format("connector.%d.username", this.id);
 		String kPassword = String.format("connector.%d.password", this.id);
 		String kAccessKey = String.format("connector.%d.accessKey", this.id);
@@ -211,11 +223,9 @@ public class SugarSyncConnector implements IStorageConnector {
 				}
 				this.refreshToken = config.getString(kRefresh);
 			}
-			this.docBuilder = null;
+			this.docBuilderFactory = DocumentBuilderFactory.newInstance();
 			try {
-				this.docBuilder = DocumentBuilderFactory.newInstance()
-						.newDocumentBuilder();
-				this.docBuilder.setErrorHandler(null);
+				this.docBuilderFactory.newDocumentBuilder();
 			} catch (ParserConfigurationException e) {
 				throw new InstantiationException(e.getMessage());
 			}
@@ -230,8 +240,10 @@ public class SugarSyncConnector implements IStorageConnector {
 	 * 
 	 * @param name
 	 *            The file name.
-	 * @param f
-	 *            The file to be uploaded.
+	 * @param data
+	 *            The content to be uploaded. It is closed afterwards.
+	 * @param length
+	 *            The number of bytes in <code>data</code>.
 	 * @param parent
 	 *            The URL to the parent.
 	 * @param create
@@ -244,7 +256,75 @@ public class SugarSyncConnector implements IStorageConnector {
 	 * @throws ParserConfigurationException
 	 *             Thrown, if the content cannot be parsed
 	 */
-	private void createFile(String name, File f, String parent, boolean create)
+	private void createFile(String name, InputStream data, long length,
+			String parent, boolean create) throws IOException, SAXException,
+			ParserConfigurationException {
+		try {
+			String url = createFile(name, parent, create);
+
+			// Stream the file with a known length, otherwise the connection
+			// buffers the whole body to compute it
+			HttpsURLConnection con = this.getConnection(url + "/data", "PUT");
+			con.setDoOutput(true);
+			con.setRequestProperty("Content-Type", "application/cloudraid");
+			if (length <= Integer.MAX_VALUE) {
+				con.setFixedLengthStreamingMode((int) length);
+			} else {
+				con.setChunkedStreamingMode(BUFFER_SIZE);
+			}
+			OutputStream os = null;
+			try {
+				con.connect();
+				os = con.getOutputStream();
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = data.read(buf)) >= 0) {
+					os.write(buf, 0, len);
+				}
+				os.close();
+				// Do not remove the following line.
+				int code = con.getResponseCode();
+				if (code >= 400) {
+					throw new IOException("Could not PUT " + name
+							+ " to SugarSync: " + code);
+				}
+			} finally {
+				try {
+					if (os != null) {
+						os.close();
+					}
+				} catch (IOException ignore) {
+				}
+				HttpConnections.release(con);
+			}
+		} finally {
+			try {
+				data.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	/**
+	 * Creates a file or a new version of a file on SugarSync without content
+	 * and caches its URL.
+	 * 
+	 * @param name
+	 *            The file name.
+	 * @param parent
+	 *            The URL to the parent.
+	 * @param create
+	 *            Indicates, if the resource should be created (true) or updated
+	 *            (false).
+	 * @return The URL of the file.
+	 * @throws IOException
+	 *             Thrown, if no data can be read
+	 * @throws SAXException
+	 *             Thrown, if the content cannot be parsed
+	 * @throws ParserConfigurationException
+	 *             Thrown, if the content cannot be parsed
+	 */
+	private String createFile(String name, String parent, boolean create)
 			throws IOException, SAXException, ParserConfigurationException {
 		HttpsURLConnection con;
 		String request = String.format(SugarSyncConnector.FILE_CREATION, name);
@@ -262,42 +342,12 @@ public class SugarSyncConnector implements IStorageConnector {
 			// Do not remove the following line.
 			con.getResponseCode();
 		} finally {
-			con.disconnect();
+			HttpConnections.release(con);
 		}
 
 		String url = con.getHeaderField("Location");
 		this.urlCache.put(name, url);
-
-		con = this.getConnection(url + "/data", "PUT");
-		con.setDoOutput(true);
-		con.setRequestProperty("Content-Type", "application/cloudraid");
-		OutputStream os = null;
-		InputStream is = null;
-		try {
-			con.connect();
-			os = con.getOutputStream();
-			is = new FileInputStream(f);
-			int i;
-			while ((i = is.read()) >= 0) {
-				os.write(i);
-			}
-			// Do not remove the following line.
-			con.getResponseCode();
-		} finally {
-			try {
-				if (os != null) {
-					os.close();
-				}
-			} catch (IOException ignore) {
-			}
-			try {
-				if (is != null) {
-					is.close();
-				}
-			} catch (IOException ignore) {
-			}
-			con.disconnect();
-		}
+		return url;
 	}
 
 	@Override
@@ -315,15 +365,25 @@ public class SugarSyncConnector implements IStorageConnector {
 
 	@Override
 	public void disconnect() {
+		System.out.println(HttpConnections.getStatistics());
 	}
 
 	@Override
 	public InputStream get(String resource) {
-		return performGet(resource, String.valueOf(this.id));
+		return performGet(resource, String.valueOf(this.id), -1, -1);
+	}
+
+	@Override
+	public InputStream get(String resource, long offset, long length) {
+		// Validate the range before connecting
+		RangedInputStream.header(offset, length);
+		return performGet(resource, String.valueOf(this.id), offset, length);
 	}
 
 	/**
-	 * Loads and caches the URL to the 'Magic Briefcase' folder.
+	 * Loads and caches the URL to the 'Magic Briefcase' folder. Concurrent
+	 * callers may load the URL more than once instead of waiting for each
+	 * other while holding a lock.
 	 * 
 	 * @return The URL to the 'Magic Briefcase' folder on SugarSync.
 	 * @throws IOException
@@ -333,7 +393,7 @@ public class SugarSyncConnector implements IStorageConnector {
 	 * @throws ParserConfigurationException
 	 *             Thrown, if the content cannot be parsed
 	 */
-	private synchronized String getBaseUrl() throws IOException, SAXException,
+	private String getBaseUrl() throws IOException, SAXException,
 			ParserConfigurationException {
 		if (this.baseURL == null) {
 			Document doc = null;
@@ -343,10 +403,9 @@ public class SugarSyncConnector implements IStorageConnector {
 			// Build the XML tree.
 			con.connect();
 			try {
-				doc = this.docBuilder.parse(con.getInputStream());
-				con.getInputStream().close();
+				doc = this.parse(con.getInputStream());
 			} finally {
-				con.disconnect();
+				HttpConnections.release(con);
 			}
 
 			Element node = (Element) doc.getDocumentElement()
@@ -356,6 +415,26 @@ public class SugarSyncConnector implements IStorageConnector {
 		return this.baseURL;
 	}
 
+	/**
+	 * Parses an XML document.
+	 * 
+	 * @param is
+	 *            The XML document.
+	 * @return The parsed document.
+	 * @throws SAXException
+	 *             Thrown, if the content cannot be parsed
+	 * @throws IOException
+	 *             Thrown, if the content cannot be read
+	 * @throws ParserConfigurationException
+	 *             Thrown, if no parser can be created
+	 */
+	private Document parse(InputStream is) throws SAXException, IOException,
+			ParserConfigurationException {
+		DocumentBuilder builder = this.docBuilderFactory.newDocumentBuilder();
+		builder.setErrorHandler(null);
+		return builder.parse(is);
+	}
+
 	/**
 	 * Creates an HTTPS connection with some predefined values
 	 * 
@@ -373,8 +452,8 @@ public class SugarSyncConnector implements IStorageConnector {
 	private HttpsURLConnection getConnection(String address, String method)
 			throws IOException {
 		System.out.println("getConnection: " + address);
-		HttpsURLConnection con = (HttpsURLConnection) new URL(address)
-				.openConnection();
+		HttpsURLConnection con = (HttpsURLConnection) HttpConnections
+				.open(address);
 		con.setRequestMethod(method);
 		con.setRequestProperty("User-Agent", "CloudRAID");
 		con.setRequestProperty("Accept", "*/*");
@@ -413,10 +492,9 @@ public class SugarSyncConnector implements IStorageConnector {
 		// Build the XML tree.
 		con.connect();
 		try {
-			doc = this.docBuilder.parse(con.getInputStream());
-			con.getInputStream().close();
+			doc = this.parse(con.getInputStream());
 		} finally {
-			con.disconnect();
+			HttpConnections.release(con);
 		}
 		NodeList nl = doc.getDocumentElement().getElementsByTagName("file");
 		for (int i = 0; i < nl.getLength(); i++) {
@@ -435,7 +513,7 @@ public class SugarSyncConnector implements IStorageConnector {
 
 	@Override
 	public byte[] getMetadata(String resource, int size) {
-		InputStream is = performGet(resource, "m");
+		InputStream is = performGet(resource, "m", -1, -1);
 		if (is == null) {
 			return null;
 		}
@@ -443,7 +521,12 @@ public class SugarSyncConnector implements IStorageConnector {
 		byte meta[] = new byte[size];
 		Arrays.fill(meta, (byte) 0);
 		try {
-			bis.read(meta, 0, size);
+			int pos = 0;
+			int len;
+			while (pos < size
+					&& (len = bis.read(meta, pos, size - pos)) >= 0) {
+				pos += len;
+			}
 		} catch (IOException ignore) {
 			meta = null;
 		} finally {
@@ -486,13 +569,32 @@ public class SugarSyncConnector implements IStorageConnector {
 				con.getOutputStream().write(authReq.getBytes());
 				return con.getHeaderField("Location");
 			} finally {
-				con.disconnect();
+				HttpConnections.release(con);
 			}
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	@Override
+	public boolean putMetadata(String resource, byte[] data) {
+		connect();
+		resource += ".m";
+		try {
+			this.createFile(resource, new ByteArrayInputStream(data),
+					data.length, this.getBaseUrl(),
+					this.getFileURL(resource) == null);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (SAXException e) {
+			e.printStackTrace();
+		} catch (ParserConfigurationException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
 	/**
 	 * Executes the actual deletion of a file.
 	 * 
@@ -539,7 +641,7 @@ public class SugarSyncConnector implements IStorageConnector {
 			e.printStackTrace();
 		} finally {
 			if (con != null) {
-				con.disconnect();
+				HttpConnections.release(con);
 			}
 		}
 		this.urlCache.remove(name);
@@ -553,9 +655,16 @@ public class SugarSyncConnector implements IStorageConnector {
 	 *            The resource name.
 	 * @param extension
 	 *            The extension of the resource.
+	 * @param offset
+	 *            The first byte of a range or <code>-1</code> for the whole
+	 *            file.
+	 * @param length
+	 *            The length of the range or <code>-1</code> for all bytes
+	 *            from <code>offset</code>.
 	 * @return The InputStream that reads from the server.
 	 */
-	private InputStream performGet(String resource, String extension) {
+	private InputStream performGet(String resource, String extension,
+			long offset, long length) {
 		connect();
 		resource += "." + extension;
 		try {
@@ -564,8 +673,16 @@ public class SugarSyncConnector implements IStorageConnector {
 			HttpsURLConnection con;
 			con = this.getConnection(resourceURL + "/data", "GET");
 			con.setDoInput(true);
-
-			return con.getInputStream();
+			if (offset < 0) {
+				return con.getInputStream();
+			}
+			con.setRequestProperty("Range",
+					RangedInputStream.header(offset, length));
+			if (con.getResponseCode() == 206) {
+				return new RangedInputStream(con.getInputStream(), 0, length);
+			}
+			// The server ignored the range and sends the whole file
+			return new RangedInputStream(con.getInputStream(), offset, length);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
@@ -604,7 +721,8 @@ public class SugarSyncConnector implements IStorageConnector {
 				String resourceURL = this.getFileURL(resource);
 				if ((create && resourceURL == null)
 						|| (!create && resourceURL != null)) {
-					this.createFile(resource, f, this.getBaseUrl(), create);
+					this.createFile(resource, new FileInputStream(f),
+							f.length(), this.getBaseUrl(), create);
 					return true;
 				} else if (create && resourceURL != null) {
 					System.err.println("The file already exists. DELETE it. "
@@ -31,7 +31,16 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({de.dhbw_mannheim.cloudraid.util.TestConfig.class,
+		de.dhbw_mannheim.cloudraid.amazons3.TestAmazonS3Connector.class,
+		de.dhbw_mannheim.cloudraid.core.TestChunker.class,
+		de.dhbw_mannheim.cloudraid.core.TestCoreAccess.class,
+		de.dhbw_mannheim.cloudraid.core.TestPackStore.class,
+		de.dhbw_mannheim.cloudraid.core.TestReadPlanner.class,
+		de.dhbw_mannheim.cloudraid.core.TestTransferExecutor.class,
+		de.dhbw_mannheim.cloudraid.core.TestUploadScheduler.class,
 		de.dhbw_mannheim.cloudraid.jni.TestRaidAccessInterface.class,
+		de.dhbw_mannheim.cloudraid.jni.TestRaidBuffers.class,
+		de.dhbw_mannheim.cloudraid.raid.TestJavaRaidCodec.class,
 		de.dhbw_mannheim.cloudraid.metadatamgr.TestHSQLDatabaseConnector.class,
 		de.dhbw_mannheim.cloudraid.api.TestRestApi.class})
 public class AllTests {
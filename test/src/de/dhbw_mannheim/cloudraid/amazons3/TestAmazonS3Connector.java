@@ -0,0 +1,348 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.amazons3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.dhbw_mannheim.cloudraid.amazons3.impl.net.connector.AmazonS3Connector;
+import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
+import de.dhbw_mannheim.cloudraid.config.impl.Config;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+
+/**
+ * Tests the {@link AmazonS3Connector} against a minimal S3 compatible server.
+ * 
+ * @author Markus Holtermann
+ */
+public class TestAmazonS3Connector {
+
+	private static final int PART_SIZE = 5 * 1024 * 1024;
+
+	/**
+	 * A minimal S3 server for a single bucket supporting plain and multipart
+	 * uploads.
+	 */
+	private static class FakeS3 implements HttpHandler {
+		Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+		Map<String, TreeMap<Integer, byte[]>> uploads = new ConcurrentHashMap<String, TreeMap<Integer, byte[]>>();
+		AtomicInteger partPuts = new AtomicInteger();
+		AtomicInteger nextId = new AtomicInteger();
+		/** The part that fails <code>failures</code> more times */
+		volatile int failPart = -1;
+		AtomicInteger failures = new AtomicInteger();
+		/** Whether <code>Range</code> headers are honored */
+		volatile boolean ranges = true;
+		/** The client ports of all requests */
+		Set<Integer> clients = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		AtomicInteger requests = new AtomicInteger();
+
+		@Override
+		public void handle(HttpExchange ex) throws IOException {
+			this.clients.add(ex.getRemoteAddress().getPort());
+			this.requests.incrementAndGet();
+			String method = ex.getRequestMethod();
+			String path = ex.getRequestURI().getPath();
+			Map<String, String> query = new HashMap<String, String>();
+			if (ex.getRequestURI().getQuery() != null) {
+				for (String p : ex.getRequestURI().getQuery().split("&")) {
+					String[] kv = p.split("=", 2);
+					query.put(kv[0], kv.length > 1 ? kv[1] : "");
+				}
+			}
+			byte[] body = read(ex.getRequestBody());
+			String key = path.substring(path.indexOf('/', 1) + 1);
+			if (ex.getRequestHeaders().getFirst("Authorization") == null) {
+				send(ex, 403, null);
+			} else if (key.length() == 0) {
+				send(ex, 200, null);
+			} else if (query.containsKey("uploads")) {
+				String id = "upload" + this.nextId.incrementAndGet();
+				this.uploads.put(id, new TreeMap<Integer, byte[]>());
+				send(ex, 200, "<InitiateMultipartUploadResult><UploadId>" + id
+						+ "</UploadId></InitiateMultipartUploadResult>");
+			} else if (query.containsKey("uploadId")) {
+				TreeMap<Integer, byte[]> parts = this.uploads.get(query
+						.get("uploadId"));
+				if (parts == null) {
+					send(ex, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+				} else if (method.equals("PUT")) {
+					this.partPuts.incrementAndGet();
+					int n = Integer.parseInt(query.get("partNumber"));
+					if (n == this.failPart
+							&& this.failures.getAndDecrement() > 0) {
+						send(ex, 500, "<Error><Code>InternalError</Code></Error>");
+						return;
+					}
+					synchronized (parts) {
+						parts.put(n, body);
+					}
+					ex.getResponseHeaders().add("ETag", "\"etag" + n + "\"");
+					send(ex, 200, null);
+				} else if (method.equals("GET")) {
+					StringBuilder sb = new StringBuilder(
+							"<ListPartsResult><IsTruncated>false</IsTruncated>");
+					synchronized (parts) {
+						for (Map.Entry<Integer, byte[]> e : parts.entrySet()) {
+							sb.append("<Part><PartNumber>" + e.getKey()
+									+ "</PartNumber><ETag>\"etag" + e.getKey()
+									+ "\"</ETag><Size>" + e.getValue().length
+									+ "</Size></Part>");
+						}
+					}
+					send(ex, 200, sb.append("</ListPartsResult>").toString());
+				} else if (method.equals("POST")) {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					synchronized (parts) {
+						for (byte[] part : parts.values()) {
+							bos.write(part);
+						}
+					}
+					this.objects.put(key, bos.toByteArray());
+					this.uploads.remove(query.get("uploadId"));
+					send(ex, 200,
+							"<CompleteMultipartUploadResult></CompleteMultipartUploadResult>");
+				} else {
+					this.uploads.remove(query.get("uploadId"));
+					send(ex, 204, null);
+				}
+			} else if (method.equals("PUT")) {
+				this.objects.put(key, body);
+				send(ex, 200, null);
+			} else if (!this.objects.containsKey(key)) {
+				send(ex, 404, null);
+			} else if (method.equals("DELETE")) {
+				this.objects.remove(key);
+				send(ex, 204, null);
+			} else if (method.equals("HEAD")) {
+				ex.sendResponseHeaders(200, -1);
+				ex.close();
+			} else {
+				byte[] data = this.objects.get(key);
+				String range = ex.getRequestHeaders().getFirst("Range");
+				if (range != null && this.ranges) {
+					String[] r = range.substring(6).split("-", 2);
+					int from = Integer.parseInt(r[0]);
+					int to = r[1].length() == 0 ? data.length - 1 : Math.min(
+							Integer.parseInt(r[1]), data.length - 1);
+					data = Arrays.copyOfRange(data, from, to + 1);
+					ex.sendResponseHeaders(206, data.length);
+				} else {
+					ex.sendResponseHeaders(200, data.length);
+				}
+				ex.getResponseBody().write(data);
+				ex.close();
+			}
+		}
+
+		private static void send(HttpExchange ex, int code, String body)
+				throws IOException {
+			byte[] b = body == null ? new byte[0] : body.getBytes("UTF-8");
+			ex.sendResponseHeaders(code, b.length == 0 ? -1 : b.length);
+			if (b.length > 0) {
+				ex.getResponseBody().write(b);
+			}
+			ex.close();
+		}
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = is.read(buf)) >= 0) {
+			bos.write(buf, 0, len);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+	private HttpServer server;
+	private FakeS3 s3;
+	private ICloudRAIDConfig config;
+	private File dir;
+	private IStorageConnector connector;
+
+	@Before
+	public void setUp() throws Exception {
+		this.s3 = new FakeS3();
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+				0);
+		this.server.createContext("/", this.s3);
+		this.server.start();
+
+		this.dir = new File(System.getProperty("java.io.tmpdir"),
+				"cloudraid-s3-" + System.nanoTime());
+		this.dir.mkdirs();
+		this.config = new Config();
+		this.config.setCloudRAIDHome(System.getProperty("java.io.tmpdir")
+				+ File.separator + "cloudraid");
+		this.config.init("CloudRAID-unitTests");
+		this.config.put("split.output.dir", this.dir.getAbsolutePath());
+		this.config.put("filesize.max", Integer.MAX_VALUE);
+		this.config.put("connector.0.accessKeyId", "key");
+		this.config.put("connector.0.secretAccessKey", "secret");
+		this.config.put("connector.0.bucket", "bucket");
+		this.config.put("connector.0.endpoint", "http://127.0.0.1:"
+				+ this.server.getAddress().getPort() + "/");
+		this.config.put("connector.0.multipart.size", PART_SIZE);
+		this.config.put("connector.0.multipart.threads", 2);
+		this.config.put("connector.0.multipart.retries", 1);
+	}
+
+	@After
+	public void tearDown() {
+		if (this.connector != null) {
+			this.connector.disconnect();
+		}
+		this.server.stop(0);
+		for (File f : this.dir.listFiles()) {
+			f.delete();
+		}
+		this.dir.delete();
+	}
+
+	private byte[] write(String name, int length) throws IOException {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		OutputStream os = new FileOutputStream(new File(this.dir, name));
+		os.write(data);
+		os.close();
+		return data;
+	}
+
+	private void connect() throws InstantiationException {
+		this.connector = new AmazonS3Connector().create(0, this.config);
+		assertTrue(this.connector.connect());
+	}
+
+	@Test
+	public void testSmallUpload() throws Exception {
+		connect();
+		byte[] data = write("small.0", 1000);
+		write("small.m", 10);
+		assertTrue(this.connector.upload("small"));
+		assertEquals(0, this.s3.partPuts.get());
+		assertArrayEquals(data, this.s3.objects.get("small.0"));
+		assertArrayEquals(data, read(this.connector.get("small")));
+	}
+
+	@Test
+	public void testRangedGet() throws Exception {
+		connect();
+		byte[] data = write("small.0", 1000);
+		write("small.m", 10);
+		assertTrue(this.connector.upload("small"));
+		assertArrayEquals(Arrays.copyOfRange(data, 100, 300),
+				read(this.connector.get("small", 100, 200)));
+		assertArrayEquals(Arrays.copyOfRange(data, 900, 1000),
+				read(this.connector.get("small", 900, -1)));
+
+		// The whole file is sent, the connector must cut out the range
+		this.s3.ranges = false;
+		assertArrayEquals(Arrays.copyOfRange(data, 100, 300),
+				read(this.connector.get("small", 100, 200)));
+		assertArrayEquals(Arrays.copyOfRange(data, 900, 1000),
+				read(this.connector.get("small", 900, -1)));
+		assertEquals(null, this.connector.get("missing", 0, 10));
+	}
+
+	@Test
+	public void testMultipartRetry() throws Exception {
+		this.s3.failPart = 2;
+		this.s3.failures.set(1);
+		connect();
+		byte[] data = write("big.0", 2 * PART_SIZE + 1234);
+		write("big.m", 10);
+		assertTrue(this.connector.upload("big"));
+		assertEquals(4, this.s3.partPuts.get());
+		assertArrayEquals(data, this.s3.objects.get("big.0"));
+		assertTrue(this.s3.uploads.isEmpty());
+	}
+
+	@Test
+	public void testMultipartResume() throws Exception {
+		this.s3.failPart = 3;
+		this.s3.failures.set(2);
+		connect();
+		byte[] data = write("big.0", 2 * PART_SIZE + 1234);
+		write("big.m", 10);
+		assertFalse(this.connector.upload("big"));
+		assertEquals(4, this.s3.partPuts.get());
+		assertFalse(this.s3.objects.containsKey("big.0"));
+
+		// Only the failed part is uploaded again
+		assertTrue(this.connector.upload("big"));
+		assertEquals(5, this.s3.partPuts.get());
+		assertArrayEquals(data, this.s3.objects.get("big.0"));
+		assertTrue(this.s3.uploads.isEmpty());
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		connect();
+		byte[] data = write("small.0", 1000);
+		write("small.m", 10);
+		assertTrue(this.connector.upload("small"));
+		for (int i = 0; i < 5; i++) {
+			assertArrayEquals(data, read(this.connector.get("small")));
+			assertArrayEquals(Arrays.copyOfRange(data, 10, 20),
+					read(this.connector.get("small", 10, 10)));
+			this.connector.getMetadata("small", 10);
+			assertEquals(null, this.connector.get("missing"));
+		}
+		assertTrue(this.connector.delete("small"));
+
+		// All requests were sent one after another over the same connection
+		assertTrue(this.s3.requests.get() > 20);
+		assertEquals(1, this.s3.clients.size());
+	}
+}
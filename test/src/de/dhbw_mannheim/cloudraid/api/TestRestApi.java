@@ -23,6 +23,7 @@
 package de.dhbw_mannheim.cloudraid.api;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -34,8 +35,12 @@ import javax.servlet.http.HttpServletRequest;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import de.dhbw_mannheim.cloudraid.api.impl.ByteRange;
 import de.dhbw_mannheim.cloudraid.api.impl.RestApiUrlMapping;
 import de.dhbw_mannheim.cloudraid.api.impl.RestApiUrlMapping.MatchResult;
+import de.dhbw_mannheim.cloudraid.api.impl.responses.GZIPPlainApiResponse;
+import de.dhbw_mannheim.cloudraid.api.impl.responses.PlainApiResponse;
+import de.dhbw_mannheim.cloudraid.api.impl.responses.ZLIBPlainApiResponse;
 import de.dhbw_mannheim.cloudraid.api.responses.IRestApiResponse;
 
 /**
@@ -69,6 +74,47 @@ public class TestRestApi {
 
 	}
 
+	@Test
+	public void testByteRange() {
+		ByteRange r = ByteRange.parse("bytes=0-499", 1000);
+		assertEquals(0, r.getStart());
+		assertEquals(500, r.getLength());
+		assertEquals("bytes 0-499/1000", r.getContentRange());
+		assertEquals("bytes 500-999/1000", ByteRange.parse("bytes=500-", 1000)
+				.getContentRange());
+		assertEquals("bytes 900-999/1000",
+				ByteRange.parse("bytes=-100", 1000).getContentRange());
+		assertEquals("bytes 0-999/1000", ByteRange.parse("bytes=-5000", 1000)
+				.getContentRange());
+		assertEquals("bytes 990-999/1000",
+				ByteRange.parse("bytes=990-5000", 1000).getContentRange());
+		assertFalse(ByteRange.parse("bytes=1000-", 1000).isSatisfiable());
+		assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+		assertFalse(ByteRange.parse("bytes=0-", 0).isSatisfiable());
+		assertEquals("bytes */1000", ByteRange.parse("bytes=1000-", 1000)
+				.getContentRange());
+
+		// Ignored headers
+		assertNull(ByteRange.parse(null, 1000));
+		assertNull(ByteRange.parse("items=0-1", 1000));
+		assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+		assertNull(ByteRange.parse("bytes=5-1", 1000));
+		assertNull(ByteRange.parse("bytes=a-b", 1000));
+	}
+
+	@Test
+	public void testByteRangeCompressed() {
+		// The Content-Range counts uncompressed bytes, so compressed
+		// responses send the whole file
+		assertEquals("bytes 0-499/1000",
+				ByteRange.parse("bytes=0-499", 1000, new PlainApiResponse())
+						.getContentRange());
+		assertNull(ByteRange.parse("bytes=0-499", 1000,
+				new GZIPPlainApiResponse()));
+		assertNull(ByteRange.parse("bytes=0-499", 1000,
+				new ZLIBPlainApiResponse()));
+	}
+
 	@Test
 	public void testToString() {
 		assertEquals("^/test0/$ (*) --> function", mappings.get(0).toString());
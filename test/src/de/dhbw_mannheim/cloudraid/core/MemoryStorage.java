@@ -0,0 +1,289 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
+import de.dhbw_mannheim.cloudraid.config.impl.Config;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
+import de.dhbw_mannheim.cloudraid.metadatamgr.impl.HSQLMetadataManager;
+
+/**
+ * The fixture of the core tests: three storage connectors that keep the
+ * uploaded files in memory, the config, a meta data database and a user.
+ * The connectors read the files to upload from {@link #dir}.
+ * 
+ * @author Markus Holtermann
+ */
+public class MemoryStorage {
+
+	/**
+	 * A storage connector that keeps the uploaded files in memory. Like the
+	 * connectors of the cloud services, it only uploads a new device file
+	 * and only updates an existing one.
+	 */
+	public class MemoryConnector implements IStorageConnector {
+
+		private int id;
+
+		MemoryConnector(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean connect() {
+			return true;
+		}
+
+		@Override
+		public IStorageConnector create(int connectorid, ICloudRAIDConfig config) {
+			return this;
+		}
+
+		@Override
+		public boolean delete(String resource) {
+			if (failing.contains(this.id)) {
+				return false;
+			}
+			objects.remove(this.device(resource));
+			objects.remove(this.id + "/" + resource + ".m");
+			return true;
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public InputStream get(String resource) {
+			byte[] data = objects.get(this.device(resource));
+			return data == null ? null : new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public InputStream get(String resource, long offset, long length) {
+			InputStream is = this.get(resource);
+			try {
+				return is == null ? null : new RangedInputStream(is, offset,
+						length);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public byte[] getMetadata(String resource, int size) {
+			byte[] data = objects.get(this.id + "/" + resource + ".m");
+			return data == null ? null : Arrays.copyOf(data,
+					Math.max(size, data.length));
+		}
+
+		@Override
+		public boolean putMetadata(String resource, byte[] data) {
+			if (failing.contains(this.id)) {
+				return false;
+			}
+			objects.put(this.id + "/" + resource + ".m", data);
+			return true;
+		}
+
+		@Override
+		public boolean update(String resource) {
+			if (!objects.containsKey(this.device(resource))) {
+				return false;
+			}
+			return this.store(resource);
+		}
+
+		@Override
+		public boolean upload(String resource) {
+			if (objects.containsKey(this.device(resource))) {
+				return false;
+			}
+			return this.store(resource);
+		}
+
+		private String device(String resource) {
+			return this.id + "/" + resource + "." + this.id;
+		}
+
+		private boolean store(String resource) {
+			if (failing.contains(this.id)) {
+				return false;
+			}
+			try {
+				for (String ext : new String[] { String.valueOf(this.id), "m" }) {
+					objects.put(this.id + "/" + resource + "." + ext,
+							read(new FileInputStream(new File(dir, resource
+									+ "." + ext))));
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The stored files by connector, resource and extension.
+	 */
+	public final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * The connectors that fail to store or delete files.
+	 */
+	public final Set<Integer> failing = Collections
+			.synchronizedSet(new HashSet<Integer>());
+
+	public final File dir;
+	public final ICloudRAIDConfig config;
+	public final HSQLMetadataManager metadata;
+	public final ICloudRAIDService core;
+	public final int userId;
+
+	private String database;
+
+	/**
+	 * Creates the directory, the database and the user.
+	 * 
+	 * @param name
+	 *            The name of the directory, the database and the user.
+	 * @throws Exception
+	 *             Thrown if the config cannot be read.
+	 */
+	public MemoryStorage(String name) throws Exception {
+		this.config = new Config();
+		this.config.setCloudRAIDHome(System.getProperty("java.io.tmpdir")
+				+ File.separator + "cloudraid");
+		this.config.init("CloudRAID-unitTests");
+		this.dir = new File(this.config.getCloudRAIDHome(), name);
+		this.dir.mkdirs();
+		this.database = this.config.getCloudRAIDHome() + "test" + name
+				+ "db";
+
+		this.metadata = new HSQLMetadataManager();
+		this.metadata.setConfig(this.config);
+		assertTrue(this.metadata.connect(this.database, "SA", ""));
+		assertTrue(this.metadata.initialize());
+		this.metadata.addUser(name + "user", name + "pw");
+		this.userId = this.metadata.authUser(name + "user", name + "pw");
+
+		final IStorageConnector[] connectors = { new MemoryConnector(0),
+				new MemoryConnector(1), new MemoryConnector(2) };
+		this.core = new ICloudRAIDService() {
+			@Override
+			public String getRAIDName() {
+				return null;
+			}
+
+			@Override
+			public String getRAIDVendor() {
+				return null;
+			}
+
+			@Override
+			public String getRAIDVersion() {
+				return null;
+			}
+
+			@Override
+			public int getUploadQueueDepth() {
+				return 0;
+			}
+
+			@Override
+			public long getUploadQueueAge() {
+				return 0;
+			}
+
+			@Override
+			public ICoreAccess getSlot() {
+				return null;
+			}
+
+			@Override
+			public IStorageConnector[] getStorageConnectors() {
+				return connectors;
+			}
+		};
+	}
+
+	/**
+	 * Removes the database and the files in the directory.
+	 */
+	public void close() {
+		assertTrue(this.metadata.disconnect());
+		for (String ext : new String[] { ".data", ".properties", ".script" }) {
+			new File(this.database + ext).delete();
+		}
+		for (File f : this.dir.listFiles()) {
+			f.delete();
+		}
+	}
+
+	/**
+	 * @return The connector with the index <code>id</code>.
+	 */
+	public IStorageConnector connector(int id) {
+		return this.core.getStorageConnectors()[id];
+	}
+
+	/**
+	 * @return The id of a new file of the user.
+	 */
+	public int file(String path) {
+		int id = this.metadata.fileNew(path, path, 0, this.userId);
+		assertTrue(id >= 0);
+		return id;
+	}
+
+	/**
+	 * Reads a stream to the end and closes it.
+	 */
+	public static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int len;
+		while ((len = is.read(buf)) >= 0) {
+			bos.write(buf, 0, len);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+}
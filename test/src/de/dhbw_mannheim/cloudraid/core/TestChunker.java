@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.Chunker;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestChunker {
+
+	private static final int AVERAGE = 4096;
+
+	private static List<byte[]> chunk(byte[] data) throws IOException {
+		Chunker chunker = new Chunker(new ByteArrayInputStream(data), AVERAGE);
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		byte[] chunk;
+		while ((chunk = chunker.next()) != null) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static Set<String> ids(List<byte[]> chunks) {
+		Set<String> ids = new HashSet<String>();
+		for (byte[] chunk : chunks) {
+			ids.add(new String(chunk));
+		}
+		return ids;
+	}
+
+	@Test
+	public void testChunks() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(42).nextBytes(data);
+		List<byte[]> chunks = chunk(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < chunks.size(); i++) {
+			byte[] chunk = chunks.get(i);
+			assertTrue(chunk.length <= AVERAGE * 4);
+			assertTrue(i == chunks.size() - 1 || chunk.length >= AVERAGE / 4);
+			out.write(chunk);
+		}
+		assertArrayEquals(data, out.toByteArray());
+		assertTrue(chunks.size() > data.length / AVERAGE / 2);
+		assertTrue(chunks.size() < data.length / AVERAGE * 2);
+	}
+
+	@Test
+	public void testInsertion() throws IOException {
+		byte[] data = new byte[1024 * 1024];
+		new Random(42).nextBytes(data);
+		byte[] edited = new byte[data.length + 10];
+		System.arraycopy(data, 0, edited, 0, 500000);
+		System.arraycopy(data, 500000, edited, 500010, data.length - 500000);
+
+		List<byte[]> chunks = chunk(data);
+		Set<String> before = ids(chunks);
+		Set<String> after = ids(chunk(edited));
+		after.retainAll(before);
+		// Only the chunks around the insertion differ
+		assertTrue(after.size() >= chunks.size() - 3);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		assertTrue(chunk(new byte[0]).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new Chunker(new ByteArrayInputStream(new byte[0]), 1000);
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static de.dhbw_mannheim.cloudraid.core.MemoryStorage.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
+import de.dhbw_mannheim.cloudraid.core.impl.CoreAccess;
+import de.dhbw_mannheim.cloudraid.core.impl.PackStore;
+import de.dhbw_mannheim.cloudraid.core.impl.ReadPlanner;
+import de.dhbw_mannheim.cloudraid.core.impl.TransferExecutor;
+import de.dhbw_mannheim.cloudraid.core.impl.UploadScheduler;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.IRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.JavaRaidCodec;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager.FILE_STATUS;
+import de.dhbw_mannheim.cloudraid.metadatamgr.impl.HSQLMetadataManager;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestCoreAccess {
+
+	private MemoryStorage storage;
+	private Map<String, byte[]> objects;
+	private Set<Integer> failing;
+	private File dir;
+	private ICloudRAIDConfig config;
+	private HSQLMetadataManager metadata;
+	private IRaidCodec codec;
+	private TransferExecutor transfers;
+	private UploadScheduler uploads;
+	private PackStore packs;
+
+	@Before
+	public void setUp() throws Exception {
+		this.storage = new MemoryStorage("coreaccess");
+		this.objects = this.storage.objects;
+		this.failing = this.storage.failing;
+		this.dir = this.storage.dir;
+		this.config = this.storage.config;
+		this.metadata = this.storage.metadata;
+		String path = this.dir.getPath() + File.separator;
+		this.config.put("split.input.dir", path);
+		this.config.put("split.output.dir", path);
+		this.config.put("merge.input.dir", path);
+		this.config.put("merge.output.dir", path);
+		this.config.put("file.password", "secret");
+		this.config.put("upload.asynchronous", false);
+		this.config.put("split.streaming", true);
+		this.config.put("merge.streaming", true);
+		this.config.put("inline.size", 16384);
+		this.config.put("chunk.size", 0);
+
+		this.codec = new JavaRaidCodec(1024);
+		this.transfers = new TransferExecutor(3);
+		this.uploads = new UploadScheduler(1, 4, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		if (this.packs != null) {
+			this.packs.shutdown();
+		}
+		this.uploads.shutdown();
+		this.transfers.shutdown();
+		this.storage.close();
+	}
+
+	private static byte[] data(int length, int seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private CoreAccess access() {
+		return new CoreAccess(this.codec, this.transfers, new ReadPlanner(3),
+				this.uploads, this.packs, this.metadata, this.config,
+				this.storage.core);
+	}
+
+	private boolean put(int id, byte[] data, boolean update) {
+		this.metadata.fileUpdateState(id, FILE_STATUS.UPLOADING);
+		return this.access().putData(new ByteArrayInputStream(data), id,
+				update);
+	}
+
+	private byte[] get(int id) throws IOException {
+		CoreAccess access = this.access();
+		InputStream is = access.getData(id);
+		assertTrue(is != null);
+		byte[] data = read(is);
+		access.finishGetData(id);
+		return data;
+	}
+
+	private String state(int id) {
+		return this.metadata.fileById(id).getStatus();
+	}
+
+	private void waitReady(int id) throws InterruptedException {
+		for (int i = 0; i < 100
+				&& !FILE_STATUS.READY.toString().equals(this.state(id)); i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(FILE_STATUS.READY.toString(), this.state(id));
+	}
+
+	private int devices(String hash) {
+		int count = 0;
+		for (int i = 0; i < 3; i++) {
+			if (this.objects.containsKey(i + "/" + hash + "." + i)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testInlineToDevice() throws Exception {
+		byte[] small = data(2000, 3);
+		byte[] large = data(100000, 4);
+		int id = this.storage.file("inline");
+		assertTrue(this.put(id, small, false));
+		String hash = this.metadata.fileById(id).getHash();
+		assertEquals(0, this.devices(hash));
+		assertArrayEquals(small, this.get(id));
+
+		assertTrue(this.put(id, large, true));
+		assertEquals(FILE_STATUS.READY.toString(), this.state(id));
+		assertEquals(3, this.devices(hash));
+		assertArrayEquals(large, this.get(id));
+	}
+
+	@Test
+	public void testDeviceToInline() throws Exception {
+		byte[] large = data(100000, 5);
+		byte[] small = data(2000, 6);
+		int id = this.storage.file("device");
+		assertTrue(this.put(id, large, false));
+		String hash = this.metadata.fileById(id).getHash();
+		assertEquals(3, this.devices(hash));
+		assertArrayEquals(large, this.get(id));
+
+		assertTrue(this.put(id, small, true));
+		assertEquals(FILE_STATUS.READY.toString(), this.state(id));
+		assertEquals(0, this.devices(hash));
+		assertArrayEquals(small, this.get(id));
+	}
+
+	@Test
+	public void testPackedToDevice() throws Exception {
+		this.config.put("upload.asynchronous", true);
+		this.config.put("inline.size", 0);
+		this.packs = new PackStore(this.storage.core, this.metadata,
+				this.transfers, this.dir.getPath(), 100000, 16384, 10);
+		byte[] small = data(2000, 7);
+		byte[] large = data(100000, 8);
+		int id = this.storage.file("packed");
+		assertTrue(this.put(id, small, false));
+		this.waitReady(id);
+		String hash = this.metadata.fileById(id).getHash();
+		assertNotNull(this.metadata.packEntryGet(id));
+		assertArrayEquals(small, this.get(id));
+
+		assertTrue(this.put(id, large, true));
+		this.waitReady(id);
+		assertNull(this.metadata.packEntryGet(id));
+		assertEquals(3, this.devices(hash));
+		assertArrayEquals(large, this.get(id));
+	}
+
+	@Test
+	public void testFailedDistribution() throws Exception {
+		byte[] data = data(100000, 1);
+		int id = this.storage.file("failed");
+		this.uploads.setRetryDelay(200);
+		this.failing.add(1);
+		this.failing.add(2);
+		assertFalse(this.put(id, data, false));
+		assertEquals(FILE_STATUS.SPLITTED.toString(), this.state(id));
+		assertEquals(1, this.uploads.getFailedCount());
+		String hash = this.metadata.fileById(id).getHash();
+		for (String ext : new String[] { ".0", ".1", ".2", ".m" }) {
+			assertTrue(new File(this.dir, hash + ext).isFile());
+		}
+
+		// The file is not queued again until it is retried, then its split
+		// files are distributed again
+		assertFalse(this.access().resume(this.metadata.fileById(id)));
+		this.failing.clear();
+		this.waitReady(id);
+		assertArrayEquals(data, this.get(id));
+		assertFalse(new File(this.dir, hash + ".m").isFile());
+	}
+
+	@Test
+	public void testFailedPack() throws Exception {
+		this.config.put("upload.asynchronous", true);
+		this.config.put("inline.size", 0);
+		this.packs = new PackStore(this.storage.core, this.metadata,
+				this.transfers, this.dir.getPath(), 100000, 16384, 10);
+		this.uploads.setRetryDelay(200);
+		byte[] data = data(2000, 9);
+		int id = this.storage.file("failedpack");
+		this.failing.add(1);
+		this.failing.add(2);
+		assertTrue(this.put(id, data, false));
+		for (int i = 0; i < 100 && this.uploads.getFailedCount() == 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, this.uploads.getFailedCount());
+		assertEquals(FILE_STATUS.SPLITTED.toString(), this.state(id));
+
+		// The file is packed again once it is retried
+		this.failing.clear();
+		this.waitReady(id);
+		assertNotNull(this.metadata.packEntryGet(id));
+		assertArrayEquals(data, this.get(id));
+	}
+
+	@Test
+	public void testDegradedDistribution() throws Exception {
+		byte[] data = data(100000, 2);
+		int id = this.storage.file("degraded");
+		this.failing.add(0);
+		assertTrue(this.put(id, data, false));
+		assertEquals(FILE_STATUS.READY.toString(), this.state(id));
+		assertEquals(0, this.uploads.getFailedCount());
+		assertArrayEquals(data, this.get(id));
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static de.dhbw_mannheim.cloudraid.core.MemoryStorage.read;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.PackStore;
+import de.dhbw_mannheim.cloudraid.core.impl.TransferExecutor;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IPackEntry;
+import de.dhbw_mannheim.cloudraid.metadatamgr.impl.HSQLMetadataManager;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestPackStore {
+
+	private MemoryStorage storage;
+	private File dir;
+	private HSQLMetadataManager metadata;
+	private TransferExecutor transfers;
+	private PackStore packs;
+
+	@Before
+	public void setUp() throws Exception {
+		this.storage = new MemoryStorage("packs");
+		this.dir = this.storage.dir;
+		this.metadata = this.storage.metadata;
+		this.transfers = new TransferExecutor(3);
+		this.packs = new PackStore(this.storage.core, this.metadata,
+				this.transfers, this.dir.getPath(), 1000, 500, 60000);
+	}
+
+	@After
+	public void tearDown() {
+		this.packs.shutdown();
+		this.transfers.shutdown();
+		this.storage.close();
+	}
+
+	private static byte[][] records(int length, int seed) {
+		byte[][] records = new byte[3][length];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < length; j++) {
+				records[i][j] = (byte) (seed + i + j);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * A listener that counts the files stored in a pack.
+	 */
+	private static PackStore.Listener counting(final AtomicInteger stored,
+			final AtomicInteger failed) {
+		return new PackStore.Listener() {
+			@Override
+			public void stored(boolean success) {
+				(success ? stored : failed).incrementAndGet();
+			}
+		};
+	}
+
+	private int file(String path) {
+		return this.storage.file(path);
+	}
+
+	private void assertStored(int fileid, byte[][] records) throws IOException {
+		IPackEntry entry = this.metadata.packEntryGet(fileid);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(records[i].length, entry.getLength(i));
+			assertArrayEquals(records[i], read(this.storage.connector(i).get(
+					entry.getPack(), entry.getOffset(i), entry.getLength(i))));
+		}
+	}
+
+	@Test
+	public void testPack() throws IOException {
+		AtomicInteger stored = new AtomicInteger(), failed = new AtomicInteger();
+		int a = this.file("a"), b = this.file("b"), c = this.file("c");
+		byte[][] ra = records(300, 1), rb = records(400, 2), rc = records(300, 3);
+		assertTrue(this.packs.add(a, "a", ra, counting(stored, failed)));
+		assertTrue(this.packs.add(b, "b", rb, counting(stored, failed)));
+		// Nothing is uploaded before the pack is full
+		assertEquals(0, stored.get());
+		assertNull(this.metadata.packEntryGet(a));
+		assertTrue(this.packs.add(c, "c", rc, counting(stored, failed)));
+		assertEquals(3, stored.get());
+		assertEquals(0, failed.get());
+		assertEquals(1, this.packs.getSealedCount());
+
+		assertStored(a, ra);
+		assertStored(b, rb);
+		assertStored(c, rc);
+		assertEquals(300, this.metadata.packEntryGet(b).getOffset(1));
+		// One object and one index per connector
+		assertEquals(6, this.storage.objects.size());
+		assertEquals(0, this.dir.list().length);
+	}
+
+	@Test
+	public void testFailedUpload() {
+		AtomicInteger stored = new AtomicInteger(), failed = new AtomicInteger();
+		int a = this.file("d");
+		this.storage.failing.add(1);
+		this.storage.failing.add(2);
+		assertTrue(this.packs.add(a, "d", records(100, 4),
+				counting(stored, failed)));
+		this.packs.flush();
+		assertEquals(0, stored.get());
+		assertEquals(1, failed.get());
+		assertNull(this.metadata.packEntryGet(a));
+		// The pack is removed from the other connector again
+		assertEquals(0, this.storage.objects.size());
+	}
+
+	@Test
+	public void testDegradedUpload() throws IOException {
+		AtomicInteger stored = new AtomicInteger(), failed = new AtomicInteger();
+		int a = this.file("h"), b = this.file("i");
+		byte[][] ra = records(300, 8);
+		this.storage.failing.add(1);
+		assertTrue(this.packs.add(a, "h", ra, counting(stored, failed)));
+		assertTrue(this.packs.add(b, "i", records(300, 9),
+				counting(stored, failed)));
+		this.packs.flush();
+		// Two connectors are enough to restore the files
+		assertEquals(2, stored.get());
+		assertEquals(0, failed.get());
+		assertEquals(1, this.packs.getDegradedCount());
+		assertEquals(4, this.storage.objects.size());
+		String old = this.metadata.packEntryGet(a).getPack();
+		assertNull(this.storage.connector(1).get(old));
+
+		// The files of the pack can be moved without the missing connector
+		this.storage.failing.clear();
+		assertEquals(1, this.metadata.fileDelete(b));
+		assertEquals(1, this.packs.compact(50));
+		IPackEntry entry = this.metadata.packEntryGet(a);
+		assertFalse(old.equals(entry.getPack()));
+		assertEquals(0, entry.getLength(1));
+		for (int i = 0; i < 3; i += 2) {
+			assertArrayEquals(ra[i], read(this.storage.connector(i).get(
+					entry.getPack(), entry.getOffset(i), entry.getLength(i))));
+		}
+		assertEquals(1, this.metadata.fileDelete(a));
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		AtomicInteger stored = new AtomicInteger(), failed = new AtomicInteger();
+		int a = this.file("e"), b = this.file("f"), c = this.file("g");
+		byte[][] rb = records(200, 5);
+		this.packs.add(a, "e", records(200, 6), counting(stored, failed));
+		this.packs.add(b, "f", rb, counting(stored, failed));
+		this.packs.add(c, "g", records(200, 7), counting(stored, failed));
+		this.packs.flush();
+		String old = this.metadata.packEntryGet(b).getPack();
+
+		// Nothing to do while the pack is full
+		assertEquals(0, this.packs.compact(50));
+
+		assertEquals(1, this.metadata.fileDelete(a));
+		assertEquals(1, this.metadata.fileDelete(c));
+		assertEquals(1, this.packs.compact(50));
+		assertEquals(1, this.packs.getMovedCount());
+		String moved = this.metadata.packEntryGet(b).getPack();
+		assertFalse(old.equals(moved));
+		assertEquals(0, this.metadata.packEntryGet(b).getOffset(0));
+		assertStored(b, rb);
+
+		// The old pack is removed by the next compaction
+		assertEquals(12, this.storage.objects.size());
+		assertEquals(1, this.packs.compact(50));
+		assertEquals(1, this.packs.getDeletedCount());
+		assertEquals(6, this.storage.objects.size());
+		assertStored(b, rb);
+		assertEquals(1, this.metadata.fileDelete(b));
+	}
+
+}
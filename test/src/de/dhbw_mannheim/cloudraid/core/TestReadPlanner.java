@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
+import de.dhbw_mannheim.cloudraid.core.impl.ReadPlanner;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestReadPlanner {
+
+	private static final boolean[] ALL = { true, true, true };
+
+	/**
+	 * A storage connector whose device files are slow, missing or fail to
+	 * be read.
+	 */
+	private static class DeviceConnector implements IStorageConnector {
+
+		private InputStream device;
+
+		DeviceConnector(InputStream device) {
+			this.device = device;
+		}
+
+		@Override
+		public boolean connect() {
+			return true;
+		}
+
+		@Override
+		public IStorageConnector create(int connectorid, ICloudRAIDConfig config) {
+			return this;
+		}
+
+		@Override
+		public boolean delete(String resource) {
+			return false;
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public InputStream get(String resource) {
+			return this.device;
+		}
+
+		@Override
+		public InputStream get(String resource, long offset, long length) {
+			return this.device;
+		}
+
+		@Override
+		public byte[] getMetadata(String resource, int size) {
+			return null;
+		}
+
+		@Override
+		public boolean putMetadata(String resource, byte[] data) {
+			return false;
+		}
+
+		@Override
+		public boolean update(String resource) {
+			return false;
+		}
+
+		@Override
+		public boolean upload(String resource) {
+			return false;
+		}
+	}
+
+	@Test
+	public void testLatency() {
+		ReadPlanner planner = new ReadPlanner(3);
+		assertEquals(-1, planner.getLatency(0, 50));
+		for (int i = 1; i <= 100; i++) {
+			planner.record(0, i);
+		}
+		// Only the last samples are kept
+		assertEquals(100 - ReadPlanner.SAMPLES + 1, planner.getLatency(0, 0));
+		assertEquals(84, planner.getLatency(0, 50));
+		assertEquals(100, planner.getLatency(0, 100));
+
+		planner.fail(1);
+		assertEquals(ReadPlanner.FAILURE_LATENCY, planner.getLatency(1, 50));
+	}
+
+	@Test
+	public void testOpen() throws IOException {
+		ReadPlanner planner = new ReadPlanner(3);
+		// The latency is the time until the first byte arrived
+		InputStream is = planner.open(new DeviceConnector(
+				new ByteArrayInputStream(new byte[] { 1, 2 }) {
+					@Override
+					public synchronized int read() {
+						try {
+							Thread.sleep(200);
+						} catch (InterruptedException ignore) {
+						}
+						return super.read();
+					}
+				}), 0, "device", 0, -1);
+		assertEquals(1, is.read());
+		assertEquals(2, is.read());
+		assertTrue(planner.getLatency(0, 50) >= 200);
+
+		assertNull(planner.open(new DeviceConnector(null), 1, "device", 0, -1));
+		assertEquals(ReadPlanner.FAILURE_LATENCY, planner.getLatency(1, 50));
+	}
+
+	@Test
+	public void testOpenFailure() throws IOException {
+		ReadPlanner planner = new ReadPlanner(3);
+		try {
+			planner.open(new DeviceConnector(new InputStream() {
+				@Override
+				public int read() throws IOException {
+					throw new IOException("Expected failure");
+				}
+			}), 2, "device", 0, 10);
+			fail("The failure was not passed on");
+		} catch (IOException e) {
+		}
+		assertEquals(ReadPlanner.FAILURE_LATENCY, planner.getLatency(2, 50));
+
+		try {
+			planner.open(new DeviceConnector(null) {
+				@Override
+				public InputStream get(String resource) {
+					throw new IllegalStateException("Expected failure");
+				}
+			}, 0, "device", 0, -1);
+			fail("The failure was not passed on");
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(ReadPlanner.FAILURE_LATENCY, planner.getLatency(0, 50));
+	}
+
+	@Test
+	public void testPlan() {
+		ReadPlanner planner = new ReadPlanner(3);
+		assertArrayEquals(new int[] { 0, 1, 2 }, planner.plan(ALL));
+
+		planner.record(0, 300);
+		planner.record(1, 100);
+		planner.record(2, 200);
+		assertArrayEquals(new int[] { 1, 2, 0 }, planner.plan(ALL));
+
+		// Devices with invalid meta data come last
+		assertArrayEquals(new int[] { 2, 0, 1 },
+				planner.plan(new boolean[] { true, false, true }));
+
+		planner.fail(1);
+		planner.fail(1);
+		assertArrayEquals(new int[] { 2, 0, 1 }, planner.plan(ALL));
+	}
+
+}
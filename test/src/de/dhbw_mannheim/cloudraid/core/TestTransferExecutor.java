@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.TransferExecutor;
+import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestTransferExecutor {
+
+	private static final IStorageConnector[] CONNECTORS = { null, null, null };
+
+	private TransferExecutor executor = null;
+
+	@After
+	public void tearDown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrent() {
+		this.executor = new TransferExecutor(3);
+		final CountDownLatch latch = new CountDownLatch(3);
+		List<Integer> results = this.executor.invokeAll(CONNECTORS,
+				new TransferExecutor.Transfer<Integer>() {
+					@Override
+					public Integer run(IStorageConnector connector, int index)
+							throws InterruptedException {
+						// Only returns if all three transfers run at once
+						latch.countDown();
+						assertTrue(latch.await(10, TimeUnit.SECONDS));
+						return index;
+					}
+				});
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Integer.valueOf(i), results.get(i));
+		}
+	}
+
+	@Test
+	public void testFailure() {
+		this.executor = new TransferExecutor(3);
+		List<String> results = this.executor.invokeAll(CONNECTORS,
+				new TransferExecutor.Transfer<String>() {
+					@Override
+					public String run(IStorageConnector connector, int index)
+							throws IOException {
+						if (index == 2) {
+							throw new IOException("Expected failure");
+						}
+						return "done";
+					}
+				});
+		assertEquals("done", results.get(0));
+		assertEquals("done", results.get(1));
+		assertNull(results.get(2));
+	}
+
+	@Test
+	public void testLong() {
+		// A transfer is not limited in its duration, only a stalled
+		// connection fails
+		this.executor = new TransferExecutor(1);
+		List<Boolean> results = this.executor.invokeAll(CONNECTORS,
+				new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index)
+							throws InterruptedException {
+						Thread.sleep(150);
+						return true;
+					}
+				});
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Boolean.TRUE, results.get(i));
+		}
+	}
+
+	@Test
+	public void testVirtual() {
+		// Falls back to platform threads on runtimes without virtual threads
+		this.executor = new TransferExecutor(100, true);
+		final CountDownLatch latch = new CountDownLatch(3);
+		List<Boolean> results = this.executor.invokeAll(CONNECTORS,
+				new TransferExecutor.Transfer<Boolean>() {
+					@Override
+					public Boolean run(IStorageConnector connector, int index)
+							throws InterruptedException {
+						latch.countDown();
+						return latch.await(10, TimeUnit.SECONDS)
+								&& Thread.currentThread().getName()
+										.startsWith("CloudRAID-transfer-");
+					}
+				});
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Boolean.TRUE, results.get(i));
+		}
+	}
+
+	@Test
+	public void testHedged() throws InterruptedException {
+		// The slow first transfer is hedged with the third connector whose
+		// result is used instead
+		this.executor = new TransferExecutor(3);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		List<Integer> results = this.executor.invokeHedged(CONNECTORS,
+				new int[] { 0, 1, 2 }, 2, new long[] { 50, 50, 50 },
+				new TransferExecutor.Transfer<Integer>() {
+					@Override
+					public Integer run(IStorageConnector connector, int index) {
+						if (index == 0) {
+							try {
+								Thread.sleep(10000);
+							} catch (InterruptedException e) {
+								cancelled.countDown();
+							}
+						}
+						return index;
+					}
+				});
+		assertNull(results.get(0));
+		assertEquals(Integer.valueOf(1), results.get(1));
+		assertEquals(Integer.valueOf(2), results.get(2));
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+	}
+
+}
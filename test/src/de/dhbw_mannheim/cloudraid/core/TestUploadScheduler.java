@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package de.dhbw_mannheim.cloudraid.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.UploadScheduler;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestUploadScheduler {
+
+	private UploadScheduler scheduler = null;
+
+	@After
+	public void tearDown() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * A job that blocks until <code>release</code> is counted down.
+	 */
+	private static Runnable blocking(final CountDownLatch started,
+			final CountDownLatch release, final AtomicInteger active,
+			final AtomicInteger peak) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				int now = active.incrementAndGet();
+				synchronized (peak) {
+					peak.set(Math.max(peak.get(), now));
+				}
+				started.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ignore) {
+				}
+				active.decrementAndGet();
+			}
+		};
+	}
+
+	@Test
+	public void testBounded() throws InterruptedException {
+		this.scheduler = new UploadScheduler(2, 8, 1000);
+		CountDownLatch started = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger active = new AtomicInteger(), peak = new AtomicInteger();
+		for (int i = 0; i < 6; i++) {
+			assertTrue(this.scheduler.submit(i,
+					blocking(started, release, active, peak)));
+		}
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertEquals(2, this.scheduler.getActiveCount());
+		assertEquals(4, this.scheduler.getQueueDepth());
+		assertTrue(this.scheduler.getQueueAge() >= 50);
+
+		// A file that is already queued is not queued twice
+		assertFalse(this.scheduler.submit(5, blocking(started, release,
+				active, peak)));
+
+		release.countDown();
+		for (int i = 0; i < 100 && this.scheduler.getCompletedCount() < 6; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(6, this.scheduler.getCompletedCount());
+		assertEquals(2, peak.get());
+		assertEquals(0, this.scheduler.getQueueDepth());
+		assertEquals(0, this.scheduler.getQueueAge());
+	}
+
+	@Test
+	public void testBackpressure() throws InterruptedException {
+		this.scheduler = new UploadScheduler(1, 1, 100);
+		final CountDownLatch recovered = new CountDownLatch(1);
+		this.scheduler.setRecovery(new Runnable() {
+			@Override
+			public void run() {
+				recovered.countDown();
+			}
+		});
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger active = new AtomicInteger(), peak = new AtomicInteger();
+		assertTrue(this.scheduler.submit(0,
+				blocking(started, release, active, peak)));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(this.scheduler.submit(1,
+				blocking(started, release, active, peak)));
+
+		// The queue is full, the caller waits for the timeout
+		long start = System.currentTimeMillis();
+		assertFalse(this.scheduler.submit(2,
+				blocking(started, release, active, peak)));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertFalse(this.scheduler.offer(3,
+				blocking(started, release, active, peak)));
+		assertEquals(1, this.scheduler.getRejectedCount());
+
+		// The rejected files are recovered once the queue is empty
+		release.countDown();
+		assertTrue(recovered.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testFailure() throws InterruptedException {
+		this.scheduler = new UploadScheduler(2, 4, 100);
+		this.scheduler.setRetryDelay(100);
+		final CountDownLatch recovered = new CountDownLatch(1);
+		this.scheduler.setRecovery(new Runnable() {
+			@Override
+			public void run() {
+				recovered.countDown();
+			}
+		});
+		final CountDownLatch retried = new CountDownLatch(2);
+		final long[] times = new long[3];
+		final Runnable[] job = new Runnable[1];
+		job[0] = new Runnable() {
+			@Override
+			public void run() {
+				times[2 - (int) retried.getCount()] = System
+						.currentTimeMillis();
+				// Fails twice and is retried without any other traffic
+				if (retried.getCount() > 0) {
+					TestUploadScheduler.this.scheduler.fail(0, new Runnable() {
+						@Override
+						public void run() {
+							retried.countDown();
+							assertTrue(TestUploadScheduler.this.scheduler
+									.offer(0, job[0]));
+						}
+					});
+				}
+			}
+		};
+		assertTrue(this.scheduler.submit(0, job[0]));
+		assertTrue(this.scheduler.submit(1, new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Expected failure");
+			}
+		}));
+		Thread.sleep(50);
+		// A failed file is not queued again until it is retried
+		assertFalse(this.scheduler.submit(0, job[0]));
+
+		// A file that failed with an exception is recovered
+		assertTrue(recovered.await(5, TimeUnit.SECONDS));
+		assertTrue(retried.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 100 && this.scheduler.getCompletedCount() < 4; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(4, this.scheduler.getCompletedCount());
+		assertEquals(3, this.scheduler.getFailedCount());
+		// The delay doubles with every failure of the file
+		assertTrue(times[1] - times[0] >= 100);
+		assertTrue(times[2] - times[1] >= 200);
+	}
+
+}
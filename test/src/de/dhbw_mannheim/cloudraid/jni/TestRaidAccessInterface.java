@@ -113,7 +113,7 @@ public class TestRaidAccessInterface {
 
 		hash = RaidAccessInterface.splitInterface(splitInPath, in
 				.getAbsolutePath().substring(splitInPath.length()),
-				splitOutPath, KEY);
+				splitOutPath, KEY, RaidAccessInterface.getBlockSize());
 
 		MessageDigest digest = MessageDigest.getInstance("SHA-256");
 		digest.reset();
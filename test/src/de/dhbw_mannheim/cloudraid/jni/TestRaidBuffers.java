@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.jni;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidAccessInterface;
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidBufferMerger;
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidBufferSplitter;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.JavaRaidCodec;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestRaidBuffers {
+
+	private static final String KEY = "CloudRAID";
+	private static final int[] SIZES = { 0, 1, 1024, 2048, 2049, 3000,
+			20 * 1024 + 13 };
+	private static final int CHUNK = 1500;
+
+	private static byte[] content(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	private static byte[] toArray(ByteBuffer b) {
+		b.flip();
+		byte[] a = new byte[b.remaining()];
+		b.get(a);
+		return a;
+	}
+
+	/**
+	 * Splits <code>data</code> in chunks of {@link #CHUNK} bytes.
+	 * 
+	 * @return The device data at 0 - 2 and the meta data at 3.
+	 */
+	private static byte[][] split(byte[] data) throws IOException {
+		RaidBufferSplitter splitter = new RaidBufferSplitter(KEY,
+				RaidAccessInterface.getBlockSize());
+		ByteBuffer[] devices = new ByteBuffer[3];
+		for (int i = 0; i < 3; i++) {
+			devices[i] = ByteBuffer.allocateDirect(data.length + 4096);
+		}
+		ByteBuffer in = ByteBuffer.allocateDirect(CHUNK);
+		for (int off = 0; off < data.length; off += CHUNK) {
+			in.clear();
+			in.put(data, off, Math.min(CHUNK, data.length - off));
+			in.flip();
+			splitter.split(in, devices);
+		}
+		byte[][] result = new byte[4][];
+		result[3] = splitter.finish(devices);
+		for (int i = 0; i < 3; i++) {
+			result[i] = toArray(devices[i]);
+		}
+		return result;
+	}
+
+	private static byte[] merge(byte[][] split, int dead) throws IOException {
+		RaidBufferMerger merger = new RaidBufferMerger(split[3], dead, KEY);
+		ByteBuffer[] devices = new ByteBuffer[3];
+		for (int i = 0; i < 3; i++) {
+			if (i != dead) {
+				devices[i] = ByteBuffer.allocateDirect(split[i].length);
+				devices[i].put(split[i]);
+				devices[i].flip();
+				devices[i].limit(0);
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocateDirect(3 * 2048);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		boolean last = false;
+		int len;
+		do {
+			// Make the next chunk of the devices available
+			last = true;
+			for (int i = 0; i < 3; i++) {
+				if (devices[i] != null) {
+					devices[i].limit(Math.min(devices[i].capacity(),
+							devices[i].limit() + CHUNK));
+					last &= devices[i].limit() == devices[i].capacity();
+				}
+			}
+			do {
+				out.clear();
+				len = merger.merge(devices, last, out);
+				bos.write(toArray(out));
+			} while (len > 0);
+		} while (!last);
+		merger.finish();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testSplit() throws IOException {
+		for (int size : SIZES) {
+			byte[] data = content(size);
+			byte[][] split = split(data);
+			for (int dead = 0; dead < 3; dead++) {
+				InputStream[] devices = new InputStream[3];
+				for (int i = 0; i < 3; i++) {
+					devices[i] = new ByteArrayInputStream(split[i]);
+				}
+				InputStream is = new JavaRaidCodec().merge(devices, dead,
+						split[3], KEY);
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				int c;
+				while ((c = is.read()) >= 0) {
+					bos.write(c);
+				}
+				is.close();
+				assertArrayEquals("Size " + size + ", dead " + dead, data,
+						bos.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void testMerge() throws IOException {
+		for (int size : SIZES) {
+			byte[] data = content(size);
+			byte[][] split = split(data);
+			for (int dead = 0; dead < 3; dead++) {
+				assertArrayEquals("Size " + size + ", dead " + dead, data,
+						merge(split, dead));
+			}
+		}
+	}
+
+	@Test
+	public void testMergeCorrupt() throws IOException {
+		byte[][] split = split(content(5000));
+		split[0][0] ^= 0xff;
+		try {
+			merge(split, 2);
+			fail("Merge of a corrupt device succeeded");
+		} catch (IOException expected) {
+		}
+	}
+
+}
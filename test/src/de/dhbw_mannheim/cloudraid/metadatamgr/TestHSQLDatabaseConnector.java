@@ -35,6 +35,7 @@ import org.junit.Test;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.impl.Config;
+import de.dhbw_mannheim.cloudraid.metadatamgr.IMetadataManager.FILE_STATUS;
 import de.dhbw_mannheim.cloudraid.metadatamgr.impl.HSQLMetadataManager;
 
 /**
@@ -126,6 +127,150 @@ public class TestHSQLDatabaseConnector {
 		assertEquals(dbc.fileDelete(id), 0);
 	}
 
+	@Test
+	public void testListByState() {
+		String path = "path4";
+		int id = dbc.fileNew(path, "hash4", TIME, user2Id);
+		assertTrue(id >= 0);
+		assertTrue(dbc.fileUpdateState(id, FILE_STATUS.UPLOADED));
+
+		boolean found = false;
+		for (ICloudFile cf : dbc.fileList(FILE_STATUS.UPLOADED)) {
+			assertEquals(FILE_STATUS.UPLOADED.toString(), cf.getStatus());
+			found |= cf.getFileId() == id;
+		}
+		assertTrue(found);
+		for (ICloudFile cf : dbc.fileList(FILE_STATUS.READY)) {
+			assertTrue(cf.getFileId() != id);
+		}
+		assertEquals(1, dbc.fileDelete(id));
+	}
+
+	@Test
+	public void testSize() {
+		String path = "path5";
+		int id = dbc.fileNew(path, "hash5", TIME, user2Id);
+		assertTrue(id >= 0);
+		assertEquals(-1, dbc.fileById(id).getSize());
+		assertTrue(dbc.fileUpdateSize(id, 5000000000L));
+		assertEquals(5000000000L, dbc.fileById(id).getSize());
+		assertEquals(1, dbc.fileDelete(id));
+	}
+
+	@Test
+	public void testPacks() {
+		int id = dbc.fileNew("path6", "hash6", TIME, user1Id);
+		int id2 = dbc.fileNew("path7", "hash7", TIME, user1Id);
+		assertTrue(id >= 0);
+		assertTrue(id2 >= 0);
+		long[] lengths = { 500, 500, 500 };
+		assertTrue(dbc.packNew("pack1", 3000));
+		assertTrue(dbc.packNew("pack2", 3000));
+		assertTrue(dbc.packEntryPut(id, "pack1", new long[] { 0, 0, 0 },
+				lengths));
+		assertTrue(dbc.packEntryPut(id2, "pack1",
+				new long[] { 500, 500, 500 }, lengths));
+
+		IPackEntry entry = dbc.packEntryGet(id2);
+		assertEquals("pack1", entry.getPack());
+		assertEquals(500, entry.getOffset(1));
+		assertEquals(500, entry.getLength(2));
+		assertEquals(2, dbc.packEntryList("pack1").size());
+		assertFalse(dbc.packListSparse(50).contains("pack1"));
+		assertTrue(dbc.packListSparse(50).contains("pack2"));
+
+		// Deleting a file leaves a hole in its pack
+		assertEquals(1, dbc.fileDelete(id2));
+		assertNull(dbc.packEntryGet(id2));
+		assertTrue(dbc.packListSparse(50).contains("pack1"));
+
+		// A file is only moved from the pack it is stored in
+		assertFalse(dbc.packEntryMove(id, "pack2", "pack1", new long[] { 0,
+				0, 0 }, lengths));
+		assertTrue(dbc.packEntryMove(id, "pack1", "pack2", new long[] { 100,
+				100, 100 }, lengths));
+		assertEquals("pack2", dbc.packEntryGet(id).getPack());
+		assertEquals(100, dbc.packEntryGet(id).getOffset(0));
+		assertEquals(0, dbc.packEntryList("pack1").size());
+		assertEquals(1, dbc.packDelete("pack1"));
+
+		assertEquals(1, dbc.packEntryDelete(id));
+		assertNull(dbc.packEntryGet(id));
+		assertEquals(1, dbc.packDelete("pack2"));
+		assertEquals(1, dbc.fileDelete(id));
+	}
+
+	@Test
+	public void testPackStore() {
+		int id = dbc.fileNew("path10", "hash10", TIME, user1Id);
+		int id2 = dbc.fileNew("path11", "hash11", TIME, user1Id);
+		assertTrue(id >= 0);
+		assertTrue(id2 >= 0);
+		long[] lengths = { 500, 500, 500 };
+		long[][] offsets = { { 0, 0, 0 }, { 500, 500, 500 } };
+		assertEquals(0, dbc.packStore("pack3", 3000, new int[] { id, id2 },
+				new String[2], offsets, new long[][] { lengths, lengths }));
+		assertEquals("pack3", dbc.packEntryGet(id2).getPack());
+
+		// A failing entry rolls back the pack and all other entries
+		assertEquals(-1, dbc.packStore("pack4", 3000,
+				new int[] { id, -1 }, new String[] { "pack3", null },
+				offsets, new long[][] { lengths, lengths }));
+		assertEquals("pack3", dbc.packEntryGet(id).getPack());
+		assertEquals(0, dbc.packDelete("pack4"));
+
+		// Only files still stored in their previous pack are moved
+		assertEquals(1, dbc.packStore("pack4", 3000, new int[] { id, id2 },
+				new String[] { "pack3", "pack1" }, offsets, new long[][] {
+						lengths, lengths }));
+		assertEquals("pack4", dbc.packEntryGet(id).getPack());
+		assertEquals("pack3", dbc.packEntryGet(id2).getPack());
+
+		assertEquals(1, dbc.fileDelete(id));
+		assertEquals(1, dbc.fileDelete(id2));
+		assertEquals(1, dbc.packDelete("pack3"));
+		assertEquals(1, dbc.packDelete("pack4"));
+	}
+
+	@Test
+	public void testChunks() {
+		int id = dbc.fileNew("path8", "hash8", TIME, user1Id);
+		int id2 = dbc.fileNew("path9", "hash9", TIME, user1Id);
+		assertTrue(id >= 0);
+		assertTrue(id2 >= 0);
+		assertTrue(dbc.fileChunks(id).isEmpty());
+
+		assertNull(dbc.chunkAcquire("chunk1"));
+		assertTrue(dbc.chunkNew("chunk1", "object1", 100));
+		assertFalse(dbc.chunkNew("chunk1", "object2", 100));
+		assertTrue(dbc.chunkNew("chunk2", "object2", 50));
+		assertTrue(dbc.fileChunksPut(id, new String[] { "chunk1", "chunk2" },
+				new long[] { 0, 100 }));
+
+		// The second file shares the first chunk
+		assertEquals("object1", dbc.chunkAcquire("chunk1"));
+		assertTrue(dbc.fileChunksPut(id2, new String[] { "chunk1" },
+				new long[] { 0 }));
+
+		IChunkEntry[] chunks = dbc.fileChunks(id).toArray(new IChunkEntry[0]);
+		assertEquals(2, chunks.length);
+		assertEquals("chunk2", chunks[1].getChunk());
+		assertEquals("object2", chunks[1].getHash());
+		assertEquals(100, chunks[1].getOffset());
+		assertEquals(50, chunks[1].getLength());
+
+		// A chunk is deleted once the last reference is released
+		assertEquals(2, dbc.fileChunksDelete(id));
+		assertNull(dbc.chunkRelease("chunk1"));
+		assertEquals("object2", dbc.chunkRelease("chunk2"));
+		assertNull(dbc.chunkAcquire("chunk2"));
+		assertEquals(1, dbc.fileChunks(id2).size());
+		assertEquals(1, dbc.fileDelete(id2));
+		assertTrue(dbc.fileChunks(id2).isEmpty());
+		assertEquals("object1", dbc.chunkRelease("chunk1"));
+		assertEquals(1, dbc.fileDelete(id));
+	}
+
 	@Test
 	public void testAuthUser() {
 		assertTrue(dbc.addUser("testuser", "testpw"));
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2011 - 2012 by the CloudRAID Team
+ * see AUTHORS for more details
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package de.dhbw_mannheim.cloudraid.raid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.dhbw_mannheim.cloudraid.core.impl.jni.RaidAccessInterface;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.IRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.JavaRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.NativeRaidCodec;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.Raid5Metadata;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.Raid5SplitOutputStream;
+import de.dhbw_mannheim.cloudraid.core.impl.raid.SplitOutputStream;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
+
+/**
+ * @author Markus Holtermann
+ */
+public class TestJavaRaidCodec {
+
+	private static final String KEY = "CloudRAID";
+	private static final String NAME = "TestJavaRaidCodec.in";
+	private static final int[] SIZES = { 0, 1, 7, 1024, 1025, 2048, 2049,
+			3000, 20 * 1024 + 13 };
+
+	private File dir;
+	private IRaidCodec java = new JavaRaidCodec();
+	private IRaidCodec jni = new NativeRaidCodec();
+
+	private static byte[] content(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int len;
+		try {
+			while ((len = is.read(buf)) >= 0) {
+				bos.write(buf, 0, len);
+			}
+		} finally {
+			is.close();
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		return read(new FileInputStream(f));
+	}
+
+	@Before
+	public void setUp() {
+		this.dir = new File(System.getProperty("java.io.tmpdir"),
+				"cloudraid-test-codec");
+		this.dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : this.dir.listFiles()) {
+			f.delete();
+		}
+		this.dir.delete();
+	}
+
+	private String path() {
+		return this.dir.getAbsolutePath() + File.separator;
+	}
+
+	private String split(IRaidCodec codec, byte[] data) throws IOException {
+		FileOutputStream fos = new FileOutputStream(new File(this.dir, NAME));
+		fos.write(data);
+		fos.close();
+		return codec.splitFile(path(), NAME, path(), KEY);
+	}
+
+	private byte[] merge(IRaidCodec codec, String hash) throws IOException {
+		File out = new File(this.dir, "TestJavaRaidCodec.out");
+		codec.mergeFile(path(), hash, out.getAbsolutePath(), KEY);
+		return readFile(out);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for (int size : SIZES) {
+			byte[] data = content(size);
+			String hash = split(this.java, data);
+			assertEquals(64, hash.length());
+			assertArrayEquals("Size " + size, data, merge(this.java, hash));
+		}
+	}
+
+	@Test
+	public void testSplitStream() throws IOException {
+		byte[] data = content(10000);
+		SplitOutputStream sos = this.java.split(NAME, path(), KEY);
+		for (int off = 0; off < data.length; off += 333) {
+			sos.write(data, off, Math.min(333, data.length - off));
+		}
+		sos.close();
+		assertArrayEquals(data, merge(this.java, sos.getHash()));
+	}
+
+	@Test
+	public void testNativeCompatibility() throws IOException {
+		for (int size : SIZES) {
+			byte[] data = content(size);
+			assertArrayEquals("Size " + size, data,
+					merge(this.jni, split(this.java, data)));
+			assertArrayEquals("Size " + size, data,
+					merge(this.java, split(this.jni, data)));
+		}
+	}
+
+	@Test
+	public void testBlockSize() throws IOException {
+		for (int blockSize : new int[] { 300, 64 * 1024 }) {
+			IRaidCodec java = new JavaRaidCodec(blockSize);
+			IRaidCodec jni = new NativeRaidCodec(blockSize);
+			for (int size : new int[] { 0, 599, 600, 601, 200 * 1024 + 7 }) {
+				byte[] data = content(size);
+				String hash = split(java, data);
+				assertEquals(blockSize, Raid5Metadata.parse(
+						readFile(new File(this.dir, hash + ".m")))
+						.getBlockSize());
+				assertArrayEquals("Size " + size, data, merge(jni, hash));
+				assertArrayEquals("Size " + size, data,
+						merge(java, split(jni, data)));
+			}
+		}
+	}
+
+	@Test
+	public void testVersion() throws IOException {
+		byte[] data = content(3000);
+		String hash = split(this.java, data);
+		assertEquals(Raid5Metadata.VERSION,
+				Raid5Metadata.parse(readFile(new File(this.dir, hash + ".m")))
+						.getVersion());
+		hash = split(this.jni, data);
+		assertEquals(Raid5Metadata.VERSION,
+				Raid5Metadata.parse(readFile(new File(this.dir, hash + ".m")))
+						.getVersion());
+	}
+
+	@Test
+	public void testChunkHashes() throws IOException {
+		IRaidCodec java = new JavaRaidCodec(1024);
+		IRaidCodec jni = new NativeRaidCodec(1024);
+		int threads = RaidAccessInterface.getThreadCount();
+		RaidAccessInterface.setThreadCount(4);
+		try {
+			for (int size : new int[] { 2 * 1024 * 1024,
+					5 * 1024 * 1024 + 333 }) {
+				byte[] data = content(size);
+				String hash = split(java, data);
+				assertEquals(1024, Raid5Metadata.parse(
+						readFile(new File(this.dir, hash + ".m")))
+						.getChunkStripes());
+				assertArrayEquals("Size " + size, data, merge(jni, hash));
+				hash = split(jni, data);
+				assertEquals(1024, Raid5Metadata.parse(
+						readFile(new File(this.dir, hash + ".m")))
+						.getChunkStripes());
+				assertArrayEquals("Size " + size, data, merge(java, hash));
+			}
+		} finally {
+			RaidAccessInterface.setThreadCount(threads);
+		}
+	}
+
+	@Test
+	public void testLegacyVersions() throws IOException {
+		int[][] versions = {
+				{ Raid5Metadata.VERSION_2, Raid5Metadata.DEFAULT_BLOCK_SIZE },
+				{ Raid5Metadata.VERSION_3, 300 },
+				{ Raid5Metadata.VERSION_4, 300 } };
+		for (int[] version : versions) {
+			for (int size : SIZES) {
+				byte[] data = content(size);
+				SplitOutputStream sos = new Raid5SplitOutputStream(NAME,
+						path(), KEY, version[1], version[0]);
+				sos.write(data);
+				sos.close();
+				String hash = sos.getHash();
+				assertEquals(version[0], Raid5Metadata.parse(
+						readFile(new File(this.dir, hash + ".m")))
+						.getVersion());
+				assertArrayEquals("Size " + size, data, merge(this.java, hash));
+				assertArrayEquals("Size " + size, data, merge(this.jni, hash));
+			}
+		}
+	}
+
+	@Test
+	public void testDeadDevice() throws IOException {
+		for (int size : SIZES) {
+			byte[] data = content(size);
+			String hash = split(this.java, data);
+			byte[] metadata = readFile(new File(this.dir, hash + ".m"));
+			for (int dead = 0; dead < 3; dead++) {
+				InputStream[] devices = new InputStream[3];
+				for (int i = 0; i < 3; i++) {
+					if (i != dead) {
+						devices[i] = new FileInputStream(new File(this.dir,
+								hash + "." + i));
+					}
+				}
+				assertArrayEquals("Size " + size + ", dead " + dead, data,
+						read(this.java.merge(devices, dead, metadata, KEY)));
+			}
+		}
+	}
+
+	@Test
+	public void testRangedMerge() throws IOException {
+		int size = 5000;
+		byte[] data = content(size);
+		long[][] ranges = { { 0, 1 }, { 0, size }, { 599, 2 }, { 600, 600 },
+				{ 1234, 2000 }, { size - 1, 1 }, { 4000, size - 4000 } };
+		for (int version : new int[] { Raid5Metadata.VERSION_3,
+				Raid5Metadata.VERSION }) {
+			SplitOutputStream sos = new Raid5SplitOutputStream(NAME, path(),
+					KEY, 300, version);
+			sos.write(data);
+			sos.close();
+			String hash = sos.getHash();
+			byte[] metadata = readFile(new File(this.dir, hash + ".m"));
+			for (long[] range : ranges) {
+				// A stripe holds 600 bytes of the file, 300 of every device
+				long first = range[0] / 600;
+				long last = (range[0] + range[1] - 1) / 600;
+				byte[] expected = Arrays.copyOfRange(data, (int) range[0],
+						(int) (range[0] + range[1]));
+				for (int dead = 0; dead < 3; dead++) {
+					for (IRaidCodec codec : new IRaidCodec[] { this.java,
+							this.jni }) {
+						InputStream[] devices = new InputStream[3];
+						for (int i = 0; i < 3; i++) {
+							if (i != dead) {
+								devices[i] = new RangedInputStream(
+										new FileInputStream(new File(this.dir,
+												hash + "." + i)), first * 300,
+										(last - first + 1) * 300 + 1);
+							}
+						}
+						InputStream is = codec.merge(devices, dead, metadata,
+								KEY, first);
+						assertArrayEquals("Version " + version + ", range "
+								+ range[0] + "+" + range[1] + ", dead " + dead,
+								expected, read(new RangedInputStream(is,
+										range[0] - first * 600, range[1])));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCorruptDevice() throws IOException {
+		byte[] data = content(5000);
+		String hash = split(this.java, data);
+
+		corrupt(new File(this.dir, hash + ".1"));
+		assertArrayEquals(data, merge(this.java, hash));
+
+		corrupt(new File(this.dir, hash + ".2"));
+		try {
+			merge(this.java, hash);
+			fail("Merge of two corrupt devices succeeded");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void testDamagedDevice() throws IOException {
+		byte[] data = content(200 * 1024 + 7);
+		for (IRaidCodec codec : new IRaidCodec[] { this.java, this.jni }) {
+			for (int d = 0; d < 3; d++) {
+				String hash = split(this.java, data);
+				corrupt(new File(this.dir, hash + "." + d));
+				assertArrayEquals("Changed " + d, data, merge(codec, hash));
+
+				hash = split(this.java, data);
+				RandomAccessFile raf = new RandomAccessFile(new File(this.dir,
+						hash + "." + d), "rw");
+				raf.setLength(raf.length() - 1);
+				raf.close();
+				assertArrayEquals("Shortened " + d, data, merge(codec, hash));
+			}
+		}
+	}
+
+	private void corrupt(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		int b = raf.read();
+		raf.seek(0);
+		raf.write(b ^ 0xff);
+		raf.close();
+	}
+
+}
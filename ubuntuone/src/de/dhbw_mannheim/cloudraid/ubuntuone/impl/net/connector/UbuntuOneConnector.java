@@ -23,11 +23,15 @@
 package de.dhbw_mannheim.cloudraid.ubuntuone.impl.net.connector;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.scribe.builder.ServiceBuilder;
 import org.scribe.model.OAuthRequest;
@@ -39,7 +43,9 @@ import org.scribe.utils.OAuthEncoder;
 
 import de.dhbw_mannheim.cloudraid.config.ICloudRAIDConfig;
 import de.dhbw_mannheim.cloudraid.config.exceptions.MissingConfigValueException;
+import de.dhbw_mannheim.cloudraid.core.net.connector.HttpConnections;
 import de.dhbw_mannheim.cloudraid.core.net.connector.IStorageConnector;
+import de.dhbw_mannheim.cloudraid.core.net.connector.RangedInputStream;
 import de.dhbw_mannheim.cloudraid.ubuntuone.impl.net.oauth.UbuntuOneApi;
 import de.dhbw_mannheim.cloudraid.ubuntuone.impl.net.oauth.UbuntuOneService;
 
@@ -48,6 +54,11 @@ import de.dhbw_mannheim.cloudraid.ubuntuone.impl.net.oauth.UbuntuOneService;
  */
 public class UbuntuOneConnector implements IStorageConnector {
 
+	/**
+	 * The size of the buffer used to stream files to UbuntuOne
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * The user name at UbuntuOne. This has to be the users email address
 	 */
@@ -111,6 +122,7 @@ public class UbuntuOneConnector implements IStorageConnector {
 
 		Response response = sendRequest(Verb.GET,
 				this.service.getApiBaseEndpoint() + "/account/");
+		HttpConnections.release(response.getStream());
 		if (response.getCode() == 200) {
 			return true;
 		}
@@ -150,6 +162,7 @@ public class UbuntuOneConnector implements IStorageConnector {
 			throws InstantiationException {
 		this.id = connectorid;
 		this.config = config;
+		HttpConnections.configure(config);
 		String kCustomerKey = String.format("connector.%d.customer_key",
 				this.id);
 		String kCustomerSecret = String.format("connector.%d.customer_secret",
@@ -194,14 +207,18 @@ public class UbuntuOneConnector implements IStorageConnector {
 						+ "/~/Ubuntu%20One/"
 						+ OAuthEncoder.encode(resource + "."
 								+ String.valueOf(this.id)));
+		HttpConnections.release(response.getStream());
 		boolean ret = (response.getCode() == 200 || response.getCode() == 404);
-		sendRequest(Verb.DELETE, this.service.getFileStorageEndpoint()
-				+ "/~/Ubuntu%20One/" + OAuthEncoder.encode(resource + ".m"));
+		response = sendRequest(Verb.DELETE,
+				this.service.getFileStorageEndpoint() + "/~/Ubuntu%20One/"
+						+ OAuthEncoder.encode(resource + ".m"));
+		HttpConnections.release(response.getStream());
 		return ret;
 	}
 
 	@Override
 	public void disconnect() {
+		System.out.println(HttpConnections.getStatistics());
 	}
 
 	@Override
@@ -212,10 +229,25 @@ public class UbuntuOneConnector implements IStorageConnector {
 		if (response.getCode() == 200) {
 			return response.getStream();
 		} else {
+			HttpConnections.release(response.getStream());
 			return null;
 		}
 	}
 
+	@Override
+	public InputStream get(String resource, long offset, long length) {
+		OAuthRequest request = new OAuthRequest(Verb.GET,
+				this.service.getContentRootEndpoint() + "/~/Ubuntu%20One/"
+						+ resource + "." + this.id);
+		request.addHeader("Range", RangedInputStream.header(offset, length));
+		this.service.signRequest(this.stoken, request);
+		request.setConnectionKeepAlive(true);
+		Response response = request.send();
+		System.err.println(String.format("@Response(%d, GET, %s)",
+				response.getCode(), request.getCompleteUrl()));
+		return ranged(response, offset, length);
+	}
+
 	@Override
 	public byte[] getMetadata(String resource, int size) {
 		Response response = sendRequest(Verb.GET,
@@ -227,17 +259,61 @@ public class UbuntuOneConnector implements IStorageConnector {
 			byte meta[] = new byte[size];
 			Arrays.fill(meta, (byte) 0);
 			try {
-				bis.read(meta, 0, size);
+				int pos = 0;
+				int len;
+				while (pos < size
+						&& (len = bis.read(meta, pos, size - pos)) >= 0) {
+					pos += len;
+				}
 			} catch (IOException ignore) {
 				meta = null;
 			} finally {
-				try {
-					bis.close();
-				} catch (Exception ignore) {
-				}
+				HttpConnections.release(bis);
 			}
 			return meta;
 		}
+		HttpConnections.release(response.getStream());
+		return null;
+	}
+
+	@Override
+	public boolean putMetadata(String resource, byte[] data) {
+		OAuthRequest request = new OAuthRequest(Verb.PUT,
+				this.service.getContentRootEndpoint() + "/~/Ubuntu%20One/"
+						+ OAuthEncoder.encode(resource + ".m"));
+		request.addHeader("Content-Type", "application/octet-stream");
+		request.addPayload(data);
+		this.service.signRequest(this.stoken, request);
+		request.setConnectionKeepAlive(true);
+		Response response = request.send();
+		System.err.println(String.format("@Response(%d, PUT, %s)",
+				response.getCode(), request.getCompleteUrl()));
+		HttpConnections.release(response.getStream());
+		return response.getCode() == 200 || response.getCode() == 201;
+	}
+
+	/**
+	 * Limits the body of a response to a ranged GET request to the requested
+	 * range. A server that ignores the <code>Range</code> header answers with
+	 * the whole file, in this case the bytes before <code>offset</code> are
+	 * skipped.
+	 * 
+	 * @return The stream of the range or <code>null</code> if the request
+	 *         failed.
+	 */
+	private static InputStream ranged(Response response, long offset,
+			long length) {
+		try {
+			if (response.getCode() == 206) {
+				return new RangedInputStream(response.getStream(), 0, length);
+			} else if (response.getCode() == 200) {
+				return new RangedInputStream(response.getStream(), offset,
+						length);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		HttpConnections.release(response.getStream());
 		return null;
 	}
 
@@ -266,26 +342,17 @@ public class UbuntuOneConnector implements IStorageConnector {
 		if (f.length() > maxFilesize) {
 			System.err.println("File too big.");
 		} else {
-			byte[] fileBytes = new byte[(int) f.length()];
-			InputStream fis = null;
+			int code;
 			try {
-				fis = new FileInputStream(f);
-				fis.read(fileBytes);
+				code = sendRequest(Verb.PUT,
+						this.service.getContentRootEndpoint()
+								+ "/~/Ubuntu%20One/"
+								+ OAuthEncoder.encode(resource), f);
 			} catch (IOException e) {
 				e.printStackTrace();
 				return false;
-			} finally {
-				try {
-					if (fis != null) {
-						fis.close();
-					}
-				} catch (IOException ignore) {
-				}
 			}
-			Response response = sendRequest(Verb.PUT,
-					this.service.getContentRootEndpoint() + "/~/Ubuntu%20One/"
-							+ OAuthEncoder.encode(resource), fileBytes);
-			if (response.getCode() == 200 || response.getCode() == 201) {
+			if (code == 200 || code == 201) {
 				return true;
 			}
 		}
@@ -310,6 +377,7 @@ public class UbuntuOneConnector implements IStorageConnector {
 		OAuthRequest request = new OAuthRequest(verb, endpoint);
 		System.err.println(request);
 		this.service.signRequest(this.stoken, request);
+		request.setConnectionKeepAlive(true);
 		Response response = request.send();
 		System.err.println(String.format("@Response(%d, %s, %s)",
 				response.getCode(), verb, endpoint));
@@ -318,7 +386,7 @@ public class UbuntuOneConnector implements IStorageConnector {
 	}
 
 	/**
-	 * Add a payload / body content to the request
+	 * Add a file as body content to the request
 	 * 
 	 * @see de.dhbw_mannheim.cloudraid.core.impl.net.connector.UbuntuOneConnector#sendRequest(Verb,
 	 *      String)
@@ -327,21 +395,87 @@ public class UbuntuOneConnector implements IStorageConnector {
 	 * @param endpoint
 	 *            The URL that is called
 	 * @param body
-	 *            The payload
-	 * @return Returns the response of getting the specified endpoint with the
-	 *         given method.
+	 *            The file to send, it is streamed to the server
+	 * @return Returns the HTTP status code of the response.
+	 * @throws IOException
+	 *             Thrown, if the file cannot be read or sent.
 	 */
-	private Response sendRequest(Verb verb, String endpoint, byte[] body) {
+	private int sendRequest(Verb verb, String endpoint, File body)
+			throws IOException {
 		System.err.flush();
 		OAuthRequest request = new OAuthRequest(verb, endpoint);
 		System.err.println(request);
 		this.service.signRequest(this.stoken, request);
-		request.addPayload(body);
-		Response response = request.send();
-		System.err.println(String.format("@Response(%d, %s, %s)",
-				response.getCode(), verb, endpoint));
+		int code = sendFile(request, body);
+		System.err.println(String.format("@Response(%d, %s, %s)", code, verb,
+				endpoint));
 		System.err.flush();
-		return response;
+		return code;
+	}
+
+	/**
+	 * Sends the signed <code>request</code> with the content of
+	 * <code>f</code> as body. The file is streamed to the server with a fixed
+	 * content length instead of being read into memory first.
+	 * 
+	 * @param request
+	 *            The signed request without a payload.
+	 * @param f
+	 *            The file to send.
+	 * @return The HTTP status code of the response.
+	 * @throws IOException
+	 *             Thrown, if the file cannot be read or sent.
+	 */
+	private static int sendFile(OAuthRequest request, File f)
+			throws IOException {
+		HttpURLConnection con = HttpConnections.open(request
+				.getCompleteUrl());
+		con.setRequestMethod(request.getVerb().name());
+		for (Map.Entry<String, String> header : request.getHeaders()
+				.entrySet()) {
+			con.setRequestProperty(header.getKey(), header.getValue());
+		}
+		con.setDoOutput(true);
+		long length = f.length();
+		if (length <= Integer.MAX_VALUE) {
+			con.setFixedLengthStreamingMode((int) length);
+		} else {
+			con.setChunkedStreamingMode(BUFFER_SIZE);
+		}
+		byte[] buf = new byte[BUFFER_SIZE];
+		int len;
+		InputStream is = new FileInputStream(f);
+		try {
+			OutputStream os = con.getOutputStream();
+			try {
+				while ((len = is.read(buf)) >= 0) {
+					os.write(buf, 0, len);
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+
+		// Read the whole response, so the connection can be reused
+		int code = con.getResponseCode();
+		InputStream body = code >= 400 ? con.getErrorStream() : con
+				.getInputStream();
+		if (body != null) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				while ((len = body.read(buf)) >= 0) {
+					bos.write(buf, 0, len);
+				}
+			} finally {
+				body.close();
+			}
+			if (code >= 400) {
+				System.err.println(bos.toString());
+			}
+		}
+		return code;
 	}
 
 	@Override
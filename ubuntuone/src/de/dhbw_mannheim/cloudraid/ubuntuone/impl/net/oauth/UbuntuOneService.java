@@ -144,6 +144,7 @@ public class UbuntuOneService implements OAuthService {
 
 		signRequest(requestToken, request);
 
+		request.setConnectionKeepAlive(true);
 		Response response = request.send();
 		System.err
 				.println("[DEBUG] UbuntuOneService.getAccessToken(): response.getCode() = "
@@ -209,6 +210,7 @@ public class UbuntuOneService implements OAuthService {
 				.println("[DEBUG] UbuntuOneService.getRequestToken(): tokenRequest.getHeaders() = "
 						+ tokenRequest.getHeaders().toString());
 
+		tokenRequest.setConnectionKeepAlive(true);
 		Response response = tokenRequest.send();
 		System.err
 				.println("[DEBUG] UbuntuOneService.getRequestToken(): response.getCode() = "